@@ -0,0 +1,149 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.cluster;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Computes data placement locally from a versioned snapshot of the data
+ * nodes of a cluster, so drivers can answer getPrimaryNodeForData and
+ * friends without a remote call. Register it with
+ * AbstractClusterDriver.addLocalClusterEventHandler to keep the topology
+ * current; membership events derive the next topology from the current one.
+ *
+ * A failed node keeps its rank until it leaves, so a transient failure does
+ * not move data; callers fall back to the backup nodes meanwhile. A node the
+ * cluster view does not know yet is not placed, the same as in
+ * Cluster.getDataNodeNames(); refresh() picks it up once it is registered.
+ *
+ * @author iychoi
+ */
+public class DataPlacementEngine extends AbstractLocalClusterEventHandler {
+
+    private static final Log LOG = LogFactory.getLog(DataPlacementEngine.class);
+    
+    private Cluster cluster;
+    private int replicaNum;
+    private volatile DataPlacementTopology topology;
+    
+    public DataPlacementEngine(Cluster cluster, int replicaNum) throws IOException {
+        if(cluster == null) {
+            throw new IllegalArgumentException("cluster is null");
+        }
+        
+        if(replicaNum < 0) {
+            throw new IllegalArgumentException("replicaNum is negative");
+        }
+        
+        this.cluster = cluster;
+        this.replicaNum = replicaNum;
+        this.topology = new DataPlacementTopology(cluster.getDataNodeNames());
+    }
+    
+    public int getReplicaNum() {
+        return this.replicaNum;
+    }
+    
+    /**
+     * Returns the current topology; callers placing many keys should take
+     * it once so all keys are placed against the same version.
+     */
+    public DataPlacementTopology getTopology() {
+        return this.topology;
+    }
+    
+    public long getTopologyVersion() {
+        return this.topology.getVersion();
+    }
+    
+    /**
+     * Rebuilds the topology from the data nodes of the cluster; keeps the
+     * current one if the membership did not change.
+     */
+    public synchronized void refresh() throws IOException {
+        Collection<String> dataNodeNames = this.cluster.getDataNodeNames();
+        if(this.topology.hasSameNodes(dataNodeNames)) {
+            return;
+        }
+        
+        this.topology = new DataPlacementTopology(dataNodeNames);
+        LOG.debug(String.format("Placement topology refreshed - version %x", this.topology.getVersion()));
+    }
+    
+    public String getPrimaryNodeForData(String key) {
+        return this.topology.getPrimaryNode(key);
+    }
+    
+    public List<String> getBackupNodesForData(String key) {
+        return this.topology.getBackupNodes(key, this.replicaNum);
+    }
+    
+    public List<String> getPrimaryAndBackupNodesForData(String key) {
+        return this.topology.getPrimaryAndBackupNodes(key, this.replicaNum);
+    }
+    
+    public Map<String, String> getPrimaryNodesForData(Collection<String> keys) {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        DataPlacementTopology current = this.topology;
+        Map<String, String> placement = new HashMap<String, String>();
+        for(String key : keys) {
+            placement.put(key, current.getPrimaryNode(key));
+        }
+        return placement;
+    }
+    
+    private boolean isDataNode(String nodeName) {
+        Node node = this.cluster.getNode(nodeName);
+        return node != null && node.isDataNode();
+    }
+    
+    @Override
+    public synchronized void nodeJoined(String nodeName) {
+        if(nodeName == null || nodeName.isEmpty()) {
+            return;
+        }
+        
+        if(isDataNode(nodeName)) {
+            this.topology = this.topology.withNode(nodeName);
+            LOG.debug(String.format("Node %s joined - placement topology version %x", nodeName, this.topology.getVersion()));
+        }
+    }
+    
+    @Override
+    public synchronized void nodeFailed(String nodeName) {
+        // stays ranked until it leaves
+        LOG.debug(String.format("Node %s failed - placement topology version %x kept", nodeName, this.topology.getVersion()));
+    }
+    
+    @Override
+    public synchronized void nodeLeft(String nodeName) {
+        if(nodeName == null || nodeName.isEmpty()) {
+            return;
+        }
+        
+        this.topology = this.topology.withoutNode(nodeName);
+        LOG.debug(String.format("Node %s left - placement topology version %x", nodeName, this.topology.getVersion()));
+    }
+}
@@ -0,0 +1,244 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import stargate.commons.utils.HashUtils;
+
+/**
+ * Immutable, versioned set of data nodes with rendezvous (highest random
+ * weight) placement over it. Each key goes to the nodes that score highest
+ * for it, so adding or removing a node only moves the keys that node wins
+ * or held.
+ *
+ * The version is a hash of the membership, so every node that sees the same
+ * data nodes computes the same version. Versions identify a membership and
+ * are not ordered.
+ *
+ * @author iychoi
+ */
+public class DataPlacementTopology {
+
+    private final long version;
+    private final String[] nodeNames;
+    private final long[] nodeSeeds;
+    
+    public DataPlacementTopology(Collection<String> nodeNames) {
+        if(nodeNames == null) {
+            throw new IllegalArgumentException("nodeNames is null");
+        }
+        
+        // sorted so that every node builds the same topology
+        TreeSet<String> sortedNames = new TreeSet<String>(nodeNames);
+        this.nodeNames = sortedNames.toArray(new String[sortedNames.size()]);
+        this.nodeSeeds = new long[this.nodeNames.length];
+        for(int i=0;i<this.nodeNames.length;i++) {
+            this.nodeSeeds[i] = HashUtils.hash64(this.nodeNames[i]);
+        }
+        this.version = makeVersion(this.nodeSeeds);
+    }
+    
+    private DataPlacementTopology(String[] nodeNames, long[] nodeSeeds) {
+        this.nodeNames = nodeNames;
+        this.nodeSeeds = nodeSeeds;
+        this.version = makeVersion(nodeSeeds);
+    }
+    
+    /**
+     * Hashes the seeds of the sorted node names in order.
+     */
+    private static long makeVersion(long[] nodeSeeds) {
+        long h = nodeSeeds.length;
+        for(long seed : nodeSeeds) {
+            h = HashUtils.fmix64(h * 31 + seed);
+        }
+        return h;
+    }
+    
+    public long getVersion() {
+        return this.version;
+    }
+    
+    public int getNodeNum() {
+        return this.nodeNames.length;
+    }
+    
+    public Collection<String> getNodeNames() {
+        return Collections.unmodifiableList(Arrays.asList(this.nodeNames));
+    }
+    
+    public boolean hasNode(String nodeName) {
+        return Arrays.binarySearch(this.nodeNames, nodeName) >= 0;
+    }
+    
+    /**
+     * Tells whether the topology has exactly the given nodes.
+     */
+    public boolean hasSameNodes(Collection<String> nodeNames) {
+        if(nodeNames == null) {
+            throw new IllegalArgumentException("nodeNames is null");
+        }
+        
+        TreeSet<String> sortedNames = new TreeSet<String>(nodeNames);
+        if(sortedNames.size() != this.nodeNames.length) {
+            return false;
+        }
+        
+        int i = 0;
+        for(String nodeName : sortedNames) {
+            if(!nodeName.equals(this.nodeNames[i++])) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the topology with the node added; seeds of the other nodes
+     * are reused. Returns this topology if the node is already in it.
+     */
+    public DataPlacementTopology withNode(String nodeName) {
+        if(nodeName == null || nodeName.isEmpty()) {
+            throw new IllegalArgumentException("nodeName is null or empty");
+        }
+        
+        int index = Arrays.binarySearch(this.nodeNames, nodeName);
+        if(index >= 0) {
+            return this;
+        }
+        
+        int insertAt = -index - 1;
+        String[] newNames = new String[this.nodeNames.length + 1];
+        long[] newSeeds = new long[this.nodeSeeds.length + 1];
+        System.arraycopy(this.nodeNames, 0, newNames, 0, insertAt);
+        System.arraycopy(this.nodeSeeds, 0, newSeeds, 0, insertAt);
+        newNames[insertAt] = nodeName;
+        newSeeds[insertAt] = HashUtils.hash64(nodeName);
+        System.arraycopy(this.nodeNames, insertAt, newNames, insertAt + 1, this.nodeNames.length - insertAt);
+        System.arraycopy(this.nodeSeeds, insertAt, newSeeds, insertAt + 1, this.nodeSeeds.length - insertAt);
+        return new DataPlacementTopology(newNames, newSeeds);
+    }
+    
+    /**
+     * Returns the topology without the node, or this topology if the
+     * node is not in it.
+     */
+    public DataPlacementTopology withoutNode(String nodeName) {
+        if(nodeName == null || nodeName.isEmpty()) {
+            throw new IllegalArgumentException("nodeName is null or empty");
+        }
+        
+        int index = Arrays.binarySearch(this.nodeNames, nodeName);
+        if(index < 0) {
+            return this;
+        }
+        
+        String[] newNames = new String[this.nodeNames.length - 1];
+        long[] newSeeds = new long[this.nodeSeeds.length - 1];
+        System.arraycopy(this.nodeNames, 0, newNames, 0, index);
+        System.arraycopy(this.nodeSeeds, 0, newSeeds, 0, index);
+        System.arraycopy(this.nodeNames, index + 1, newNames, index, this.nodeNames.length - index - 1);
+        System.arraycopy(this.nodeSeeds, index + 1, newSeeds, index, this.nodeSeeds.length - index - 1);
+        return new DataPlacementTopology(newNames, newSeeds);
+    }
+    
+    private static long score(long keyHash, long nodeSeed) {
+        // non-negative, so scores compare as signed longs
+        return HashUtils.fmix64(keyHash ^ nodeSeed) >>> 1;
+    }
+    
+    /**
+     * Returns the indexes of the count highest scoring nodes for the key,
+     * best first. Ties go to the node that sorts first.
+     */
+    private int[] selectNodes(String key, int count) {
+        int num = Math.min(count, this.nodeNames.length);
+        int[] best = new int[num];
+        long[] bestScores = new long[num];
+        int filled = 0;
+        
+        long keyHash = HashUtils.hash64(key);
+        for(int i=0;i<this.nodeNames.length;i++) {
+            long s = score(keyHash, this.nodeSeeds[i]);
+            if(filled == num && s <= bestScores[num - 1]) {
+                continue;
+            }
+            
+            int pos = filled < num ? filled++ : num - 1;
+            while(pos > 0 && bestScores[pos - 1] < s) {
+                best[pos] = best[pos - 1];
+                bestScores[pos] = bestScores[pos - 1];
+                pos--;
+            }
+            best[pos] = i;
+            bestScores[pos] = s;
+        }
+        return best;
+    }
+    
+    /**
+     * Returns the primary node of the key, or null if there is no node.
+     */
+    public String getPrimaryNode(String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        
+        int[] selected = selectNodes(key, 1);
+        if(selected.length == 0) {
+            return null;
+        }
+        return this.nodeNames[selected[0]];
+    }
+    
+    /**
+     * Returns the primary node followed by up to replicaNum backup nodes.
+     */
+    public List<String> getPrimaryAndBackupNodes(String key, int replicaNum) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        
+        if(replicaNum < 0) {
+            throw new IllegalArgumentException("replicaNum is negative");
+        }
+        
+        int[] selected = selectNodes(key, replicaNum + 1);
+        List<String> nodes = new ArrayList<String>(selected.length);
+        for(int index : selected) {
+            nodes.add(this.nodeNames[index]);
+        }
+        return nodes;
+    }
+    
+    public List<String> getBackupNodes(String key, int replicaNum) {
+        List<String> nodes = getPrimaryAndBackupNodes(key, replicaNum);
+        if(nodes.isEmpty()) {
+            return nodes;
+        }
+        return nodes.subList(1, nodes.size());
+    }
+    
+    @Override
+    public String toString() {
+        return "DataPlacementTopology{" + "version=" + version + ", nodes=" + Arrays.toString(nodeNames) + '}';
+    }
+}
@@ -0,0 +1,156 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+/**
+ * Adaptive replacement cache policy (Megiddo and Modha) measured in bytes.
+ * Resident keys are split into a recency list (t1) and a frequency list
+ * (t2); ghost lists of recently evicted keys (b1, b2) steer the byte target
+ * of t1.
+ *
+ * @author iychoi
+ */
+public class ARCEvictionPolicy<K> extends AbstractEvictionPolicy<K> {
+
+    private long capacity;
+    private long target;
+    private boolean lastInsertFromB2;
+    private EvictionList<K> t1 = new EvictionList<K>();
+    private EvictionList<K> t2 = new EvictionList<K>();
+    private EvictionList<K> b1 = new EvictionList<K>();
+    private EvictionList<K> b2 = new EvictionList<K>();
+    
+    public ARCEvictionPolicy(long capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("capacity is not positive");
+        }
+        
+        this.capacity = capacity;
+        this.target = 0;
+        this.lastInsertFromB2 = false;
+    }
+    
+    @Override
+    public EvictionPolicyType getType() {
+        return EvictionPolicyType.EVICTION_POLICY_ARC;
+    }
+    
+    public long getCapacity() {
+        return this.capacity;
+    }
+    
+    public long getTarget() {
+        return this.target;
+    }
+    
+    @Override
+    public void onInsert(K key, long size) {
+        this.lastInsertFromB2 = false;
+        
+        if(this.t1.contains(key) || this.t2.contains(key)) {
+            this.t1.remove(key);
+            this.t2.remove(key);
+            this.t2.addMostRecent(key, size);
+            return;
+        }
+        
+        if(this.b1.contains(key)) {
+            // recency ghost hit - grow the recency target
+            long delta = Math.max(1, this.b2.getBytes() / Math.max(1, this.b1.getBytes())) * size;
+            this.target = Math.min(this.capacity, this.target + delta);
+            this.b1.remove(key);
+            this.t2.addMostRecent(key, size);
+        } else if(this.b2.contains(key)) {
+            // frequency ghost hit - shrink the recency target
+            long delta = Math.max(1, this.b1.getBytes() / Math.max(1, this.b2.getBytes())) * size;
+            this.target = Math.max(0, this.target - delta);
+            this.b2.remove(key);
+            this.t2.addMostRecent(key, size);
+            this.lastInsertFromB2 = true;
+        } else {
+            this.t1.addMostRecent(key, size);
+        }
+        
+        trimGhosts();
+    }
+    
+    private void trimGhosts() {
+        while(!this.b1.isEmpty() && this.t1.getBytes() + this.b1.getBytes() > this.capacity) {
+            this.b1.remove(this.b1.getLeastRecent());
+        }
+        
+        long total = this.t1.getBytes() + this.t2.getBytes() + this.b1.getBytes() + this.b2.getBytes();
+        while(!this.b2.isEmpty() && total > 2 * this.capacity) {
+            total -= this.b2.remove(this.b2.getLeastRecent());
+        }
+    }
+    
+    @Override
+    public void onAccess(K key) {
+        long size = this.t1.remove(key);
+        if(size < 0) {
+            size = this.t2.remove(key);
+        }
+        
+        if(size >= 0) {
+            this.t2.addMostRecent(key, size);
+        }
+    }
+    
+    @Override
+    public void onRemove(K key) {
+        this.t1.remove(key);
+        this.t2.remove(key);
+        this.b1.remove(key);
+        this.b2.remove(key);
+    }
+    
+    @Override
+    public K selectVictim() {
+        if(!this.t1.isEmpty()) {
+            long t1Bytes = this.t1.getBytes();
+            if(this.t2.isEmpty() || t1Bytes > this.target || (this.lastInsertFromB2 && t1Bytes == this.target)) {
+                return this.t1.getLeastRecent();
+            }
+        }
+        return this.t2.getLeastRecent();
+    }
+    
+    @Override
+    public void onEvict(K key) {
+        long size = this.t1.remove(key);
+        if(size >= 0) {
+            this.b1.addMostRecent(key, size);
+        } else {
+            size = this.t2.remove(key);
+            if(size >= 0) {
+                this.b2.addMostRecent(key, size);
+            }
+        }
+        
+        trimGhosts();
+    }
+    
+    @Override
+    public void clear() {
+        this.t1.clear();
+        this.t2.clear();
+        this.b1.clear();
+        this.b2.clear();
+        this.target = 0;
+        this.lastInsertFromB2 = false;
+    }
+}
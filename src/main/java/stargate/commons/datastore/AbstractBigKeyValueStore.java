@@ -45,6 +45,10 @@ public abstract class AbstractBigKeyValueStore {
     
     public abstract String getPrimaryNodeForData(String key) throws IOException;
     public abstract boolean isPrimaryNodeForDataLocal(String key) throws IOException;
+    /**
+     * Returns the local file that holds the data of the key. Stores that do
+     * not keep a file per entry throw UnsupportedOperationException.
+     */
     public abstract File getCacheFilePath(String key) throws IOException;
     public abstract Collection<String> getBackupNodesForData(String key) throws IOException;
     public abstract Collection<String> getPrimaryAndBackupNodesForData(String key) throws IOException;
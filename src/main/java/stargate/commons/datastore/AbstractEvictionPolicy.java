@@ -0,0 +1,81 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+/**
+ * Size-aware eviction policy of a bounded store tier. The tier reports what
+ * it holds and asks for victims while it is over capacity; policies are not
+ * thread-safe and are guarded by the tier.
+ *
+ * @author iychoi
+ */
+public abstract class AbstractEvictionPolicy<K> {
+
+    public static <K> AbstractEvictionPolicy<K> createInstance(EvictionPolicyType type, long capacity) {
+        if(type == null) {
+            throw new IllegalArgumentException("type is null");
+        }
+        
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("capacity is not positive");
+        }
+        
+        switch(type) {
+            case EVICTION_POLICY_LRU:
+                return new LRUEvictionPolicy<K>();
+            case EVICTION_POLICY_ARC:
+                return new ARCEvictionPolicy<K>(capacity);
+            case EVICTION_POLICY_WTINYLFU:
+                return new TinyLFUEvictionPolicy<K>(capacity);
+            default:
+                throw new IllegalArgumentException(String.format("unknown eviction policy - %s", type.getStrVal()));
+        }
+    }
+    
+    public abstract EvictionPolicyType getType();
+    
+    /**
+     * A key of the given size became resident.
+     */
+    public abstract void onInsert(K key, long size);
+    
+    /**
+     * A resident key was read.
+     */
+    public abstract void onAccess(K key);
+    
+    /**
+     * A key that is not resident was looked up.
+     */
+    public void onMiss(K key) {
+    }
+    
+    /**
+     * A resident key was removed by the store, not by eviction.
+     */
+    public abstract void onRemove(K key);
+    
+    /**
+     * Returns the resident key to evict next, or null if nothing is
+     * resident. The tier must evict the returned key and report it with
+     * onEvict.
+     */
+    public abstract K selectVictim();
+    
+    public abstract void onEvict(K key);
+    
+    public abstract void clear();
+}
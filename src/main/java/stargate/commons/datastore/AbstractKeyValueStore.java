@@ -16,15 +16,53 @@
 package stargate.commons.datastore;
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  *
  * @author iychoi
  */
 public abstract class AbstractKeyValueStore {
+    
+    private static final Log LOG = LogFactory.getLog(AbstractKeyValueStore.class);
+    
+    private static final int DEFAULT_ASYNC_EXECUTOR_THREADS = 8;
+    private static final int FALLBACK_LISTING_WARN_KEYS = 10000;
+    
+    private static ExecutorService defaultAsyncExecutor;
+    
+    private final AtomicBoolean fallbackListingWarned = new AtomicBoolean(false);
+    
+    public static synchronized ExecutorService getDefaultAsyncExecutor() {
+        if(defaultAsyncExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            defaultAsyncExecutor = Executors.newFixedThreadPool(DEFAULT_ASYNC_EXECUTOR_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "kvstore-async-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultAsyncExecutor;
+    }
+    
     public abstract String getName();
     public abstract Class getValueClass();
     public abstract DataStoreProperties getProperties();
@@ -49,4 +87,201 @@ public abstract class AbstractKeyValueStore {
     public abstract void clear() throws IOException;
     public abstract Future<Void> clearAsync() throws IOException;
     public abstract Map<String, Object> toMap() throws IOException;
+    
+    /**
+     * Executor that runs the default async calls. Drivers with their own
+     * worker pool override this.
+     */
+    protected ExecutorService getAsyncExecutor() {
+        return getDefaultAsyncExecutor();
+    }
+    
+    /**
+     * Drivers with a native async read override this; the default runs the
+     * read on the async executor.
+     */
+    public Future<Object> getAsync(final String key) throws IOException {
+        return getAsyncExecutor().submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return get(key);
+            }
+        });
+    }
+    
+    /*
+     * Batch operations - drivers should override these with a native bulk
+     * call; the defaults pipeline the single-key async calls and report
+     * failures per key instead of failing the whole batch.
+     */
+    public KeyValueStoreBatchResult<Object> getAll(Collection<String> keys) throws IOException {
+        return waitBatch(getAllAsync(keys));
+    }
+    
+    public Future<KeyValueStoreBatchResult<Object>> getAllAsync(Collection<String> keys) throws IOException {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        KeyValueStoreBatchFuture<Object> batch = new KeyValueStoreBatchFuture<Object>();
+        for(String key : keys) {
+            try {
+                batch.addFuture(key, getAsync(key));
+            } catch (IOException ex) {
+                batch.addError(key, ex);
+            } catch (RuntimeException ex) {
+                batch.addError(key, new IOException(ex));
+            }
+        }
+        return batch;
+    }
+    
+    public KeyValueStoreBatchResult<Void> putAll(Map<String, Object> entries) throws IOException {
+        return waitBatch(putAllAsync(entries));
+    }
+    
+    public Future<KeyValueStoreBatchResult<Void>> putAllAsync(Map<String, Object> entries) throws IOException {
+        if(entries == null) {
+            throw new IllegalArgumentException("entries is null");
+        }
+        
+        KeyValueStoreBatchFuture<Void> batch = new KeyValueStoreBatchFuture<Void>();
+        for(Map.Entry<String, Object> entry : entries.entrySet()) {
+            try {
+                batch.addFuture(entry.getKey(), putAsync(entry.getKey(), entry.getValue()));
+            } catch (IOException ex) {
+                batch.addError(entry.getKey(), ex);
+            } catch (RuntimeException ex) {
+                batch.addError(entry.getKey(), new IOException(ex));
+            }
+        }
+        return batch;
+    }
+    
+    public KeyValueStoreBatchResult<Boolean> removeAll(Collection<String> keys) throws IOException {
+        return waitBatch(removeAllAsync(keys));
+    }
+    
+    public Future<KeyValueStoreBatchResult<Boolean>> removeAllAsync(Collection<String> keys) throws IOException {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        KeyValueStoreBatchFuture<Boolean> batch = new KeyValueStoreBatchFuture<Boolean>();
+        for(String key : keys) {
+            try {
+                batch.addFuture(key, removeAsync(key));
+            } catch (IOException ex) {
+                batch.addError(key, ex);
+            } catch (RuntimeException ex) {
+                batch.addError(key, new IOException(ex));
+            }
+        }
+        return batch;
+    }
+    
+    protected static <V> KeyValueStoreBatchResult<V> waitBatch(Future<KeyValueStoreBatchResult<V>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+    
+    /*
+     * Paged listing - pages are in key order and the continuation token is
+     * the last key of the page. Drivers with an ordered or cursor-capable
+     * backend should override listKeys. The default is a fallback only: every
+     * page is a full scan over keys(), which the driver materializes in
+     * whole, so listing a large store this way costs one full scan per page.
+     * A warning is logged once per store the first time a scan is large.
+     */
+    public DataStorePage<String> listKeys(String prefix, String continuationToken, int pageSize) throws IOException {
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize is not positive");
+        }
+        
+        // the pageSize + 1 smallest matching keys after the token
+        TreeSet<String> page = new TreeSet<String>();
+        int scanned = 0;
+        for(String key : keys()) {
+            scanned++;
+            if(!matchesListing(key, prefix, continuationToken)) {
+                continue;
+            }
+            
+            if(page.size() <= pageSize) {
+                page.add(key);
+            } else if(key.compareTo(page.last()) < 0) {
+                page.add(key);
+                page.pollLast();
+            }
+        }
+        
+        if(scanned > FALLBACK_LISTING_WARN_KEYS && this.fallbackListingWarned.compareAndSet(false, true)) {
+            LOG.warn(String.format("Listing %s scans all %d keys per page - the driver does not override listKeys", getName(), scanned));
+        }
+        
+        return makeKeyPage(new ArrayList<String>(page), pageSize);
+    }
+    
+    public DataStorePage<Map.Entry<String, Object>> listEntries(String prefix, String continuationToken, int pageSize) throws IOException {
+        DataStorePage<String> keyPage = listKeys(prefix, continuationToken, pageSize);
+        KeyValueStoreBatchResult<Object> values = getAll(keyPage.getItems());
+        values.throwIfFailed();
+        
+        List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>();
+        for(String key : keyPage.getItems()) {
+            Object value = values.getResult(key);
+            // removed or expired since it was listed
+            if(value != null) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, Object>(key, value));
+            }
+        }
+        return new DataStorePage<Map.Entry<String, Object>>(entries, keyPage.getContinuationToken());
+    }
+    
+    public DataStoreCursor<String> keyCursor(final String prefix, int pageSize) {
+        return new DataStoreCursor<String>(null, pageSize) {
+            @Override
+            protected DataStorePage<String> fetchPage(String continuationToken, int pageSize) throws IOException {
+                return listKeys(prefix, continuationToken, pageSize);
+            }
+        };
+    }
+    
+    public DataStoreCursor<Map.Entry<String, Object>> entryCursor(final String prefix, int pageSize) {
+        return new DataStoreCursor<Map.Entry<String, Object>>(null, pageSize) {
+            @Override
+            protected DataStorePage<Map.Entry<String, Object>> fetchPage(String continuationToken, int pageSize) throws IOException {
+                return listEntries(prefix, continuationToken, pageSize);
+            }
+        };
+    }
+    
+    protected static boolean matchesListing(String key, String prefix, String continuationToken) {
+        if(prefix != null && !key.startsWith(prefix)) {
+            return false;
+        }
+        return continuationToken == null || key.compareTo(continuationToken) > 0;
+    }
+    
+    /**
+     * Makes a page from up to pageSize + 1 sorted keys; the extra key only
+     * tells that another page follows.
+     */
+    protected static DataStorePage<String> makeKeyPage(List<String> keys, int pageSize) {
+        if(keys.size() <= pageSize) {
+            return new DataStorePage<String>(keys, null);
+        }
+        
+        List<String> items = new ArrayList<String>(keys.subList(0, pageSize));
+        return new DataStorePage<String>(items, items.get(pageSize - 1));
+    }
 }
@@ -16,7 +16,9 @@
 package stargate.commons.datastore;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import stargate.commons.utils.JsonSerializer;
 
 /**
  *
@@ -34,4 +36,87 @@ public abstract class AbstractQueue {
     public abstract void enqueue(Object value) throws IOException;
     public abstract void clear() throws IOException;
     public abstract List<Object> toList() throws IOException;
+    
+    /*
+     * Paged listing in queue order - the continuation token identifies the
+     * last item of the page by its position and a fingerprint of its value,
+     * so a listing resumes after that item even when the head moved on
+     * between pages. The default pages over toList(); drivers should
+     * override it to read a range natively.
+     */
+    public DataStorePage<Object> listItems(String continuationToken, int pageSize) throws IOException {
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize is not positive");
+        }
+        
+        List<Object> list = toList();
+        int start = 0;
+        if(continuationToken != null && !continuationToken.isEmpty()) {
+            start = findResumePosition(list, continuationToken);
+        }
+        
+        if(start >= list.size()) {
+            return new DataStorePage<Object>(new ArrayList<Object>(), null);
+        }
+        
+        int end = Math.min(list.size(), start + pageSize);
+        String nextToken = null;
+        if(end < list.size()) {
+            nextToken = makeItemToken(end - 1, list.get(end - 1));
+        }
+        return new DataStorePage<Object>(new ArrayList<Object>(list.subList(start, end)), nextToken);
+    }
+    
+    public DataStoreCursor<Object> itemCursor(int pageSize) {
+        return new DataStoreCursor<Object>(null, pageSize) {
+            @Override
+            protected DataStorePage<Object> fetchPage(String continuationToken, int pageSize) throws IOException {
+                return listItems(continuationToken, pageSize);
+            }
+        };
+    }
+    
+    protected static String makeItemToken(int position, Object item) throws IOException {
+        return position + ":" + Integer.toHexString(fingerprint(item));
+    }
+    
+    /**
+     * Returns the position right after the item the token names. Items only
+     * leave at the head, so the item is searched from its old position
+     * towards the head; once it is gone every remaining item came after it.
+     */
+    protected static int findResumePosition(List<Object> list, String continuationToken) throws IOException {
+        int sep = continuationToken.indexOf(':');
+        if(sep <= 0) {
+            throw new IOException(String.format("invalid continuation token %s", continuationToken));
+        }
+        
+        int position;
+        int fingerprint;
+        try {
+            position = Integer.parseInt(continuationToken.substring(0, sep));
+            fingerprint = (int) Long.parseLong(continuationToken.substring(sep + 1), 16);
+        } catch (NumberFormatException ex) {
+            throw new IOException(String.format("invalid continuation token %s", continuationToken), ex);
+        }
+        
+        if(position < 0) {
+            throw new IOException(String.format("invalid continuation token %s", continuationToken));
+        }
+        
+        for(int i=Math.min(position, list.size() - 1);i>=0;i--) {
+            if(fingerprint(list.get(i)) == fingerprint) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+    
+    private static int fingerprint(Object item) throws IOException {
+        if(item == null) {
+            return 0;
+        }
+        // values are often deserialized per call, so hash their content
+        return JsonSerializer.toJson(item).hashCode();
+    }
 }
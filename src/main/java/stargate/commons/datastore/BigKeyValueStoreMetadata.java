@@ -16,22 +16,28 @@
 package stargate.commons.datastore;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 import stargate.commons.utils.JsonSerializer;
+import stargate.commons.utils.VarIntUtils;
 
 /**
  *
  * @author iychoi
  */
 public class BigKeyValueStoreMetadata {
+    
+    private static final byte ENCODING_MAGIC = (byte) 0x4d;
+    private static final byte ENCODING_VERSION = 1;
+    private static final byte LEGACY_STREAM_MAGIC_0 = (byte) 0xac;
+    private static final byte LEGACY_STREAM_MAGIC_1 = (byte) 0xed;
 
     private String key;
     private int partNum;
@@ -170,31 +176,139 @@ public class BigKeyValueStoreMetadata {
         this.extra = extra;
     }
     
+    /*
+     * Binary layout (all integers big-endian):
+     *   byte    magic
+     *   byte    version
+     *   varint  key length, UTF-8 key
+     *   varint  part count
+     *   int64   entry size
+     *   varint  extra length (0 when absent), extra
+     * Records written by older releases are Java serialization streams,
+     * recognized by their 0xACED stream magic and still decoded from whole
+     * byte arrays.
+     */
+    @JsonIgnore
+    public int getEncodedSize() throws IOException {
+        return getEncodedSize(this.key.getBytes("UTF-8"));
+    }
+    
+    private int getEncodedSize(byte[] keyBytes) {
+        int extraLen = this.extra == null ? 0 : this.extra.length;
+        return 2 + VarIntUtils.getVarIntSize(keyBytes.length) + keyBytes.length
+                + VarIntUtils.getVarIntSize(this.partNum) + 8
+                + VarIntUtils.getVarIntSize(extraLen) + extraLen;
+    }
+    
     public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(output);
-        
-        byte[] keyBytes = this.key.getBytes();
-        oos.writeInt(keyBytes.length);
-        oos.write(keyBytes);
+        byte[] keyBytes = this.key.getBytes("UTF-8");
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize(keyBytes));
+        writeTo(buffer, keyBytes);
+        return buffer.array();
+    }
+    
+    public void writeTo(ByteBuffer buffer) throws IOException {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
         
-        oos.writeInt(this.partNum);
-        oos.writeLong(this.entrySize);
+        writeTo(buffer, this.key.getBytes("UTF-8"));
+    }
+    
+    private void writeTo(ByteBuffer buffer, byte[] keyBytes) {
+        buffer.put(ENCODING_MAGIC);
+        buffer.put(ENCODING_VERSION);
+        VarIntUtils.putVarInt(buffer, keyBytes.length);
+        buffer.put(keyBytes);
+        VarIntUtils.putVarInt(buffer, this.partNum);
+        buffer.putLong(this.entrySize);
         
         if(this.extra == null) {
-            oos.writeInt(0);
+            VarIntUtils.putVarInt(buffer, 0);
         } else {
-            oos.writeInt(this.extra.length);
-            oos.write(this.extra);
+            VarIntUtils.putVarInt(buffer, this.extra.length);
+            buffer.put(this.extra);
         }
-        
-        oos.close();
-        output.close();
-        return output.toByteArray();
+    }
+    
+    @JsonIgnore
+    public static boolean isLegacyEncoding(byte[] buf) {
+        return buf != null && buf.length >= 2 && buf[0] == LEGACY_STREAM_MAGIC_0 && buf[1] == LEGACY_STREAM_MAGIC_1;
     }
     
     @JsonIgnore
     public static BigKeyValueStoreMetadata fromBytes(byte[] buf) throws IOException {
+        if(buf == null) {
+            throw new IllegalArgumentException("buf is null");
+        }
+        
+        if(isLegacyEncoding(buf)) {
+            return fromLegacyBytes(buf);
+        }
+        return fromBytes(ByteBuffer.wrap(buf));
+    }
+    
+    /**
+     * Decodes a record starting at the buffer position and leaves the
+     * position after it. Legacy records carry no length of their own, so
+     * they are rejected here; decode them with fromBytes(byte[]).
+     */
+    @JsonIgnore
+    public static BigKeyValueStoreMetadata fromBytes(ByteBuffer buffer) throws IOException {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
+        
+        try {
+            if(buffer.remaining() >= 2 && buffer.get(buffer.position()) == LEGACY_STREAM_MAGIC_0 && buffer.get(buffer.position() + 1) == LEGACY_STREAM_MAGIC_1) {
+                throw new IOException("legacy metadata records can only be decoded from a whole byte array");
+            }
+            
+            byte magic = buffer.get();
+            if(magic != ENCODING_MAGIC) {
+                throw new IOException(String.format("unknown metadata encoding 0x%02x", magic & 0xff));
+            }
+            
+            byte version = buffer.get();
+            if(version != ENCODING_VERSION) {
+                throw new IOException(String.format("unsupported metadata encoding version %d", version));
+            }
+            
+            String key = getString(buffer, VarIntUtils.getVarInt(buffer));
+            int partNum = VarIntUtils.getVarInt(buffer);
+            long entrySize = buffer.getLong();
+            
+            int extraLen = VarIntUtils.getVarInt(buffer);
+            byte[] extra = null;
+            if(extraLen > 0) {
+                extra = new byte[extraLen];
+                buffer.get(extra);
+            }
+            
+            return new BigKeyValueStoreMetadata(key, partNum, entrySize, extra);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("truncated metadata record", ex);
+        }
+    }
+    
+    private static String getString(ByteBuffer buffer, int len) throws IOException {
+        if(len > buffer.remaining()) {
+            throw new IOException("truncated metadata record");
+        }
+        
+        String str;
+        if(buffer.hasArray()) {
+            str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, "UTF-8");
+            buffer.position(buffer.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            buffer.get(bytes);
+            str = new String(bytes, "UTF-8");
+        }
+        return str;
+    }
+    
+    private static BigKeyValueStoreMetadata fromLegacyBytes(byte[] buf) throws IOException {
         ByteArrayInputStream input = new ByteArrayInputStream(buf);
         ObjectInputStream ois = new ObjectInputStream(input);
         
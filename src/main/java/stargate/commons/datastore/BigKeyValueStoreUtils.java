@@ -24,6 +24,22 @@ public class BigKeyValueStoreUtils {
         return key + ":" + part;
     }
     
+    public static PartKey newPartKey(String key, int part) {
+        return new PartKey(key, part);
+    }
+    
+    public static String makePartkey(PartKey partKey) {
+        return partKey.toString();
+    }
+    
+    public static PartKey parsePartKey(String partkey) {
+        return PartKey.parse(partkey);
+    }
+    
+    public static String getPartitionKey(PartKey partKey) {
+        return partKey.getKey();
+    }
+    
     public static String getPartitionKey(String partkey) {
         int index = partkey.lastIndexOf(":");
         if(index > 0) {
@@ -34,6 +50,15 @@ public class BigKeyValueStoreUtils {
         }
     }
     
+    public static boolean isPartKey(Object key) {
+        if(key instanceof PartKey) {
+            return true;
+        } else if(key instanceof String) {
+            return isPartKey((String) key);
+        }
+        return false;
+    }
+    
     public static boolean isPartKey(String key) {
         int index = key.indexOf(":");
         if(index > 0) {
@@ -0,0 +1,531 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import stargate.commons.cluster.DataPlacementEngine;
+import stargate.commons.io.AbstractSeekableInputStream;
+import stargate.commons.utils.CountingBloomFilter;
+
+/**
+ * Answers definite misses of a big key-value store locally. Keys written
+ * through this node are tracked in a counting Bloom filter; snapshots of
+ * the filters of other nodes can be installed so keys they wrote are also
+ * covered. A lookup is answered as a definite miss only when no filter
+ * may contain the key and every node the key is placed on has a filter
+ * here that is current; otherwise it reaches the wrapped store.
+ *
+ * A remote snapshot counts as current for snapshotTimeoutMillis after it
+ * was installed, so a key written on another node is reported missing for
+ * at most that long. Placement comes from a local DataPlacementEngine, so
+ * a lookup never makes a remote call before the filters answer.
+ *
+ * Writes of a key run one at a time and update the filter after the
+ * wrapped store, checking with it whether the key was there before, so
+ * each key written through this node is counted once. Keys with a write
+ * in flight are never reported missing. A key removed here that another
+ * node wrote is only uncounted if this filter reports it, so with about
+ * the false positive rate such a remove can drain counts of another key;
+ * rebuild() restores exact counts.
+ *
+ * @author iychoi
+ */
+public class BloomFilteredBigKeyValueStore extends AbstractBigKeyValueStore {
+
+    private static final int KEY_LOCK_STRIPES = 64;
+    private static final long DEFAULT_SNAPSHOT_TIMEOUT_MSEC = 60 * 1000;
+    private static final double PPM = 1000000;
+    
+    private static final String COUNTER_FILTER_MISSES = "filter_definite_misses";
+    private static final String COUNTER_FILTER_POSITIVES = "filter_positives";
+    private static final String COUNTER_FILTER_FALSE_POSITIVES = "filter_false_positives";
+    private static final String COUNTER_FILTER_UNCOVERED = "filter_uncovered_lookups";
+    private static final String GAUGE_FILTER_MEMORY = "filter_memory_bytes";
+    private static final String GAUGE_FILTER_KEYS = "filter_keys";
+    private static final String GAUGE_FILTER_EXPECTED_FPP = "filter_expected_fpp_ppm";
+    private static final String GAUGE_FILTER_OBSERVED_FPP = "filter_observed_fpp_ppm";
+    
+    private AbstractBigKeyValueStore store;
+    private DataPlacementEngine placementEngine;
+    private String localNodeName;
+    private int expectedInsertions;
+    private double falsePositiveRate;
+    private long snapshotTimeoutMillis;
+    private volatile CountingBloomFilter filter;
+    private ConcurrentHashMap<String, RemoteFilter> remoteFilters = new ConcurrentHashMap<String, RemoteFilter>();
+    // keys with a write in flight, one writer per key
+    private ConcurrentHashMap<String, Boolean> writingKeys = new ConcurrentHashMap<String, Boolean>();
+    // filter updates hold the read lock, rebuild and clear swap the filter
+    // under the write lock so no update is lost
+    private ReentrantReadWriteLock filterLock = new ReentrantReadWriteLock();
+    private KeyValueStoreMetrics metrics;
+    private Object[] keyLocks;
+    
+    private static class RemoteFilter {
+        private CountingBloomFilter filter;
+        private long updateTime;
+        
+        RemoteFilter(CountingBloomFilter filter, long updateTime) {
+            this.filter = filter;
+            this.updateTime = updateTime;
+        }
+    }
+    
+    public BloomFilteredBigKeyValueStore(AbstractBigKeyValueStore store, DataPlacementEngine placementEngine, String localNodeName, Collection<String> existingKeys, int expectedInsertions, double falsePositiveRate) {
+        this(store, placementEngine, localNodeName, existingKeys, expectedInsertions, falsePositiveRate, DEFAULT_SNAPSHOT_TIMEOUT_MSEC);
+    }
+    
+    /**
+     * existingKeys must list every key of this node already in the store,
+     * or lookups of those keys would be reported as misses. placementEngine
+     * must place keys the way the wrapped store does.
+     */
+    public BloomFilteredBigKeyValueStore(AbstractBigKeyValueStore store, DataPlacementEngine placementEngine, String localNodeName, Collection<String> existingKeys, int expectedInsertions, double falsePositiveRate, long snapshotTimeoutMillis) {
+        if(store == null) {
+            throw new IllegalArgumentException("store is null");
+        }
+        
+        if(placementEngine == null) {
+            throw new IllegalArgumentException("placementEngine is null");
+        }
+        
+        if(localNodeName == null || localNodeName.isEmpty()) {
+            throw new IllegalArgumentException("localNodeName is null or empty");
+        }
+        
+        if(existingKeys == null) {
+            throw new IllegalArgumentException("existingKeys is null");
+        }
+        
+        if(expectedInsertions <= 0) {
+            throw new IllegalArgumentException("expectedInsertions is not positive");
+        }
+        
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate is not in (0, 1)");
+        }
+        
+        if(snapshotTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("snapshotTimeoutMillis is not positive");
+        }
+        
+        this.store = store;
+        this.placementEngine = placementEngine;
+        this.localNodeName = localNodeName;
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+        this.snapshotTimeoutMillis = snapshotTimeoutMillis;
+        this.metrics = KeyValueStoreMetrics.getInstance(store.getName());
+        
+        this.keyLocks = new Object[KEY_LOCK_STRIPES];
+        for(int i=0;i<KEY_LOCK_STRIPES;i++) {
+            this.keyLocks[i] = new Object();
+        }
+        
+        rebuild(existingKeys);
+        registerGauges();
+    }
+    
+    public AbstractBigKeyValueStore getStore() {
+        return this.store;
+    }
+    
+    /**
+     * Replaces the local filter with one built from the given keys.
+     */
+    public void rebuild(Collection<String> keys) {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        this.filterLock.writeLock().lock();
+        try {
+            CountingBloomFilter newFilter = new CountingBloomFilter(Math.max(this.expectedInsertions, keys.size()), this.falsePositiveRate);
+            for(String key : keys) {
+                newFilter.add(key);
+            }
+            this.filter = newFilter;
+        } finally {
+            this.filterLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns a snapshot of the local filter to send to other nodes.
+     */
+    public byte[] getFilterSnapshot() {
+        return this.filter.toBytes();
+    }
+    
+    public void updateRemoteFilter(String nodeName, byte[] snapshot) throws IOException {
+        if(nodeName == null || nodeName.isEmpty()) {
+            throw new IllegalArgumentException("nodeName is null or empty");
+        }
+        
+        if(snapshot == null) {
+            throw new IllegalArgumentException("snapshot is null");
+        }
+        
+        this.remoteFilters.put(nodeName, new RemoteFilter(CountingBloomFilter.fromBytes(snapshot), System.currentTimeMillis()));
+    }
+    
+    public void removeRemoteFilter(String nodeName) {
+        if(nodeName == null || nodeName.isEmpty()) {
+            throw new IllegalArgumentException("nodeName is null or empty");
+        }
+        
+        this.remoteFilters.remove(nodeName);
+    }
+    
+    public Collection<String> getRemoteFilterNodes() {
+        return Collections.unmodifiableCollection(this.remoteFilters.keySet());
+    }
+    
+    public long getFilterMemoryBytes() {
+        long bytes = this.filter.getMemoryBytes();
+        for(RemoteFilter remoteFilter : this.remoteFilters.values()) {
+            bytes += remoteFilter.filter.getMemoryBytes();
+        }
+        return bytes;
+    }
+    
+    /**
+     * Returns the false positive rate expected from the fill of the
+     * filters; a key is a false positive if any filter reports it.
+     */
+    public double getExpectedFalsePositiveRate() {
+        double negative = 1 - this.filter.getExpectedFalsePositiveRate();
+        for(RemoteFilter remoteFilter : this.remoteFilters.values()) {
+            negative *= 1 - remoteFilter.filter.getExpectedFalsePositiveRate();
+        }
+        return 1 - negative;
+    }
+    
+    /**
+     * Returns the share of filter positives that the store did not hold.
+     */
+    public double getObservedFalsePositiveRate() {
+        long positives = this.metrics.getCounter(COUNTER_FILTER_POSITIVES).sum();
+        if(positives == 0) {
+            return 0;
+        }
+        return (double) this.metrics.getCounter(COUNTER_FILTER_FALSE_POSITIVES).sum() / positives;
+    }
+    
+    private void registerGauges() {
+        this.metrics.setGauge(GAUGE_FILTER_MEMORY, new KeyValueStoreMetrics.GaugeSource() {
+            @Override
+            public long getValue() {
+                return getFilterMemoryBytes();
+            }
+        });
+        this.metrics.setGauge(GAUGE_FILTER_KEYS, new KeyValueStoreMetrics.GaugeSource() {
+            @Override
+            public long getValue() {
+                return filter.getKeyNum();
+            }
+        });
+        this.metrics.setGauge(GAUGE_FILTER_EXPECTED_FPP, new KeyValueStoreMetrics.GaugeSource() {
+            @Override
+            public long getValue() {
+                return (long) (getExpectedFalsePositiveRate() * PPM);
+            }
+        });
+        this.metrics.setGauge(GAUGE_FILTER_OBSERVED_FPP, new KeyValueStoreMetrics.GaugeSource() {
+            @Override
+            public long getValue() {
+                return (long) (getObservedFalsePositiveRate() * PPM);
+            }
+        });
+    }
+    
+    private Object getKeyLock(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return this.keyLocks[h & (KEY_LOCK_STRIPES - 1)];
+    }
+    
+    /**
+     * Returns false only when no filter may contain the key, no write of
+     * the key is in flight and every node the key is placed on is covered
+     * by a current filter.
+     */
+    public boolean mightContainKey(String key) {
+        if(this.filter.mightContain(key) || this.writingKeys.containsKey(key)) {
+            return true;
+        }
+        
+        for(RemoteFilter remoteFilter : this.remoteFilters.values()) {
+            if(remoteFilter.filter.mightContain(key)) {
+                return true;
+            }
+        }
+        
+        if(!isCovered(key)) {
+            this.metrics.increment(COUNTER_FILTER_UNCOVERED);
+            return true;
+        }
+        return false;
+    }
+    
+    private boolean isCovered(String key) {
+        Collection<String> nodes = this.placementEngine.getPrimaryAndBackupNodesForData(key);
+        if(nodes == null || nodes.isEmpty()) {
+            return false;
+        }
+        
+        long now = System.currentTimeMillis();
+        for(String node : nodes) {
+            if(this.localNodeName.equals(node)) {
+                continue;
+            }
+            
+            RemoteFilter remoteFilter = this.remoteFilters.get(node);
+            if(remoteFilter == null || now - remoteFilter.updateTime > this.snapshotTimeoutMillis) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void recordLookup(boolean found) {
+        this.metrics.increment(COUNTER_FILTER_POSITIVES);
+        if(!found) {
+            this.metrics.increment(COUNTER_FILTER_FALSE_POSITIVES);
+        }
+    }
+    
+    /**
+     * Waits until no other write of the key is in flight and claims it.
+     */
+    private void claimWrite(String key) throws IOException {
+        Object lock = getKeyLock(key);
+        synchronized(lock) {
+            while(this.writingKeys.putIfAbsent(key, Boolean.TRUE) != null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        }
+    }
+    
+    private void releaseWrite(String key) {
+        Object lock = getKeyLock(key);
+        synchronized(lock) {
+            this.writingKeys.remove(key);
+            lock.notifyAll();
+        }
+    }
+    
+    /**
+     * Counts a key the write made present. The caller holds the write
+     * claim of the key.
+     */
+    private void addToFilter(String key) {
+        this.filterLock.readLock().lock();
+        try {
+            this.filter.add(key);
+        } finally {
+            this.filterLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Uncounts a key the write made absent. The caller holds the write
+     * claim of the key.
+     */
+    private void removeFromFilter(String key) {
+        this.filterLock.readLock().lock();
+        try {
+            // a rebuild in between may not have counted it
+            if(this.filter.mightContain(key)) {
+                this.filter.remove(key);
+            }
+        } finally {
+            this.filterLock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public String getName() {
+        return this.store.getName();
+    }
+    
+    @Override
+    public DataStoreProperties getProperties() {
+        return this.store.getProperties();
+    }
+    
+    @Override
+    public int getPartSize() {
+        return this.store.getPartSize();
+    }
+    
+    @Override
+    public boolean containsKey(String key) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(!mightContainKey(key)) {
+            this.metrics.increment(COUNTER_FILTER_MISSES);
+            return false;
+        }
+        
+        boolean found = this.store.containsKey(key);
+        recordLookup(found);
+        return found;
+    }
+    
+    @Override
+    public BigKeyValueStoreMetadata getMetadata(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(!mightContainKey(key)) {
+            this.metrics.increment(COUNTER_FILTER_MISSES);
+            return null;
+        }
+        
+        BigKeyValueStoreMetadata metadata = this.store.getMetadata(key);
+        recordLookup(metadata != null);
+        return metadata;
+    }
+    
+    @Override
+    public AbstractSeekableInputStream getData(String key) throws IOException {
+        return this.store.getData(key);
+    }
+    
+    @Override
+    public void warmData(String key) throws IOException {
+        this.store.warmData(key);
+    }
+    
+    @Override
+    public void warmData(String key, BigKeyValueStoreMetadata metadata) throws IOException {
+        this.store.warmData(key, metadata);
+    }
+    
+    @Override
+    public AbstractSeekableInputStream getDataPart(String key, int partNo) throws IOException {
+        return this.store.getDataPart(key, partNo);
+    }
+    
+    @Override
+    public void put(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        claimWrite(key);
+        try {
+            boolean existed = this.store.containsKey(key);
+            this.store.put(key, dataIS, size, extra);
+            if(!existed) {
+                addToFilter(key);
+            }
+        } finally {
+            releaseWrite(key);
+        }
+    }
+    
+    @Override
+    public boolean putIfAbsent(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        claimWrite(key);
+        try {
+            boolean stored = this.store.putIfAbsent(key, dataIS, size, extra);
+            if(stored) {
+                addToFilter(key);
+            }
+            return stored;
+        } finally {
+            releaseWrite(key);
+        }
+    }
+    
+    @Override
+    public boolean replace(String key, BigKeyValueStoreMetadata oldMetadata, BigKeyValueStoreMetadata newMetadata) throws IOException {
+        return this.store.replace(key, oldMetadata, newMetadata);
+    }
+    
+    @Override
+    public void remove(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        claimWrite(key);
+        try {
+            boolean existed = this.store.containsKey(key);
+            this.store.remove(key);
+            if(existed) {
+                removeFromFilter(key);
+            }
+        } finally {
+            releaseWrite(key);
+        }
+    }
+    
+    @Override
+    public String getPrimaryNodeForData(String key) throws IOException {
+        return this.store.getPrimaryNodeForData(key);
+    }
+    
+    @Override
+    public boolean isPrimaryNodeForDataLocal(String key) throws IOException {
+        return this.store.isPrimaryNodeForDataLocal(key);
+    }
+    
+    @Override
+    public File getCacheFilePath(String key) throws IOException {
+        return this.store.getCacheFilePath(key);
+    }
+    
+    @Override
+    public Collection<String> getBackupNodesForData(String key) throws IOException {
+        return this.store.getBackupNodesForData(key);
+    }
+    
+    @Override
+    public Collection<String> getPrimaryAndBackupNodesForData(String key) throws IOException {
+        return this.store.getPrimaryAndBackupNodesForData(key);
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        this.filterLock.writeLock().lock();
+        try {
+            this.store.clear();
+            this.filter.clear();
+        } finally {
+            this.filterLock.writeLock().unlock();
+        }
+    }
+}
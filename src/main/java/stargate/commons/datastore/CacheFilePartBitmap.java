@@ -0,0 +1,335 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Persistent per-part presence bitmap of a preallocated cache file, kept in
+ * a sidecar next to it. Writers may fill parts in any order and mark each
+ * part once its data is written; readers only wait for the parts they need.
+ * The sidecar is removed when every part is present, after which the cache
+ * file is an ordinary complete file.
+ *
+ * Sidecar layout: magic (4), version (4), file size (8), part size (4),
+ * part count (4), then one bit per part.
+ *
+ * @author iychoi
+ */
+public class CacheFilePartBitmap {
+
+    public static final String SIDECAR_SUFFIX = ".parts";
+    
+    private static final int MAGIC = 0x53475042; // SGPB
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    
+    private File cacheFile;
+    private File sidecarFile;
+    private long fileSize;
+    private int partSize;
+    private int partNum;
+    private byte[] bits;
+    private int presentPartNum;
+    private RandomAccessFile sidecarRandomAccessFile;
+    
+    public static File getSidecarFile(File cacheFile) {
+        if(cacheFile == null) {
+            throw new IllegalArgumentException("cacheFile is null");
+        }
+        
+        return new File(cacheFile.getPath() + SIDECAR_SUFFIX);
+    }
+    
+    /**
+     * Creates the sidecar and preallocates the cache file for writing. An
+     * existing sidecar of the same geometry is resumed.
+     */
+    public static CacheFilePartBitmap create(File cacheFile, long fileSize, int partSize) throws IOException {
+        if(cacheFile == null) {
+            throw new IllegalArgumentException("cacheFile is null");
+        }
+        
+        if(fileSize < 0) {
+            throw new IllegalArgumentException("fileSize is negative");
+        }
+        
+        if(partSize <= 0) {
+            throw new IllegalArgumentException("partSize is not positive");
+        }
+        
+        CacheFilePartBitmap existing = load(cacheFile);
+        if(existing != null && existing.fileSize == fileSize && existing.partSize == partSize) {
+            existing.openForWrite();
+            return existing;
+        }
+        
+        CacheFilePartBitmap bitmap = new CacheFilePartBitmap(cacheFile, fileSize, partSize);
+        
+        // the sidecar has to exist before the file reaches its full length,
+        // otherwise readers would take the preallocated zeros as data
+        RandomAccessFile sidecar = new RandomAccessFile(bitmap.sidecarFile, "rw");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(fileSize);
+            header.putInt(partSize);
+            header.putInt(bitmap.partNum);
+            sidecar.setLength(0);
+            sidecar.write(header.array());
+            sidecar.write(bitmap.bits);
+            sidecar.getFD().sync();
+        } finally {
+            sidecar.close();
+        }
+        
+        RandomAccessFile cache = new RandomAccessFile(cacheFile, "rw");
+        try {
+            cache.setLength(fileSize);
+        } finally {
+            cache.close();
+        }
+        
+        bitmap.openForWrite();
+        return bitmap;
+    }
+    
+    /**
+     * Loads the bitmap of a cache file, or returns null if the file is not
+     * being filled by parts.
+     */
+    public static CacheFilePartBitmap load(File cacheFile) throws IOException {
+        if(cacheFile == null) {
+            throw new IllegalArgumentException("cacheFile is null");
+        }
+        
+        File sidecarFile = getSidecarFile(cacheFile);
+        if(!sidecarFile.exists()) {
+            return null;
+        }
+        
+        DataInputStream dis;
+        try {
+            dis = new DataInputStream(new FileInputStream(sidecarFile));
+        } catch (IOException ex) {
+            // removed in between - the fill has completed
+            return null;
+        }
+        
+        try {
+            int magic = dis.readInt();
+            int version = dis.readInt();
+            if(magic != MAGIC || version != VERSION) {
+                throw new IOException(String.format("unknown part bitmap format - %s", sidecarFile.getAbsolutePath()));
+            }
+            
+            long fileSize = dis.readLong();
+            int partSize = dis.readInt();
+            int partNum = dis.readInt();
+            
+            CacheFilePartBitmap bitmap = new CacheFilePartBitmap(cacheFile, fileSize, partSize);
+            if(bitmap.partNum != partNum) {
+                throw new IOException(String.format("corrupted part bitmap - %s", sidecarFile.getAbsolutePath()));
+            }
+            
+            dis.readFully(bitmap.bits);
+            bitmap.countPresentParts();
+            return bitmap;
+        } finally {
+            dis.close();
+        }
+    }
+    
+    private CacheFilePartBitmap(File cacheFile, long fileSize, int partSize) {
+        this.cacheFile = cacheFile;
+        this.sidecarFile = getSidecarFile(cacheFile);
+        this.fileSize = fileSize;
+        this.partSize = partSize;
+        this.partNum = BigKeyValueStoreUtils.getPartNum(fileSize, partSize);
+        this.bits = new byte[(this.partNum + 7) / 8];
+        this.presentPartNum = 0;
+    }
+    
+    private void openForWrite() throws IOException {
+        this.sidecarRandomAccessFile = new RandomAccessFile(this.sidecarFile, "rw");
+    }
+    
+    private void countPresentParts() {
+        int count = 0;
+        for(int i=0;i<this.partNum;i++) {
+            if((this.bits[i >> 3] & (1 << (i & 7))) != 0) {
+                count++;
+            }
+        }
+        this.presentPartNum = count;
+    }
+    
+    public File getCacheFile() {
+        return this.cacheFile;
+    }
+    
+    public long getFileSize() {
+        return this.fileSize;
+    }
+    
+    public int getPartSize() {
+        return this.partSize;
+    }
+    
+    public int getPartNum() {
+        return this.partNum;
+    }
+    
+    public synchronized int getPresentPartNum() {
+        return this.presentPartNum;
+    }
+    
+    public synchronized boolean isComplete() {
+        return this.presentPartNum >= this.partNum;
+    }
+    
+    public synchronized boolean isPresent(int partNo) {
+        if(partNo < 0 || partNo >= this.partNum) {
+            throw new IllegalArgumentException("partNo is out of range");
+        }
+        
+        return (this.bits[partNo >> 3] & (1 << (partNo & 7))) != 0;
+    }
+    
+    public synchronized boolean isRangePresent(long start, long end) {
+        if(end <= start) {
+            return true;
+        }
+        
+        if(end > this.fileSize) {
+            return false;
+        }
+        
+        int firstPart = BigKeyValueStoreUtils.getPartNo(start, this.partSize);
+        int lastPart = BigKeyValueStoreUtils.getPartNo(end - 1, this.partSize);
+        for(int i=firstPart;i<=lastPart;i++) {
+            if((this.bits[i >> 3] & (1 << (i & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the end of the run of present parts that contains start, or
+     * start if its part is missing.
+     */
+    public synchronized long getPresentRunEnd(long start) {
+        if(start >= this.fileSize) {
+            return this.fileSize;
+        }
+        
+        int firstPart = BigKeyValueStoreUtils.getPartNo(Math.max(0, start), this.partSize);
+        for(int i=firstPart;i<this.partNum;i++) {
+            if((this.bits[i >> 3] & (1 << (i & 7))) == 0) {
+                return Math.max(start, BigKeyValueStoreUtils.getPartStartOffset(this.partSize, i));
+            }
+        }
+        return this.fileSize;
+    }
+    
+    /**
+     * Marks a part present. The caller must have written (and, if it needs
+     * crash safety, forced) the part data before.
+     */
+    public synchronized void markPresent(int partNo) throws IOException {
+        if(this.sidecarRandomAccessFile == null) {
+            throw new IOException("part bitmap is not open for write");
+        }
+        
+        if(isPresent(partNo)) {
+            return;
+        }
+        
+        int byteIndex = partNo >> 3;
+        this.bits[byteIndex] |= (1 << (partNo & 7));
+        this.presentPartNum++;
+        
+        this.sidecarRandomAccessFile.seek(HEADER_SIZE + byteIndex);
+        this.sidecarRandomAccessFile.write(this.bits[byteIndex]);
+    }
+    
+    /**
+     * Re-reads the bits written by a writer in another process. A missing
+     * sidecar means the fill has completed.
+     */
+    public void reload() throws IOException {
+        // read without the lock, readers of the bits do not wait on the disk
+        byte[] newBits = new byte[this.bits.length];
+        if(!this.sidecarFile.exists()) {
+            if(this.cacheFile.exists() && this.cacheFile.length() >= this.fileSize) {
+                for(int i=0;i<newBits.length;i++) {
+                    newBits[i] = (byte) 0xff;
+                }
+                
+                synchronized(this) {
+                    this.bits = newBits;
+                    this.presentPartNum = this.partNum;
+                }
+            }
+            return;
+        }
+        
+        RandomAccessFile sidecar;
+        try {
+            sidecar = new RandomAccessFile(this.sidecarFile, "r");
+        } catch (IOException ex) {
+            return;
+        }
+        
+        try {
+            sidecar.seek(HEADER_SIZE);
+            sidecar.readFully(newBits);
+        } finally {
+            sidecar.close();
+        }
+        
+        synchronized(this) {
+            this.bits = newBits;
+            countPresentParts();
+        }
+    }
+    
+    /**
+     * Removes the sidecar once every part is present.
+     */
+    public synchronized void complete() throws IOException {
+        if(!isComplete()) {
+            throw new IOException(String.format("cannot complete - %d of %d parts are present", this.presentPartNum, this.partNum));
+        }
+        
+        close();
+        this.sidecarFile.delete();
+    }
+    
+    public synchronized void close() throws IOException {
+        if(this.sidecarRandomAccessFile != null) {
+            this.sidecarRandomAccessFile.close();
+            this.sidecarRandomAccessFile = null;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Fill progress of a single cache file. Writers publish how many bytes have
+ * landed, or which parts have when the file is filled out of order, and
+ * readers block until the bytes they need are there.
+ *
+ * @author iychoi
+ */
+public class CacheFillProgress {
+
+    private static final long RECHECK_INTERVAL_MSEC = 1000;
+    
+    private File file;
+    private volatile long length;
+    private volatile boolean writing;
+    private volatile boolean complete;
+    private volatile IOException error;
+    private volatile CacheFilePartBitmap bitmap;
+    private int waiters;
+    private final Object notifyObject = new Object();
+    
+    CacheFillProgress(File file) {
+        this.file = file;
+        this.length = -1;
+        this.writing = false;
+        this.complete = false;
+        this.error = null;
+        this.waiters = 0;
+    }
+    
+    public File getFile() {
+        return this.file;
+    }
+    
+    public long getLength() {
+        return this.length;
+    }
+    
+    public boolean isWriting() {
+        return this.writing;
+    }
+    
+    public boolean isComplete() {
+        return this.complete;
+    }
+    
+    public CacheFilePartBitmap getPartBitmap() {
+        return this.bitmap;
+    }
+    
+    int getWaiters() {
+        synchronized(this.notifyObject) {
+            return this.waiters;
+        }
+    }
+    
+    void addWaiter() {
+        synchronized(this.notifyObject) {
+            this.waiters++;
+        }
+    }
+    
+    void removeWaiter() {
+        synchronized(this.notifyObject) {
+            this.waiters--;
+        }
+    }
+    
+    /**
+     * Lock that guards the waiter count and the writing state.
+     */
+    Object getLock() {
+        return this.notifyObject;
+    }
+    
+    void begin() {
+        synchronized(this.notifyObject) {
+            // a new fill starts from an empty file
+            this.bitmap = null;
+            this.length = -1;
+            this.writing = true;
+            this.complete = false;
+            this.error = null;
+        }
+    }
+    
+    void beginParts(CacheFilePartBitmap bitmap) {
+        synchronized(this.notifyObject) {
+            this.bitmap = bitmap;
+            this.length = -1;
+            this.writing = true;
+            this.complete = false;
+            this.error = null;
+            this.notifyObject.notifyAll();
+        }
+    }
+    
+    void updatePart(int partNo) throws IOException {
+        CacheFilePartBitmap partBitmap = this.bitmap;
+        if(partBitmap == null) {
+            throw new IOException(String.format("cache file is not filled by parts - %s", this.file.getAbsolutePath()));
+        }
+        
+        partBitmap.markPresent(partNo);
+        synchronized(this.notifyObject) {
+            this.notifyObject.notifyAll();
+        }
+    }
+    
+    void update(long length) {
+        synchronized(this.notifyObject) {
+            if(length > this.length) {
+                this.length = length;
+                this.notifyObject.notifyAll();
+            }
+        }
+    }
+    
+    void complete(long length) {
+        synchronized(this.notifyObject) {
+            if(length > this.length) {
+                this.length = length;
+            }
+            this.writing = false;
+            this.complete = true;
+            this.notifyObject.notifyAll();
+        }
+    }
+    
+    void fail(IOException error) {
+        synchronized(this.notifyObject) {
+            this.writing = false;
+            this.error = error;
+            this.notifyObject.notifyAll();
+        }
+    }
+    
+    /**
+     * Updates the progress from the file itself, for writers in other
+     * processes.
+     */
+    void refresh() {
+        CacheFilePartBitmap partBitmap = this.bitmap;
+        if(partBitmap != null) {
+            if(!this.writing) {
+                try {
+                    partBitmap.reload();
+                } catch (IOException ex) {
+                    // retried on the next event or recheck
+                }
+            }
+        } else {
+            // the length is taken before looking for the sidecar - writers
+            // create the sidecar before they preallocate the file
+            long fileLength = this.file.exists() ? this.file.length() : -1;
+            try {
+                partBitmap = CacheFilePartBitmap.load(this.file);
+            } catch (IOException ex) {
+                partBitmap = null;
+            }
+            
+            if(partBitmap != null) {
+                synchronized(this.notifyObject) {
+                    if(this.bitmap == null) {
+                        this.bitmap = partBitmap;
+                        this.length = -1;
+                    }
+                }
+            } else {
+                update(fileLength);
+                return;
+            }
+        }
+        
+        synchronized(this.notifyObject) {
+            this.notifyObject.notifyAll();
+        }
+    }
+    
+    private boolean isLanded(long start, long end) {
+        CacheFilePartBitmap partBitmap = this.bitmap;
+        if(partBitmap != null) {
+            return partBitmap.isRangePresent(start, end);
+        }
+        return this.length >= end;
+    }
+    
+    private long getLandedEnd(long start) {
+        CacheFilePartBitmap partBitmap = this.bitmap;
+        if(partBitmap != null) {
+            return partBitmap.getPresentRunEnd(start);
+        }
+        return this.length;
+    }
+    
+    /**
+     * Blocks until at least length bytes have landed and returns the known
+     * length, which may be larger.
+     */
+    long await(long length, long timeoutMillis) throws IOException {
+        return awaitRange(0, length, timeoutMillis);
+    }
+    
+    /**
+     * Blocks until the bytes in [start, end) have landed and returns the end
+     * of the landed run that contains them, which may be larger.
+     */
+    long awaitRange(long start, long end, long timeoutMillis) throws IOException {
+        if(isLanded(start, end)) {
+            return getLandedEnd(start);
+        }
+        
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean reload = true;
+        while(true) {
+            // the file is read outside the monitor, writers publish under it
+            if(reload) {
+                refresh();
+            }
+            
+            synchronized(this.notifyObject) {
+                if(isLanded(start, end)) {
+                    return getLandedEnd(start);
+                }
+                
+                if(this.error != null) {
+                    throw new IOException(String.format("cannot read data at offset - %d, cache fill failed", end), this.error);
+                }
+                
+                if(this.complete) {
+                    throw new IOException(String.format("cannot read data at offset - %d, cache file is complete at %d", end, getLandedEnd(0)));
+                }
+                
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    throw new IOException(String.format("cannot read data at offset - %d after %d sec waiting", end, timeoutMillis / 1000));
+                }
+                
+                try {
+                    // woken by writers and the watcher; the recheck
+                    // covers writers outside the process on filesystems
+                    // without change events
+                    this.notifyObject.wait(Math.min(remaining, RECHECK_INTERVAL_MSEC));
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                
+                if(isLanded(start, end)) {
+                    return getLandedEnd(start);
+                }
+                
+                // in-process writers wake us, only others need a reload
+                reload = !this.writing;
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In-process registry of cache file fill progress. Cache writers in this
+ * process report progress directly, so waiting readers wake as soon as their
+ * bytes land. Files written by other processes are followed by one shared
+ * watcher thread instead of a WatchService and polling loop per reader.
+ * Files filled out of order keep a part bitmap sidecar (see
+ * CacheFilePartBitmap) and readers wait only for the parts they read.
+ *
+ * @author iychoi
+ */
+public class CacheFillProgressRegistry {
+
+    private static final Log LOG = LogFactory.getLog(CacheFillProgressRegistry.class);
+    
+    private static CacheFillProgressRegistry instance;
+    
+    private ConcurrentHashMap<String, CacheFillProgress> progresses = new ConcurrentHashMap<String, CacheFillProgress>();
+    private WatchService watchService;
+    private Thread watchThread;
+    private Set<Path> watchedDirs = new HashSet<Path>();
+    
+    public static synchronized CacheFillProgressRegistry getInstance() {
+        if(instance == null) {
+            instance = new CacheFillProgressRegistry();
+        }
+        return instance;
+    }
+    
+    public CacheFillProgressRegistry() {
+    }
+    
+    private static String makeKey(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+    
+    public CacheFillProgress getProgress(File file) {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        String key = makeKey(file);
+        CacheFillProgress progress = this.progresses.get(key);
+        if(progress == null) {
+            CacheFillProgress newProgress = new CacheFillProgress(file.getAbsoluteFile());
+            progress = this.progresses.putIfAbsent(key, newProgress);
+            if(progress == null) {
+                progress = newProgress;
+            }
+        }
+        return progress;
+    }
+    
+    public int getProgressNum() {
+        return this.progresses.size();
+    }
+    
+    public void beginFill(File file) {
+        getProgress(file).begin();
+    }
+    
+    public void updateFill(File file, long length) {
+        getProgress(file).update(length);
+    }
+    
+    public void completeFill(File file, long length) {
+        CacheFillProgress progress = getProgress(file);
+        progress.complete(length);
+        cleanup(progress);
+    }
+    
+    public void failFill(File file, IOException error) {
+        CacheFillProgress progress = getProgress(file);
+        progress.fail(error);
+        
+        CacheFilePartBitmap bitmap = progress.getPartBitmap();
+        if(bitmap != null) {
+            // the sidecar stays, a later fill resumes from the present parts
+            try {
+                bitmap.close();
+            } catch (IOException ex) {
+                LOG.error(ex);
+            }
+        }
+        cleanup(progress);
+    }
+    
+    /**
+     * Preallocates the file for a fill in any part order and returns its
+     * part bitmap.
+     */
+    public CacheFilePartBitmap beginPartFill(File file, long fileSize, int partSize) throws IOException {
+        CacheFilePartBitmap bitmap = CacheFilePartBitmap.create(file, fileSize, partSize);
+        getProgress(file).beginParts(bitmap);
+        return bitmap;
+    }
+    
+    /**
+     * Marks a part of the file as written. The part data must be written
+     * before.
+     */
+    public void updatePartFill(File file, int partNo) throws IOException {
+        getProgress(file).updatePart(partNo);
+    }
+    
+    public void completePartFill(File file) throws IOException {
+        CacheFillProgress progress = getProgress(file);
+        CacheFilePartBitmap bitmap = progress.getPartBitmap();
+        if(bitmap == null) {
+            throw new IOException(String.format("cache file is not filled by parts - %s", file.getAbsolutePath()));
+        }
+        
+        bitmap.complete();
+        progress.complete(bitmap.getFileSize());
+        cleanup(progress);
+    }
+    
+    public void remove(File file) {
+        if(file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+        
+        this.progresses.remove(makeKey(file));
+    }
+    
+    private void cleanup(CacheFillProgress progress) {
+        // entries are only needed while someone writes or waits; checked
+        // under the progress lock so a waiter cannot attach in between
+        synchronized(progress.getLock()) {
+            if(!progress.isWriting() && progress.getWaiters() == 0) {
+                this.progresses.remove(makeKey(progress.getFile()), progress);
+            }
+        }
+    }
+    
+    private CacheFillProgress attachWaiter(File file) {
+        String key = makeKey(file);
+        while(true) {
+            CacheFillProgress progress = getProgress(file);
+            progress.addWaiter();
+            if(this.progresses.get(key) == progress) {
+                return progress;
+            }
+            
+            // cleaned up before the waiter attached, writers use a new entry
+            progress.removeWaiter();
+        }
+    }
+    
+    /**
+     * Blocks until the file has at least length bytes and returns its known
+     * length.
+     */
+    public long waitFill(File file, long length, long timeoutMillis) throws IOException {
+        return waitFillRange(file, 0, length, timeoutMillis);
+    }
+    
+    /**
+     * Blocks until the bytes in [start, end) of the file have landed and
+     * returns the end of the landed run that contains them.
+     */
+    public long waitFillRange(File file, long start, long end, long timeoutMillis) throws IOException {
+        CacheFillProgress progress = attachWaiter(file);
+        try {
+            if(progress.getPartBitmap() == null && progress.getLength() >= end) {
+                return progress.getLength();
+            }
+            
+            if(!progress.isWriting()) {
+                watch(file.getAbsoluteFile().getParentFile());
+            }
+            
+            return progress.awaitRange(start, end, timeoutMillis);
+        } finally {
+            progress.removeWaiter();
+            cleanup(progress);
+        }
+    }
+    
+    private synchronized void watch(File dir) {
+        if(dir == null) {
+            return;
+        }
+        
+        Path dirPath = dir.toPath().normalize();
+        if(this.watchedDirs.contains(dirPath)) {
+            return;
+        }
+        
+        try {
+            if(this.watchService == null) {
+                this.watchService = FileSystems.getDefault().newWatchService();
+                this.watchThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        processEvents();
+                    }
+                }, "cache-fill-watcher");
+                this.watchThread.setDaemon(true);
+                this.watchThread.start();
+            }
+            
+            if(dir.exists()) {
+                dirPath.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                this.watchedDirs.add(dirPath);
+            }
+        } catch (IOException ex) {
+            // readers still recheck the file periodically
+            LOG.error(String.format("Failed to watch a dir - %s", dir.toString()), ex);
+        }
+    }
+    
+    private void processEvents() {
+        while(true) {
+            WatchKey key;
+            try {
+                key = this.watchService.take();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (ClosedWatchServiceException ex) {
+                return;
+            }
+            
+            Path dir = (Path) key.watchable();
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost, refresh everything that is waited on
+                    for(CacheFillProgress progress : this.progresses.values()) {
+                        progress.refresh();
+                    }
+                    continue;
+                }
+                
+                // bitmap sidecar changes belong to their cache file
+                String path = dir.resolve((Path) event.context()).toString();
+                if(path.endsWith(CacheFilePartBitmap.SIDECAR_SUFFIX)) {
+                    path = path.substring(0, path.length() - CacheFilePartBitmap.SIDECAR_SUFFIX.length());
+                }
+                
+                CacheFillProgress progress = this.progresses.get(path);
+                if(progress != null) {
+                    progress.refresh();
+                }
+            }
+            
+            if(!key.reset()) {
+                synchronized(this) {
+                    this.watchedDirs.remove(dir);
+                }
+            }
+        }
+    }
+}
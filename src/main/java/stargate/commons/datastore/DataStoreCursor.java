@@ -0,0 +1,80 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams a listing page by page, holding only the current page in memory.
+ * getContinuationToken() can be saved to resume the listing later.
+ *
+ * @author iychoi
+ */
+public abstract class DataStoreCursor<T> {
+
+    private int pageSize;
+    private DataStorePage<T> page;
+    private int pageIndex;
+    private String continuationToken;
+    private boolean started;
+    
+    protected DataStoreCursor(String continuationToken, int pageSize) {
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize is not positive");
+        }
+        
+        this.pageSize = pageSize;
+        this.continuationToken = continuationToken;
+        this.started = false;
+    }
+    
+    protected abstract DataStorePage<T> fetchPage(String continuationToken, int pageSize) throws IOException;
+    
+    public int getPageSize() {
+        return this.pageSize;
+    }
+    
+    public boolean hasNext() throws IOException {
+        while(this.page == null || this.pageIndex >= this.page.getItems().size()) {
+            if(this.started && this.continuationToken == null) {
+                return false;
+            }
+            
+            this.page = fetchPage(this.continuationToken, this.pageSize);
+            this.pageIndex = 0;
+            this.continuationToken = this.page.getContinuationToken();
+            this.started = true;
+        }
+        return true;
+    }
+    
+    public T next() throws IOException {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        
+        return this.page.getItems().get(this.pageIndex++);
+    }
+    
+    /**
+     * Token of the page after the current one; items of the current page
+     * that were not consumed yet are not covered by it.
+     */
+    public String getContinuationToken() {
+        return this.continuationToken;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import stargate.commons.utils.JsonSerializer;
+
+/**
+ * Payload of a datastore invalidation event - the keys of a store changed
+ * by the sender, or the whole store when no key is given. The version is
+ * the sender's invalidation sequence so receivers can drop duplicates and
+ * reordered events.
+ *
+ * @author iychoi
+ */
+public class DataStoreInvalidation {
+
+    private String storeName;
+    private List<String> keys = new ArrayList<String>();
+    private long version;
+    
+    public static DataStoreInvalidation createInstance(String json) throws IOException {
+        if(json == null || json.isEmpty()) {
+            throw new IllegalArgumentException("json is null or empty");
+        }
+        
+        return (DataStoreInvalidation) JsonSerializer.fromJson(json, DataStoreInvalidation.class);
+    }
+    
+    DataStoreInvalidation() {
+    }
+    
+    public DataStoreInvalidation(String storeName, Collection<String> keys, long version) {
+        if(storeName == null || storeName.isEmpty()) {
+            throw new IllegalArgumentException("storeName is null or empty");
+        }
+        
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        if(version < 0) {
+            throw new IllegalArgumentException("version is negative");
+        }
+        
+        this.storeName = storeName;
+        this.keys.addAll(keys);
+        this.version = version;
+    }
+    
+    @JsonProperty("store_name")
+    public String getStoreName() {
+        return this.storeName;
+    }
+    
+    @JsonProperty("store_name")
+    public void setStoreName(String storeName) {
+        if(storeName == null || storeName.isEmpty()) {
+            throw new IllegalArgumentException("storeName is null or empty");
+        }
+        
+        this.storeName = storeName;
+    }
+    
+    @JsonProperty("keys")
+    public Collection<String> getKeys() {
+        return Collections.unmodifiableCollection(this.keys);
+    }
+    
+    @JsonProperty("keys")
+    public void addKeys(Collection<String> keys) {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        this.keys.addAll(keys);
+    }
+    
+    @JsonProperty("version")
+    public long getVersion() {
+        return this.version;
+    }
+    
+    @JsonProperty("version")
+    public void setVersion(long version) {
+        if(version < 0) {
+            throw new IllegalArgumentException("version is negative");
+        }
+        
+        this.version = version;
+    }
+    
+    @JsonIgnore
+    public boolean isAll() {
+        return this.keys.isEmpty();
+    }
+    
+    @JsonIgnore
+    public String toJson() throws IOException {
+        return JsonSerializer.toJson(this);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a listing. The continuation token resumes the listing after
+ * the last item of this page and is null on the last page.
+ *
+ * @author iychoi
+ */
+public class DataStorePage<T> {
+
+    private List<T> items;
+    private String continuationToken;
+    
+    public DataStorePage(List<T> items, String continuationToken) {
+        if(items == null) {
+            throw new IllegalArgumentException("items is null");
+        }
+        
+        this.items = Collections.unmodifiableList(items);
+        this.continuationToken = continuationToken;
+    }
+    
+    public List<T> getItems() {
+        return this.items;
+    }
+    
+    public String getContinuationToken() {
+        return this.continuationToken;
+    }
+    
+    public boolean hasMore() {
+        return this.continuationToken != null;
+    }
+}
@@ -15,44 +15,50 @@
 */
 package stargate.commons.datastore;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.util.concurrent.TimeUnit;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import stargate.commons.io.AbstractSeekableInputStream;
-import stargate.commons.utils.DateTimeUtils;
+import stargate.commons.io.StreamMetrics;
 
 /**
+ * Reads a range of a cache file that may still be filling. Files filled out
+ * of order are read as soon as the parts under the read have landed.
  *
  * @author iychoi
  */
 public class DirectCacheFileInputStream extends AbstractSeekableInputStream {
 
     private static final Log LOG = LogFactory.getLog(DirectCacheFileInputStream.class);
+    private static final StreamMetrics METRICS = StreamMetrics.getInstance(DirectCacheFileInputStream.class);
     
     private static final int WAIT_TIMEOUT_SEC = 300;
-    private static final int POLLING_INTERVAL_MSEC = 100;
     private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int TRANSFER_WAIT_SIZE = 256 * 1024;
     
     private long beginOffset;
     private long offset;
     private long size;
     private File cacheFile;
-    private long lastCacheFileLength;
-    private BufferedInputStream cacheInputStream;
+    private volatile LandedRange landedRange;
+    private volatile RandomAccessFile cacheRandomAccessFile;
+    private ByteBuffer readBuffer;
+    private long readBufferOffset;
+    private boolean useMemoryMap;
+    private volatile MappedByteBuffer mappedBuffer;
     
     public DirectCacheFileInputStream(File cacheFile, long beginOffset, int size) throws IOException {
+        this(cacheFile, beginOffset, size, false);
+    }
+    
+    public DirectCacheFileInputStream(File cacheFile, long beginOffset, int size, boolean useMemoryMap) throws IOException {
         if(cacheFile == null) {
             throw new IllegalArgumentException("cacheFile is null");
         }
@@ -70,153 +76,98 @@ public class DirectCacheFileInputStream extends AbstractSeekableInputStream {
         this.size = size;
         
         this.cacheFile = cacheFile;
-        this.lastCacheFileLength = -1;
-        this.cacheInputStream = null;
+        this.landedRange = new LandedRange(0, -1);
+        this.useMemoryMap = useMemoryMap;
+        
+        // empty until the first read
+        this.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.readBuffer.limit(0);
+        this.readBufferOffset = 0;
     }
     
-    private synchronized void safeInitCacheFileInputStream() throws IOException {
-        if(this.cacheInputStream == null) {
+    private synchronized FileChannel safeInitCacheFileChannel() throws IOException {
+        if(this.cacheRandomAccessFile == null) {
             // wait
-            waitData(this.beginOffset);
+            waitData(this.beginOffset, this.beginOffset);
             
             try {
-                FileInputStream is = new FileInputStream(this.cacheFile);
-                if(this.beginOffset > 0) {
-                    is.getChannel().position(this.beginOffset);
-                }
-                this.cacheInputStream = new BufferedInputStream(is, BUFFER_SIZE);
-                
+                this.cacheRandomAccessFile = new RandomAccessFile(this.cacheFile, "r");
             } catch (FileNotFoundException ex) {
                 LOG.error(ex);
                 throw new IOException(ex);
             }
         }
+        return this.cacheRandomAccessFile.getChannel();
     }
     
-    private synchronized void waitData(long offset) throws IOException {
-        if(this.lastCacheFileLength >= offset) {
-            return;
+    private FileChannel getCacheFileChannel() throws IOException {
+        RandomAccessFile raf = this.cacheRandomAccessFile;
+        if(raf == null) {
+            return safeInitCacheFileChannel();
         }
-        
-        long beginTime = DateTimeUtils.getTimestamp();
-        long curTime = beginTime;
-        
-        // check file existance
-        if(this.lastCacheFileLength < 0) {
-            if(!this.cacheFile.exists()) {
-                WatchService fsWatcher = FileSystems.getDefault().newWatchService();
-                boolean created = false;
-                
-                Path dir = Paths.get(this.cacheFile.getParentFile().toURI());
-                dir.register(fsWatcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
-                
-                while(true) {
-                    WatchKey key;
-                    try {
-                        key = fsWatcher.poll(5, TimeUnit.SECONDS);
-                        
-                        curTime = DateTimeUtils.getTimestamp();
-                        if(DateTimeUtils.timeElapsedSec(beginTime, curTime, WAIT_TIMEOUT_SEC)) {
-                            LOG.error(String.format("Timeout occurred while waiting data - %s", this.cacheFile.toString()));
-                            
-                            if(!this.cacheFile.exists()) {
-                                LOG.error(String.format("File does not exist - %s", this.cacheFile.toString()));
-                            }
-                            
-                            if(!this.cacheFile.isFile()) {
-                                LOG.error(String.format("File is not a file - %s", this.cacheFile.toString()));
-                            }
-                            
-                            for(String f : this.cacheFile.getParentFile().list()) {
-                                LOG.error(String.format("File %s is in a dir %s", f, this.cacheFile.getParentFile().toString()));
-                            }
-                            
-                            throw new IOException(String.format("cannot open data (%s) after %d sec waiting", this.cacheFile.toString(), WAIT_TIMEOUT_SEC));
-                        }
-                        
-                        if(key == null) {
-                            continue;
-                        }
-                    } catch (InterruptedException ex) {
-                        LOG.error(ex);
-                        throw new IOException(ex);
-                    }
-                    
-                    for(WatchEvent<?> event : key.pollEvents()) {
-                        WatchEvent.Kind<?> kind = event.kind();
-                    
-                        if(kind == StandardWatchEventKinds.OVERFLOW) {
-                            continue;
-                        }
-                        
-                        WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                        Path filename = ev.context();
-                        
-                        if(filename.equals(this.cacheFile)) {
-                            if(kind == StandardWatchEventKinds.ENTRY_CREATE || kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-                                LOG.info(String.format("File is created or updated - %s, %s", filename.toString(), kind.name()));
-                                created = true;
-                            } else {
-                                LOG.info(String.format("Unknown event raised from filesystem - %s, %s", filename.toString(), kind.name()));
-                            }
-                        }
-                        
-                        if(created) {
-                            break;
-                        }
-                    }
-                    
-                    if(created) {
-                        break;
-                    }
-                    
-                    boolean valid = key.reset();
-                    if(!valid) {
-                        LOG.error("key is not valid");
-                        break;
-                    }
-                }
-                
-                fsWatcher.close();
+        return raf.getChannel();
+    }
+    
+    private synchronized MappedByteBuffer getMappedBuffer() throws IOException {
+        // map only once the whole range is on disk, it never changes after
+        if(this.mappedBuffer == null && this.useMemoryMap && this.size > 0) {
+            if(this.landedRange.covers(this.beginOffset, this.beginOffset + this.size)) {
+                this.mappedBuffer = getCacheFileChannel().map(FileChannel.MapMode.READ_ONLY, this.beginOffset, this.size);
             }
         }
-        
-        if(this.lastCacheFileLength >= offset) {
-            return;
+        return this.mappedBuffer;
+    }
+    
+    public boolean isMemoryMapEnabled() {
+        return this.useMemoryMap;
+    }
+    
+    /**
+     * Waits until [start, end) of the file has landed and returns the end of
+     * the landed run from start.
+     */
+    private long waitData(long start, long end) throws IOException {
+        LandedRange landed = this.landedRange;
+        if(landed.covers(start, end)) {
+            return landed.end;
         }
         
-        // update and try again
-        this.lastCacheFileLength = this.cacheFile.length();
-        if(this.lastCacheFileLength >= offset) {
-            return;
+        long waitBegin = System.nanoTime();
+        try {
+            return waitDataInternal(start, end);
+        } finally {
+            METRICS.recordWait(System.nanoTime() - waitBegin);
         }
+    }
+    
+    private long waitDataInternal(long start, long end) throws IOException {
+        // woken by the cache writer or the shared watcher as data lands
+        long landedEnd = CacheFillProgressRegistry.getInstance().waitFillRange(this.cacheFile, start, end, WAIT_TIMEOUT_SEC * 1000L);
         
-        while(this.lastCacheFileLength < offset) {
-            if(DateTimeUtils.timeElapsedSec(beginTime, curTime, WAIT_TIMEOUT_SEC)) {
-                // timeout
-                LOG.error(String.format("Timeout occurred while reading data at offset %d", offset));
-                throw new IOException(String.format("cannot read data at offset - %d after %d sec waiting", offset, WAIT_TIMEOUT_SEC));
-            } else {
-                LOG.info(String.format("Wait data at offset %d", offset));
-                try {
-                    Thread.sleep(POLLING_INTERVAL_MSEC);
-                } catch (InterruptedException ex) {
-                    throw new IOException(ex);
-                }
-
-                this.lastCacheFileLength = this.cacheFile.length();
-                curTime = DateTimeUtils.getTimestamp();
-            }
+        // unsynchronized - losing a concurrent update only costs a fast path
+        LandedRange landed = this.landedRange;
+        if(landed.start <= landedEnd && landed.end >= start) {
+            this.landedRange = new LandedRange(Math.min(landed.start, start), Math.max(landed.end, landedEnd));
+        } else {
+            this.landedRange = new LandedRange(start, landedEnd);
         }
+        return landedEnd;
     }
     
     @Override
     public synchronized int available() throws IOException {
-        if(this.cacheInputStream == null) {
+        if(this.offset >= this.size) {
             return 0;
-        } else {
-            return (int) Math.min(this.cacheInputStream.available(), this.size - this.offset);
         }
+        
+        LandedRange landedRange = this.landedRange;
+        long position = this.beginOffset + this.offset;
+        if(!landedRange.covers(position, position)) {
+            return 0;
+        }
+        
+        long landed = landedRange.end - position;
+        return (int) Math.max(0, Math.min(landed, this.size - this.offset));
     }
     
     @Override
@@ -229,20 +180,9 @@ public class DirectCacheFileInputStream extends AbstractSeekableInputStream {
             return 0;
         }
         
-        safeInitCacheFileInputStream();
-        
-        long lavailable = this.size - this.offset;
-        if(size >= lavailable) {
-            this.offset = this.size;
-            waitData(this.beginOffset + this.offset);
-            this.cacheInputStream.skip(lavailable);
-            return lavailable;
-        } else {
-            this.offset += size;
-            waitData(this.beginOffset + this.offset);
-            this.cacheInputStream.skip(size);
-            return size;
-        }
+        long skipped = Math.min(size, this.size - this.offset);
+        this.offset += skipped;
+        return skipped;
     }
 
     @Override
@@ -256,29 +196,39 @@ public class DirectCacheFileInputStream extends AbstractSeekableInputStream {
             return;
         }
         
-        if(offset == this.offset) {
-            return;
-        }
-        
-        safeInitCacheFileInputStream();
+        // reads are positional, a seek only moves the offset
+        this.offset = Math.min(this.size, offset);
+    }
+    
+    private boolean isInReadBuffer(long offset) {
+        return offset >= this.readBufferOffset && offset < this.readBufferOffset + this.readBuffer.limit();
+    }
+    
+    private void fillReadBuffer(int minLen) throws IOException {
+        // wait only for what the caller needs, then take whatever else has
+        // already landed up to the buffer size
+        long position = this.beginOffset + this.offset;
+        long landed = waitData(position, position + minLen) - position;
+        int toRead = (int) Math.min(Math.min(BUFFER_SIZE, this.size - this.offset), Math.max(landed, minLen));
         
-        long seekable = (int) Math.min(this.size, offset);
-        // wait
-        waitData(this.beginOffset + seekable);
+        this.readBuffer.clear();
+        this.readBuffer.limit(toRead);
+        this.readBufferOffset = this.offset;
         
-        if(this.cacheInputStream != null) {
-            this.cacheInputStream.close();
-            
-            try {
-                FileInputStream is = new FileInputStream(this.cacheFile);
-                is.getChannel().position(this.beginOffset + seekable);
-                this.cacheInputStream = new BufferedInputStream(is, BUFFER_SIZE);
-            } catch (FileNotFoundException ex) {
-                LOG.error(ex);
-                throw new IOException(ex);
+        FileChannel channel = getCacheFileChannel();
+        long readPosition = this.beginOffset + this.offset;
+        while(this.readBuffer.hasRemaining()) {
+            int readLen = channel.read(this.readBuffer, readPosition);
+            if(readLen < 0) {
+                break;
             }
+            readPosition += readLen;
+        }
+        this.readBuffer.flip();
+        
+        if(this.readBuffer.limit() < minLen) {
+            throw new IOException(String.format("unexpected EOF at offset %d", this.offset + this.readBuffer.limit()));
         }
-        this.offset = seekable;
     }
     
     @Override
@@ -287,11 +237,18 @@ public class DirectCacheFileInputStream extends AbstractSeekableInputStream {
             return -1;
         }
         
-        safeInitCacheFileInputStream();
+        MappedByteBuffer mapped = getMappedBuffer();
+        if(mapped != null) {
+            int ch = mapped.get((int) this.offset) & 0xff;
+            this.offset++;
+            return ch;
+        }
         
-        waitData(this.beginOffset + this.offset + 1);
+        if(!isInReadBuffer(this.offset)) {
+            fillReadBuffer(1);
+        }
         
-        int ch = this.cacheInputStream.read();
+        int ch = this.readBuffer.get((int) (this.offset - this.readBufferOffset)) & 0xff;
         this.offset++;
         return ch;
     }
@@ -314,24 +271,146 @@ public class DirectCacheFileInputStream extends AbstractSeekableInputStream {
             throw new IllegalArgumentException("len is negative");
         }
         
-        safeInitCacheFileInputStream();
+        int toRead = (int) Math.min(this.size - this.offset, len);
+        if(toRead == 0) {
+            return 0;
+        }
+        
+        MappedByteBuffer mapped = getMappedBuffer();
+        if(mapped != null) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) this.offset);
+            view.get(bytes, off, toRead);
+            this.offset += toRead;
+            return toRead;
+        }
+        
+        if(!isInReadBuffer(this.offset)) {
+            if(toRead >= BUFFER_SIZE) {
+                // large reads go straight to the caller's array
+                int readLen = read(this.offset, ByteBuffer.wrap(bytes, off, toRead));
+                if(readLen > 0) {
+                    this.offset += readLen;
+                }
+                return readLen;
+            }
+            
+            fillReadBuffer(toRead);
+        }
+        
+        ByteBuffer view = this.readBuffer.duplicate();
+        view.position((int) (this.offset - this.readBufferOffset));
+        int readLen = Math.min(toRead, view.remaining());
+        view.get(bytes, off, readLen);
+        this.offset += readLen;
+        return readLen;
+    }
+    
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        if(position >= this.size) {
+            return -1;
+        }
         
-        int available = (int) Math.min(this.size - this.offset, len);
+        // lock-free once the channel is open and the data has landed
+        FileChannel channel = getCacheFileChannel();
+        
+        int toRead = (int) Math.min(dst.remaining(), this.size - position);
+        long end = this.beginOffset + position + toRead;
+        waitData(end - toRead, end);
+        
+        MappedByteBuffer mapped = this.mappedBuffer;
+        if(mapped == null && this.useMemoryMap) {
+            mapped = getMappedBuffer();
+        }
         
-        waitData(this.beginOffset + this.offset + available);
-        int readLen = this.cacheInputStream.read(bytes, off, available);
-        if(readLen >= 0) {
-            this.offset += readLen;
+        if(mapped != null) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) position);
+            view.limit((int) position + toRead);
+            dst.put(view);
+            return toRead;
         }
         
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + toRead);
+        long readPosition = this.beginOffset + position;
+        while(view.hasRemaining()) {
+            int readLen = channel.read(view, readPosition);
+            if(readLen < 0) {
+                break;
+            }
+            readPosition += readLen;
+        }
+        
+        int readLen = view.position() - dst.position();
+        dst.position(view.position());
+        if(readLen == 0 && toRead > 0) {
+            return -1;
+        }
         return readLen;
     }
     
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(count < 0) {
+            throw new IllegalArgumentException("count is negative");
+        }
+        
+        if(target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+        
+        if(position >= this.size) {
+            return 0;
+        }
+        
+        FileChannel channel = getCacheFileChannel();
+        
+        // the cache file may still be filling - send what is on disk and
+        // wait in steps so the transfer streams behind the writer
+        long end = Math.min(this.size, position + count);
+        long transferred = 0;
+        while(position + transferred < end) {
+            long filePosition = this.beginOffset + position + transferred;
+            long landedEnd;
+            LandedRange landed = this.landedRange;
+            if(landed.covers(filePosition, filePosition + 1)) {
+                landedEnd = landed.end;
+            } else {
+                landedEnd = waitData(filePosition, Math.min(this.beginOffset + end, filePosition + TRANSFER_WAIT_SIZE));
+            }
+            
+            long toTransfer = Math.min(landedEnd, this.beginOffset + end) - filePosition;
+            long transferLen = channel.transferTo(filePosition, toTransfer, target);
+            if(transferLen <= 0) {
+                break;
+            }
+            transferred += transferLen;
+        }
+        return transferred;
+    }
+    
     @Override
     public synchronized void close() throws IOException {
-        if(this.cacheInputStream != null) {
-            this.cacheInputStream.close();
-            this.cacheInputStream = null;
+        this.mappedBuffer = null;
+        this.readBuffer.limit(0);
+        
+        if(this.cacheRandomAccessFile != null) {
+            this.cacheRandomAccessFile.close();
+            this.cacheRandomAccessFile = null;
         }
     }
     
@@ -349,4 +428,19 @@ public class DirectCacheFileInputStream extends AbstractSeekableInputStream {
     public void reset() throws IOException {
         throw new IOException("Mark not supported");
     }
+    
+    private static class LandedRange {
+        
+        private final long start;
+        private final long end;
+        
+        LandedRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+        
+        boolean covers(long start, long end) {
+            return this.start <= start && this.end >= end;
+        }
+    }
 }
@@ -0,0 +1,92 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Recency-ordered list of keys with their sizes, used by eviction policies.
+ *
+ * @author iychoi
+ */
+class EvictionList<K> {
+    
+    private LinkedHashMap<K, Long> entries = new LinkedHashMap<K, Long>();
+    private long bytes;
+    
+    EvictionList() {
+        this.bytes = 0;
+    }
+    
+    boolean contains(K key) {
+        return this.entries.containsKey(key);
+    }
+    
+    /**
+     * Puts the key at the most recently used end.
+     */
+    void addMostRecent(K key, long size) {
+        Long oldSize = this.entries.remove(key);
+        if(oldSize != null) {
+            this.bytes -= oldSize;
+        }
+        
+        this.entries.put(key, size);
+        this.bytes += size;
+    }
+    
+    /**
+     * Removes the key and returns its size, or -1 if absent.
+     */
+    long remove(K key) {
+        Long size = this.entries.remove(key);
+        if(size == null) {
+            return -1;
+        }
+        
+        this.bytes -= size;
+        return size;
+    }
+    
+    /**
+     * Returns the least recently used key, or null if empty.
+     */
+    K getLeastRecent() {
+        Iterator<K> iterator = this.entries.keySet().iterator();
+        if(iterator.hasNext()) {
+            return iterator.next();
+        }
+        return null;
+    }
+    
+    boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+    
+    int size() {
+        return this.entries.size();
+    }
+    
+    long getBytes() {
+        return this.bytes;
+    }
+    
+    void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+}
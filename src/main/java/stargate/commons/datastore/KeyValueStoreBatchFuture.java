@@ -0,0 +1,119 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future over a set of in-flight single-key operations, collected into one
+ * batch result when it is read.
+ *
+ * @author iychoi
+ */
+class KeyValueStoreBatchFuture<V> implements Future<KeyValueStoreBatchResult<V>> {
+    
+    private Map<String, Future<? extends V>> futures = new LinkedHashMap<String, Future<? extends V>>();
+    private KeyValueStoreBatchResult<V> failed = new KeyValueStoreBatchResult<V>();
+    private volatile boolean cancelled = false;
+    
+    KeyValueStoreBatchFuture() {
+    }
+    
+    void addFuture(String key, Future<? extends V> future) {
+        this.futures.put(key, future);
+    }
+    
+    void addError(String key, IOException error) {
+        this.failed.addError(key, error);
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelledAny = false;
+        for(Future<? extends V> future : this.futures.values()) {
+            if(future.cancel(mayInterruptIfRunning)) {
+                cancelledAny = true;
+            }
+        }
+        this.cancelled = true;
+        return cancelledAny;
+    }
+    
+    @Override
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+    
+    @Override
+    public boolean isDone() {
+        for(Future<? extends V> future : this.futures.values()) {
+            if(!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<V> get() throws InterruptedException, ExecutionException {
+        try {
+            return collect(-1);
+        } catch (TimeoutException ex) {
+            // never happens without a deadline
+            throw new ExecutionException(ex);
+        }
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<V> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return collect(System.nanoTime() + unit.toNanos(timeout));
+    }
+    
+    private KeyValueStoreBatchResult<V> collect(long deadline) throws InterruptedException, TimeoutException {
+        KeyValueStoreBatchResult<V> result = new KeyValueStoreBatchResult<V>();
+        result.addAll(this.failed);
+        
+        for(Map.Entry<String, Future<? extends V>> entry : this.futures.entrySet()) {
+            String key = entry.getKey();
+            try {
+                V value;
+                if(deadline < 0) {
+                    value = entry.getValue().get();
+                } else {
+                    value = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                result.addResult(key, value);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if(cause instanceof IOException) {
+                    result.addError(key, (IOException) cause);
+                } else {
+                    result.addError(key, new IOException(cause));
+                }
+            } catch (CancellationException ex) {
+                result.addError(key, new IOException("operation is cancelled", ex));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a batch key-value operation: a result for every key that
+ * succeeded and an error for every key that failed.
+ *
+ * @author iychoi
+ */
+public class KeyValueStoreBatchResult<V> {
+
+    private Map<String, V> results = new LinkedHashMap<String, V>();
+    private Map<String, IOException> errors = new LinkedHashMap<String, IOException>();
+    
+    public KeyValueStoreBatchResult() {
+    }
+    
+    public void addResult(String key, V result) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        this.errors.remove(key);
+        this.results.put(key, result);
+    }
+    
+    public void addError(String key, IOException error) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(error == null) {
+            throw new IllegalArgumentException("error is null");
+        }
+        
+        this.results.remove(key);
+        this.errors.put(key, error);
+    }
+    
+    public void addAll(KeyValueStoreBatchResult<V> result) {
+        if(result == null) {
+            throw new IllegalArgumentException("result is null");
+        }
+        
+        for(Map.Entry<String, V> entry : result.results.entrySet()) {
+            addResult(entry.getKey(), entry.getValue());
+        }
+        
+        for(Map.Entry<String, IOException> entry : result.errors.entrySet()) {
+            addError(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    public boolean isSucceeded(String key) {
+        return this.results.containsKey(key);
+    }
+    
+    public boolean hasErrors() {
+        return !this.errors.isEmpty();
+    }
+    
+    public V getResult(String key) {
+        return this.results.get(key);
+    }
+    
+    public IOException getError(String key) {
+        return this.errors.get(key);
+    }
+    
+    public Map<String, V> getResults() {
+        return Collections.unmodifiableMap(this.results);
+    }
+    
+    public Map<String, IOException> getErrors() {
+        return Collections.unmodifiableMap(this.errors);
+    }
+    
+    public int getSucceededNum() {
+        return this.results.size();
+    }
+    
+    public int getFailedNum() {
+        return this.errors.size();
+    }
+    
+    /**
+     * Throws the first per-key error, with the others attached as suppressed.
+     */
+    public void throwIfFailed() throws IOException {
+        if(this.errors.isEmpty()) {
+            return;
+        }
+        
+        IOException first = null;
+        for(Map.Entry<String, IOException> entry : this.errors.entrySet()) {
+            if(first == null) {
+                first = new IOException(String.format("batch operation failed for %d keys, first at %s", this.errors.size(), entry.getKey()), entry.getValue());
+            } else {
+                first.addSuppressed(entry.getValue());
+            }
+        }
+        throw first;
+    }
+}
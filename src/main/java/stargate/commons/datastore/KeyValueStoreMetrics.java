@@ -0,0 +1,306 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import stargate.commons.statistics.LatencyHistogram;
+import stargate.commons.statistics.Statistics;
+import stargate.commons.statistics.StatisticsEntry;
+import stargate.commons.statistics.StatisticsType;
+import stargate.commons.statistics.StripedCounter;
+import stargate.commons.utils.DateTimeUtils;
+
+/**
+ * Per store operation metrics. Stores record hits, misses and the latency
+ * of their operations; implementation specific events (tier hits,
+ * promotions, compactions, ...) go to named counters, and point-in-time
+ * values (sizes, rates) to named gauges and other durations to named
+ * histograms.
+ *
+ * @author iychoi
+ */
+public class KeyValueStoreMetrics {
+
+    private static ConcurrentHashMap<String, KeyValueStoreMetrics> instances = new ConcurrentHashMap<String, KeyValueStoreMetrics>();
+    
+    private String name;
+    private StripedCounter hits = new StripedCounter();
+    private StripedCounter misses = new StripedCounter();
+    private StripedCounter bytesWritten = new StripedCounter();
+    private StripedCounter evictions = new StripedCounter();
+    private StripedCounter evictedBytes = new StripedCounter();
+    private LatencyHistogram getLatency = new LatencyHistogram();
+    private LatencyHistogram putLatency = new LatencyHistogram();
+    private LatencyHistogram removeLatency = new LatencyHistogram();
+    private ConcurrentHashMap<String, StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+    private ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+    private ConcurrentHashMap<String, GaugeSource> gaugeSources = new ConcurrentHashMap<String, GaugeSource>();
+    private ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    
+    /**
+     * Gauge whose value is computed only when the metrics are read.
+     */
+    public interface GaugeSource {
+        long getValue();
+    }
+    
+    public static KeyValueStoreMetrics getInstance(String name) {
+        if(name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name is null or empty");
+        }
+        
+        KeyValueStoreMetrics metrics = instances.get(name);
+        if(metrics == null) {
+            KeyValueStoreMetrics newMetrics = new KeyValueStoreMetrics(name);
+            metrics = instances.putIfAbsent(name, newMetrics);
+            if(metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+    
+    public static Collection<KeyValueStoreMetrics> getInstances() {
+        return Collections.unmodifiableCollection(instances.values());
+    }
+    
+    KeyValueStoreMetrics(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return this.name;
+    }
+    
+    public void recordGet(boolean hit, long nanos) {
+        if(hit) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+        this.getLatency.record(nanos);
+    }
+    
+    public void recordPut(long bytes, long nanos) {
+        if(bytes > 0) {
+            this.bytesWritten.add(bytes);
+        }
+        this.putLatency.record(nanos);
+    }
+    
+    public void recordRemove(long nanos) {
+        this.removeLatency.record(nanos);
+    }
+    
+    public void recordEviction(long bytes) {
+        this.evictions.increment();
+        if(bytes > 0) {
+            this.evictedBytes.add(bytes);
+        }
+    }
+    
+    public StripedCounter getCounter(String counterName) {
+        if(counterName == null || counterName.isEmpty()) {
+            throw new IllegalArgumentException("counterName is null or empty");
+        }
+        
+        StripedCounter counter = this.counters.get(counterName);
+        if(counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = this.counters.putIfAbsent(counterName, newCounter);
+            if(counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+    
+    public void increment(String counterName) {
+        getCounter(counterName).increment();
+    }
+    
+    public void add(String counterName, long value) {
+        getCounter(counterName).add(value);
+    }
+    
+    public void setGauge(String gaugeName, long value) {
+        if(gaugeName == null || gaugeName.isEmpty()) {
+            throw new IllegalArgumentException("gaugeName is null or empty");
+        }
+        
+        AtomicLong gauge = this.gauges.get(gaugeName);
+        if(gauge == null) {
+            AtomicLong newGauge = new AtomicLong();
+            gauge = this.gauges.putIfAbsent(gaugeName, newGauge);
+            if(gauge == null) {
+                gauge = newGauge;
+            }
+        }
+        gauge.set(value);
+    }
+    
+    /**
+     * Registers a gauge computed on read, replacing any earlier source of
+     * the same name.
+     */
+    public void setGauge(String gaugeName, GaugeSource source) {
+        if(gaugeName == null || gaugeName.isEmpty()) {
+            throw new IllegalArgumentException("gaugeName is null or empty");
+        }
+        
+        if(source == null) {
+            throw new IllegalArgumentException("source is null");
+        }
+        
+        this.gaugeSources.put(gaugeName, source);
+    }
+    
+    public LatencyHistogram getHistogram(String histogramName) {
+        if(histogramName == null || histogramName.isEmpty()) {
+            throw new IllegalArgumentException("histogramName is null or empty");
+        }
+        
+        LatencyHistogram histogram = this.histograms.get(histogramName);
+        if(histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = this.histograms.putIfAbsent(histogramName, newHistogram);
+            if(histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+    
+    public long getHits() {
+        return this.hits.sum();
+    }
+    
+    public long getMisses() {
+        return this.misses.sum();
+    }
+    
+    public double getHitRatio() {
+        long hitNum = getHits();
+        long total = hitNum + getMisses();
+        if(total == 0) {
+            return 0;
+        }
+        return (double) hitNum / total;
+    }
+    
+    public long getBytesWritten() {
+        return this.bytesWritten.sum();
+    }
+    
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+    
+    public long getEvictedBytes() {
+        return this.evictedBytes.sum();
+    }
+    
+    public LatencyHistogram getGetLatency() {
+        return this.getLatency;
+    }
+    
+    public LatencyHistogram getPutLatency() {
+        return this.putLatency;
+    }
+    
+    public LatencyHistogram getRemoveLatency() {
+        return this.removeLatency;
+    }
+    
+    public Map<String, Long> getCounterValues() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for(Map.Entry<String, StripedCounter> entry : this.counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        return values;
+    }
+    
+    public Map<String, Long> getGaugeValues() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for(Map.Entry<String, AtomicLong> entry : this.gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for(Map.Entry<String, GaugeSource> entry : this.gaugeSources.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return values;
+    }
+    
+    public String toStatisticsValue() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s,hits=%d,misses=%d,hit_ratio=%.4f,bytes_written=%d,evictions=%d,evicted_bytes=%d",
+                this.name, getHits(), getMisses(), getHitRatio(), getBytesWritten(), getEvictions(), getEvictedBytes()));
+        
+        for(Map.Entry<String, Long> entry : getCounterValues().entrySet()) {
+            sb.append(String.format(",%s=%d", entry.getKey(), entry.getValue()));
+        }
+        
+        for(Map.Entry<String, Long> entry : getGaugeValues().entrySet()) {
+            sb.append(String.format(",%s=%d", entry.getKey(), entry.getValue()));
+        }
+        
+        sb.append(",get:").append(this.getLatency.toSummaryString());
+        sb.append(",put:").append(this.putLatency.toSummaryString());
+        sb.append(",remove:").append(this.removeLatency.toSummaryString());
+        
+        for(Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(this.histograms).entrySet()) {
+            sb.append(",").append(entry.getKey()).append(":").append(entry.getValue().toSummaryString());
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Appends a snapshot of these metrics to datastore statistics.
+     */
+    public void exportTo(Statistics statistics) {
+        if(statistics == null) {
+            throw new IllegalArgumentException("statistics is null");
+        }
+        
+        if(statistics.getType() != StatisticsType.STATISTICS_TYPE_DATASTORE) {
+            throw new IllegalArgumentException(String.format("type %s is not a datastore statistics type", statistics.getType().getStrVal()));
+        }
+        
+        statistics.addEntry(new StatisticsEntry(toStatisticsValue(), DateTimeUtils.getTimestamp()));
+    }
+    
+    public void reset() {
+        this.hits.reset();
+        this.misses.reset();
+        this.bytesWritten.reset();
+        this.evictions.reset();
+        this.evictedBytes.reset();
+        this.getLatency.reset();
+        this.putLatency.reset();
+        this.removeLatency.reset();
+        for(StripedCounter counter : this.counters.values()) {
+            counter.reset();
+        }
+        for(LatencyHistogram histogram : this.histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
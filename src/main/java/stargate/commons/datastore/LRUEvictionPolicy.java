@@ -0,0 +1,70 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ *
+ * @author iychoi
+ */
+public class LRUEvictionPolicy<K> extends AbstractEvictionPolicy<K> {
+
+    private LinkedHashMap<K, Long> entries = new LinkedHashMap<K, Long>(16, 0.75f, true);
+    
+    public LRUEvictionPolicy() {
+    }
+    
+    @Override
+    public EvictionPolicyType getType() {
+        return EvictionPolicyType.EVICTION_POLICY_LRU;
+    }
+    
+    @Override
+    public void onInsert(K key, long size) {
+        this.entries.put(key, size);
+    }
+    
+    @Override
+    public void onAccess(K key) {
+        this.entries.get(key);
+    }
+    
+    @Override
+    public void onRemove(K key) {
+        this.entries.remove(key);
+    }
+    
+    @Override
+    public K selectVictim() {
+        Iterator<K> iterator = this.entries.keySet().iterator();
+        if(iterator.hasNext()) {
+            return iterator.next();
+        }
+        return null;
+    }
+    
+    @Override
+    public void onEvict(K key) {
+        this.entries.remove(key);
+    }
+    
+    @Override
+    public void clear() {
+        this.entries.clear();
+    }
+}
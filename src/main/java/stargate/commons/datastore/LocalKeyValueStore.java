@@ -0,0 +1,708 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.utils.TimingWheel;
+
+/**
+ * In-process key-value store on a lock-free sorted map. Entries of an
+ * expirable store expire the configured time after their last write; the
+ * expiry is tracked in a timing wheel advanced by one shared thread and is
+ * also checked on read. The shared task only holds weak references, so a
+ * store that is dropped without shutdown() does not leak. keys() and
+ * toMap() return snapshots.
+ *
+ * @author iychoi
+ */
+public class LocalKeyValueStore extends AbstractKeyValueStore {
+
+    private static final Log LOG = LogFactory.getLog(LocalKeyValueStore.class);
+    
+    private static final int DEFAULT_EXECUTOR_THREADS = 4;
+    private static final long MIN_TICK_MSEC = 10;
+    private static final long MAX_TICK_MSEC = 1000;
+    
+    private static final String COUNTER_EXPIRATIONS = "expirations";
+    
+    private static ExecutorService defaultExecutor;
+    private static ScheduledExecutorService expiryScheduler;
+    private static ScheduledFuture<?> expiryTask;
+    private static List<WeakReference<LocalKeyValueStore>> expiringStores = new ArrayList<WeakReference<LocalKeyValueStore>>();
+    
+    private String name;
+    private Class<?> valueClass;
+    private DataStoreProperties properties;
+    private String localNodeName;
+    private ExecutorService executor;
+    private KeyValueStoreMetrics metrics;
+    private ConcurrentSkipListMap<String, Entry> map = new ConcurrentSkipListMap<String, Entry>();
+    private AtomicInteger entryNum = new AtomicInteger(0);
+    private long expireMillis;
+    private TimingWheel<ExpiryItem> timingWheel;
+    
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_EXECUTOR_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "local-kvstore-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+    
+    private static synchronized ScheduledExecutorService getExpiryScheduler() {
+        if(expiryScheduler == null) {
+            expiryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "local-kvstore-expiry");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return expiryScheduler;
+    }
+    
+    private static synchronized void registerExpiry(LocalKeyValueStore store) {
+        expiringStores.add(new WeakReference<LocalKeyValueStore>(store));
+        if(expiryTask == null) {
+            expiryTask = getExpiryScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    expireAll();
+                }
+            }, MIN_TICK_MSEC, MIN_TICK_MSEC, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private static synchronized void unregisterExpiry(LocalKeyValueStore store) {
+        Iterator<WeakReference<LocalKeyValueStore>> iterator = expiringStores.iterator();
+        while(iterator.hasNext()) {
+            LocalKeyValueStore s = iterator.next().get();
+            if(s == null || s == store) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    private static void expireAll() {
+        List<LocalKeyValueStore> stores = new ArrayList<LocalKeyValueStore>();
+        synchronized(LocalKeyValueStore.class) {
+            Iterator<WeakReference<LocalKeyValueStore>> iterator = expiringStores.iterator();
+            while(iterator.hasNext()) {
+                LocalKeyValueStore store = iterator.next().get();
+                if(store == null) {
+                    iterator.remove();
+                } else {
+                    stores.add(store);
+                }
+            }
+            
+            if(expiringStores.isEmpty() && expiryTask != null) {
+                expiryTask.cancel(false);
+                expiryTask = null;
+            }
+        }
+        
+        // wheels of coarser ticks just find nothing due on most runs
+        for(LocalKeyValueStore store : stores) {
+            try {
+                store.expire();
+            } catch (Exception ex) {
+                LOG.error(String.format("Failed to expire entries of %s", store.getName()), ex);
+            }
+        }
+    }
+    
+    public LocalKeyValueStore(String name, Class<?> valueClass, DataStoreProperties properties, String localNodeName) {
+        this(name, valueClass, properties, localNodeName, getDefaultExecutor());
+    }
+    
+    public LocalKeyValueStore(String name, Class<?> valueClass, DataStoreProperties properties, String localNodeName, ExecutorService executor) {
+        if(name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name is null or empty");
+        }
+        
+        if(valueClass == null) {
+            throw new IllegalArgumentException("valueClass is null");
+        }
+        
+        if(properties == null) {
+            throw new IllegalArgumentException("properties is null");
+        }
+        
+        if(localNodeName == null || localNodeName.isEmpty()) {
+            throw new IllegalArgumentException("localNodeName is null or empty");
+        }
+        
+        if(executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        
+        this.name = name;
+        this.valueClass = valueClass;
+        this.properties = properties;
+        this.localNodeName = localNodeName;
+        this.executor = executor;
+        this.metrics = KeyValueStoreMetrics.getInstance(name);
+        
+        this.expireMillis = 0;
+        TimeUnit expireTimeUnit = properties.getExpireTimeUnit();
+        long expireTimeVal = properties.getExpireTimeVal();
+        if(properties.isExpirable() && expireTimeUnit != null && expireTimeVal > 0) {
+            this.expireMillis = Math.max(1, expireTimeUnit.toMillis(expireTimeVal));
+        }
+        
+        if(this.expireMillis > 0) {
+            long tickMillis = Math.min(MAX_TICK_MSEC, Math.max(MIN_TICK_MSEC, this.expireMillis / 64));
+            this.timingWheel = new TimingWheel<ExpiryItem>(tickMillis);
+            registerExpiry(this);
+        }
+    }
+    
+    @Override
+    public String getName() {
+        return this.name;
+    }
+    
+    @Override
+    public Class<?> getValueClass() {
+        return this.valueClass;
+    }
+    
+    @Override
+    public DataStoreProperties getProperties() {
+        return this.properties;
+    }
+    
+    public long getExpireMillis() {
+        return this.expireMillis;
+    }
+    
+    public KeyValueStoreMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    private boolean isExpired(Entry entry, long now) {
+        return entry.expireAt > 0 && entry.expireAt <= now;
+    }
+    
+    private Entry newEntry(String key, Object value) {
+        if(this.expireMillis <= 0) {
+            return new Entry(value, 0);
+        }
+        return new Entry(value, System.currentTimeMillis() + this.expireMillis);
+    }
+    
+    private void scheduleExpiry(String key, Entry entry) {
+        if(this.timingWheel != null) {
+            entry.timeout = this.timingWheel.schedule(new ExpiryItem(key, entry), this.expireMillis);
+        }
+    }
+    
+    private void cancelExpiry(Entry entry) {
+        TimingWheel.Timeout<ExpiryItem> timeout = entry.timeout;
+        if(timeout != null && this.timingWheel != null) {
+            this.timingWheel.cancel(timeout);
+        }
+    }
+    
+    private void expire() {
+        List<ExpiryItem> expired = this.timingWheel.advanceClock(System.currentTimeMillis());
+        for(ExpiryItem item : expired) {
+            // only the entry that was scheduled, a newer write survives
+            if(this.map.remove(item.key, item.entry)) {
+                this.entryNum.decrementAndGet();
+                this.metrics.increment(COUNTER_EXPIRATIONS);
+            }
+        }
+    }
+    
+    private void checkValue(Object value) {
+        if(value == null) {
+            throw new IllegalArgumentException("value is null");
+        }
+        
+        if(!this.valueClass.isInstance(value)) {
+            throw new IllegalArgumentException(String.format("value is not an instance of %s", this.valueClass.getName()));
+        }
+    }
+    
+    @Override
+    public int size() {
+        if(this.expireMillis <= 0) {
+            return Math.max(0, this.entryNum.get());
+        }
+        
+        // entries past their expiry may not be reaped yet, reap them here
+        long now = System.currentTimeMillis();
+        int size = 0;
+        for(Map.Entry<String, Entry> entry : this.map.entrySet()) {
+            if(!isExpired(entry.getValue(), now)) {
+                size++;
+            } else if(this.map.remove(entry.getKey(), entry.getValue())) {
+                cancelExpiry(entry.getValue());
+                this.entryNum.decrementAndGet();
+                this.metrics.increment(COUNTER_EXPIRATIONS);
+            }
+        }
+        return size;
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    @Override
+    public boolean containsKey(String key) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        Entry entry = this.map.get(key);
+        return entry != null && !isExpired(entry, System.currentTimeMillis());
+    }
+    
+    @Override
+    public Object get(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        long begin = System.nanoTime();
+        Entry entry = this.map.get(key);
+        if(entry != null && isExpired(entry, System.currentTimeMillis())) {
+            if(this.map.remove(key, entry)) {
+                this.entryNum.decrementAndGet();
+                cancelExpiry(entry);
+                this.metrics.increment(COUNTER_EXPIRATIONS);
+            }
+            entry = null;
+        }
+        
+        this.metrics.recordGet(entry != null, System.nanoTime() - begin);
+        if(entry == null) {
+            return null;
+        }
+        return entry.value;
+    }
+    
+    @Override
+    public void put(String key, Object value) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        checkValue(value);
+        
+        long begin = System.nanoTime();
+        Entry entry = newEntry(key, value);
+        Entry oldEntry = this.map.put(key, entry);
+        if(oldEntry == null) {
+            this.entryNum.incrementAndGet();
+        } else {
+            cancelExpiry(oldEntry);
+        }
+        scheduleExpiry(key, entry);
+        this.metrics.recordPut(0, System.nanoTime() - begin);
+    }
+    
+    @Override
+    public Future<Void> putAsync(final String key, final Object value) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        checkValue(value);
+        
+        return this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                put(key, value);
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public boolean putIfAbsent(String key, Object value) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        checkValue(value);
+        
+        long begin = System.nanoTime();
+        Entry entry = newEntry(key, value);
+        while(true) {
+            Entry oldEntry = this.map.putIfAbsent(key, entry);
+            if(oldEntry == null) {
+                this.entryNum.incrementAndGet();
+                break;
+            }
+            
+            if(!isExpired(oldEntry, System.currentTimeMillis())) {
+                return false;
+            }
+            
+            // an expired entry that was not reaped yet counts as absent
+            if(this.map.replace(key, oldEntry, entry)) {
+                cancelExpiry(oldEntry);
+                break;
+            }
+        }
+        
+        scheduleExpiry(key, entry);
+        this.metrics.recordPut(0, System.nanoTime() - begin);
+        return true;
+    }
+    
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        checkValue(newValue);
+        
+        long begin = System.nanoTime();
+        Entry entry = newEntry(key, newValue);
+        while(true) {
+            Entry oldEntry = this.map.get(key);
+            if(oldEntry == null || isExpired(oldEntry, System.currentTimeMillis()) || !Objects.equals(oldEntry.value, oldValue)) {
+                return false;
+            }
+            
+            if(this.map.replace(key, oldEntry, entry)) {
+                cancelExpiry(oldEntry);
+                break;
+            }
+        }
+        
+        scheduleExpiry(key, entry);
+        this.metrics.recordPut(0, System.nanoTime() - begin);
+        return true;
+    }
+    
+    @Override
+    public void remove(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        removeInternal(key);
+    }
+    
+    private boolean removeInternal(String key) {
+        long begin = System.nanoTime();
+        Entry entry = this.map.remove(key);
+        boolean removed = false;
+        if(entry != null) {
+            this.entryNum.decrementAndGet();
+            cancelExpiry(entry);
+            removed = !isExpired(entry, System.currentTimeMillis());
+        }
+        this.metrics.recordRemove(System.nanoTime() - begin);
+        return removed;
+    }
+    
+    @Override
+    public Future<Boolean> removeAsync(final String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        return this.executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return removeInternal(key);
+            }
+        });
+    }
+    
+    @Override
+    public Collection<String> keys() throws IOException {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<String>();
+        for(Map.Entry<String, Entry> entry : this.map.entrySet()) {
+            if(!isExpired(entry.getValue(), now)) {
+                keys.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableList(keys);
+    }
+    
+    @Override
+    public String getPrimaryNodeForData(String key) throws IOException {
+        return this.localNodeName;
+    }
+    
+    @Override
+    public Collection<String> getBackupNodesForData(String key) throws IOException {
+        return Collections.emptyList();
+    }
+    
+    @Override
+    public Collection<String> getPrimaryAndBackupNodesForData(String key) throws IOException {
+        List<String> nodes = new ArrayList<String>();
+        nodes.add(this.localNodeName);
+        return nodes;
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        for(String key : this.map.keySet()) {
+            Entry entry = this.map.remove(key);
+            if(entry != null) {
+                this.entryNum.decrementAndGet();
+                cancelExpiry(entry);
+            }
+        }
+    }
+    
+    @Override
+    public Future<Void> clearAsync() throws IOException {
+        return this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                clear();
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public Map<String, Object> toMap() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        for(Map.Entry<String, Entry> entry : this.map.entrySet()) {
+            if(!isExpired(entry.getValue(), now)) {
+                snapshot.put(entry.getKey(), entry.getValue().value);
+            }
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+    
+    @Override
+    public DataStorePage<String> listKeys(String prefix, String continuationToken, int pageSize) throws IOException {
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize is not positive");
+        }
+        
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<String>();
+        for(Map.Entry<String, Entry> entry : tailEntries(prefix, continuationToken).entrySet()) {
+            if(prefix != null && !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            
+            if(isExpired(entry.getValue(), now)) {
+                continue;
+            }
+            
+            keys.add(entry.getKey());
+            if(keys.size() > pageSize) {
+                break;
+            }
+        }
+        return makeKeyPage(keys, pageSize);
+    }
+    
+    @Override
+    public DataStorePage<Map.Entry<String, Object>> listEntries(String prefix, String continuationToken, int pageSize) throws IOException {
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize is not positive");
+        }
+        
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>();
+        String lastKey = null;
+        boolean more = false;
+        for(Map.Entry<String, Entry> entry : tailEntries(prefix, continuationToken).entrySet()) {
+            if(prefix != null && !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            
+            if(isExpired(entry.getValue(), now)) {
+                continue;
+            }
+            
+            if(entries.size() == pageSize) {
+                more = true;
+                break;
+            }
+            
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, Object>(entry.getKey(), entry.getValue().value));
+            lastKey = entry.getKey();
+        }
+        
+        if(more) {
+            return new DataStorePage<Map.Entry<String, Object>>(entries, lastKey);
+        }
+        return new DataStorePage<Map.Entry<String, Object>>(entries, null);
+    }
+    
+    private ConcurrentNavigableMap<String, Entry> tailEntries(String prefix, String continuationToken) {
+        // both bounds are lower bounds in key order, start after the larger
+        if(continuationToken != null && (prefix == null || continuationToken.compareTo(prefix) >= 0)) {
+            return this.map.tailMap(continuationToken, false);
+        } else if(prefix != null) {
+            return this.map.tailMap(prefix, true);
+        }
+        return this.map;
+    }
+    
+    private static void checkBatchKeys(Collection<String> keys) {
+        // a batch result cannot hold a null key, so those fail the whole
+        // batch before any key is applied
+        for(String key : keys) {
+            if(key == null || key.isEmpty()) {
+                throw new IllegalArgumentException("key is null or empty");
+            }
+        }
+    }
+    
+    @Override
+    protected ExecutorService getAsyncExecutor() {
+        return this.executor;
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<Object> getAll(Collection<String> keys) throws IOException {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        checkBatchKeys(keys);
+        
+        // in-process, so the batch runs inline instead of going through futures
+        KeyValueStoreBatchResult<Object> result = new KeyValueStoreBatchResult<Object>();
+        for(String key : keys) {
+            try {
+                result.addResult(key, get(key));
+            } catch (IOException ex) {
+                result.addError(key, ex);
+            } catch (RuntimeException ex) {
+                result.addError(key, new IOException(ex));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<Void> putAll(Map<String, Object> entries) throws IOException {
+        if(entries == null) {
+            throw new IllegalArgumentException("entries is null");
+        }
+        
+        checkBatchKeys(entries.keySet());
+        
+        KeyValueStoreBatchResult<Void> result = new KeyValueStoreBatchResult<Void>();
+        for(Map.Entry<String, Object> entry : entries.entrySet()) {
+            try {
+                put(entry.getKey(), entry.getValue());
+                result.addResult(entry.getKey(), null);
+            } catch (IOException ex) {
+                result.addError(entry.getKey(), ex);
+            } catch (RuntimeException ex) {
+                result.addError(entry.getKey(), new IOException(ex));
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<Boolean> removeAll(Collection<String> keys) throws IOException {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        checkBatchKeys(keys);
+        
+        KeyValueStoreBatchResult<Boolean> result = new KeyValueStoreBatchResult<Boolean>();
+        for(String key : keys) {
+            try {
+                result.addResult(key, removeInternal(key));
+            } catch (RuntimeException ex) {
+                result.addError(key, new IOException(ex));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Stops the expiry of this store; entries then only expire on read.
+     */
+    public void shutdown() {
+        if(this.timingWheel != null) {
+            unregisterExpiry(this);
+        }
+    }
+    
+    private static class Entry {
+        
+        private final Object value;
+        private final long expireAt;
+        private volatile TimingWheel.Timeout<ExpiryItem> timeout;
+        
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+    
+    private static class ExpiryItem {
+        
+        private final String key;
+        private final Entry entry;
+        
+        ExpiryItem(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,1423 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.io.AbstractSeekableInputStream;
+import stargate.commons.utils.IOUtils;
+
+/**
+ * Local big key-value store that appends parts to large segment files
+ * instead of writing a file per entry. An in-memory index maps every entry
+ * to the segment locations of its parts.
+ *
+ * Every record is checksummed. A put appends its part records, then a
+ * metadata record that carries the part locations and commits the entry;
+ * removes append a tombstone. Full segments are sealed with a footer that
+ * lists their records, so recovery replays footers and only scans the
+ * unsealed tail segment. Sealed segments with mostly dead data are
+ * compacted in the background by re-appending their live parts; segments
+ * that puts in flight have written to are pinned until the put commits.
+ *
+ * Commits and removes are flushed to the OS before they return, so they
+ * survive a process crash but not a power loss; only sealed segments and
+ * compaction output are forced to disk.
+ *
+ * @author iychoi
+ */
+public class LogStructuredBigKeyValueStore extends AbstractBigKeyValueStore {
+
+    private static final Log LOG = LogFactory.getLog(LogStructuredBigKeyValueStore.class);
+    
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_EXTENSION = ".log";
+    
+    private static final int RECORD_MAGIC = 0x53474c52; // SGLR
+    private static final int FOOTER_MAGIC = 0x53474c46; // SGLF
+    private static final int TRAILER_SIZE = 16;
+    private static final byte RECORD_TYPE_PART = 1;
+    private static final byte RECORD_TYPE_METADATA = 2;
+    private static final byte RECORD_TYPE_TOMBSTONE = 3;
+    
+    private static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024; // 256MB
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int DEFAULT_EXECUTOR_THREADS = 1;
+    private static final int KEY_LOCK_STRIPES = 64;
+    
+    private static final int LOCATION_OFFSET_BITS = 40;
+    private static final long LOCATION_OFFSET_MASK = (1L << LOCATION_OFFSET_BITS) - 1;
+    
+    private static final String COUNTER_SEGMENTS_SEALED = "segments_sealed";
+    private static final String COUNTER_COMPACTIONS = "compactions";
+    private static final String COUNTER_COMPACTED_BYTES = "compacted_bytes";
+    
+    private static ExecutorService defaultExecutor;
+    
+    private String name;
+    private DataStoreProperties properties;
+    private File rootDir;
+    private int partSize;
+    private long segmentSize;
+    private String localNodeName;
+    private ExecutorService executor;
+    private KeyValueStoreMetrics metrics;
+    private ConcurrentHashMap<String, IndexEntry> index = new ConcurrentHashMap<String, IndexEntry>();
+    private ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    private Object[] keyLocks;
+    private final Object writeLock = new Object();
+    private final Object compactionLock = new Object();
+    private Segment activeSegment;
+    private AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_EXECUTOR_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "logstore-compactor-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+    
+    public LogStructuredBigKeyValueStore(String name, DataStoreProperties properties, File rootDir, int partSize, String localNodeName) throws IOException {
+        this(name, properties, rootDir, partSize, DEFAULT_SEGMENT_SIZE, localNodeName, getDefaultExecutor());
+    }
+    
+    public LogStructuredBigKeyValueStore(String name, DataStoreProperties properties, File rootDir, int partSize, long segmentSize, String localNodeName, ExecutorService executor) throws IOException {
+        if(name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name is null or empty");
+        }
+        
+        if(properties == null) {
+            throw new IllegalArgumentException("properties is null");
+        }
+        
+        if(rootDir == null) {
+            throw new IllegalArgumentException("rootDir is null");
+        }
+        
+        if(partSize <= 0) {
+            throw new IllegalArgumentException("partSize is not positive");
+        }
+        
+        if(segmentSize <= 0 || segmentSize > LOCATION_OFFSET_MASK) {
+            throw new IllegalArgumentException("segmentSize is out of range");
+        }
+        
+        if(localNodeName == null || localNodeName.isEmpty()) {
+            throw new IllegalArgumentException("localNodeName is null or empty");
+        }
+        
+        if(executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        
+        this.name = name;
+        this.properties = properties;
+        this.rootDir = rootDir;
+        this.partSize = partSize;
+        this.segmentSize = segmentSize;
+        this.localNodeName = localNodeName;
+        this.executor = executor;
+        this.metrics = KeyValueStoreMetrics.getInstance(name);
+        
+        this.keyLocks = new Object[KEY_LOCK_STRIPES];
+        for(int i=0;i<KEY_LOCK_STRIPES;i++) {
+            this.keyLocks[i] = new Object();
+        }
+        
+        if(!rootDir.exists() && !rootDir.mkdirs()) {
+            throw new IOException(String.format("Failed to create a store dir - %s", rootDir.getAbsolutePath()));
+        }
+        
+        recover();
+    }
+    
+    private static long makeLocation(int segmentId, long offset) {
+        return ((long) segmentId << LOCATION_OFFSET_BITS) | offset;
+    }
+    
+    private static int getLocationSegmentId(long location) {
+        return (int) (location >>> LOCATION_OFFSET_BITS);
+    }
+    
+    private static long getLocationOffset(long location) {
+        return location & LOCATION_OFFSET_MASK;
+    }
+    
+    private File getSegmentFile(int segmentId) {
+        return new File(this.rootDir, String.format("%s%08d%s", SEGMENT_FILE_PREFIX, segmentId, SEGMENT_FILE_EXTENSION));
+    }
+    
+    private static int parseSegmentId(String filename) {
+        if(!filename.startsWith(SEGMENT_FILE_PREFIX) || !filename.endsWith(SEGMENT_FILE_EXTENSION)) {
+            return -1;
+        }
+        
+        try {
+            return Integer.parseInt(filename.substring(SEGMENT_FILE_PREFIX.length(), filename.length() - SEGMENT_FILE_EXTENSION.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+    
+    private void recover() throws IOException {
+        List<Integer> segmentIds = new ArrayList<Integer>();
+        File[] files = this.rootDir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                int segmentId = parseSegmentId(file.getName());
+                if(segmentId < 0) {
+                    continue;
+                }
+                
+                if(!this.properties.isPersistent()) {
+                    file.delete();
+                    continue;
+                }
+                segmentIds.add(segmentId);
+            }
+        }
+        Collections.sort(segmentIds);
+        
+        Segment lastSegment = null;
+        for(int i=0;i<segmentIds.size();i++) {
+            int segmentId = segmentIds.get(i);
+            boolean last = (i == segmentIds.size() - 1);
+            
+            Segment segment = new Segment(segmentId, getSegmentFile(segmentId));
+            List<FooterEntry> footerEntries = segment.readFooter();
+            if(footerEntries == null) {
+                // unsealed - the tail of the log at the time of a crash
+                footerEntries = segment.scan(last);
+                if(!last) {
+                    // a crash hit while it was being sealed; seal it now so
+                    // it becomes eligible for compaction
+                    segment.openForAppend();
+                    segment.seal();
+                }
+            }
+            
+            this.segments.put(segmentId, segment);
+            for(FooterEntry footerEntry : footerEntries) {
+                replay(segment, footerEntry);
+            }
+            lastSegment = segment;
+        }
+        
+        // drop entries that point into segments or ranges that are gone
+        for(Map.Entry<String, IndexEntry> entry : this.index.entrySet()) {
+            IndexEntry indexEntry = entry.getValue();
+            if(!isValid(indexEntry)) {
+                LOG.error(String.format("Dropped an entry with missing parts - %s", entry.getKey()));
+                this.index.remove(entry.getKey(), indexEntry);
+                continue;
+            }
+            addLiveBytes(indexEntry, 1);
+        }
+        
+        synchronized(this.writeLock) {
+            if(lastSegment != null && !lastSegment.isSealed()) {
+                lastSegment.openForAppend();
+                this.activeSegment = lastSegment;
+            } else {
+                int segmentId = (lastSegment == null) ? 0 : lastSegment.getId() + 1;
+                this.activeSegment = createSegment(segmentId);
+            }
+        }
+    }
+    
+    private void replay(Segment segment, FooterEntry footerEntry) throws IOException {
+        if(footerEntry.type == RECORD_TYPE_TOMBSTONE) {
+            this.index.remove(footerEntry.key);
+        } else if(footerEntry.type == RECORD_TYPE_METADATA) {
+            byte[] data = segment.readRecordData(footerEntry.recordOffset);
+            this.index.put(footerEntry.key, decodeIndexEntry(data, segment.getId(), footerEntry.key.getBytes("UTF-8").length));
+        }
+    }
+    
+    private boolean isValid(IndexEntry indexEntry) {
+        for(int i=0;i<indexEntry.locations.length;i++) {
+            Segment segment = this.segments.get(getLocationSegmentId(indexEntry.locations[i]));
+            if(segment == null) {
+                return false;
+            }
+            
+            int partLen = BigKeyValueStoreUtils.getPartSize(indexEntry.metadata.getEntrySize(), this.partSize, i);
+            if(getLocationOffset(indexEntry.locations[i]) + partLen > segment.getSize()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private Segment createSegment(int segmentId) throws IOException {
+        File file = getSegmentFile(segmentId);
+        file.delete();
+        Segment segment = new Segment(segmentId, file);
+        segment.openForAppend();
+        this.segments.put(segmentId, segment);
+        return segment;
+    }
+    
+    private static byte[] encodeIndexEntryData(BigKeyValueStoreMetadata metadata, long[] locations) throws IOException {
+        int metadataLen = metadata.getEncodedSize();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + metadataLen + 4 + 8 * locations.length);
+        buffer.putInt(metadataLen);
+        metadata.writeTo(buffer);
+        buffer.putInt(locations.length);
+        for(long location : locations) {
+            buffer.putLong(location);
+        }
+        return buffer.array();
+    }
+    
+    private static IndexEntry decodeIndexEntry(byte[] data, int metadataSegmentId, int keyLength) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int metadataLen = buffer.getInt();
+        ByteBuffer metadataBuffer = buffer.slice();
+        metadataBuffer.limit(metadataLen);
+        BigKeyValueStoreMetadata metadata = BigKeyValueStoreMetadata.fromBytes(metadataBuffer);
+        buffer.position(buffer.position() + metadataLen);
+        long[] locations = new long[buffer.getInt()];
+        for(int i=0;i<locations.length;i++) {
+            locations[i] = buffer.getLong();
+        }
+        return new IndexEntry(metadata, locations, metadataSegmentId, keyLength, data.length);
+    }
+    
+    private static long getRecordSize(int keyLength, int dataLength) {
+        // magic, type, key length, key, data length, data, checksum
+        return 4 + 1 + 4 + keyLength + 4 + dataLength + 4;
+    }
+    
+    @Override
+    public String getName() {
+        return this.name;
+    }
+    
+    @Override
+    public DataStoreProperties getProperties() {
+        return this.properties;
+    }
+    
+    @Override
+    public int getPartSize() {
+        return this.partSize;
+    }
+    
+    public File getRootDir() {
+        return this.rootDir;
+    }
+    
+    public long getSegmentSize() {
+        return this.segmentSize;
+    }
+    
+    public int getSegmentNum() {
+        return this.segments.size();
+    }
+    
+    public KeyValueStoreMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    private Object getKeyLock(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return this.keyLocks[h & (KEY_LOCK_STRIPES - 1)];
+    }
+    
+    @Override
+    public boolean containsKey(String key) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        return this.index.containsKey(key);
+    }
+    
+    @Override
+    public BigKeyValueStoreMetadata getMetadata(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        IndexEntry indexEntry = this.index.get(key);
+        if(indexEntry == null) {
+            return null;
+        }
+        return indexEntry.metadata;
+    }
+    
+    @Override
+    public AbstractSeekableInputStream getData(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        return openStream(key, -1);
+    }
+    
+    @Override
+    public AbstractSeekableInputStream getDataPart(String key, int partNo) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(partNo < 0) {
+            throw new IllegalArgumentException("partNo is negative");
+        }
+        
+        return openStream(key, partNo);
+    }
+    
+    private AbstractSeekableInputStream openStream(String key, int partNo) throws IOException {
+        long begin = System.nanoTime();
+        while(true) {
+            IndexEntry indexEntry = this.index.get(key);
+            if(indexEntry == null || partNo >= indexEntry.locations.length) {
+                this.metrics.recordGet(false, System.nanoTime() - begin);
+                return null;
+            }
+            
+            // compaction may retire a segment between the lookup and the
+            // retain, the entry has then moved and is looked up again
+            List<Segment> retained = retainSegments(indexEntry);
+            if(retained == null) {
+                if(this.index.get(key) != indexEntry) {
+                    continue;
+                }
+                
+                // not moved, a segment of the entry is gone for good
+                LOG.error(String.format("Dropped an entry with a missing segment - %s", key));
+                if(this.index.remove(key, indexEntry)) {
+                    addLiveBytes(indexEntry, -1);
+                }
+                this.metrics.recordGet(false, System.nanoTime() - begin);
+                return null;
+            }
+            
+            EntryInputStream is;
+            if(partNo < 0) {
+                is = new EntryInputStream(indexEntry, retained, 0, indexEntry.metadata.getEntrySize());
+            } else {
+                long partStartOffset = BigKeyValueStoreUtils.getPartStartOffset(this.partSize, partNo);
+                int partLen = BigKeyValueStoreUtils.getPartSize(indexEntry.metadata.getEntrySize(), this.partSize, partNo);
+                is = new EntryInputStream(indexEntry, retained, partStartOffset, partLen);
+            }
+            
+            this.metrics.recordGet(true, System.nanoTime() - begin);
+            return is;
+        }
+    }
+    
+    private List<Segment> retainSegments(IndexEntry indexEntry) {
+        List<Segment> retained = new ArrayList<Segment>();
+        for(long location : indexEntry.locations) {
+            Segment segment = this.segments.get(getLocationSegmentId(location));
+            if(retained.contains(segment)) {
+                continue;
+            }
+            
+            if(segment == null || !segment.retain()) {
+                for(Segment s : retained) {
+                    s.release();
+                }
+                return null;
+            }
+            retained.add(segment);
+        }
+        return retained;
+    }
+    
+    @Override
+    public void warmData(String key) throws IOException {
+        // segments are read through the page cache, there is nothing to warm
+    }
+    
+    @Override
+    public void warmData(String key, BigKeyValueStoreMetadata metadata) throws IOException {
+        // segments are read through the page cache, there is nothing to warm
+    }
+    
+    @Override
+    public void put(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(dataIS == null) {
+            throw new IllegalArgumentException("dataIS is null");
+        }
+        
+        if(size < 0) {
+            throw new IllegalArgumentException("size is negative");
+        }
+        
+        long begin = System.nanoTime();
+        synchronized(getKeyLock(key)) {
+            putInternal(key, dataIS, size, extra);
+        }
+        this.metrics.recordPut(size, System.nanoTime() - begin);
+    }
+    
+    @Override
+    public boolean putIfAbsent(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(dataIS == null) {
+            throw new IllegalArgumentException("dataIS is null");
+        }
+        
+        if(size < 0) {
+            throw new IllegalArgumentException("size is negative");
+        }
+        
+        long begin = System.nanoTime();
+        synchronized(getKeyLock(key)) {
+            if(this.index.containsKey(key)) {
+                return false;
+            }
+            
+            putInternal(key, dataIS, size, extra);
+        }
+        this.metrics.recordPut(size, System.nanoTime() - begin);
+        return true;
+    }
+    
+    private void putInternal(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        int partNum = BigKeyValueStoreUtils.getPartNum(size, this.partSize);
+        long[] locations = new long[partNum];
+        
+        // parts of other puts may interleave, each location is recorded;
+        // the segments written to are not compacted until the commit
+        List<Segment> pinned = new ArrayList<Segment>();
+        try {
+            byte[] buffer = new byte[(int) Math.min(size, this.partSize)];
+            for(int i=0;i<partNum;i++) {
+                int partLen = BigKeyValueStoreUtils.getPartSize(size, this.partSize, i);
+                int readLen = IOUtils.toByteArray(dataIS, buffer, partLen);
+                if(readLen < partLen) {
+                    throw new IOException(String.format("unexpected EOF at part %d of %s", i, key));
+                }
+                
+                locations[i] = append(RECORD_TYPE_PART, key, buffer, partLen, pinned);
+            }
+            
+            commit(key, new BigKeyValueStoreMetadata(key, partNum, size, extra), locations, pinned);
+        } finally {
+            for(Segment segment : pinned) {
+                segment.unpin();
+            }
+        }
+    }
+    
+    private void commit(String key, BigKeyValueStoreMetadata metadata, long[] locations, List<Segment> pinned) throws IOException {
+        byte[] data = encodeIndexEntryData(metadata, locations);
+        long metadataLocation;
+        synchronized(this.writeLock) {
+            metadataLocation = append(RECORD_TYPE_METADATA, key, data, data.length, pinned);
+            this.activeSegment.flush();
+        }
+        
+        IndexEntry indexEntry = new IndexEntry(metadata, locations, getLocationSegmentId(metadataLocation), key.getBytes("UTF-8").length, data.length);
+        addLiveBytes(indexEntry, 1);
+        IndexEntry oldIndexEntry = this.index.put(key, indexEntry);
+        if(oldIndexEntry != null) {
+            addLiveBytes(oldIndexEntry, -1);
+            scheduleCompaction();
+        }
+    }
+    
+    /**
+     * Appends a record and returns the location of its data. The segment
+     * written to is pinned and added to pinned unless it is null.
+     */
+    private long append(byte type, String key, byte[] data, int len, List<Segment> pinned) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        int headerSize = 4 + 1 + 4 + keyBytes.length + 4;
+        
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(RECORD_MAGIC);
+        header.put(type);
+        header.putInt(keyBytes.length);
+        header.put(keyBytes);
+        header.putInt(len);
+        
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 4, headerSize - 4);
+        crc.update(data, 0, len);
+        
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        trailer.putInt((int) crc.getValue());
+        
+        synchronized(this.writeLock) {
+            Segment segment = this.activeSegment;
+            long recordSize = getRecordSize(keyBytes.length, len);
+            if(segment.getSize() > 0 && segment.getSize() + recordSize > this.segmentSize) {
+                segment.seal();
+                this.metrics.increment(COUNTER_SEGMENTS_SEALED);
+                segment = createSegment(segment.getId() + 1);
+                this.activeSegment = segment;
+                scheduleCompaction();
+            }
+            
+            long recordOffset = segment.getSize();
+            segment.write(header.array(), 0, headerSize);
+            segment.write(data, 0, len);
+            segment.write(trailer.array(), 0, 4);
+            
+            segment.addFooterEntry(new FooterEntry(type, key, recordOffset));
+            if(pinned != null && !pinned.contains(segment)) {
+                segment.pin();
+                pinned.add(segment);
+            }
+            return makeLocation(segment.getId(), recordOffset + headerSize);
+        }
+    }
+    
+    /**
+     * Counts the whole records of the entry, headers included, so live
+     * bytes compare with segment sizes.
+     */
+    private void addLiveBytes(IndexEntry indexEntry, int sign) {
+        for(int i=0;i<indexEntry.locations.length;i++) {
+            Segment segment = this.segments.get(getLocationSegmentId(indexEntry.locations[i]));
+            if(segment != null) {
+                int partLen = BigKeyValueStoreUtils.getPartSize(indexEntry.metadata.getEntrySize(), this.partSize, i);
+                segment.addLiveBytes(sign * getRecordSize(indexEntry.keyLength, partLen));
+            }
+        }
+        
+        Segment metadataSegment = this.segments.get(indexEntry.metadataSegmentId);
+        if(metadataSegment != null) {
+            metadataSegment.addLiveBytes(sign * getRecordSize(indexEntry.keyLength, indexEntry.metadataLength));
+        }
+    }
+    
+    @Override
+    public boolean replace(String key, BigKeyValueStoreMetadata oldMetadata, BigKeyValueStoreMetadata newMetadata) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(oldMetadata == null) {
+            throw new IllegalArgumentException("oldMetadata is null");
+        }
+        
+        if(newMetadata == null) {
+            throw new IllegalArgumentException("newMetadata is null");
+        }
+        
+        // only the metadata is replaced, the data must stay the same
+        if(!key.equals(newMetadata.getKey()) || oldMetadata.getEntrySize() != newMetadata.getEntrySize() || oldMetadata.getPartNum() != newMetadata.getPartNum()) {
+            throw new IllegalArgumentException("newMetadata does not describe the same data");
+        }
+        
+        synchronized(getKeyLock(key)) {
+            IndexEntry indexEntry = this.index.get(key);
+            if(indexEntry == null || !indexEntry.metadata.equals(oldMetadata)) {
+                return false;
+            }
+            
+            List<Segment> pinned = new ArrayList<Segment>();
+            try {
+                commit(key, newMetadata, indexEntry.locations, pinned);
+            } finally {
+                for(Segment segment : pinned) {
+                    segment.unpin();
+                }
+            }
+            return true;
+        }
+    }
+    
+    @Override
+    public void remove(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        long begin = System.nanoTime();
+        synchronized(getKeyLock(key)) {
+            if(this.index.containsKey(key)) {
+                synchronized(this.writeLock) {
+                    append(RECORD_TYPE_TOMBSTONE, key, new byte[0], 0, null);
+                    this.activeSegment.flush();
+                }
+                
+                IndexEntry indexEntry = this.index.remove(key);
+                if(indexEntry != null) {
+                    addLiveBytes(indexEntry, -1);
+                    scheduleCompaction();
+                }
+            }
+        }
+        this.metrics.recordRemove(System.nanoTime() - begin);
+    }
+    
+    @Override
+    public String getPrimaryNodeForData(String key) throws IOException {
+        return this.localNodeName;
+    }
+    
+    @Override
+    public boolean isPrimaryNodeForDataLocal(String key) throws IOException {
+        return true;
+    }
+    
+    /**
+     * Entries live inside shared segment files, so there is no file of
+     * their own to return.
+     * 
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public File getCacheFilePath(String key) throws IOException {
+        throw new UnsupportedOperationException("entries of a log-structured store have no cache file of their own");
+    }
+    
+    @Override
+    public Collection<String> getBackupNodesForData(String key) throws IOException {
+        return Collections.emptyList();
+    }
+    
+    @Override
+    public Collection<String> getPrimaryAndBackupNodesForData(String key) throws IOException {
+        List<String> nodes = new ArrayList<String>();
+        nodes.add(this.localNodeName);
+        return nodes;
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        // a compaction must not move entries into the new segments
+        synchronized(this.compactionLock) {
+            synchronized(this.writeLock) {
+                int nextSegmentId = this.activeSegment.getId() + 1;
+                this.index.clear();
+                
+                List<Segment> oldSegments = new ArrayList<Segment>(this.segments.values());
+                this.segments.clear();
+                for(Segment segment : oldSegments) {
+                    segment.retire();
+                }
+                
+                this.activeSegment = createSegment(nextSegmentId);
+            }
+        }
+    }
+    
+    private void scheduleCompaction() {
+        if(!this.compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactionScheduled.set(false);
+                    try {
+                        compact();
+                    } catch (IOException ex) {
+                        LOG.error("Failed to compact segments", ex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.compactionScheduled.set(false);
+        }
+    }
+    
+    /**
+     * Rewrites sealed segments whose live data fell under half of their
+     * size and removes them. Segments pinned by puts in flight are left for
+     * a later run. Runs are serialized, so a segment is compacted once.
+     */
+    public void compact() throws IOException {
+        synchronized(this.compactionLock) {
+            for(Segment segment : new ArrayList<Segment>(this.segments.values())) {
+                if(!segment.isSealed() || segment.isPinned()) {
+                    continue;
+                }
+                
+                // removed by an earlier run or a clear since the snapshot
+                if(this.segments.get(segment.getId()) != segment) {
+                    continue;
+                }
+                
+                if(segment.getLiveBytes() < segment.getSize() * COMPACTION_LIVE_RATIO) {
+                    compactSegment(segment);
+                }
+            }
+        }
+    }
+    
+    private void compactSegment(Segment segment) throws IOException {
+        int segmentId = segment.getId();
+        long movedBytes = 0;
+        
+        List<FooterEntry> footerEntries = segment.readFooter();
+        if(footerEntries == null) {
+            throw new IOException(String.format("cannot read the footer of segment %d", segmentId));
+        }
+        
+        // only keys with a record in the segment can refer to it
+        Set<String> keys = new LinkedHashSet<String>();
+        for(FooterEntry footerEntry : footerEntries) {
+            if(footerEntry.type != RECORD_TYPE_TOMBSTONE) {
+                keys.add(footerEntry.key);
+            }
+        }
+        
+        for(String key : keys) {
+            synchronized(getKeyLock(key)) {
+                IndexEntry indexEntry = this.index.get(key);
+                if(indexEntry == null || !indexEntry.refersTo(segmentId)) {
+                    continue;
+                }
+                
+                List<Segment> pinned = new ArrayList<Segment>();
+                try {
+                    long[] locations = indexEntry.locations.clone();
+                    for(int i=0;i<locations.length;i++) {
+                        if(getLocationSegmentId(locations[i]) != segmentId) {
+                            continue;
+                        }
+                        
+                        int partLen = BigKeyValueStoreUtils.getPartSize(indexEntry.metadata.getEntrySize(), this.partSize, i);
+                        byte[] data = new byte[partLen];
+                        segment.read(getLocationOffset(locations[i]), data);
+                        locations[i] = append(RECORD_TYPE_PART, key, data, partLen, pinned);
+                        movedBytes += partLen;
+                    }
+                    
+                    commit(key, indexEntry.metadata, locations, pinned);
+                } finally {
+                    for(Segment s : pinned) {
+                        s.unpin();
+                    }
+                }
+            }
+        }
+        
+        // tombstones only matter while older segments may still hold the
+        // metadata they cancel
+        boolean hasOlderSegments = !this.segments.headMap(segmentId).isEmpty();
+        if(hasOlderSegments) {
+            for(FooterEntry footerEntry : footerEntries) {
+                if(footerEntry.type != RECORD_TYPE_TOMBSTONE) {
+                    continue;
+                }
+                
+                synchronized(getKeyLock(footerEntry.key)) {
+                    if(!this.index.containsKey(footerEntry.key)) {
+                        append(RECORD_TYPE_TOMBSTONE, footerEntry.key, new byte[0], 0, null);
+                    }
+                }
+            }
+        }
+        
+        synchronized(this.writeLock) {
+            // the moved entries must be durable before their old copies go
+            this.activeSegment.sync();
+            this.segments.remove(segmentId);
+        }
+        segment.retire();
+        
+        this.metrics.increment(COUNTER_COMPACTIONS);
+        this.metrics.add(COUNTER_COMPACTED_BYTES, movedBytes);
+    }
+    
+    private static class IndexEntry {
+        
+        private final BigKeyValueStoreMetadata metadata;
+        private final long[] locations;
+        private final int metadataSegmentId;
+        private final int keyLength;
+        private final int metadataLength;
+        
+        IndexEntry(BigKeyValueStoreMetadata metadata, long[] locations, int metadataSegmentId, int keyLength, int metadataLength) {
+            this.metadata = metadata;
+            this.locations = locations;
+            this.metadataSegmentId = metadataSegmentId;
+            this.keyLength = keyLength;
+            this.metadataLength = metadataLength;
+        }
+        
+        boolean refersTo(int segmentId) {
+            if(this.metadataSegmentId == segmentId) {
+                return true;
+            }
+            
+            for(long location : this.locations) {
+                if(getLocationSegmentId(location) == segmentId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static class FooterEntry {
+        
+        private final byte type;
+        private final String key;
+        private final long recordOffset;
+        
+        FooterEntry(byte type, String key, long recordOffset) {
+            this.type = type;
+            this.key = key;
+            this.recordOffset = recordOffset;
+        }
+    }
+    
+    private static class Segment {
+        
+        private int id;
+        private File file;
+        private RandomAccessFile readFile;
+        private OutputStream out;
+        private FileOutputStream fileOut;
+        private volatile long size;
+        private volatile boolean sealed;
+        private AtomicLong liveBytes = new AtomicLong(0);
+        private AtomicInteger refCount = new AtomicInteger(1);
+        private AtomicInteger pinCount = new AtomicInteger(0);
+        private volatile boolean retired;
+        private List<FooterEntry> footerEntries = new ArrayList<FooterEntry>();
+        
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.size = file.exists() ? file.length() : 0;
+            this.sealed = false;
+            this.retired = false;
+        }
+        
+        int getId() {
+            return this.id;
+        }
+        
+        long getSize() {
+            return this.size;
+        }
+        
+        boolean isSealed() {
+            return this.sealed;
+        }
+        
+        long getLiveBytes() {
+            return this.liveBytes.get();
+        }
+        
+        void addLiveBytes(long bytes) {
+            this.liveBytes.addAndGet(bytes);
+        }
+        
+        void addFooterEntry(FooterEntry footerEntry) {
+            this.footerEntries.add(footerEntry);
+        }
+        
+        void pin() {
+            this.pinCount.incrementAndGet();
+        }
+        
+        void unpin() {
+            this.pinCount.decrementAndGet();
+        }
+        
+        boolean isPinned() {
+            return this.pinCount.get() > 0;
+        }
+        
+        boolean retain() {
+            while(true) {
+                int count = this.refCount.get();
+                if(count <= 0) {
+                    return false;
+                }
+                
+                if(this.refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        void release() {
+            if(this.refCount.decrementAndGet() == 0) {
+                closeFiles();
+                if(this.retired) {
+                    this.file.delete();
+                }
+            }
+        }
+        
+        /**
+         * Drops the store reference; the file is removed once the last
+         * reader is done.
+         */
+        void retire() {
+            this.retired = true;
+            release();
+        }
+        
+        private synchronized RandomAccessFile getReadFile() throws IOException {
+            if(this.readFile == null) {
+                this.readFile = new RandomAccessFile(this.file, "r");
+            }
+            return this.readFile;
+        }
+        
+        private synchronized void closeFiles() {
+            try {
+                if(this.out != null) {
+                    this.out.close();
+                    this.out = null;
+                    this.fileOut = null;
+                }
+            } catch (IOException ex) {
+                LOG.error(ex);
+            }
+            
+            try {
+                if(this.readFile != null) {
+                    this.readFile.close();
+                    this.readFile = null;
+                }
+            } catch (IOException ex) {
+                LOG.error(ex);
+            }
+        }
+        
+        void read(long offset, byte[] data) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            read(offset, buffer);
+            if(buffer.hasRemaining()) {
+                throw new EOFException(String.format("unexpected EOF at %d of %s", offset + buffer.position(), this.file.getName()));
+            }
+        }
+        
+        int read(long offset, ByteBuffer dst) throws IOException {
+            int readTotal = 0;
+            while(dst.hasRemaining()) {
+                int readLen = getReadFile().getChannel().read(dst, offset + readTotal);
+                if(readLen < 0) {
+                    break;
+                }
+                readTotal += readLen;
+            }
+            return readTotal;
+        }
+        
+        void openForAppend() throws IOException {
+            this.fileOut = new FileOutputStream(this.file, true);
+            this.out = new BufferedOutputStream(this.fileOut, WRITE_BUFFER_SIZE);
+        }
+        
+        void write(byte[] data, int off, int len) throws IOException {
+            this.out.write(data, off, len);
+            this.size += len;
+        }
+        
+        void flush() throws IOException {
+            this.out.flush();
+        }
+        
+        void sync() throws IOException {
+            this.out.flush();
+            this.fileOut.getFD().sync();
+        }
+        
+        void seal() throws IOException {
+            long footerStart = this.size;
+            for(FooterEntry footerEntry : this.footerEntries) {
+                byte[] keyBytes = footerEntry.key.getBytes("UTF-8");
+                ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + keyBytes.length + 8);
+                buffer.put(footerEntry.type);
+                buffer.putInt(keyBytes.length);
+                buffer.put(keyBytes);
+                buffer.putLong(footerEntry.recordOffset);
+                write(buffer.array(), 0, buffer.capacity());
+            }
+            
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putInt(this.footerEntries.size());
+            trailer.putLong(footerStart);
+            trailer.putInt(FOOTER_MAGIC);
+            write(trailer.array(), 0, TRAILER_SIZE);
+            
+            sync();
+            synchronized(this) {
+                this.out.close();
+                this.out = null;
+                this.fileOut = null;
+            }
+            this.footerEntries = null;
+            this.sealed = true;
+        }
+        
+        /**
+         * Reads the footer of a sealed segment, or returns null if the
+         * segment is not sealed.
+         */
+        List<FooterEntry> readFooter() throws IOException {
+            if(this.size < TRAILER_SIZE) {
+                return null;
+            }
+            
+            byte[] trailerBytes = new byte[TRAILER_SIZE];
+            read(this.size - TRAILER_SIZE, trailerBytes);
+            ByteBuffer trailer = ByteBuffer.wrap(trailerBytes);
+            int entryNum = trailer.getInt();
+            long footerStart = trailer.getLong();
+            if(trailer.getInt() != FOOTER_MAGIC || footerStart < 0 || footerStart > this.size - TRAILER_SIZE || entryNum < 0) {
+                return null;
+            }
+            
+            byte[] footerBytes = new byte[(int) (this.size - TRAILER_SIZE - footerStart)];
+            read(footerStart, footerBytes);
+            
+            List<FooterEntry> entries = new ArrayList<FooterEntry>(entryNum);
+            try {
+                ByteBuffer footer = ByteBuffer.wrap(footerBytes);
+                for(int i=0;i<entryNum;i++) {
+                    byte type = footer.get();
+                    byte[] keyBytes = new byte[footer.getInt()];
+                    footer.get(keyBytes);
+                    long recordOffset = footer.getLong();
+                    entries.add(new FooterEntry(type, new String(keyBytes, "UTF-8"), recordOffset));
+                }
+            } catch (RuntimeException ex) {
+                // a damaged footer, fall back to a scan
+                return null;
+            }
+            
+            this.sealed = true;
+            return entries;
+        }
+        
+        /**
+         * Scans the records of an unsealed segment and returns its footer
+         * entries. A torn tail is cut off if truncate is set.
+         */
+        List<FooterEntry> scan(boolean truncate) throws IOException {
+            List<FooterEntry> entries = new ArrayList<FooterEntry>();
+            long validSize = 0;
+            
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file), WRITE_BUFFER_SIZE));
+            try {
+                CRC32 crc = new CRC32();
+                while(true) {
+                    long recordOffset = validSize;
+                    try {
+                        if(dis.readInt() != RECORD_MAGIC) {
+                            break;
+                        }
+                        
+                        byte type = dis.readByte();
+                        int keyLen = dis.readInt();
+                        if(keyLen < 0 || keyLen > this.size) {
+                            break;
+                        }
+                        byte[] keyBytes = new byte[keyLen];
+                        dis.readFully(keyBytes);
+                        int dataLen = dis.readInt();
+                        if(dataLen < 0 || dataLen > this.size) {
+                            break;
+                        }
+                        byte[] data = new byte[dataLen];
+                        dis.readFully(data);
+                        int checksum = dis.readInt();
+                        
+                        ByteBuffer header = ByteBuffer.allocate(1 + 4 + keyLen + 4);
+                        header.put(type);
+                        header.putInt(keyLen);
+                        header.put(keyBytes);
+                        header.putInt(dataLen);
+                        crc.reset();
+                        crc.update(header.array());
+                        crc.update(data);
+                        if((int) crc.getValue() != checksum) {
+                            break;
+                        }
+                        
+                        entries.add(new FooterEntry(type, new String(keyBytes, "UTF-8"), recordOffset));
+                        validSize += 4 + header.capacity() + dataLen + 4;
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                }
+            } finally {
+                dis.close();
+            }
+            
+            if(validSize < this.size) {
+                LOG.error(String.format("Found a torn tail at %d of %s", validSize, this.file.getName()));
+                if(truncate) {
+                    RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+                    try {
+                        raf.setLength(validSize);
+                    } finally {
+                        raf.close();
+                    }
+                    this.size = validSize;
+                }
+            }
+            
+            this.footerEntries = new ArrayList<FooterEntry>(entries);
+            return entries;
+        }
+        
+        /**
+         * Reads and verifies the data of the record at recordOffset.
+         */
+        byte[] readRecordData(long recordOffset) throws IOException {
+            byte[] fixed = new byte[9];
+            read(recordOffset, fixed);
+            ByteBuffer fixedBuffer = ByteBuffer.wrap(fixed);
+            if(fixedBuffer.getInt() != RECORD_MAGIC) {
+                throw new IOException(String.format("no record at %d of %s", recordOffset, this.file.getName()));
+            }
+            fixedBuffer.get();
+            int keyLen = fixedBuffer.getInt();
+            
+            byte[] rest = new byte[keyLen + 4];
+            read(recordOffset + 9, rest);
+            int dataLen = ByteBuffer.wrap(rest, keyLen, 4).getInt();
+            
+            byte[] data = new byte[dataLen + 4];
+            read(recordOffset + 9 + keyLen + 4, data);
+            
+            CRC32 crc = new CRC32();
+            crc.update(fixed, 4, 5);
+            crc.update(rest);
+            crc.update(data, 0, dataLen);
+            if((int) crc.getValue() != ByteBuffer.wrap(data, dataLen, 4).getInt()) {
+                throw new IOException(String.format("checksum mismatch of the record at %d of %s", recordOffset, this.file.getName()));
+            }
+            
+            byte[] recordData = new byte[dataLen];
+            System.arraycopy(data, 0, recordData, 0, dataLen);
+            return recordData;
+        }
+    }
+    
+    /**
+     * Reads a range of an entry from the segments that hold its parts. The
+     * segments stay on disk until the stream is closed.
+     */
+    private class EntryInputStream extends AbstractSeekableInputStream {
+        
+        private IndexEntry indexEntry;
+        private List<Segment> retained;
+        private long baseOffset;
+        private long size;
+        private long offset;
+        private boolean closed;
+        
+        EntryInputStream(IndexEntry indexEntry, List<Segment> retained, long baseOffset, long size) {
+            this.indexEntry = indexEntry;
+            this.retained = retained;
+            this.baseOffset = baseOffset;
+            this.size = size;
+            this.offset = 0;
+            this.closed = false;
+        }
+        
+        @Override
+        public synchronized long getOffset() throws IOException {
+            return this.offset;
+        }
+        
+        @Override
+        public synchronized void seek(long offset) throws IOException {
+            if(offset < 0) {
+                throw new IOException("cannot seek to negative offset : " + offset);
+            }
+            
+            this.offset = Math.min(this.size, offset);
+        }
+        
+        @Override
+        public synchronized long skip(long size) throws IOException {
+            if(size <= 0) {
+                return 0;
+            }
+            
+            long skipped = Math.min(size, this.size - this.offset);
+            this.offset += skipped;
+            return skipped;
+        }
+        
+        @Override
+        public synchronized int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, this.size - this.offset);
+        }
+        
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            int readLen = read(b, 0, 1);
+            if(readLen <= 0) {
+                return -1;
+            }
+            return b[0] & 0xff;
+        }
+        
+        @Override
+        public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+            if(bytes == null) {
+                throw new IllegalArgumentException("bytes is null");
+            }
+            
+            if(off < 0) {
+                throw new IllegalArgumentException("off is negative");
+            }
+            
+            if(len < 0) {
+                throw new IllegalArgumentException("len is negative");
+            }
+            
+            if(this.offset >= this.size) {
+                return -1;
+            }
+            
+            if(len == 0) {
+                return 0;
+            }
+            
+            int readLen = read(this.offset, ByteBuffer.wrap(bytes, off, len));
+            if(readLen > 0) {
+                this.offset += readLen;
+            }
+            return readLen;
+        }
+        
+        @Override
+        public int read(long position, ByteBuffer dst) throws IOException {
+            if(position < 0) {
+                throw new IllegalArgumentException("position is negative");
+            }
+            
+            if(dst == null) {
+                throw new IllegalArgumentException("dst is null");
+            }
+            
+            if(this.closed) {
+                throw new IOException("stream is already closed");
+            }
+            
+            if(position >= this.size) {
+                return -1;
+            }
+            
+            // one part per call
+            long entryPosition = this.baseOffset + position;
+            int partNo = BigKeyValueStoreUtils.getPartNo(entryPosition, partSize);
+            long partStartOffset = BigKeyValueStoreUtils.getPartStartOffset(partSize, partNo);
+            int partLen = BigKeyValueStoreUtils.getPartSize(this.indexEntry.metadata.getEntrySize(), partSize, partNo);
+            int offsetInPart = (int) (entryPosition - partStartOffset);
+            int toRead = (int) Math.min(Math.min(dst.remaining(), partLen - offsetInPart), this.size - position);
+            
+            // the retained segments stay readable even if compaction has
+            // retired them since
+            long location = this.indexEntry.locations[partNo];
+            Segment segment = null;
+            for(Segment s : this.retained) {
+                if(s.getId() == getLocationSegmentId(location)) {
+                    segment = s;
+                    break;
+                }
+            }
+            
+            ByteBuffer view = dst.duplicate();
+            view.limit(view.position() + toRead);
+            int readLen = segment.read(getLocationOffset(location) + offsetInPart, view);
+            if(readLen < toRead) {
+                throw new IOException("EOF found");
+            }
+            
+            dst.position(view.position());
+            return toRead;
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            if(!this.closed) {
+                this.closed = true;
+                for(Segment segment : this.retained) {
+                    segment.release();
+                }
+            }
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        @Override
+        public void mark(int readLimit) {
+            // Do nothing
+        }
+        
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("Mark not supported");
+        }
+    }
+}
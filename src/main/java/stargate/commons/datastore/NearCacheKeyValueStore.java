@@ -0,0 +1,743 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.cluster.Cluster;
+import stargate.commons.driver.DriverNotInitializedException;
+import stargate.commons.event.AbstractEventDriver;
+import stargate.commons.event.AbstractEventHandler;
+import stargate.commons.event.StargateEvent;
+import stargate.commons.event.StargateEventType;
+
+/**
+ * Bounded, size-aware read cache in front of a key-value store. Hits are
+ * served from memory; writes go through to the store and invalidate the
+ * cached copy here and, when an event driver is given, on the other nodes
+ * of the cluster.
+ *
+ * Loads are stamped with the invalidation version current when they start
+ * and are dropped if an invalidation happened meanwhile, so a slow read
+ * never re-installs a value that was just invalidated. Invalidation events
+ * carry the sender's sequence; a gap means events were missed and clears
+ * the whole cache. A sender that failed to publish sends a full
+ * invalidation next. The optional time-to-live bounds staleness when events
+ * are lost or not configured.
+ *
+ * Async writes invalidate locally when issued and invalidate and publish
+ * again once the write completed.
+ *
+ * @author iychoi
+ */
+public class NearCacheKeyValueStore extends AbstractKeyValueStore {
+
+    private static final Log LOG = LogFactory.getLog(NearCacheKeyValueStore.class);
+    
+    private static final String METRICS_NAME_SUFFIX = "-nearcache";
+    private static final long DEFAULT_ENTRY_SIZE = 1024;
+    private static final long ENTRY_OVERHEAD = 64;
+    private static final long OBJECT_OVERHEAD = 16;
+    private static final int SIZE_SAMPLE_ELEMENTS = 16;
+    
+    private static ExecutorService completionExecutor;
+    
+    private static final String COUNTER_EXPIRATIONS = "expirations";
+    private static final String COUNTER_INVALIDATIONS = "invalidations";
+    private static final String COUNTER_REMOTE_INVALIDATIONS = "remote_invalidations";
+    private static final String COUNTER_INVALIDATION_GAPS = "invalidation_gaps";
+    private static final String COUNTER_PUBLISH_FAILURES = "invalidation_publish_failures";
+    private static final String COUNTER_DISCARDED_LOADS = "discarded_loads";
+    private static final String GAUGE_CACHED_BYTES = "cached_bytes";
+    private static final String GAUGE_CACHED_ENTRIES = "cached_entries";
+    private static final String HISTOGRAM_HIT_AGE = "hit_age";
+    
+    private AbstractKeyValueStore store;
+    private long capacity;
+    private long ttlMillis;
+    private KeyValueStoreMetrics metrics;
+    private ConcurrentHashMap<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+    private AbstractEvictionPolicy<String> policy;
+    private long used;
+    private final Object lock = new Object();
+    private AtomicLong invalidationVersion = new AtomicLong(0);
+    
+    private AbstractEventDriver eventDriver;
+    private Cluster cluster;
+    private String localNodeName;
+    private InvalidationEventHandler eventHandler;
+    private long publishSequence;
+    private boolean publishFailed;
+    private final Object publishLock = new Object();
+    private ConcurrentHashMap<String, Long> remoteSequences = new ConcurrentHashMap<String, Long>();
+    
+    /**
+     * A zero ttlMillis keeps entries until they are invalidated or evicted.
+     */
+    public NearCacheKeyValueStore(AbstractKeyValueStore store, long capacity, long ttlMillis, EvictionPolicyType policyType) {
+        if(store == null) {
+            throw new IllegalArgumentException("store is null");
+        }
+        
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("capacity is not positive");
+        }
+        
+        if(ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis is negative");
+        }
+        
+        if(policyType == null) {
+            throw new IllegalArgumentException("policyType is null");
+        }
+        
+        this.store = store;
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.policy = AbstractEvictionPolicy.<String>createInstance(policyType, capacity);
+        this.metrics = KeyValueStoreMetrics.getInstance(store.getName() + METRICS_NAME_SUFFIX);
+    }
+    
+    /**
+     * Also exchanges invalidations with the other nodes of the cluster
+     * through the event driver. Call close() to stop receiving them.
+     */
+    public NearCacheKeyValueStore(AbstractKeyValueStore store, long capacity, long ttlMillis, EvictionPolicyType policyType, AbstractEventDriver eventDriver, Cluster cluster, String localNodeName) {
+        this(store, capacity, ttlMillis, policyType);
+        
+        if(eventDriver == null) {
+            throw new IllegalArgumentException("eventDriver is null");
+        }
+        
+        if(cluster == null) {
+            throw new IllegalArgumentException("cluster is null");
+        }
+        
+        if(localNodeName == null || localNodeName.isEmpty()) {
+            throw new IllegalArgumentException("localNodeName is null or empty");
+        }
+        
+        this.eventDriver = eventDriver;
+        this.cluster = cluster;
+        this.localNodeName = localNodeName;
+        // starting from the clock makes a restarted sender look like a gap
+        this.publishSequence = System.currentTimeMillis();
+        this.eventHandler = new InvalidationEventHandler();
+        this.eventDriver.addEventHandler(this.eventHandler);
+    }
+    
+    /**
+     * Waits for async writes of the wrapped store to complete. Cached, so a
+     * wait never queues behind work of the store it waits on.
+     */
+    private static synchronized ExecutorService getCompletionExecutor() {
+        if(completionExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            completionExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nearcache-completion-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return completionExecutor;
+    }
+    
+    public AbstractKeyValueStore getStore() {
+        return this.store;
+    }
+    
+    public long getCapacity() {
+        return this.capacity;
+    }
+    
+    public long getTTLMillis() {
+        return this.ttlMillis;
+    }
+    
+    public KeyValueStoreMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    public long getCachedBytes() {
+        synchronized(this.lock) {
+            return this.used;
+        }
+    }
+    
+    public int getCachedEntryNum() {
+        return this.entries.size();
+    }
+    
+    public void close() {
+        if(this.eventDriver != null && this.eventHandler != null) {
+            this.eventDriver.removeEventHandler(this.eventHandler);
+            this.eventHandler = null;
+        }
+    }
+    
+    private static long estimateSize(String key, Object value) {
+        return ENTRY_OVERHEAD + key.length() * 2 + estimateValueSize(value, 2);
+    }
+    
+    /**
+     * Shallow estimate of the heap taken by the value. Collections are
+     * extrapolated from their first elements; other objects count as
+     * DEFAULT_ENTRY_SIZE.
+     */
+    private static long estimateValueSize(Object value, int depth) {
+        if(value == null) {
+            return 0;
+        } else if(value instanceof byte[]) {
+            return OBJECT_OVERHEAD + ((byte[]) value).length;
+        } else if(value instanceof String) {
+            return OBJECT_OVERHEAD + ((String) value).length() * 2;
+        } else if(value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return OBJECT_OVERHEAD;
+        } else if(depth > 0 && value instanceof Collection) {
+            return OBJECT_OVERHEAD + estimateElementsSize((Collection<?>) value, depth - 1);
+        } else if(depth > 0 && value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            return OBJECT_OVERHEAD + estimateElementsSize(map.keySet(), depth - 1) + estimateElementsSize(map.values(), depth - 1);
+        }
+        return DEFAULT_ENTRY_SIZE;
+    }
+    
+    private static long estimateElementsSize(Collection<?> elements, int depth) {
+        int num = elements.size();
+        if(num == 0) {
+            return 0;
+        }
+        
+        long sampled = 0;
+        int sampleNum = 0;
+        for(Object element : elements) {
+            if(sampleNum == SIZE_SAMPLE_ELEMENTS) {
+                break;
+            }
+            sampled += OBJECT_OVERHEAD + estimateValueSize(element, depth);
+            sampleNum++;
+        }
+        return sampled / sampleNum * num;
+    }
+    
+    private boolean isExpired(CacheEntry entry, long now) {
+        return this.ttlMillis > 0 && now - entry.loadTime > this.ttlMillis;
+    }
+    
+    /**
+     * Returns the cached entry of the key, dropping it if it expired.
+     */
+    private CacheEntry getCached(String key) {
+        CacheEntry entry = this.entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+        
+        if(isExpired(entry, System.currentTimeMillis())) {
+            synchronized(this.lock) {
+                if(removeEntry(key, entry)) {
+                    this.metrics.increment(COUNTER_EXPIRATIONS);
+                }
+            }
+            return null;
+        }
+        
+        synchronized(this.lock) {
+            if(this.entries.get(key) == entry) {
+                this.policy.onAccess(key);
+            }
+        }
+        this.metrics.getHistogram(HISTOGRAM_HIT_AGE).record((System.currentTimeMillis() - entry.loadTime) * 1000000L);
+        return entry;
+    }
+    
+    private void install(String key, Object value, long version) {
+        long size = estimateSize(key, value);
+        if(size > this.capacity) {
+            return;
+        }
+        
+        synchronized(this.lock) {
+            if(this.invalidationVersion.get() != version) {
+                // invalidated while loading, the value may be stale
+                this.metrics.increment(COUNTER_DISCARDED_LOADS);
+                return;
+            }
+            
+            CacheEntry oldEntry = this.entries.get(key);
+            if(oldEntry != null) {
+                removeEntry(key, oldEntry);
+            }
+            
+            this.entries.put(key, new CacheEntry(value, size, System.currentTimeMillis()));
+            this.policy.onInsert(key, size);
+            this.used += size;
+            
+            while(this.used > this.capacity) {
+                String victim = this.policy.selectVictim();
+                if(victim == null) {
+                    break;
+                }
+                
+                this.policy.onEvict(victim);
+                CacheEntry victimEntry = this.entries.remove(victim);
+                if(victimEntry != null) {
+                    this.used -= victimEntry.size;
+                    this.metrics.recordEviction(victimEntry.size);
+                }
+            }
+            updateGauges();
+        }
+    }
+    
+    /**
+     * Must be called under the lock.
+     */
+    private boolean removeEntry(String key, CacheEntry entry) {
+        if(!this.entries.remove(key, entry)) {
+            return false;
+        }
+        
+        this.policy.onRemove(key);
+        this.used -= entry.size;
+        updateGauges();
+        return true;
+    }
+    
+    private void updateGauges() {
+        this.metrics.setGauge(GAUGE_CACHED_BYTES, this.used);
+        this.metrics.setGauge(GAUGE_CACHED_ENTRIES, this.entries.size());
+    }
+    
+    /**
+     * Drops the cached copies of the keys, or of everything when keys is
+     * null. Loads in flight are discarded.
+     */
+    public void invalidate(Collection<String> keys) {
+        synchronized(this.lock) {
+            this.invalidationVersion.incrementAndGet();
+            if(keys == null) {
+                this.entries.clear();
+                this.policy.clear();
+                this.used = 0;
+                updateGauges();
+            } else {
+                for(String key : keys) {
+                    CacheEntry entry = this.entries.get(key);
+                    if(entry != null) {
+                        removeEntry(key, entry);
+                    }
+                }
+            }
+        }
+        this.metrics.increment(COUNTER_INVALIDATIONS);
+    }
+    
+    private void invalidateAndPublish(Collection<String> keys) {
+        // an empty key list would be sent as an invalidation of all keys
+        if(keys != null && keys.isEmpty()) {
+            return;
+        }
+        
+        invalidate(keys);
+        publish(keys);
+    }
+    
+    private void publish(Collection<String> keys) {
+        if(this.eventDriver == null) {
+            return;
+        }
+        
+        List<String> receivers = new ArrayList<String>();
+        for(String nodeName : this.cluster.getNodeNames()) {
+            if(!nodeName.equals(this.localNodeName)) {
+                receivers.add(nodeName);
+            }
+        }
+        
+        if(receivers.isEmpty()) {
+            return;
+        }
+        
+        Collection<String> eventKeys = keys;
+        if(eventKeys == null) {
+            eventKeys = Collections.emptyList();
+        }
+        
+        // sequences are taken and sent in order, and only a sent event uses
+        // one up, so receivers see a gap only when an event was lost
+        synchronized(this.publishLock) {
+            if(this.publishFailed) {
+                // the failed event may have been partly delivered
+                eventKeys = Collections.emptyList();
+            }
+            
+            long sequence = this.publishSequence + 1;
+            try {
+                DataStoreInvalidation invalidation = new DataStoreInvalidation(this.store.getName(), eventKeys, sequence);
+                this.eventDriver.raiseEvent(new StargateEvent(StargateEventType.STARGATE_EVENT_TYPE_DATASTORE_INVALIDATION, receivers, this.localNodeName, invalidation.toJson()));
+                this.publishSequence = sequence;
+                this.publishFailed = false;
+            } catch (IOException ex) {
+                // the write itself succeeded, remote copies are invalidated
+                // by the next publish or age out by TTL
+                this.publishFailed = true;
+                this.metrics.increment(COUNTER_PUBLISH_FAILURES);
+                LOG.error(String.format("Failed to publish an invalidation of %s", this.store.getName()), ex);
+            } catch (DriverNotInitializedException ex) {
+                this.publishFailed = true;
+                this.metrics.increment(COUNTER_PUBLISH_FAILURES);
+                LOG.error(String.format("Failed to publish an invalidation of %s", this.store.getName()), ex);
+            }
+        }
+    }
+    
+    /**
+     * Returns a future that completes with the given one, after the keys
+     * were invalidated and published.
+     */
+    private <V> Future<V> invalidateOnCompletion(final Future<V> future, final Collection<String> keys) {
+        return getCompletionExecutor().submit(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                try {
+                    return future.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if(cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw ex;
+                } finally {
+                    invalidateAndPublish(keys);
+                }
+            }
+        });
+    }
+    
+    private void applyRemoteInvalidation(String senderNodeName, DataStoreInvalidation invalidation) {
+        long sequence = invalidation.getVersion();
+        boolean gap = false;
+        while(true) {
+            Long lastSequence = this.remoteSequences.get(senderNodeName);
+            if(lastSequence == null) {
+                if(this.remoteSequences.putIfAbsent(senderNodeName, sequence) == null) {
+                    break;
+                }
+            } else if(sequence <= lastSequence) {
+                // duplicate or reordered - invalidation is idempotent
+                break;
+            } else if(this.remoteSequences.replace(senderNodeName, lastSequence, sequence)) {
+                gap = sequence > lastSequence + 1;
+                break;
+            }
+        }
+        
+        this.metrics.increment(COUNTER_REMOTE_INVALIDATIONS);
+        if(gap) {
+            this.metrics.increment(COUNTER_INVALIDATION_GAPS);
+            invalidate(null);
+        } else if(invalidation.isAll()) {
+            invalidate(null);
+        } else {
+            invalidate(invalidation.getKeys());
+        }
+    }
+    
+    @Override
+    public String getName() {
+        return this.store.getName();
+    }
+    
+    @Override
+    public Class<?> getValueClass() {
+        return this.store.getValueClass();
+    }
+    
+    @Override
+    public DataStoreProperties getProperties() {
+        return this.store.getProperties();
+    }
+    
+    @Override
+    public int size() {
+        return this.store.size();
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return this.store.isEmpty();
+    }
+    
+    @Override
+    public boolean containsKey(String key) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(getCached(key) != null) {
+            return true;
+        }
+        return this.store.containsKey(key);
+    }
+    
+    @Override
+    public Object get(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        long begin = System.nanoTime();
+        CacheEntry entry = getCached(key);
+        if(entry != null) {
+            this.metrics.recordGet(true, System.nanoTime() - begin);
+            return entry.value;
+        }
+        
+        long version = this.invalidationVersion.get();
+        Object value = this.store.get(key);
+        this.metrics.recordGet(false, System.nanoTime() - begin);
+        if(value != null) {
+            install(key, value, version);
+        }
+        return value;
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<Object> getAll(Collection<String> keys) throws IOException {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        KeyValueStoreBatchResult<Object> result = new KeyValueStoreBatchResult<Object>();
+        List<String> missingKeys = new ArrayList<String>();
+        long[] missingLookupNanos = new long[keys.size()];
+        for(String key : keys) {
+            long lookupBegin = System.nanoTime();
+            CacheEntry entry = getCached(key);
+            if(entry != null) {
+                result.addResult(key, entry.value);
+                this.metrics.recordGet(true, System.nanoTime() - lookupBegin);
+            } else {
+                missingLookupNanos[missingKeys.size()] = System.nanoTime() - lookupBegin;
+                missingKeys.add(key);
+            }
+        }
+        
+        if(!missingKeys.isEmpty()) {
+            long version = this.invalidationVersion.get();
+            long loadBegin = System.nanoTime();
+            KeyValueStoreBatchResult<Object> loaded = this.store.getAll(missingKeys);
+            // a missed key costs its lookup and its share of the batch load
+            long loadShare = (System.nanoTime() - loadBegin) / missingKeys.size();
+            for(int i=0;i<missingKeys.size();i++) {
+                String key = missingKeys.get(i);
+                this.metrics.recordGet(false, missingLookupNanos[i] + loadShare);
+                Object value = loaded.getResult(key);
+                if(value != null) {
+                    install(key, value, version);
+                }
+            }
+            result.addAll(loaded);
+        }
+        return result;
+    }
+    
+    @Override
+    public void put(String key, Object value) throws IOException {
+        try {
+            this.store.put(key, value);
+        } finally {
+            invalidateAndPublish(Collections.singletonList(key));
+        }
+    }
+    
+    @Override
+    public Future<Void> putAsync(String key, Object value) throws IOException {
+        List<String> keys = Collections.singletonList(key);
+        Future<Void> future = this.store.putAsync(key, value);
+        invalidate(keys);
+        return invalidateOnCompletion(future, keys);
+    }
+    
+    @Override
+    public boolean putIfAbsent(String key, Object value) throws IOException {
+        boolean added = this.store.putIfAbsent(key, value);
+        if(added) {
+            invalidateAndPublish(Collections.singletonList(key));
+        }
+        return added;
+    }
+    
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue) throws IOException {
+        boolean replaced = this.store.replace(key, oldValue, newValue);
+        if(replaced) {
+            invalidateAndPublish(Collections.singletonList(key));
+        }
+        return replaced;
+    }
+    
+    @Override
+    public void remove(String key) throws IOException {
+        try {
+            this.store.remove(key);
+        } finally {
+            invalidateAndPublish(Collections.singletonList(key));
+        }
+    }
+    
+    @Override
+    public Future<Boolean> removeAsync(String key) throws IOException {
+        List<String> keys = Collections.singletonList(key);
+        Future<Boolean> future = this.store.removeAsync(key);
+        invalidate(keys);
+        return invalidateOnCompletion(future, keys);
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<Void> putAll(Map<String, Object> entries) throws IOException {
+        if(entries == null) {
+            throw new IllegalArgumentException("entries is null");
+        }
+        
+        try {
+            return this.store.putAll(entries);
+        } finally {
+            invalidateAndPublish(new ArrayList<String>(entries.keySet()));
+        }
+    }
+    
+    @Override
+    public KeyValueStoreBatchResult<Boolean> removeAll(Collection<String> keys) throws IOException {
+        if(keys == null) {
+            throw new IllegalArgumentException("keys is null");
+        }
+        
+        try {
+            return this.store.removeAll(keys);
+        } finally {
+            invalidateAndPublish(new ArrayList<String>(keys));
+        }
+    }
+    
+    @Override
+    public Collection<String> keys() throws IOException {
+        return this.store.keys();
+    }
+    
+    @Override
+    public DataStorePage<String> listKeys(String prefix, String continuationToken, int pageSize) throws IOException {
+        return this.store.listKeys(prefix, continuationToken, pageSize);
+    }
+    
+    @Override
+    public String getPrimaryNodeForData(String key) throws IOException {
+        return this.store.getPrimaryNodeForData(key);
+    }
+    
+    @Override
+    public Collection<String> getBackupNodesForData(String key) throws IOException {
+        return this.store.getBackupNodesForData(key);
+    }
+    
+    @Override
+    public Collection<String> getPrimaryAndBackupNodesForData(String key) throws IOException {
+        return this.store.getPrimaryAndBackupNodesForData(key);
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        try {
+            this.store.clear();
+        } finally {
+            invalidateAndPublish(null);
+        }
+    }
+    
+    @Override
+    public Future<Void> clearAsync() throws IOException {
+        Future<Void> future = this.store.clearAsync();
+        invalidate(null);
+        return invalidateOnCompletion(future, null);
+    }
+    
+    @Override
+    public Map<String, Object> toMap() throws IOException {
+        return this.store.toMap();
+    }
+    
+    private static class CacheEntry {
+        
+        private final Object value;
+        private final long size;
+        private final long loadTime;
+        
+        CacheEntry(Object value, long size, long loadTime) {
+            this.value = value;
+            this.size = size;
+            this.loadTime = loadTime;
+        }
+    }
+    
+    private class InvalidationEventHandler extends AbstractEventHandler {
+        
+        @Override
+        public StargateEventType[] getAcceptedTypes() {
+            return new StargateEventType[] {StargateEventType.STARGATE_EVENT_TYPE_DATASTORE_INVALIDATION};
+        }
+        
+        @Override
+        public void raised(StargateEvent event) {
+            if(event.getEventType() != StargateEventType.STARGATE_EVENT_TYPE_DATASTORE_INVALIDATION) {
+                return;
+            }
+            
+            if(localNodeName.equals(event.getSenderNodeName())) {
+                return;
+            }
+            
+            try {
+                DataStoreInvalidation invalidation = DataStoreInvalidation.createInstance(event.getJsonValue());
+                if(store.getName().equals(invalidation.getStoreName())) {
+                    applyRemoteInvalidation(event.getSenderNodeName(), invalidation);
+                }
+            } catch (IOException ex) {
+                LOG.error("Failed to read an invalidation event", ex);
+                // cannot tell which keys changed
+                invalidate(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import stargate.commons.utils.VarIntUtils;
+
+/**
+ * Key of one part of a big key-value entry. Holds the base key and part
+ * number separately so drivers can partition on the base key without
+ * parsing. The hash is computed once; the string and binary forms are
+ * computed on first use. toString() gives the legacy "key:part" form of
+ * BigKeyValueStoreUtils.makePartkey.
+ *
+ * @author iychoi
+ */
+public final class PartKey implements Comparable<PartKey> {
+
+    private final String key;
+    private final int partNo;
+    private final int hash;
+    // computed on first use, racing threads compute equal values
+    private String str;
+    private byte[] keyBytes;
+    
+    public static PartKey parse(String partkey) {
+        if(partkey == null || partkey.isEmpty()) {
+            throw new IllegalArgumentException("partkey is null or empty");
+        }
+        
+        int index = partkey.lastIndexOf(':');
+        if(index <= 0) {
+            throw new IllegalArgumentException(String.format("not a part key - %s", partkey));
+        }
+        
+        int partNo;
+        try {
+            partNo = Integer.parseInt(partkey.substring(index + 1));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("not a part key - %s", partkey));
+        }
+        
+        return new PartKey(partkey.substring(0, index), partNo, partkey, null);
+    }
+    
+    public PartKey(String key, int partNo) {
+        this(key, partNo, null, null);
+    }
+    
+    /*
+     * str and keyBytes are the forms the key was parsed from, if any.
+     */
+    private PartKey(String key, int partNo, String str, byte[] keyBytes) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(partNo < 0) {
+            throw new IllegalArgumentException("partNo is negative");
+        }
+        
+        this.key = key;
+        this.partNo = partNo;
+        
+        int h = key.hashCode() * 31 + partNo;
+        this.hash = h ^ (h >>> 16);
+        
+        this.str = str;
+        this.keyBytes = keyBytes;
+    }
+    
+    /**
+     * Returns the base key, which is also the partition key.
+     */
+    public String getKey() {
+        return this.key;
+    }
+    
+    public int getPartNo() {
+        return this.partNo;
+    }
+    
+    private byte[] getKeyBytes() {
+        byte[] bytes = this.keyBytes;
+        if(bytes == null) {
+            try {
+                bytes = this.key.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+            this.keyBytes = bytes;
+        }
+        return bytes;
+    }
+    
+    /*
+     * Binary form: varint key length, UTF-8 key, varint part number.
+     */
+    public int getEncodedSize() {
+        byte[] bytes = getKeyBytes();
+        return VarIntUtils.getVarIntSize(bytes.length) + bytes.length + VarIntUtils.getVarIntSize(this.partNo);
+    }
+    
+    public void writeTo(ByteBuffer buffer) {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
+        
+        byte[] bytes = getKeyBytes();
+        VarIntUtils.putVarInt(buffer, bytes.length);
+        buffer.put(bytes);
+        VarIntUtils.putVarInt(buffer, this.partNo);
+    }
+    
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+        writeTo(buffer);
+        return buffer.array();
+    }
+    
+    public static PartKey fromBytes(byte[] buf) throws IOException {
+        if(buf == null) {
+            throw new IllegalArgumentException("buf is null");
+        }
+        
+        return fromBytes(ByteBuffer.wrap(buf));
+    }
+    
+    public static PartKey fromBytes(ByteBuffer buffer) throws IOException {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
+        
+        try {
+            int keyLen = VarIntUtils.getVarInt(buffer);
+            if(keyLen == 0 || keyLen > buffer.remaining()) {
+                throw new IOException("malformed part key");
+            }
+            
+            byte[] bytes = new byte[keyLen];
+            buffer.get(bytes);
+            int partNo = VarIntUtils.getVarInt(buffer);
+            
+            return new PartKey(new String(bytes, "UTF-8"), partNo, null, bytes);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("truncated part key", ex);
+        }
+    }
+    
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final PartKey other = (PartKey) obj;
+        if (this.hash != other.hash) {
+            return false;
+        }
+        if (this.partNo != other.partNo) {
+            return false;
+        }
+        return this.key.equals(other.key);
+    }
+    
+    @Override
+    public int compareTo(PartKey other) {
+        int cmp = this.key.compareTo(other.key);
+        if(cmp != 0) {
+            return cmp;
+        }
+        return Integer.compare(this.partNo, other.partNo);
+    }
+    
+    @Override
+    public String toString() {
+        String s = this.str;
+        if(s == null) {
+            s = this.key + ":" + this.partNo;
+            this.str = s;
+        }
+        return s;
+    }
+}
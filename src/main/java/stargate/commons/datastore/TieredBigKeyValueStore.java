@@ -0,0 +1,1495 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.io.AbstractSeekableInputStream;
+import stargate.commons.io.ByteBufferInputStream;
+import stargate.commons.utils.DirUtils;
+import stargate.commons.utils.HexUtils;
+import stargate.commons.utils.IOUtils;
+
+/**
+ * Local big key-value store in two tiers. Every entry is written through to
+ * a data file in the disk tier (see getCacheFilePath); hot parts are also
+ * kept in a bounded off-heap RAM tier. Both tiers are bounded in bytes and
+ * evict with a pluggable policy. Parts read from disk are promoted to RAM,
+ * as are the leading parts of a new value, and over-capacity tiers are
+ * trimmed in the background. Puts of a new key
+ * fill the data file in place and report their progress, so readers of the
+ * cache file follow the upload; parts of a positional source are copied in
+ * parallel and tracked with a part bitmap. Puts over an existing value are staged to a
+ * side file and published under the key lock, so the old value stays
+ * readable while the new one uploads.
+ *
+ * @author iychoi
+ */
+public class TieredBigKeyValueStore extends AbstractBigKeyValueStore {
+
+    private static final Log LOG = LogFactory.getLog(TieredBigKeyValueStore.class);
+    
+    private static final String DATA_FILE_EXTENSION = ".data";
+    private static final String METADATA_FILE_EXTENSION = ".meta";
+    private static final String STAGING_FILE_EXTENSION = ".staging";
+    private static final int DEFAULT_EXECUTOR_THREADS = 2;
+    private static final int KEY_LOCK_STRIPES = 64;
+    private static final int MAX_FREE_RAM_BUFFERS = 16;
+    private static final int PART_FILL_WORKERS = 4;
+    private static final int PUBLISH_WARM_PARTS = 2;
+    
+    private static final String COUNTER_RAM_HITS = "ram_hits";
+    private static final String COUNTER_DISK_HITS = "disk_hits";
+    private static final String COUNTER_PROMOTIONS = "promotions";
+    private static final String COUNTER_DEMOTIONS = "demotions";
+    private static final String COUNTER_DISK_EVICTIONS = "disk_evictions";
+    
+    private static ExecutorService defaultExecutor;
+    
+    private String name;
+    private DataStoreProperties properties;
+    private File rootDir;
+    private int partSize;
+    private String localNodeName;
+    private ExecutorService executor;
+    private KeyValueStoreMetrics metrics;
+    private ConcurrentHashMap<String, BigKeyValueStoreMetadata> entries = new ConcurrentHashMap<String, BigKeyValueStoreMetadata>();
+    private Object[] keyLocks;
+    private ConcurrentHashMap<String, Boolean> fillingKeys = new ConcurrentHashMap<String, Boolean>();
+    
+    // RAM tier, keyed by part key
+    private long ramCapacity;
+    private long ramUsed;
+    private AbstractEvictionPolicy<PartKey> ramPolicy;
+    private ConcurrentHashMap<PartKey, RAMPart> ramParts = new ConcurrentHashMap<PartKey, RAMPart>();
+    private final Object ramLock = new Object();
+    private AtomicBoolean ramDemotionScheduled = new AtomicBoolean(false);
+    private ConcurrentHashMap<PartKey, Boolean> pendingPromotions = new ConcurrentHashMap<PartKey, Boolean>();
+    private ConcurrentLinkedQueue<ByteBuffer> freeRAMBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private AtomicInteger freeRAMBufferNum = new AtomicInteger(0);
+    
+    // disk tier, keyed by entry key
+    private long diskCapacity;
+    private long diskUsed;
+    private AbstractEvictionPolicy<String> diskPolicy;
+    private final Object diskLock = new Object();
+    private AtomicBoolean diskEvictionScheduled = new AtomicBoolean(false);
+    
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_EXECUTOR_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tiered-kvstore-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+    
+    public TieredBigKeyValueStore(String name, DataStoreProperties properties, File rootDir, int partSize, long ramCapacity, long diskCapacity, EvictionPolicyType policyType, String localNodeName) throws IOException {
+        this(name, properties, rootDir, partSize, ramCapacity, diskCapacity, policyType, localNodeName, getDefaultExecutor());
+    }
+    
+    /**
+     * A zero capacity disables the RAM tier, or leaves the disk tier
+     * unbounded.
+     */
+    public TieredBigKeyValueStore(String name, DataStoreProperties properties, File rootDir, int partSize, long ramCapacity, long diskCapacity, EvictionPolicyType policyType, String localNodeName, ExecutorService executor) throws IOException {
+        if(name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name is null or empty");
+        }
+        
+        if(properties == null) {
+            throw new IllegalArgumentException("properties is null");
+        }
+        
+        if(rootDir == null) {
+            throw new IllegalArgumentException("rootDir is null");
+        }
+        
+        if(partSize <= 0) {
+            throw new IllegalArgumentException("partSize is not positive");
+        }
+        
+        if(ramCapacity < 0) {
+            throw new IllegalArgumentException("ramCapacity is negative");
+        }
+        
+        if(diskCapacity < 0) {
+            throw new IllegalArgumentException("diskCapacity is negative");
+        }
+        
+        if(policyType == null) {
+            throw new IllegalArgumentException("policyType is null");
+        }
+        
+        if(localNodeName == null || localNodeName.isEmpty()) {
+            throw new IllegalArgumentException("localNodeName is null or empty");
+        }
+        
+        if(executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        
+        this.name = name;
+        this.properties = properties;
+        this.rootDir = rootDir;
+        this.partSize = partSize;
+        this.localNodeName = localNodeName;
+        this.executor = executor;
+        this.metrics = KeyValueStoreMetrics.getInstance(name);
+        
+        this.keyLocks = new Object[KEY_LOCK_STRIPES];
+        for(int i=0;i<KEY_LOCK_STRIPES;i++) {
+            this.keyLocks[i] = new Object();
+        }
+        
+        this.ramCapacity = ramCapacity;
+        this.ramUsed = 0;
+        if(ramCapacity > 0) {
+            this.ramPolicy = AbstractEvictionPolicy.<PartKey>createInstance(policyType, ramCapacity);
+        }
+        
+        this.diskCapacity = diskCapacity;
+        this.diskUsed = 0;
+        if(diskCapacity > 0) {
+            this.diskPolicy = AbstractEvictionPolicy.<String>createInstance(policyType, diskCapacity);
+        }
+        
+        if(!DirUtils.makeDir(rootDir)) {
+            throw new IOException(String.format("Failed to create a store dir - %s", rootDir.getAbsolutePath()));
+        }
+        
+        recover();
+    }
+    
+    private void recover() throws IOException {
+        File[] files = this.rootDir.listFiles();
+        if(files == null) {
+            return;
+        }
+        
+        for(File file : files) {
+            String filename = file.getName();
+            if(filename.endsWith(STAGING_FILE_EXTENSION)) {
+                // a put that did not complete
+                file.delete();
+            } else if(filename.endsWith(CacheFilePartBitmap.SIDECAR_SUFFIX)) {
+                // a put of an older version that did not complete
+                String dataFilename = filename.substring(0, filename.length() - CacheFilePartBitmap.SIDECAR_SUFFIX.length());
+                new File(this.rootDir, dataFilename).delete();
+                file.delete();
+            }
+        }
+        
+        files = this.rootDir.listFiles();
+        if(files == null) {
+            return;
+        }
+        
+        for(File file : files) {
+            String filename = file.getName();
+            if(!filename.endsWith(METADATA_FILE_EXTENSION)) {
+                continue;
+            }
+            
+            if(!this.properties.isPersistent()) {
+                file.delete();
+                continue;
+            }
+            
+            try {
+                BigKeyValueStoreMetadata metadata = BigKeyValueStoreMetadata.createInstance(file);
+                File dataFile = getDataFilePath(metadata.getKey());
+                if(dataFile.exists() && dataFile.length() == metadata.getEntrySize()) {
+                    this.entries.put(metadata.getKey(), metadata);
+                    addToDiskTier(metadata.getKey(), metadata.getEntrySize());
+                    continue;
+                }
+            } catch (IOException ex) {
+                LOG.error(String.format("Failed to recover an entry - %s", file.getAbsolutePath()), ex);
+            }
+            file.delete();
+        }
+        
+        files = this.rootDir.listFiles();
+        if(files == null) {
+            return;
+        }
+        
+        for(File file : files) {
+            String filename = file.getName();
+            if(filename.endsWith(DATA_FILE_EXTENSION)) {
+                String metadataFilename = filename.substring(0, filename.length() - DATA_FILE_EXTENSION.length()) + METADATA_FILE_EXTENSION;
+                if(!new File(this.rootDir, metadataFilename).exists()) {
+                    file.delete();
+                }
+            }
+        }
+    }
+    
+    @Override
+    public String getName() {
+        return this.name;
+    }
+    
+    @Override
+    public DataStoreProperties getProperties() {
+        return this.properties;
+    }
+    
+    @Override
+    public int getPartSize() {
+        return this.partSize;
+    }
+    
+    public File getRootDir() {
+        return this.rootDir;
+    }
+    
+    public KeyValueStoreMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    public long getRAMCapacity() {
+        return this.ramCapacity;
+    }
+    
+    public long getRAMUsed() {
+        synchronized(this.ramLock) {
+            return this.ramUsed;
+        }
+    }
+    
+    public long getDiskCapacity() {
+        return this.diskCapacity;
+    }
+    
+    public long getDiskUsed() {
+        synchronized(this.diskLock) {
+            return this.diskUsed;
+        }
+    }
+    
+    public boolean isPartInRAM(String key, int partNo) {
+        return isPartInRAM(BigKeyValueStoreUtils.newPartKey(key, partNo));
+    }
+    
+    public boolean isPartInRAM(PartKey partkey) {
+        if(partkey == null) {
+            throw new IllegalArgumentException("partkey is null");
+        }
+        
+        return this.ramParts.containsKey(partkey);
+    }
+    
+    private Object getKeyLock(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return this.keyLocks[h & (KEY_LOCK_STRIPES - 1)];
+    }
+    
+    private static String makeFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return HexUtils.toHexString(digest.digest(key.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private File getDataFilePath(String key) {
+        return new File(this.rootDir, makeFileName(key) + DATA_FILE_EXTENSION);
+    }
+    
+    private File getMetadataFilePath(String key) {
+        return new File(this.rootDir, makeFileName(key) + METADATA_FILE_EXTENSION);
+    }
+    
+    @Override
+    public boolean containsKey(String key) {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        return this.entries.containsKey(key);
+    }
+    
+    @Override
+    public BigKeyValueStoreMetadata getMetadata(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        return this.entries.get(key);
+    }
+    
+    @Override
+    public AbstractSeekableInputStream getData(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        long begin = System.nanoTime();
+        BigKeyValueStoreMetadata metadata = this.entries.get(key);
+        if(metadata == null) {
+            this.metrics.recordGet(false, System.nanoTime() - begin);
+            return null;
+        }
+        
+        AbstractSeekableInputStream is;
+        try {
+            is = new TieredEntryInputStream(key, metadata, 0, metadata.getEntrySize());
+        } catch (FileNotFoundException ex) {
+            // removed after the lookup
+            this.metrics.recordGet(false, System.nanoTime() - begin);
+            return null;
+        }
+        
+        accessDiskTier(key);
+        this.metrics.recordGet(true, System.nanoTime() - begin);
+        return is;
+    }
+    
+    @Override
+    public AbstractSeekableInputStream getDataPart(String key, int partNo) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(partNo < 0) {
+            throw new IllegalArgumentException("partNo is negative");
+        }
+        
+        long begin = System.nanoTime();
+        BigKeyValueStoreMetadata metadata = this.entries.get(key);
+        if(metadata == null || partNo >= metadata.getPartNum()) {
+            this.metrics.recordGet(false, System.nanoTime() - begin);
+            return null;
+        }
+        
+        AbstractSeekableInputStream is;
+        PartKey partkey = BigKeyValueStoreUtils.newPartKey(key, partNo);
+        RAMPart part = getRAMPart(partkey, metadata);
+        if(part != null) {
+            this.metrics.increment(COUNTER_RAM_HITS);
+            is = new RAMPartInputStream(part);
+        } else {
+            long partStartOffset = BigKeyValueStoreUtils.getPartStartOffset(this.partSize, partNo);
+            int partLen = BigKeyValueStoreUtils.getPartSize(metadata.getEntrySize(), this.partSize, partNo);
+            try {
+                is = new TieredEntryInputStream(key, metadata, partStartOffset, partLen);
+            } catch (FileNotFoundException ex) {
+                // removed after the lookup
+                this.metrics.recordGet(false, System.nanoTime() - begin);
+                return null;
+            }
+            
+            this.metrics.increment(COUNTER_DISK_HITS);
+            schedulePromotion(partkey, metadata);
+        }
+        
+        accessDiskTier(key);
+        this.metrics.recordGet(true, System.nanoTime() - begin);
+        return is;
+    }
+    
+    @Override
+    public void warmData(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        BigKeyValueStoreMetadata metadata = this.entries.get(key);
+        if(metadata != null) {
+            warmData(key, metadata);
+        }
+    }
+    
+    @Override
+    public void warmData(String key, BigKeyValueStoreMetadata metadata) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(metadata == null) {
+            throw new IllegalArgumentException("metadata is null");
+        }
+        
+        for(int i=0;i<metadata.getPartNum();i++) {
+            schedulePromotion(BigKeyValueStoreUtils.newPartKey(key, i), metadata);
+        }
+    }
+    
+    @Override
+    public void put(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(dataIS == null) {
+            throw new IllegalArgumentException("dataIS is null");
+        }
+        
+        if(size < 0) {
+            throw new IllegalArgumentException("size is negative");
+        }
+        
+        long begin = System.nanoTime();
+        if(claimFill(key)) {
+            fill(key, dataIS, size, extra);
+        } else {
+            File stagingFile = stage(key, dataIS, size);
+            synchronized(getKeyLock(key)) {
+                try {
+                    awaitFill(key);
+                } catch (IOException ex) {
+                    stagingFile.delete();
+                    throw ex;
+                }
+                
+                publish(key, stagingFile, size, extra);
+            }
+        }
+        this.metrics.recordPut(size, System.nanoTime() - begin);
+    }
+    
+    @Override
+    public boolean putIfAbsent(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(dataIS == null) {
+            throw new IllegalArgumentException("dataIS is null");
+        }
+        
+        if(size < 0) {
+            throw new IllegalArgumentException("size is negative");
+        }
+        
+        long begin = System.nanoTime();
+        while(!claimFill(key)) {
+            // present, or being filled by another put that may still fail
+            synchronized(getKeyLock(key)) {
+                awaitFill(key);
+                if(this.entries.containsKey(key)) {
+                    return false;
+                }
+            }
+        }
+        
+        fill(key, dataIS, size, extra);
+        this.metrics.recordPut(size, System.nanoTime() - begin);
+        return true;
+    }
+    
+    /**
+     * Claims the data file of an absent key for a fill in place.
+     */
+    private boolean claimFill(String key) {
+        synchronized(getKeyLock(key)) {
+            if(this.entries.containsKey(key)) {
+                return false;
+            }
+            return this.fillingKeys.putIfAbsent(key, Boolean.TRUE) == null;
+        }
+    }
+    
+    private void releaseFill(String key) {
+        Object lock = getKeyLock(key);
+        synchronized(lock) {
+            this.fillingKeys.remove(key);
+            lock.notifyAll();
+        }
+    }
+    
+    /**
+     * Waits until a fill in place of the key has published or failed. The
+     * caller holds the key lock.
+     */
+    private void awaitFill(String key) throws IOException {
+        Object lock = getKeyLock(key);
+        while(this.fillingKeys.containsKey(key)) {
+            try {
+                lock.wait();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+    
+    /**
+     * Writes a new entry straight into its data file and reports the
+     * progress to the fill registry, so readers of the cache file (see
+     * getCacheFilePath) wake as parts land. The caller holds the fill claim.
+     */
+    private void fill(String key, InputStream dataIS, long size, byte[] extra) throws IOException {
+        File dataFile = getDataFilePath(key);
+        CacheFillProgressRegistry registry = CacheFillProgressRegistry.getInstance();
+        int partNum = BigKeyValueStoreUtils.getPartNum(size, this.partSize);
+        if(partNum > 1 && dataIS instanceof AbstractSeekableInputStream && !((AbstractSeekableInputStream) dataIS).isForwardOnly()) {
+            fillParts(key, (AbstractSeekableInputStream) dataIS, size, extra);
+            return;
+        }
+        
+        try {
+            registry.beginFill(dataFile);
+            try {
+                RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+                try {
+                    raf.setLength(0);
+                    byte[] buffer = new byte[(int) Math.min(size, this.partSize)];
+                    long written = 0;
+                    for(int i=0;i<partNum;i++) {
+                        int partLen = BigKeyValueStoreUtils.getPartSize(size, this.partSize, i);
+                        int readLen = IOUtils.toByteArray(dataIS, buffer, partLen);
+                        if(readLen < partLen) {
+                            throw new IOException(String.format("unexpected EOF at part %d of %s", i, key));
+                        }
+                        
+                        raf.write(buffer, 0, partLen);
+                        written += partLen;
+                        registry.updateFill(dataFile, written);
+                    }
+                } finally {
+                    raf.close();
+                }
+                
+                synchronized(getKeyLock(key)) {
+                    install(key, dataFile, size, extra);
+                }
+            } catch (IOException ex) {
+                dataFile.delete();
+                registry.failFill(dataFile, ex);
+                throw ex;
+            }
+            
+            registry.completeFill(dataFile, size);
+        } finally {
+            releaseFill(key);
+        }
+    }
+    
+    /**
+     * Copies the parts of a positional source into the data file with
+     * several workers, so parts land out of order. Each part is marked in
+     * the part bitmap once written and readers wait only for the parts they
+     * read. The caller holds the fill claim.
+     */
+    private void fillParts(String key, final AbstractSeekableInputStream dataIS, final long size, byte[] extra) throws IOException {
+        final File dataFile = getDataFilePath(key);
+        final CacheFillProgressRegistry registry = CacheFillProgressRegistry.getInstance();
+        final int partNum = BigKeyValueStoreUtils.getPartNum(size, this.partSize);
+        final long baseOffset = dataIS.getOffset();
+        try {
+            try {
+                registry.beginPartFill(dataFile, size, this.partSize);
+                RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+                try {
+                    final FileChannel channel = raf.getChannel();
+                    final AtomicInteger nextPartNo = new AtomicInteger(0);
+                    final CountDownLatch partsDone = new CountDownLatch(partNum);
+                    final AtomicReference<IOException> error = new AtomicReference<IOException>();
+                    Runnable worker = new Runnable() {
+                        @Override
+                        public void run() {
+                            ByteBuffer buffer = ByteBuffer.allocate(partSize);
+                            while(error.get() == null) {
+                                int partNo = nextPartNo.getAndIncrement();
+                                if(partNo >= partNum) {
+                                    return;
+                                }
+                                
+                                try {
+                                    copyPart(dataIS, baseOffset, size, channel, buffer, partNo);
+                                    registry.updatePartFill(dataFile, partNo);
+                                } catch (IOException ex) {
+                                    error.compareAndSet(null, ex);
+                                } finally {
+                                    partsDone.countDown();
+                                }
+                            }
+                        }
+                    };
+                    
+                    // the caller works too, so the fill finishes even if
+                    // the executor is busy
+                    for(int i=1;i<Math.min(PART_FILL_WORKERS, partNum);i++) {
+                        try {
+                            this.executor.execute(worker);
+                        } catch (RejectedExecutionException ex) {
+                            break;
+                        }
+                    }
+                    worker.run();
+                    
+                    // after a failure, take the parts nobody started
+                    int claimed = Math.min(partNum, nextPartNo.getAndSet(partNum));
+                    for(int i=claimed;i<partNum;i++) {
+                        partsDone.countDown();
+                    }
+                    
+                    try {
+                        partsDone.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                    
+                    if(error.get() != null) {
+                        throw error.get();
+                    }
+                } finally {
+                    raf.close();
+                }
+                
+                dataIS.seek(baseOffset + size);
+                
+                synchronized(getKeyLock(key)) {
+                    install(key, dataFile, size, extra);
+                }
+            } catch (IOException ex) {
+                dataFile.delete();
+                CacheFilePartBitmap.getSidecarFile(dataFile).delete();
+                registry.failFill(dataFile, ex);
+                throw ex;
+            }
+            
+            registry.completePartFill(dataFile);
+        } finally {
+            releaseFill(key);
+        }
+    }
+    
+    private void copyPart(AbstractSeekableInputStream dataIS, long baseOffset, long size, FileChannel channel, ByteBuffer buffer, int partNo) throws IOException {
+        long partStartOffset = BigKeyValueStoreUtils.getPartStartOffset(this.partSize, partNo);
+        int partLen = BigKeyValueStoreUtils.getPartSize(size, this.partSize, partNo);
+        
+        buffer.clear();
+        buffer.limit(partLen);
+        int readLen = dataIS.readFully(baseOffset + partStartOffset, buffer);
+        if(readLen < partLen) {
+            throw new IOException(String.format("unexpected EOF at part %d", partNo));
+        }
+        
+        buffer.flip();
+        long writePosition = partStartOffset;
+        while(buffer.hasRemaining()) {
+            writePosition += channel.write(buffer, writePosition);
+        }
+    }
+    
+    /**
+     * Writes the data to a side file without holding the key lock.
+     */
+    private File stage(String key, InputStream dataIS, long size) throws IOException {
+        File stagingFile = File.createTempFile(makeFileName(key) + "-", STAGING_FILE_EXTENSION, this.rootDir);
+        int partNum = BigKeyValueStoreUtils.getPartNum(size, this.partSize);
+        
+        try {
+            RandomAccessFile raf = new RandomAccessFile(stagingFile, "rw");
+            try {
+                byte[] buffer = new byte[(int) Math.min(size, this.partSize)];
+                for(int i=0;i<partNum;i++) {
+                    int partLen = BigKeyValueStoreUtils.getPartSize(size, this.partSize, i);
+                    int readLen = IOUtils.toByteArray(dataIS, buffer, partLen);
+                    if(readLen < partLen) {
+                        throw new IOException(String.format("unexpected EOF at part %d of %s", i, key));
+                    }
+                    
+                    raf.write(buffer, 0, partLen);
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            stagingFile.delete();
+            throw ex;
+        }
+        return stagingFile;
+    }
+    
+    /**
+     * Replaces the entry with the staged data. The caller holds the key lock.
+     * The old entry stays visible until the new one takes its place.
+     */
+    private void publish(String key, File stagingFile, long size, byte[] extra) throws IOException {
+        BigKeyValueStoreMetadata oldMetadata = this.entries.get(key);
+        
+        // open streams of the old entry keep reading the replaced file
+        File dataFile = getDataFilePath(key);
+        if(!stagingFile.renameTo(dataFile)) {
+            stagingFile.delete();
+            throw new IOException(String.format("Failed to publish an entry - %s", key));
+        }
+        
+        if(oldMetadata != null) {
+            removeReplaced(key, oldMetadata);
+        }
+        
+        try {
+            install(key, dataFile, size, extra);
+        } catch (IOException ex) {
+            // the old data is gone with the rename, its accounting too
+            this.entries.remove(key);
+            getMetadataFilePath(key).delete();
+            dataFile.delete();
+            throw ex;
+        }
+        
+        // the staged file lands at once, wake readers of the cache file
+        CacheFillProgressRegistry.getInstance().completeFill(dataFile, size);
+    }
+    
+    /**
+     * Makes the data file in place visible as the entry. The caller holds
+     * the key lock.
+     */
+    private void install(String key, File dataFile, long size, byte[] extra) throws IOException {
+        int partNum = BigKeyValueStoreUtils.getPartNum(size, this.partSize);
+        BigKeyValueStoreMetadata metadata = new BigKeyValueStoreMetadata(key, partNum, size, extra);
+        metadata.saveTo(getMetadataFilePath(key));
+        
+        this.entries.put(key, metadata);
+        addToDiskTier(key, size);
+        
+        // the head of freshly written data is likely read next, the rest
+        // is promoted as it is read
+        for(int i=0;i<Math.min(partNum, PUBLISH_WARM_PARTS);i++) {
+            schedulePromotion(BigKeyValueStoreUtils.newPartKey(key, i), metadata);
+        }
+    }
+    
+    @Override
+    public boolean replace(String key, BigKeyValueStoreMetadata oldMetadata, BigKeyValueStoreMetadata newMetadata) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        if(oldMetadata == null) {
+            throw new IllegalArgumentException("oldMetadata is null");
+        }
+        
+        if(newMetadata == null) {
+            throw new IllegalArgumentException("newMetadata is null");
+        }
+        
+        // only the metadata is replaced, the data must stay the same
+        if(!key.equals(newMetadata.getKey()) || oldMetadata.getEntrySize() != newMetadata.getEntrySize() || oldMetadata.getPartNum() != newMetadata.getPartNum()) {
+            throw new IllegalArgumentException("newMetadata does not describe the same data");
+        }
+        
+        synchronized(getKeyLock(key)) {
+            BigKeyValueStoreMetadata metadata = this.entries.get(key);
+            if(metadata == null || !metadata.equals(oldMetadata)) {
+                return false;
+            }
+            
+            newMetadata.saveTo(getMetadataFilePath(key));
+            this.entries.put(key, newMetadata);
+            return true;
+        }
+    }
+    
+    @Override
+    public void remove(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        long begin = System.nanoTime();
+        synchronized(getKeyLock(key)) {
+            removeInternal(key, false);
+        }
+        this.metrics.recordRemove(System.nanoTime() - begin);
+    }
+    
+    /**
+     * Drops the RAM parts and the disk accounting of a replaced version
+     * while the entry still maps to it. The caller holds the key lock.
+     */
+    private void removeReplaced(String key, BigKeyValueStoreMetadata metadata) {
+        for(int i=0;i<metadata.getPartNum();i++) {
+            removeFromRAMTier(BigKeyValueStoreUtils.newPartKey(key, i));
+        }
+        
+        synchronized(this.diskLock) {
+            this.diskUsed -= metadata.getEntrySize();
+            if(this.diskPolicy != null) {
+                this.diskPolicy.onRemove(key);
+            }
+        }
+    }
+    
+    private void removeInternal(String key, boolean evicted) {
+        BigKeyValueStoreMetadata metadata = this.entries.remove(key);
+        if(metadata == null) {
+            return;
+        }
+        
+        for(int i=0;i<metadata.getPartNum();i++) {
+            removeFromRAMTier(BigKeyValueStoreUtils.newPartKey(key, i));
+        }
+        
+        synchronized(this.diskLock) {
+            this.diskUsed -= metadata.getEntrySize();
+            if(this.diskPolicy != null && !evicted) {
+                this.diskPolicy.onRemove(key);
+            }
+        }
+        
+        File dataFile = getDataFilePath(key);
+        getMetadataFilePath(key).delete();
+        dataFile.delete();
+        CacheFillProgressRegistry.getInstance().remove(dataFile);
+    }
+    
+    @Override
+    public String getPrimaryNodeForData(String key) throws IOException {
+        return this.localNodeName;
+    }
+    
+    @Override
+    public boolean isPrimaryNodeForDataLocal(String key) throws IOException {
+        return true;
+    }
+    
+    @Override
+    public File getCacheFilePath(String key) throws IOException {
+        if(key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is null or empty");
+        }
+        
+        return getDataFilePath(key);
+    }
+    
+    @Override
+    public Collection<String> getBackupNodesForData(String key) throws IOException {
+        return Collections.emptyList();
+    }
+    
+    @Override
+    public Collection<String> getPrimaryAndBackupNodesForData(String key) throws IOException {
+        List<String> nodes = new ArrayList<String>();
+        nodes.add(this.localNodeName);
+        return nodes;
+    }
+    
+    @Override
+    public void clear() throws IOException {
+        List<String> keys = new ArrayList<String>(this.entries.keySet());
+        for(String key : keys) {
+            remove(key);
+        }
+        
+        synchronized(this.ramLock) {
+            if(this.ramPolicy != null) {
+                this.ramPolicy.clear();
+            }
+        }
+        
+        synchronized(this.diskLock) {
+            if(this.diskPolicy != null) {
+                this.diskPolicy.clear();
+            }
+        }
+    }
+    
+    /**
+     * Returns the RAM copy of the part if it belongs to the given version
+     * of the entry, retained for the caller.
+     */
+    private RAMPart getRAMPart(PartKey partkey, BigKeyValueStoreMetadata metadata) {
+        if(this.ramPolicy == null) {
+            return null;
+        }
+        
+        RAMPart part = this.ramParts.get(partkey);
+        if(part != null && (part.metadata != metadata || !part.tryRetain())) {
+            part = null;
+        }
+        
+        synchronized(this.ramLock) {
+            if(part != null) {
+                this.ramPolicy.onAccess(partkey);
+            } else {
+                this.ramPolicy.onMiss(partkey);
+            }
+        }
+        return part;
+    }
+    
+    private ByteBuffer allocateRAMBuffer(int len) {
+        // only full parts are pooled, so pooled buffers always fit
+        if(len == this.partSize) {
+            ByteBuffer buffer = this.freeRAMBuffers.poll();
+            if(buffer != null) {
+                this.freeRAMBufferNum.decrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(len);
+    }
+    
+    private void recycleRAMBuffer(ByteBuffer buffer) {
+        if(buffer.capacity() != this.partSize) {
+            return;
+        }
+        
+        if(this.freeRAMBufferNum.incrementAndGet() > MAX_FREE_RAM_BUFFERS) {
+            this.freeRAMBufferNum.decrementAndGet();
+            return;
+        }
+        this.freeRAMBuffers.add(buffer);
+    }
+    
+    private void addToRAMTier(PartKey partkey, BigKeyValueStoreMetadata metadata, byte[] data, int len) {
+        if(this.ramPolicy == null || len > this.ramCapacity) {
+            return;
+        }
+        
+        ByteBuffer buffer = allocateRAMBuffer(len);
+        buffer.put(data, 0, len);
+        buffer.flip();
+        RAMPart part = new RAMPart(metadata, buffer);
+        
+        RAMPart oldPart;
+        boolean overCapacity;
+        boolean overHardLimit;
+        synchronized(this.ramLock) {
+            oldPart = this.ramParts.put(partkey, part);
+            if(oldPart != null) {
+                this.ramUsed -= oldPart.getSize();
+            }
+            this.ramUsed += part.getSize();
+            this.ramPolicy.onInsert(partkey, part.getSize());
+            
+            overCapacity = this.ramUsed > this.ramCapacity;
+            overHardLimit = this.ramUsed > this.ramCapacity + (this.ramCapacity >> 2);
+        }
+        
+        if(oldPart != null) {
+            oldPart.release();
+        }
+        
+        if(overHardLimit) {
+            // the background demotion fell behind, do not let it grow further
+            demoteRAMTier();
+        } else if(overCapacity) {
+            scheduleRAMDemotion();
+        }
+    }
+    
+    private void removeFromRAMTier(PartKey partkey) {
+        if(this.ramPolicy == null) {
+            return;
+        }
+        
+        RAMPart part;
+        synchronized(this.ramLock) {
+            part = this.ramParts.remove(partkey);
+            if(part != null) {
+                this.ramUsed -= part.getSize();
+                this.ramPolicy.onRemove(partkey);
+            }
+        }
+        
+        if(part != null) {
+            part.release();
+        }
+    }
+    
+    private void scheduleRAMDemotion() {
+        if(!this.ramDemotionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ramDemotionScheduled.set(false);
+                    demoteRAMTier();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.ramDemotionScheduled.set(false);
+            demoteRAMTier();
+        }
+    }
+    
+    private void demoteRAMTier() {
+        // every part is on disk already, demotion only drops the RAM copy
+        List<RAMPart> demoted = new ArrayList<RAMPart>();
+        synchronized(this.ramLock) {
+            while(this.ramUsed > this.ramCapacity) {
+                PartKey victim = this.ramPolicy.selectVictim();
+                if(victim == null) {
+                    break;
+                }
+                
+                this.ramPolicy.onEvict(victim);
+                RAMPart part = this.ramParts.remove(victim);
+                if(part != null) {
+                    this.ramUsed -= part.getSize();
+                    this.metrics.recordEviction(part.getSize());
+                    this.metrics.increment(COUNTER_DEMOTIONS);
+                    demoted.add(part);
+                }
+            }
+        }
+        
+        for(RAMPart part : demoted) {
+            part.release();
+        }
+    }
+    
+    private void schedulePromotion(final PartKey partkey, final BigKeyValueStoreMetadata metadata) {
+        if(this.ramPolicy == null) {
+            return;
+        }
+        
+        if(this.ramParts.containsKey(partkey)) {
+            return;
+        }
+        
+        if(this.pendingPromotions.putIfAbsent(partkey, Boolean.TRUE) != null) {
+            return;
+        }
+        
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        promote(partkey, metadata);
+                    } catch (IOException ex) {
+                        LOG.error(String.format("Failed to promote a part - %s", partkey), ex);
+                    } finally {
+                        pendingPromotions.remove(partkey);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.pendingPromotions.remove(partkey);
+        }
+    }
+    
+    private void promote(PartKey partkey, BigKeyValueStoreMetadata metadata) throws IOException {
+        String key = partkey.getKey();
+        int partNo = partkey.getPartNo();
+        if(this.entries.get(key) != metadata || this.ramParts.containsKey(partkey)) {
+            return;
+        }
+        
+        // read without the key lock, puts and reads of the key do not wait
+        // on the disk
+        int partLen = BigKeyValueStoreUtils.getPartSize(metadata.getEntrySize(), this.partSize, partNo);
+        byte[] buffer = new byte[partLen];
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(getDataFilePath(key), "r");
+        } catch (FileNotFoundException ex) {
+            // removed in between
+            return;
+        }
+        
+        try {
+            raf.seek(BigKeyValueStoreUtils.getPartStartOffset(this.partSize, partNo));
+            raf.readFully(buffer);
+        } catch (IOException ex) {
+            if(this.entries.get(key) != metadata) {
+                // replaced by a shorter version in between
+                return;
+            }
+            throw ex;
+        } finally {
+            raf.close();
+        }
+        
+        // a put or remove of the key in between replaces the metadata, the
+        // data read may then belong to another version
+        synchronized(getKeyLock(key)) {
+            if(this.entries.get(key) != metadata || this.ramParts.containsKey(partkey)) {
+                return;
+            }
+            
+            addToRAMTier(partkey, metadata, buffer, partLen);
+            this.metrics.increment(COUNTER_PROMOTIONS);
+        }
+    }
+    
+    private void addToDiskTier(String key, long size) {
+        boolean overCapacity;
+        synchronized(this.diskLock) {
+            this.diskUsed += size;
+            if(this.diskPolicy == null) {
+                return;
+            }
+            
+            this.diskPolicy.onInsert(key, size);
+            overCapacity = this.diskUsed > this.diskCapacity;
+        }
+        
+        if(overCapacity) {
+            scheduleDiskEviction();
+        }
+    }
+    
+    private void accessDiskTier(String key) {
+        if(this.diskPolicy == null) {
+            return;
+        }
+        
+        synchronized(this.diskLock) {
+            this.diskPolicy.onAccess(key);
+        }
+    }
+    
+    private void scheduleDiskEviction() {
+        if(!this.diskEvictionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    diskEvictionScheduled.set(false);
+                    evictDiskTier();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.diskEvictionScheduled.set(false);
+            evictDiskTier();
+        }
+    }
+    
+    private void evictDiskTier() {
+        while(true) {
+            String victim;
+            synchronized(this.diskLock) {
+                if(this.diskUsed <= this.diskCapacity) {
+                    return;
+                }
+                
+                victim = this.diskPolicy.selectVictim();
+                if(victim == null) {
+                    return;
+                }
+                this.diskPolicy.onEvict(victim);
+            }
+            
+            // the key lock is taken outside the disk lock to keep lock order
+            synchronized(getKeyLock(victim)) {
+                BigKeyValueStoreMetadata metadata = this.entries.get(victim);
+                if(metadata != null) {
+                    removeInternal(victim, true);
+                    this.metrics.recordEviction(metadata.getEntrySize());
+                    this.metrics.increment(COUNTER_DISK_EVICTIONS);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Off-heap copy of a part. The tier holds one reference and readers
+     * retain it while they use the buffer; the last release returns the
+     * buffer to the pool.
+     */
+    private class RAMPart {
+        
+        private BigKeyValueStoreMetadata metadata;
+        private ByteBuffer buffer;
+        private AtomicInteger refCount = new AtomicInteger(1);
+        
+        RAMPart(BigKeyValueStoreMetadata metadata, ByteBuffer buffer) {
+            this.metadata = metadata;
+            this.buffer = buffer;
+        }
+        
+        int getSize() {
+            return this.buffer.capacity();
+        }
+        
+        boolean tryRetain() {
+            while(true) {
+                int count = this.refCount.get();
+                if(count <= 0) {
+                    return false;
+                }
+                
+                if(this.refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        void release() {
+            if(this.refCount.decrementAndGet() == 0) {
+                recycleRAMBuffer(this.buffer);
+            }
+        }
+    }
+    
+    /**
+     * Reads a RAM part and releases it on close.
+     */
+    private class RAMPartInputStream extends ByteBufferInputStream {
+        
+        private RAMPart part;
+        
+        RAMPartInputStream(RAMPart part) {
+            super(part.buffer);
+            this.part = part;
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            super.close();
+            if(this.part != null) {
+                this.part.release();
+                this.part = null;
+            }
+        }
+    }
+    
+    /**
+     * Reads a range of an entry part by part from whichever tier holds the
+     * part. The data file is opened when the stream is created, so the
+     * stream keeps reading its version if the entry is replaced or removed.
+     */
+    private class TieredEntryInputStream extends AbstractSeekableInputStream {
+        
+        private String key;
+        private BigKeyValueStoreMetadata metadata;
+        private long beginOffset;
+        private long size;
+        private long offset;
+        private int firstPartNo;
+        // the keys of the parts in the range, made on first read
+        private PartKey[] partKeys;
+        private RandomAccessFile dataRandomAccessFile;
+        private volatile FileChannel dataFileChannel;
+        
+        TieredEntryInputStream(String key, BigKeyValueStoreMetadata metadata, long beginOffset, long size) throws IOException {
+            this.key = key;
+            this.metadata = metadata;
+            this.beginOffset = beginOffset;
+            this.size = size;
+            this.offset = 0;
+            this.firstPartNo = BigKeyValueStoreUtils.getPartNo(beginOffset, partSize);
+            int partNum = (size == 0) ? 0 : BigKeyValueStoreUtils.getPartNo(beginOffset + size - 1, partSize) - this.firstPartNo + 1;
+            this.partKeys = new PartKey[partNum];
+            this.dataRandomAccessFile = new RandomAccessFile(getDataFilePath(key), "r");
+            this.dataFileChannel = this.dataRandomAccessFile.getChannel();
+        }
+        
+        @Override
+        public synchronized long getOffset() throws IOException {
+            return this.offset;
+        }
+        
+        @Override
+        public synchronized void seek(long offset) throws IOException {
+            if(offset < 0) {
+                throw new IOException("cannot seek to negative offset : " + offset);
+            }
+            
+            this.offset = Math.min(this.size, offset);
+        }
+        
+        @Override
+        public synchronized long skip(long size) throws IOException {
+            if(size <= 0) {
+                return 0;
+            }
+            
+            long skipped = Math.min(size, this.size - this.offset);
+            this.offset += skipped;
+            return skipped;
+        }
+        
+        @Override
+        public synchronized int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, this.size - this.offset);
+        }
+        
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            int readLen = read(b, 0, 1);
+            if(readLen <= 0) {
+                return -1;
+            }
+            return b[0] & 0xff;
+        }
+        
+        @Override
+        public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+            if(bytes == null) {
+                throw new IllegalArgumentException("bytes is null");
+            }
+            
+            if(off < 0) {
+                throw new IllegalArgumentException("off is negative");
+            }
+            
+            if(len < 0) {
+                throw new IllegalArgumentException("len is negative");
+            }
+            
+            if(this.offset >= this.size) {
+                return -1;
+            }
+            
+            if(len == 0) {
+                return 0;
+            }
+            
+            int readLen = read(this.offset, ByteBuffer.wrap(bytes, off, len));
+            if(readLen > 0) {
+                this.offset += readLen;
+            }
+            return readLen;
+        }
+        
+        @Override
+        public int read(long position, ByteBuffer dst) throws IOException {
+            if(position < 0) {
+                throw new IllegalArgumentException("position is negative");
+            }
+            
+            if(dst == null) {
+                throw new IllegalArgumentException("dst is null");
+            }
+            
+            if(position >= this.size) {
+                return -1;
+            }
+            
+            FileChannel channel = this.dataFileChannel;
+            if(channel == null) {
+                throw new IOException("stream is already closed");
+            }
+            
+            // one part per call
+            long entryPosition = this.beginOffset + position;
+            int partNo = BigKeyValueStoreUtils.getPartNo(entryPosition, partSize);
+            long partStartOffset = BigKeyValueStoreUtils.getPartStartOffset(partSize, partNo);
+            int partLen = BigKeyValueStoreUtils.getPartSize(this.metadata.getEntrySize(), partSize, partNo);
+            int offsetInPart = (int) (entryPosition - partStartOffset);
+            int toRead = (int) Math.min(Math.min(dst.remaining(), partLen - offsetInPart), this.size - position);
+            
+            PartKey partkey = getPartKey(partNo);
+            RAMPart part = getRAMPart(partkey, this.metadata);
+            if(part != null) {
+                try {
+                    metrics.increment(COUNTER_RAM_HITS);
+                    ByteBuffer view = part.buffer.duplicate();
+                    view.position(offsetInPart);
+                    view.limit(offsetInPart + toRead);
+                    dst.put(view);
+                    return toRead;
+                } finally {
+                    part.release();
+                }
+            }
+            
+            metrics.increment(COUNTER_DISK_HITS);
+            schedulePromotion(partkey, this.metadata);
+            
+            ByteBuffer view = dst.duplicate();
+            view.limit(view.position() + toRead);
+            long readPosition = entryPosition;
+            while(view.hasRemaining()) {
+                int readLen = channel.read(view, readPosition);
+                if(readLen < 0) {
+                    throw new IOException("EOF found");
+                }
+                readPosition += readLen;
+            }
+            
+            dst.position(view.position());
+            return toRead;
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            if(this.dataRandomAccessFile != null) {
+                this.dataFileChannel = null;
+                this.dataRandomAccessFile.close();
+                this.dataRandomAccessFile = null;
+            }
+        }
+        
+        private PartKey getPartKey(int partNo) {
+            int index = partNo - this.firstPartNo;
+            PartKey partkey = this.partKeys[index];
+            if(partkey == null) {
+                // concurrent positional reads may each make one, they are equal
+                partkey = BigKeyValueStoreUtils.newPartKey(this.key, partNo);
+                this.partKeys[index] = partkey;
+            }
+            return partkey;
+        }
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        @Override
+        public void mark(int readLimit) {
+            // Do nothing
+        }
+        
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("Mark not supported");
+        }
+    }
+}
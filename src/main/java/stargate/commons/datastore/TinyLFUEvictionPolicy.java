@@ -0,0 +1,247 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+/**
+ * W-TinyLFU policy (Einziger, Friedman and Manes) measured in bytes. New
+ * keys enter a small LRU window; keys leaving the window are admitted into
+ * the segmented LRU main space only if a count-min sketch estimates them
+ * more frequent than the main victim.
+ *
+ * @author iychoi
+ */
+public class TinyLFUEvictionPolicy<K> extends AbstractEvictionPolicy<K> {
+
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int SKETCH_WIDTH = 64 * 1024;
+    
+    private long capacity;
+    private long windowLimit;
+    private long protectedLimit;
+    private EvictionList<K> window = new EvictionList<K>();
+    private EvictionList<K> probation = new EvictionList<K>();
+    private EvictionList<K> protectedList = new EvictionList<K>();
+    private FrequencySketch sketch;
+    
+    public TinyLFUEvictionPolicy(long capacity) {
+        this(capacity, SKETCH_WIDTH);
+    }
+    
+    public TinyLFUEvictionPolicy(long capacity, int sketchWidth) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("capacity is not positive");
+        }
+        
+        if(sketchWidth <= 0) {
+            throw new IllegalArgumentException("sketchWidth is not positive");
+        }
+        
+        this.capacity = capacity;
+        this.windowLimit = Math.max(1, (long) (capacity * WINDOW_RATIO));
+        this.protectedLimit = (long) ((capacity - this.windowLimit) * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch(sketchWidth);
+    }
+    
+    @Override
+    public EvictionPolicyType getType() {
+        return EvictionPolicyType.EVICTION_POLICY_WTINYLFU;
+    }
+    
+    public long getCapacity() {
+        return this.capacity;
+    }
+    
+    public int getFrequency(K key) {
+        return this.sketch.estimate(key);
+    }
+    
+    @Override
+    public void onInsert(K key, long size) {
+        this.sketch.increment(key);
+        
+        if(this.probation.remove(key) >= 0 || this.protectedList.remove(key) >= 0) {
+            addProtected(key, size);
+            return;
+        }
+        
+        this.window.addMostRecent(key, size);
+    }
+    
+    @Override
+    public void onAccess(K key) {
+        this.sketch.increment(key);
+        
+        long size = this.window.remove(key);
+        if(size >= 0) {
+            this.window.addMostRecent(key, size);
+            return;
+        }
+        
+        size = this.probation.remove(key);
+        if(size < 0) {
+            size = this.protectedList.remove(key);
+        }
+        
+        if(size >= 0) {
+            addProtected(key, size);
+        }
+    }
+    
+    private void addProtected(K key, long size) {
+        this.protectedList.addMostRecent(key, size);
+        
+        // overflow of the protected segment goes back on probation
+        while(this.protectedList.getBytes() > this.protectedLimit && this.protectedList.size() > 1) {
+            K demoted = this.protectedList.getLeastRecent();
+            long demotedSize = this.protectedList.remove(demoted);
+            this.probation.addMostRecent(demoted, demotedSize);
+        }
+    }
+    
+    @Override
+    public void onMiss(K key) {
+        this.sketch.increment(key);
+    }
+    
+    @Override
+    public void onRemove(K key) {
+        this.window.remove(key);
+        this.probation.remove(key);
+        this.protectedList.remove(key);
+    }
+    
+    private K getMainVictim() {
+        K victim = this.probation.getLeastRecent();
+        if(victim == null) {
+            victim = this.protectedList.getLeastRecent();
+        }
+        return victim;
+    }
+    
+    @Override
+    public K selectVictim() {
+        while(true) {
+            boolean mainEmpty = this.probation.isEmpty() && this.protectedList.isEmpty();
+            K candidate = null;
+            if(this.window.getBytes() > this.windowLimit || mainEmpty) {
+                candidate = this.window.getLeastRecent();
+            }
+            
+            K victim = getMainVictim();
+            if(candidate == null) {
+                return victim;
+            }
+            
+            if(victim == null) {
+                // main space is empty, the window overflow moves in freely
+                this.probation.addMostRecent(candidate, this.window.remove(candidate));
+                continue;
+            }
+            
+            // admission duel between the window overflow and the main victim
+            if(this.sketch.estimate(candidate) > this.sketch.estimate(victim)) {
+                this.probation.addMostRecent(candidate, this.window.remove(candidate));
+                return victim;
+            }
+            return candidate;
+        }
+    }
+    
+    @Override
+    public void onEvict(K key) {
+        onRemove(key);
+    }
+    
+    @Override
+    public void clear() {
+        this.window.clear();
+        this.probation.clear();
+        this.protectedList.clear();
+        this.sketch.clear();
+    }
+    
+    /**
+     * Count-min sketch of 4-bit counters in four rows. All counters are
+     * halved after every sample period so old popularity fades.
+     */
+    private static class FrequencySketch {
+        
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb6a5ccb7, 0x8e23b5b1, 0xc2b2ae35};
+        
+        private byte[] counters;
+        private int mask;
+        private int width;
+        private int samples;
+        private int samplePeriod;
+        
+        FrequencySketch(int width) {
+            int w = 1;
+            while(w < width) {
+                w <<= 1;
+            }
+            
+            this.width = w;
+            this.mask = w - 1;
+            this.counters = new byte[ROWS * w];
+            this.samples = 0;
+            this.samplePeriod = 10 * w;
+        }
+        
+        private int indexOf(Object key, int row) {
+            int h = key.hashCode() * SEEDS[row];
+            h ^= h >>> 16;
+            return row * this.width + (h & this.mask);
+        }
+        
+        void increment(Object key) {
+            boolean added = false;
+            int min = estimate(key);
+            for(int i=0;i<ROWS;i++) {
+                int index = indexOf(key, i);
+                // conservative update - only raise the smallest counters
+                if(this.counters[index] == min && min < MAX_COUNT) {
+                    this.counters[index]++;
+                    added = true;
+                }
+            }
+            
+            if(added && ++this.samples >= this.samplePeriod) {
+                for(int i=0;i<this.counters.length;i++) {
+                    this.counters[i] = (byte) (this.counters[i] >>> 1);
+                }
+                this.samples /= 2;
+            }
+        }
+        
+        int estimate(Object key) {
+            int min = MAX_COUNT;
+            for(int i=0;i<ROWS;i++) {
+                min = Math.min(min, this.counters[indexOf(key, i)]);
+            }
+            return min;
+        }
+        
+        void clear() {
+            for(int i=0;i<this.counters.length;i++) {
+                this.counters[i] = 0;
+            }
+            this.samples = 0;
+        }
+    }
+}
@@ -24,7 +24,8 @@ public enum StargateEventType {
     STARGATE_EVENT_TYPE_REMOTECLUSTER (1),
     STARGATE_EVENT_TYPE_NODE (2),
     STARGATE_EVENT_TYPE_TRANSPORT (3),
-    STARGATE_EVENT_TYPE_TRANSFER_WORKLOAD (4);
+    STARGATE_EVENT_TYPE_TRANSFER_WORKLOAD (4),
+    STARGATE_EVENT_TYPE_DATASTORE_INVALIDATION (5);
     
     private int numVal;
     
@@ -17,12 +17,287 @@ package stargate.commons.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  *
  * @author iychoi
  */
 public abstract class AbstractSeekableInputStream extends InputStream {
+
+    // ranges closer than this are read with a single positional read
+    private static final int MAX_COALESCE_GAP = 64 * 1024; // 64KB
+    private static final int MAX_COALESCED_READ_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024; // 64KB
+    
     public abstract long getOffset() throws IOException;
     public abstract void seek(long offset) throws IOException;
+    
+    /**
+     * Reads up to dst.remaining() bytes at the given position without moving
+     * the stream offset. Returns the number of bytes read or -1 at EOF.
+     * 
+     * The default implementation seeks and restores the offset under the
+     * stream lock; implementations that can read positionally override this
+     * so concurrent readers do not serialize.
+     * 
+     * Forward-only streams (see isForwardOnly()) cannot restore the offset:
+     * the read leaves the offset at its end, and positions the stream can no
+     * longer go back to fail with an IOException.
+     */
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        if(!dst.hasRemaining()) {
+            return 0;
+        }
+        
+        synchronized(this) {
+            long prevOffset = getOffset();
+            try {
+                seek(position);
+                return readToBuffer(dst);
+            } finally {
+                seek(prevOffset);
+            }
+        }
+    }
+    
+    /**
+     * Returns true if the stream cannot seek back to an arbitrary earlier
+     * offset, so positional reads move the stream offset.
+     */
+    public boolean isForwardOnly() {
+        return false;
+    }
+    
+    /**
+     * Positional read for forward-only streams: seeks to the position and
+     * leaves the stream offset at the end of the read. Throws an IOException
+     * if the position is behind what the stream can still serve.
+     */
+    protected synchronized int readForward(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        if(!dst.hasRemaining()) {
+            return 0;
+        }
+        
+        try {
+            seek(position);
+        } catch (UnsupportedOperationException ex) {
+            throw new IOException(String.format("cannot read position %d of a forward-only stream at offset %d", position, getOffset()), ex);
+        }
+        return readToBuffer(dst);
+    }
+    
+    private int readToBuffer(ByteBuffer dst) throws IOException {
+        int readLen;
+        if(dst.hasArray()) {
+            readLen = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if(readLen > 0) {
+                dst.position(dst.position() + readLen);
+            }
+        } else {
+            byte[] buffer = new byte[dst.remaining()];
+            readLen = read(buffer, 0, buffer.length);
+            if(readLen > 0) {
+                dst.put(buffer, 0, readLen);
+            }
+        }
+        return readLen;
+    }
+    
+    public int readFully(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        long readPosition = position;
+        while(dst.hasRemaining()) {
+            int readLen = read(readPosition, dst);
+            if(readLen < 0) {
+                break;
+            }
+            readPosition += readLen;
+        }
+        return (int) (readPosition - position);
+    }
+    
+    /**
+     * Reads all given ranges. Nearby ranges are coalesced into a single
+     * positional read; each range gets its own view of the data, which is
+     * shorter than requested if the range crosses EOF.
+     */
+    public void readRanges(List<SeekableReadRange> ranges) throws IOException {
+        if(ranges == null) {
+            throw new IllegalArgumentException("ranges is null");
+        }
+        
+        if(ranges.isEmpty()) {
+            return;
+        }
+        
+        List<SeekableReadRange> sortedRanges = new ArrayList<SeekableReadRange>(ranges);
+        Collections.sort(sortedRanges, SeekableReadRange.POSITION_COMPARATOR);
+        
+        int groupBegin = 0;
+        while(groupBegin < sortedRanges.size()) {
+            SeekableReadRange first = sortedRanges.get(groupBegin);
+            long groupStart = first.getPosition();
+            long groupEnd = first.getPosition() + first.getLength();
+            
+            int groupEndIdx = groupBegin + 1;
+            while(groupEndIdx < sortedRanges.size()) {
+                SeekableReadRange next = sortedRanges.get(groupEndIdx);
+                long newEnd = Math.max(groupEnd, next.getPosition() + next.getLength());
+                if(next.getPosition() - groupEnd > MAX_COALESCE_GAP || newEnd - groupStart > MAX_COALESCED_READ_SIZE) {
+                    break;
+                }
+                
+                groupEnd = newEnd;
+                groupEndIdx++;
+            }
+            
+            ByteBuffer groupBuffer = ByteBuffer.allocate((int) (groupEnd - groupStart));
+            int filled = readFully(groupStart, groupBuffer);
+            
+            for(int i=groupBegin;i<groupEndIdx;i++) {
+                SeekableReadRange range = sortedRanges.get(i);
+                int rangeStart = (int) (range.getPosition() - groupStart);
+                int rangeEnd = Math.min(rangeStart + range.getLength(), filled);
+                
+                ByteBuffer view = groupBuffer.duplicate();
+                view.limit(Math.max(rangeStart, rangeEnd));
+                view.position(Math.min(rangeStart, view.limit()));
+                range.setData(view.slice());
+            }
+            
+            groupBegin = groupEndIdx;
+        }
+    }
+    
+    /**
+     * Transfers up to count bytes starting at the given position to the
+     * target without moving the stream offset. Returns the number of bytes
+     * transferred, which is less than count only at EOF.
+     * 
+     * The default implementation copies through a heap buffer; file-backed
+     * streams override this to hand the data to the kernel directly.
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(count < 0) {
+            throw new IllegalArgumentException("count is negative");
+        }
+        
+        if(target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_BUFFER_SIZE));
+        long transferred = 0;
+        while(transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            
+            int readLen = read(position + transferred, buffer);
+            if(readLen <= 0) {
+                break;
+            }
+            
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            transferred += readLen;
+        }
+        return transferred;
+    }
+    
+    /**
+     * Transfers the rest of the stream from the current offset to the target
+     * and advances the offset by the number of bytes transferred.
+     */
+    public synchronized long transferTo(WritableByteChannel target) throws IOException {
+        if(target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+        
+        long position = getOffset();
+        long transferred = transferTo(position, Long.MAX_VALUE - position, target);
+        if(transferred > 0) {
+            seek(position + transferred);
+        }
+        return transferred;
+    }
+    
+    /**
+     * Returns a channel view of this stream. Reads go through the positional
+     * read path straight into the caller's buffer and advance the offset;
+     * closing the channel closes the stream.
+     */
+    public ReadableByteChannel getChannel() {
+        return new SeekableInputStreamChannel();
+    }
+    
+    private class SeekableInputStreamChannel implements ReadableByteChannel {
+        
+        private volatile boolean open = true;
+        
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if(!this.open) {
+                throw new ClosedChannelException();
+            }
+            
+            AbstractSeekableInputStream stream = AbstractSeekableInputStream.this;
+            synchronized(stream) {
+                long position = stream.getOffset();
+                int readLen = stream.read(position, dst);
+                if(readLen > 0) {
+                    stream.seek(position + readLen);
+                }
+                return readLen;
+            }
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if(this.open) {
+                this.open = false;
+                AbstractSeekableInputStream.this.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,184 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Seekable stream over a (possibly direct) ByteBuffer. The buffer is read
+ * through a private view and never modified.
+ *
+ * @author iychoi
+ */
+public class ByteBufferInputStream extends AbstractSeekableInputStream {
+
+    private ByteBuffer buffer;
+    private int size;
+    private int offset;
+    
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
+        
+        this.buffer = buffer.slice().asReadOnlyBuffer();
+        this.size = this.buffer.remaining();
+        this.offset = 0;
+    }
+    
+    public int getSize() {
+        return this.size;
+    }
+    
+    @Override
+    public synchronized long getOffset() throws IOException {
+        return this.offset;
+    }
+    
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if(offset < 0) {
+            throw new IOException("cannot seek to negative offset : " + offset);
+        }
+        
+        this.offset = (int) Math.min(this.size, offset);
+    }
+    
+    @Override
+    public synchronized long skip(long size) throws IOException {
+        if(size <= 0) {
+            return 0;
+        }
+        
+        int skipped = (int) Math.min(size, this.size - this.offset);
+        this.offset += skipped;
+        return skipped;
+    }
+    
+    @Override
+    public synchronized int available() throws IOException {
+        return this.size - this.offset;
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        if(this.offset >= this.size) {
+            return -1;
+        }
+        
+        int ch = this.buffer.get(this.offset) & 0xff;
+        this.offset++;
+        return ch;
+    }
+    
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+        
+        if(off < 0) {
+            throw new IllegalArgumentException("off is negative");
+        }
+        
+        if(len < 0) {
+            throw new IllegalArgumentException("len is negative");
+        }
+        
+        if(this.offset >= this.size) {
+            return -1;
+        }
+        
+        int toRead = Math.min(len, this.size - this.offset);
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(this.offset);
+        view.get(bytes, off, toRead);
+        this.offset += toRead;
+        return toRead;
+    }
+    
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        if(position >= this.size) {
+            return -1;
+        }
+        
+        int toRead = (int) Math.min(dst.remaining(), this.size - position);
+        ByteBuffer view = this.buffer.duplicate();
+        view.position((int) position);
+        view.limit((int) position + toRead);
+        dst.put(view);
+        return toRead;
+    }
+    
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(count < 0) {
+            throw new IllegalArgumentException("count is negative");
+        }
+        
+        if(target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+        
+        if(position >= this.size) {
+            return 0;
+        }
+        
+        long end = Math.min(this.size, position + count);
+        ByteBuffer view = this.buffer.duplicate();
+        view.position((int) position);
+        view.limit((int) end);
+        while(view.hasRemaining()) {
+            target.write(view);
+        }
+        return end - position;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        this.offset = this.size;
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
@@ -0,0 +1,65 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Creates the seekable buffer that chunk streams put in front of a
+ * non-seekable source. RAM is the default; disk-backed buffers trade memory
+ * for scratch space on large chunks.
+ *
+ * @author iychoi
+ */
+public class ChunkBufferInputStreamFactory {
+
+    private static final ChunkBufferType DEFAULT_BUFFER_TYPE = ChunkBufferType.CHUNK_BUFFER_RAM;
+    
+    private static volatile ChunkBufferType bufferType = DEFAULT_BUFFER_TYPE;
+    
+    public static ChunkBufferType getBufferType() {
+        return bufferType;
+    }
+    
+    public static void setBufferType(ChunkBufferType type) {
+        if(type == null) {
+            throw new IllegalArgumentException("type is null");
+        }
+        
+        bufferType = type;
+    }
+    
+    public static AbstractSeekableInputStream createBufferInputStream(InputStream is, int dataSize) throws IOException {
+        return createBufferInputStream(bufferType, is, dataSize);
+    }
+    
+    public static AbstractSeekableInputStream createBufferInputStream(ChunkBufferType type, InputStream is, int dataSize) throws IOException {
+        if(type == null) {
+            throw new IllegalArgumentException("type is null");
+        }
+        
+        switch(type) {
+            case CHUNK_BUFFER_DISK:
+                return new DiskBufferInputStream(is, dataSize);
+            case CHUNK_BUFFER_FILE_CHANNEL:
+                return new FileChannelBufferInputStream(is, dataSize);
+            case CHUNK_BUFFER_RAM:
+            default:
+                return new RAMBufferInputStream(is, dataSize);
+        }
+    }
+}
@@ -17,6 +17,9 @@ package stargate.commons.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 /**
  *
@@ -24,7 +27,7 @@ import java.io.InputStream;
  */
 public class ChunkDataInputStream extends AbstractSeekableInputStream {
 
-    private AbstractSeekableInputStream inputStream;
+    private volatile AbstractSeekableInputStream inputStream;
     private long chunkStartOffset;
     private int chunkSize;
     
@@ -44,8 +47,7 @@ public class ChunkDataInputStream extends AbstractSeekableInputStream {
         if(is instanceof AbstractSeekableInputStream) {
             this.inputStream = (AbstractSeekableInputStream) is;
         } else {
-            this.inputStream = new RAMBufferInputStream(is, chunkSize);
-            //this.inputStream = new DiskBufferInputStream(is, chunkSize);
+            this.inputStream = ChunkBufferInputStreamFactory.createBufferInputStream(is, chunkSize);
         }
         
         this.chunkStartOffset = chunkStartOffset;
@@ -98,6 +100,33 @@ public class ChunkDataInputStream extends AbstractSeekableInputStream {
         this.inputStream.seek(offset);
     }
     
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        AbstractSeekableInputStream is = this.inputStream;
+        if(is == null) {
+            throw new IOException("stream is already closed");
+        }
+        return is.read(position, dst);
+    }
+    
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        AbstractSeekableInputStream is = this.inputStream;
+        if(is == null) {
+            throw new IOException("stream is already closed");
+        }
+        return is.transferTo(position, count, target);
+    }
+    
+    @Override
+    public void readRanges(List<SeekableReadRange> ranges) throws IOException {
+        AbstractSeekableInputStream is = this.inputStream;
+        if(is == null) {
+            throw new IOException("stream is already closed");
+        }
+        is.readRanges(ranges);
+    }
+    
     @Override
     public synchronized int available() throws IOException {
         return this.inputStream.available();
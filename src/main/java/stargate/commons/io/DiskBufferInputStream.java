@@ -20,6 +20,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import stargate.commons.utils.TempFileUtils;
@@ -32,11 +35,14 @@ public class DiskBufferInputStream extends AbstractSeekableInputStream {
 
     private static final Log LOG = LogFactory.getLog(DiskBufferInputStream.class);
     
+    private static final int TRANSFER_WAIT_SIZE = 256 * 1024;
+    
     private long offset = 0;
     private long dataSize = 0;
+    private long bufferSize = 0;
     
     private File tempFile;
-    private FileInputStream fileInputStream;
+    private volatile FileInputStream fileInputStream;
     private DiskBufferInputStreamReader inputStreamReader;
     private Thread readThread;
     private InputStream inputStream;
@@ -72,6 +78,7 @@ public class DiskBufferInputStream extends AbstractSeekableInputStream {
         
         this.offset = 0;
         this.dataSize = dataSize;
+        this.bufferSize = dataSize;
     }
     
     private synchronized void waitData(long offset) throws IOException {
@@ -190,6 +197,90 @@ public class DiskBufferInputStream extends AbstractSeekableInputStream {
         return readLen;
     }
     
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        // lock-free - positional channel reads do not touch the stream offset
+        FileInputStream fis = this.fileInputStream;
+        if(fis == null) {
+            throw new IOException("stream is already closed");
+        }
+        
+        if(position >= this.bufferSize) {
+            return -1;
+        }
+        
+        int toRead = (int) Math.min(dst.remaining(), this.bufferSize - position);
+        this.inputStreamReader.waitUntil(position + toRead);
+        
+        FileChannel channel = fis.getChannel();
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + toRead);
+        long readPosition = position;
+        while(view.hasRemaining()) {
+            int readLen = channel.read(view, readPosition);
+            if(readLen < 0) {
+                throw new IOException("EOF found");
+            }
+            readPosition += readLen;
+        }
+        
+        dst.position(view.position());
+        return toRead;
+    }
+    
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(count < 0) {
+            throw new IllegalArgumentException("count is negative");
+        }
+        
+        if(target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+        
+        FileInputStream fis = this.fileInputStream;
+        if(fis == null) {
+            throw new IOException("stream is already closed");
+        }
+        FileChannel channel = fis.getChannel();
+        
+        if(position >= this.bufferSize) {
+            return 0;
+        }
+        
+        // hand what has landed so far to the kernel, then wait for the next step
+        DiskBufferInputStreamReader reader = this.inputStreamReader;
+        long end = Math.min(this.bufferSize, position + count);
+        long transferred = 0;
+        while(position + transferred < end) {
+            long filled = reader.getOffset();
+            if(filled <= position + transferred) {
+                reader.waitUntil(Math.min(end, position + transferred + TRANSFER_WAIT_SIZE));
+                continue;
+            }
+            
+            long toTransfer = Math.min(filled, end) - position - transferred;
+            long transferLen = channel.transferTo(position + transferred, toTransfer, target);
+            if(transferLen <= 0) {
+                throw new IOException("EOF found");
+            }
+            transferred += transferLen;
+        }
+        return transferred;
+    }
+    
     @Override
     public synchronized void close() {
         this.offset = 0;
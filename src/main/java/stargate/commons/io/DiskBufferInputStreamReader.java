@@ -29,16 +29,17 @@ public class DiskBufferInputStreamReader implements Runnable {
 
     private static final Log LOG = LogFactory.getLog(DiskBufferInputStreamReader.class);
     
+    private static final StreamMetrics METRICS = StreamMetrics.getInstance(DiskBufferInputStream.class);
     
     private static final int BUFFER_SIZE = 16 * 1024; // 16KB
     
     private InputStream inputStream;
     private OutputStream outputStream;
-    private long offset;
+    private volatile long offset;
     private Object notifyObject = new Object();
     private long notifySize;
     private int bufferSize = BUFFER_SIZE;
-    private boolean done;
+    private volatile boolean done;
     
     public DiskBufferInputStreamReader(InputStream is, OutputStream os, int bufferSize) throws IOException {
         if(is == null) {
@@ -86,6 +87,19 @@ public class DiskBufferInputStreamReader implements Runnable {
     }
     
     public void waitUntil(long size) throws IOException {
+        if(this.offset >= size) {
+            return;
+        }
+        
+        long waitBegin = System.nanoTime();
+        try {
+            waitUntilInternal(size);
+        } finally {
+            METRICS.recordWait(System.nanoTime() - waitBegin);
+        }
+    }
+    
+    private void waitUntilInternal(long size) throws IOException {
         synchronized(this.notifyObject) {
             if(this.offset >= size) {
                 return;
@@ -98,13 +112,14 @@ public class DiskBufferInputStreamReader implements Runnable {
         
         try {
             synchronized(this.notifyObject) {
-                this.notifySize = size;
-                
                 while(this.offset < size) {
+                    // several readers may wait at once, keep the nearest target
+                    if(this.notifySize < 0 || size < this.notifySize) {
+                        this.notifySize = size;
+                    }
                     this.notifyObject.wait(3000);
                     
                     if(this.offset >= size) {
-                        this.notifySize = -1;
                         return;
                     }
 
@@ -160,7 +175,10 @@ public class DiskBufferInputStreamReader implements Runnable {
             } catch(Exception e) {
             }
             
-            this.done = true;
+            synchronized(this.notifyObject) {
+                this.done = true;
+                this.notifyObject.notifyAll();
+            }
         }
     }
 }
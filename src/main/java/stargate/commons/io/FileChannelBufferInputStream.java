@@ -0,0 +1,422 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Disk buffer that writes the source with positional FileChannel writes into
+ * a recycled scratch file and serves reads with positional reads, or through
+ * a read-only mapping once the whole data has landed.
+ *
+ * @author iychoi
+ */
+public class FileChannelBufferInputStream extends AbstractSeekableInputStream {
+
+    private static final Log LOG = LogFactory.getLog(FileChannelBufferInputStream.class);
+
+    private static final int TRANSFER_WAIT_SIZE = 256 * 1024;
+
+    private long offset = 0;
+    private long dataSize = 0;
+    private long bufferSize = 0;
+
+    private ScratchFilePool scratchFilePool;
+    private File scratchFile;
+    private RandomAccessFile scratchRandomAccessFile;
+    private volatile FileChannel fileChannel;
+    private boolean useMemoryMap;
+    private volatile MappedByteBuffer mappedBuffer;
+    private boolean mapped;
+    private FileChannelBufferInputStreamReader inputStreamReader;
+    private Thread readThread;
+    private InputStream inputStream;
+
+    public FileChannelBufferInputStream(InputStream is, int dataSize) throws IOException {
+        this(is, dataSize, false);
+    }
+
+    public FileChannelBufferInputStream(InputStream is, int dataSize, boolean useMemoryMap) throws IOException {
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+
+        if(dataSize < 0) {
+            throw new IllegalArgumentException("dataSize is negative");
+        }
+
+        initialize(is, dataSize, useMemoryMap, ScratchFilePool.getInstance());
+    }
+
+    public FileChannelBufferInputStream(InputStream is, int dataSize, boolean useMemoryMap, ScratchFilePool scratchFilePool) throws IOException {
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+
+        if(dataSize < 0) {
+            throw new IllegalArgumentException("dataSize is negative");
+        }
+
+        if(scratchFilePool == null) {
+            throw new IllegalArgumentException("scratchFilePool is null");
+        }
+
+        initialize(is, dataSize, useMemoryMap, scratchFilePool);
+    }
+
+    private void initialize(InputStream is, int dataSize, boolean useMemoryMap, ScratchFilePool scratchFilePool) throws IOException {
+        this.scratchFilePool = scratchFilePool;
+        this.scratchFile = scratchFilePool.acquire();
+        this.scratchRandomAccessFile = new RandomAccessFile(this.scratchFile, "rw");
+        this.fileChannel = this.scratchRandomAccessFile.getChannel();
+        this.useMemoryMap = useMemoryMap;
+        this.inputStream = is;
+
+        this.inputStreamReader = new FileChannelBufferInputStreamReader(is, this.fileChannel, dataSize);
+        this.readThread = new Thread(this.inputStreamReader);
+        this.readThread.start();
+
+        this.offset = 0;
+        this.dataSize = dataSize;
+        this.bufferSize = dataSize;
+    }
+
+    private synchronized void waitData(long offset) throws IOException {
+        if(this.offset >= this.dataSize) {
+            return;
+        }
+
+        long waitOffset = offset;
+        if(offset > this.dataSize) {
+            waitOffset = this.dataSize;
+        }
+
+        if(this.fileChannel != null) {
+            this.inputStreamReader.waitUntil(waitOffset);
+        } else {
+            throw new IOException("fileChannel is null");
+        }
+    }
+
+    private synchronized MappedByteBuffer getMappedBuffer() throws IOException {
+        if(this.mappedBuffer == null && this.useMemoryMap && this.fileChannel != null) {
+            if(this.inputStreamReader.isDone() && this.inputStreamReader.getOffset() >= this.bufferSize) {
+                this.mappedBuffer = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, this.bufferSize);
+                this.mapped = true;
+            }
+        }
+        return this.mappedBuffer;
+    }
+
+    public boolean isMemoryMapEnabled() {
+        return this.useMemoryMap;
+    }
+
+    @Override
+    public synchronized long getOffset() {
+        return this.offset;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        long filled = this.inputStreamReader.getOffset();
+        return (int) Math.max(0, Math.min(filled - this.offset, 64*1024));
+    }
+
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if(this.offset == offset) {
+            return;
+        }
+
+        if(offset < 0) {
+            throw new IOException("cannot seek to negative offset : " + offset);
+        }
+
+        if(offset >= this.dataSize) {
+            this.offset = this.dataSize;
+        } else {
+            this.offset = offset;
+        }
+
+        waitData(this.offset);
+    }
+
+    @Override
+    public synchronized long skip(long size) throws IOException {
+        if(size <= 0) {
+            return 0;
+        }
+
+        if(this.offset >= this.dataSize) {
+            return 0;
+        }
+
+        long lavailable = this.dataSize - this.offset;
+        if(size >= lavailable) {
+            this.offset = this.dataSize;
+            waitData(this.offset);
+            return lavailable;
+        } else {
+            this.offset += size;
+            waitData(this.offset);
+            return size;
+        }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if(this.offset >= this.dataSize) {
+            return -1;
+        }
+
+        byte[] b = new byte[1];
+        int readLen = read(b, 0, 1);
+        if(readLen <= 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(this.offset >= this.dataSize) {
+            return -1;
+        }
+
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+
+        if(off < 0) {
+            throw new IllegalArgumentException("off is negative");
+        }
+
+        if(len < 0) {
+            throw new IllegalArgumentException("len is negative");
+        }
+
+        long lavailable = this.dataSize - this.offset;
+        int toRead = (int) Math.min(lavailable, len);
+
+        waitData(this.offset + toRead);
+
+        MappedByteBuffer mapped = getMappedBuffer();
+        if(mapped != null) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) this.offset);
+            view.get(bytes, off, toRead);
+            this.offset += toRead;
+            return toRead;
+        }
+
+        ByteBuffer dst = ByteBuffer.wrap(bytes, off, toRead);
+        long readOffset = this.offset;
+        while(dst.hasRemaining()) {
+            int readLen = this.fileChannel.read(dst, readOffset);
+            if(readLen < 0) {
+                throw new IOException("EOF found");
+            }
+            readOffset += readLen;
+        }
+
+        this.offset = readOffset;
+        return toRead;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+
+        // lock-free - positional channel reads do not touch the stream offset
+        FileChannel channel = this.fileChannel;
+        if(channel == null) {
+            throw new IOException("stream is already closed");
+        }
+
+        if(position >= this.bufferSize) {
+            return -1;
+        }
+
+        int toRead = (int) Math.min(dst.remaining(), this.bufferSize - position);
+        this.inputStreamReader.waitUntil(position + toRead);
+
+        MappedByteBuffer mapped = this.mappedBuffer;
+        if(mapped == null && this.useMemoryMap) {
+            mapped = getMappedBuffer();
+        }
+
+        if(mapped != null) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) position);
+            view.limit((int) position + toRead);
+            dst.put(view);
+            return toRead;
+        }
+
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + toRead);
+        long readPosition = position;
+        while(view.hasRemaining()) {
+            int readLen = channel.read(view, readPosition);
+            if(readLen < 0) {
+                throw new IOException("EOF found");
+            }
+            readPosition += readLen;
+        }
+
+        dst.position(view.position());
+        return toRead;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+
+        if(count < 0) {
+            throw new IllegalArgumentException("count is negative");
+        }
+
+        if(target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+
+        FileChannel channel = this.fileChannel;
+        if(channel == null) {
+            throw new IOException("stream is already closed");
+        }
+
+        if(position >= this.bufferSize) {
+            return 0;
+        }
+
+        MappedByteBuffer mapped = this.mappedBuffer;
+        if(mapped == null && this.useMemoryMap) {
+            mapped = getMappedBuffer();
+        }
+
+        if(mapped != null) {
+            long end = Math.min(this.bufferSize, position + count);
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) position);
+            view.limit((int) end);
+            while(view.hasRemaining()) {
+                target.write(view);
+            }
+            return end - position;
+        }
+
+        // hand what has landed so far to the kernel, then wait for the next step
+        FileChannelBufferInputStreamReader reader = this.inputStreamReader;
+        long end = Math.min(this.bufferSize, position + count);
+        long transferred = 0;
+        while(position + transferred < end) {
+            long filled = reader.getOffset();
+            if(filled <= position + transferred) {
+                reader.waitUntil(Math.min(end, position + transferred + TRANSFER_WAIT_SIZE));
+                continue;
+            }
+
+            long toTransfer = Math.min(filled, end) - position - transferred;
+            long transferLen = channel.transferTo(position + transferred, toTransfer, target);
+            if(transferLen <= 0) {
+                throw new IOException("EOF found");
+            }
+            transferred += transferLen;
+        }
+        return transferred;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.offset = 0;
+        this.dataSize = 0;
+
+        if(this.inputStream != null) {
+            try {
+                this.inputStream.close();
+            } catch (Exception ex) {
+            } finally {
+                this.inputStream = null;
+            }
+        }
+
+        if(this.readThread != null) {
+            if(this.readThread.isAlive()) {
+                this.readThread.interrupt();
+            }
+
+            this.readThread = null;
+        }
+
+        this.mappedBuffer = null;
+
+        // the channel is shared with the reader thread, closing it first
+        // guarantees no late write lands in the file after it is recycled
+        if(this.scratchRandomAccessFile != null) {
+            try {
+                this.scratchRandomAccessFile.close();
+            } catch (Exception ex) {
+            } finally {
+                this.scratchRandomAccessFile = null;
+                this.fileChannel = null;
+            }
+        }
+
+        if(this.scratchFile != null) {
+            // a lock-free reader may still hold the mapping, never truncate
+            // a file that was mapped
+            if(this.mapped) {
+                this.scratchFilePool.discard(this.scratchFile);
+            } else {
+                this.scratchFilePool.release(this.scratchFile);
+            }
+            this.scratchFile = null;
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
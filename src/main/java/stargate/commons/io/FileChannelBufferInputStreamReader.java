@@ -0,0 +1,208 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ *
+ * @author iychoi
+ */
+public class FileChannelBufferInputStreamReader implements Runnable {
+
+    private static final Log LOG = LogFactory.getLog(FileChannelBufferInputStreamReader.class);
+
+    private static final StreamMetrics METRICS = StreamMetrics.getInstance(FileChannelBufferInputStream.class);
+
+    // also the flush batch, waiting readers see data once this much arrives
+    private static final int BUFFER_SIZE = 64 * 1024; // 64KB
+    private static final long FLUSH_INTERVAL_NSEC = 20 * 1000 * 1000; // 20ms
+
+    private InputStream inputStream;
+    private FileChannel fileChannel;
+    private long dataSize;
+    private volatile long offset;
+    private Object notifyObject = new Object();
+    private long notifySize;
+    private int bufferSize = BUFFER_SIZE;
+    private volatile boolean done;
+
+    public FileChannelBufferInputStreamReader(InputStream is, FileChannel channel, long dataSize, int bufferSize) throws IOException {
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+
+        if(channel == null) {
+            throw new IllegalArgumentException("channel is null");
+        }
+
+        if(dataSize < 0) {
+            throw new IllegalArgumentException("dataSize is negative");
+        }
+
+        if(bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize is negative");
+        }
+
+        this.inputStream = is;
+        this.fileChannel = channel;
+        this.dataSize = dataSize;
+        this.offset = 0;
+        this.notifySize = -1;
+        this.bufferSize = bufferSize;
+        this.done = false;
+    }
+
+    public FileChannelBufferInputStreamReader(InputStream is, FileChannel channel, long dataSize) throws IOException {
+        this(is, channel, dataSize, BUFFER_SIZE);
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public boolean isDone() {
+        return this.done;
+    }
+
+    public void waitUntil(long size) throws IOException {
+        if(this.offset >= size) {
+            return;
+        }
+
+        long waitBegin = System.nanoTime();
+        try {
+            waitUntilInternal(size);
+        } finally {
+            METRICS.recordWait(System.nanoTime() - waitBegin);
+        }
+    }
+
+    private void waitUntilInternal(long size) throws IOException {
+        synchronized(this.notifyObject) {
+            if(this.offset >= size) {
+                return;
+            }
+
+            if(this.done) {
+                throw new IOException(String.format("cannot wait size %d (offset %d) - stream is already closed", size, this.offset));
+            }
+        }
+
+        try {
+            synchronized(this.notifyObject) {
+                while(this.offset < size) {
+                    // several readers may wait at once, keep the nearest target
+                    if(this.notifySize < 0 || size < this.notifySize) {
+                        this.notifySize = size;
+                    }
+                    this.notifyObject.wait(3000);
+
+                    if(this.offset >= size) {
+                        return;
+                    }
+
+                    if(this.done) {
+                        throw new IOException(String.format("cannot finish waiting size %d (offset %d) - stream is closed", size, this.offset));
+                    }
+                }
+            }
+
+            return;
+        } catch (InterruptedException ex) {
+            if(this.offset >= size) {
+                return;
+            }
+            throw new IOException(ex);
+        }
+    }
+
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+
+        long writeOffset = this.offset;
+        while(buffer.hasRemaining()) {
+            writeOffset += this.fileChannel.write(buffer, writeOffset);
+        }
+        buffer.clear();
+
+        synchronized(this.notifyObject) {
+            this.offset = writeOffset;
+
+            if(this.notifySize >= 0 && this.notifySize <= this.offset) {
+                this.notifyObject.notifyAll();
+                this.notifySize = -1;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        if(this.done) {
+           return;
+        }
+
+        int readLen;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(this.bufferSize);
+            byte[] bufferArray = buffer.array();
+            long received = 0;
+            long lastFlush = System.nanoTime();
+
+            while(received < this.dataSize) {
+                int toRead = (int) Math.min(buffer.remaining(), this.dataSize - received);
+                readLen = this.inputStream.read(bufferArray, buffer.position(), toRead);
+                if(readLen < 0) {
+                    break;
+                }
+
+                buffer.position(buffer.position() + readLen);
+                received += readLen;
+
+                // write out when the buffer fills, or after a while on a slow
+                // source, so waiting readers are not held until a whole buffer arrives
+                long now = System.nanoTime();
+                if(!buffer.hasRemaining() || received >= this.dataSize ||
+                        now - lastFlush >= FLUSH_INTERVAL_NSEC) {
+                    writeBuffer(buffer);
+                    lastFlush = now;
+                }
+            }
+
+            if(buffer.position() > 0) {
+                writeBuffer(buffer);
+            }
+        } catch(Exception ex) {
+            LOG.error(ex);
+        } finally {
+            // CLOSE
+            try {
+                this.inputStream.close();
+            } catch(Exception e) {
+            }
+
+            synchronized(this.notifyObject) {
+                this.done = true;
+                this.notifyObject.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.recipe.Recipe;
+import stargate.commons.recipe.RecipeChunk;
+import stargate.commons.statistics.Statistics;
+import stargate.commons.statistics.StatisticsEntry;
+import stargate.commons.utils.DateTimeUtils;
+import stargate.commons.utils.HexUtils;
+
+/**
+ * Digests chunk data inline as it is read and checks it against the expected
+ * hash when the data ends, so received chunks are verified without a second
+ * pass. With an executor the digest runs on another core: read bytes are
+ * staged into blocks and handed off in order, and the reader only waits for
+ * the digest to catch up at the end of the data.
+ *
+ * @author iychoi
+ */
+public class HashVerifyingInputStream extends FilterInputStream {
+
+    private static final Log LOG = LogFactory.getLog(HashVerifyingInputStream.class);
+    
+    private static final int DEFAULT_BLOCK_SIZE = 64 * 1024; // 64KB
+    private static final int DEFAULT_MAX_PENDING_BLOCKS = 16;
+    
+    private static ExecutorService defaultExecutor;
+    
+    private MessageDigest digest;
+    private String hashAlgorithm;
+    private byte[] expectedHash;
+    private long expectedSize;
+    private long readBytes;
+    private boolean verified;
+    private Statistics statistics;
+    
+    // pipelined digest
+    private ExecutorService executor;
+    private int blockSize;
+    private int maxPendingBlocks;
+    private byte[] stagingBlock;
+    private int stagingLength;
+    private ConcurrentLinkedQueue<DigestBlock> pendingBlocks = new ConcurrentLinkedQueue<DigestBlock>();
+    private AtomicBoolean draining = new AtomicBoolean(false);
+    private final Object pipelineLock = new Object();
+    private int pendingBlockNum;
+    private volatile long hashTimeNanos;
+    
+    private static class DigestBlock {
+        private byte[] data;
+        private int length;
+        
+        DigestBlock(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+    
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            int poolSize = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            defaultExecutor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "hash-verify-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+    
+    public HashVerifyingInputStream(InputStream is, Recipe recipe, RecipeChunk chunk) throws IOException {
+        this(is, recipe, chunk, getDefaultExecutor(), null);
+    }
+    
+    public HashVerifyingInputStream(InputStream is, Recipe recipe, RecipeChunk chunk, ExecutorService executor, Statistics statistics) throws IOException {
+        this(is, getHashAlgorithm(recipe), getChunkHash(chunk), chunk.getLength(), executor, statistics);
+    }
+    
+    public HashVerifyingInputStream(InputStream is, String hashAlgorithm, String expectedHash, long expectedSize) throws IOException {
+        this(is, hashAlgorithm, expectedHash, expectedSize, null, null);
+    }
+    
+    public HashVerifyingInputStream(InputStream is, String hashAlgorithm, String expectedHash, long expectedSize, ExecutorService executor, Statistics statistics) throws IOException {
+        super(is);
+        
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+        
+        if(hashAlgorithm == null || hashAlgorithm.isEmpty()) {
+            throw new IllegalArgumentException("hashAlgorithm is null or empty");
+        }
+        
+        if(expectedHash == null || expectedHash.isEmpty()) {
+            throw new IllegalArgumentException("expectedHash is null or empty");
+        }
+        
+        try {
+            this.digest = MessageDigest.getInstance(hashAlgorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        
+        this.hashAlgorithm = hashAlgorithm;
+        this.expectedHash = HexUtils.toBytes(expectedHash);
+        this.expectedSize = expectedSize;
+        this.readBytes = 0;
+        this.verified = false;
+        this.statistics = statistics;
+        
+        this.executor = executor;
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+        this.maxPendingBlocks = DEFAULT_MAX_PENDING_BLOCKS;
+        this.stagingBlock = null;
+        this.stagingLength = 0;
+        this.pendingBlockNum = 0;
+        this.hashTimeNanos = 0;
+    }
+    
+    private static String getHashAlgorithm(Recipe recipe) {
+        if(recipe == null) {
+            throw new IllegalArgumentException("recipe is null");
+        }
+        return recipe.getHashAlgorithm();
+    }
+    
+    private static String getChunkHash(RecipeChunk chunk) {
+        if(chunk == null) {
+            throw new IllegalArgumentException("chunk is null");
+        }
+        return chunk.getHash();
+    }
+    
+    public String getHashAlgorithm() {
+        return this.hashAlgorithm;
+    }
+    
+    public String getExpectedHash() {
+        return HexUtils.toHexString(this.expectedHash).toLowerCase();
+    }
+    
+    public long getExpectedSize() {
+        return this.expectedSize;
+    }
+    
+    public synchronized long getReadBytes() {
+        return this.readBytes;
+    }
+    
+    public synchronized boolean isVerified() {
+        return this.verified;
+    }
+    
+    public boolean isPipelined() {
+        return this.executor != null;
+    }
+    
+    public long getHashTimeNanos() {
+        return this.hashTimeNanos;
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] b = new byte[1];
+        int readLen = read(b, 0, 1);
+        if(readLen <= 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+    
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+        
+        if(off < 0) {
+            throw new IllegalArgumentException("off is negative");
+        }
+        
+        if(len < 0) {
+            throw new IllegalArgumentException("len is negative");
+        }
+        
+        if(len == 0) {
+            return 0;
+        }
+        
+        if(this.verified) {
+            return -1;
+        }
+        
+        int readLen = this.in.read(bytes, off, len);
+        if(readLen < 0) {
+            if(this.expectedSize >= 0 && this.readBytes < this.expectedSize) {
+                throw new HashMismatchException(String.format("unexpected EOF at %d - expected %d bytes", this.readBytes, this.expectedSize));
+            }
+            
+            verify();
+            return -1;
+        }
+        
+        if(this.expectedSize >= 0 && this.readBytes + readLen > this.expectedSize) {
+            throw new HashMismatchException(String.format("data is longer than expected %d bytes", this.expectedSize));
+        }
+        
+        update(bytes, off, readLen);
+        this.readBytes += readLen;
+        
+        // callers reading exactly the chunk length never see EOF - verify
+        // before handing out the last bytes
+        if(this.expectedSize >= 0 && this.readBytes == this.expectedSize) {
+            verify();
+        }
+        return readLen;
+    }
+    
+    @Override
+    public synchronized long skip(long size) throws IOException {
+        // skipped bytes still have to be digested
+        if(size <= 0) {
+            return 0;
+        }
+        
+        byte[] buffer = new byte[(int) Math.min(size, DEFAULT_BLOCK_SIZE)];
+        long skipped = 0;
+        while(skipped < size) {
+            int readLen = read(buffer, 0, (int) Math.min(buffer.length, size - skipped));
+            if(readLen < 0) {
+                break;
+            }
+            skipped += readLen;
+        }
+        return skipped;
+    }
+    
+    private void update(byte[] bytes, int off, int len) throws IOException {
+        if(this.executor == null) {
+            long begin = System.nanoTime();
+            this.digest.update(bytes, off, len);
+            this.hashTimeNanos += System.nanoTime() - begin;
+            return;
+        }
+        
+        int copied = 0;
+        while(copied < len) {
+            if(this.stagingBlock == null) {
+                this.stagingBlock = new byte[this.blockSize];
+                this.stagingLength = 0;
+            }
+            
+            int toCopy = Math.min(len - copied, this.blockSize - this.stagingLength);
+            System.arraycopy(bytes, off + copied, this.stagingBlock, this.stagingLength, toCopy);
+            this.stagingLength += toCopy;
+            copied += toCopy;
+            
+            if(this.stagingLength == this.blockSize) {
+                submitStagingBlock();
+            }
+        }
+    }
+    
+    private void submitStagingBlock() throws IOException {
+        if(this.stagingBlock == null || this.stagingLength == 0) {
+            return;
+        }
+        
+        // bound the memory held by the pipeline
+        synchronized(this.pipelineLock) {
+            while(this.pendingBlockNum >= this.maxPendingBlocks) {
+                try {
+                    this.pipelineLock.wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            this.pendingBlockNum++;
+        }
+        
+        this.pendingBlocks.add(new DigestBlock(this.stagingBlock, this.stagingLength));
+        this.stagingBlock = null;
+        this.stagingLength = 0;
+        
+        scheduleDrain();
+    }
+    
+    private void scheduleDrain() throws IOException {
+        if(this.draining.compareAndSet(false, true)) {
+            try {
+                this.executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // executor is gone - digest on the reader thread
+                LOG.error("hash verify executor rejected a task", ex);
+                drain();
+            }
+        }
+    }
+    
+    private void drain() {
+        // blocks are only digested by the single thread holding the draining
+        // flag, which keeps the digest in stream order
+        while(true) {
+            DigestBlock block;
+            while((block = this.pendingBlocks.poll()) != null) {
+                long begin = System.nanoTime();
+                this.digest.update(block.data, 0, block.length);
+                this.hashTimeNanos += System.nanoTime() - begin;
+                
+                synchronized(this.pipelineLock) {
+                    if(this.pendingBlockNum > 0) {
+                        this.pendingBlockNum--;
+                    }
+                    this.pipelineLock.notifyAll();
+                }
+            }
+            
+            this.draining.set(false);
+            if(this.pendingBlocks.isEmpty() || !this.draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+    
+    private void waitPipeline() throws IOException {
+        synchronized(this.pipelineLock) {
+            while(this.pendingBlockNum > 0) {
+                try {
+                    this.pipelineLock.wait();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        }
+    }
+    
+    private void verify() throws IOException {
+        if(this.verified) {
+            return;
+        }
+        
+        if(this.executor != null) {
+            submitStagingBlock();
+            waitPipeline();
+        }
+        
+        byte[] actualHash = this.digest.digest();
+        boolean matched = MessageDigest.isEqual(this.expectedHash, actualHash);
+        
+        if(this.statistics != null) {
+            String value = String.format("%s,%d,%d,%s", getExpectedHash(), this.readBytes, this.hashTimeNanos, matched ? "OK" : "MISMATCH");
+            this.statistics.addEntry(new StatisticsEntry(value, DateTimeUtils.getTimestamp()));
+        }
+        
+        if(!matched) {
+            throw new HashMismatchException(String.format("hash mismatch - expected %s but got %s", getExpectedHash(), HexUtils.toHexString(actualHash).toLowerCase()));
+        }
+        
+        this.verified = true;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        this.pendingBlocks.clear();
+        synchronized(this.pipelineLock) {
+            this.pendingBlockNum = 0;
+            this.pipelineLock.notifyAll();
+        }
+        this.stagingBlock = null;
+        
+        super.close();
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
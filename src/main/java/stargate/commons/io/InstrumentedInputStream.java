@@ -0,0 +1,150 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Records bytes read, read calls and latency, seeks and their distances, and
+ * time to first byte of a seekable stream into its StreamMetrics. Recording
+ * is a few striped counter updates per call.
+ *
+ * @author iychoi
+ */
+public class InstrumentedInputStream extends AbstractSeekableInputStream {
+
+    private AbstractSeekableInputStream inputStream;
+    private StreamMetrics metrics;
+    private long openTime;
+    private volatile boolean firstByteRecorded;
+    
+    public InstrumentedInputStream(AbstractSeekableInputStream is) throws IOException {
+        this(is, StreamMetrics.getInstance(is == null ? InstrumentedInputStream.class : is.getClass()));
+    }
+    
+    public InstrumentedInputStream(AbstractSeekableInputStream is, StreamMetrics metrics) throws IOException {
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+        
+        if(metrics == null) {
+            throw new IllegalArgumentException("metrics is null");
+        }
+        
+        this.inputStream = is;
+        this.metrics = metrics;
+        this.openTime = System.nanoTime();
+        this.firstByteRecorded = false;
+    }
+    
+    public StreamMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    private void recordRead(long bytes, long begin) {
+        long end = System.nanoTime();
+        this.metrics.recordRead(bytes, end - begin);
+        
+        if(bytes > 0 && !this.firstByteRecorded) {
+            this.firstByteRecorded = true;
+            this.metrics.recordFirstByte(end - this.openTime);
+        }
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        long begin = System.nanoTime();
+        int r = this.inputStream.read();
+        recordRead(r >= 0 ? 1 : 0, begin);
+        return r;
+    }
+    
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        long begin = System.nanoTime();
+        int read = this.inputStream.read(bytes, off, len);
+        recordRead(read, begin);
+        return read;
+    }
+    
+    @Override
+    public boolean isForwardOnly() {
+        return this.inputStream.isForwardOnly();
+    }
+    
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        long begin = System.nanoTime();
+        int read = this.inputStream.read(position, dst);
+        recordRead(read, begin);
+        return read;
+    }
+    
+    @Override
+    public void readRanges(List<SeekableReadRange> ranges) throws IOException {
+        this.inputStream.readRanges(ranges);
+    }
+    
+    @Override
+    public synchronized long skip(long skip) throws IOException {
+        long skipped = this.inputStream.skip(skip);
+        if(skipped > 0) {
+            this.metrics.recordSeek(skipped);
+        }
+        return skipped;
+    }
+    
+    @Override
+    public synchronized long getOffset() throws IOException {
+        return this.inputStream.getOffset();
+    }
+    
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        long distance = offset - this.inputStream.getOffset();
+        this.inputStream.seek(offset);
+        if(distance != 0) {
+            this.metrics.recordSeek(distance);
+        }
+    }
+    
+    @Override
+    public synchronized int available() throws IOException {
+        return this.inputStream.available();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        this.inputStream.close();
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
@@ -0,0 +1,101 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size byte pages shared by segmented buffers, so pages of
+ * closed buffers are reused instead of reallocated.
+ *
+ * @author iychoi
+ */
+public class PagePool {
+
+    private static final int DEFAULT_PAGE_SIZE = 64 * 1024; // 64KB
+    private static final int DEFAULT_MAX_POOLED_PAGES = 1024; // 64MB
+    
+    private static PagePool instance;
+    
+    private int pageSize;
+    private int maxPooledPages;
+    private ConcurrentLinkedQueue<byte[]> freePages = new ConcurrentLinkedQueue<byte[]>();
+    private AtomicInteger freePageNum = new AtomicInteger(0);
+    
+    public static synchronized PagePool getInstance() {
+        if(instance == null) {
+            instance = new PagePool(DEFAULT_PAGE_SIZE, DEFAULT_MAX_POOLED_PAGES);
+        }
+        return instance;
+    }
+    
+    public PagePool(int pageSize, int maxPooledPages) {
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize is not positive");
+        }
+        
+        if(maxPooledPages < 0) {
+            throw new IllegalArgumentException("maxPooledPages is negative");
+        }
+        
+        this.pageSize = pageSize;
+        this.maxPooledPages = maxPooledPages;
+    }
+    
+    public int getPageSize() {
+        return this.pageSize;
+    }
+    
+    public int getMaxPooledPages() {
+        return this.maxPooledPages;
+    }
+    
+    public int getPooledPageNum() {
+        return this.freePageNum.get();
+    }
+    
+    public byte[] acquire() {
+        byte[] page = this.freePages.poll();
+        if(page != null) {
+            this.freePageNum.decrementAndGet();
+            return page;
+        }
+        return new byte[this.pageSize];
+    }
+    
+    public void release(byte[] page) {
+        if(page == null) {
+            throw new IllegalArgumentException("page is null");
+        }
+        
+        if(page.length != this.pageSize) {
+            throw new IllegalArgumentException("page does not belong to this pool");
+        }
+        
+        if(this.freePageNum.incrementAndGet() > this.maxPooledPages) {
+            this.freePageNum.decrementAndGet();
+            return;
+        }
+        this.freePages.add(page);
+    }
+    
+    public void clear() {
+        while(this.freePages.poll() != null) {
+            this.freePageNum.decrementAndGet();
+        }
+    }
+}
@@ -17,6 +17,8 @@ package stargate.commons.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -28,11 +30,13 @@ public class RAMBufferInputStream extends AbstractSeekableInputStream {
 
     private static final Log LOG = LogFactory.getLog(RAMBufferInputStream.class);
     
+    private static final int READ_WAIT_SIZE = 64 * 1024;
+    
     private int offset = 0;
     private int dataSize = 0;
     private int dataSizeFilled = 0;
     
-    private byte[] dataBuffer;
+    private volatile SegmentedBuffer dataBuffer;
     private RAMBufferInputStreamReader inputStreamReader;
     private Thread readThread;
     private InputStream inputStream;
@@ -50,10 +54,11 @@ public class RAMBufferInputStream extends AbstractSeekableInputStream {
     }
     
     private void initialize(InputStream is, int dataSize) throws IOException {
-        this.dataBuffer = new byte[dataSize];
+        // pages are allocated as the reader fills them
+        this.dataBuffer = new SegmentedBuffer(dataSize);
         this.inputStream = is;
 
-        this.inputStreamReader = new RAMBufferInputStreamReader(this, is, dataBuffer);
+        this.inputStreamReader = new RAMBufferInputStreamReader(this, is, this.dataBuffer);
         this.readThread = new Thread(this.inputStreamReader);
         this.readThread.start();
         
@@ -137,7 +142,7 @@ public class RAMBufferInputStream extends AbstractSeekableInputStream {
         
         waitData(this.offset + 1);
         
-        int ch = (int) this.dataBuffer[this.offset];
+        int ch = this.dataBuffer.get(this.offset);
         
         this.offset++;
         return ch;
@@ -165,12 +170,90 @@ public class RAMBufferInputStream extends AbstractSeekableInputStream {
         int toRead = Math.min(available, len);
         
         waitData(this.offset + toRead);
-        System.arraycopy(this.dataBuffer, this.offset, bytes, off, toRead);
+        this.dataBuffer.get(this.offset, bytes, off, toRead);
         
         this.offset += toRead;
         return toRead;
     }
     
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        // lock-free - the buffer only grows and filled bytes never change;
+        // the reference keeps pages from being recycled while copying
+        SegmentedBuffer buffer = this.dataBuffer;
+        RAMBufferInputStreamReader reader = this.inputStreamReader;
+        if(buffer == null || !buffer.tryRetain()) {
+            throw new IOException("stream is already closed");
+        }
+        
+        try {
+            if(position >= buffer.getCapacity()) {
+                return -1;
+            }
+            
+            int toRead = (int) Math.min(dst.remaining(), buffer.getCapacity() - position);
+            reader.waitUntil(position + toRead);
+            
+            buffer.get((int) position, dst, toRead);
+            return toRead;
+        } finally {
+            buffer.release();
+        }
+    }
+    
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(count < 0) {
+            throw new IllegalArgumentException("count is negative");
+        }
+        
+        if(target == null) {
+            throw new IllegalArgumentException("target is null");
+        }
+        
+        SegmentedBuffer buffer = this.dataBuffer;
+        RAMBufferInputStreamReader reader = this.inputStreamReader;
+        if(buffer == null || !buffer.tryRetain()) {
+            throw new IOException("stream is already closed");
+        }
+        
+        try {
+            if(position >= buffer.getCapacity()) {
+                return 0;
+            }
+            
+            // write straight out of the pages as data lands, no staging copy
+            long end = Math.min(buffer.getCapacity(), position + count);
+            long transferred = 0;
+            while(position + transferred < end) {
+                long filled = reader.getOffset();
+                if(filled <= position + transferred) {
+                    reader.waitUntil(Math.min(end, position + transferred + READ_WAIT_SIZE));
+                    continue;
+                }
+                
+                int toWrite = (int) (Math.min(filled, end) - position - transferred);
+                buffer.writeTo((int) (position + transferred), toWrite, target);
+                transferred += toWrite;
+            }
+            return transferred;
+        } finally {
+            buffer.release();
+        }
+    }
+    
     @Override
     public synchronized void close() {
         this.offset = 0;
@@ -194,6 +277,9 @@ public class RAMBufferInputStream extends AbstractSeekableInputStream {
             this.readThread = null;
         }
         
-        this.dataBuffer = null;
+        if(this.dataBuffer != null) {
+            this.dataBuffer.release();
+            this.dataBuffer = null;
+        }
     }
 }
@@ -17,7 +17,6 @@ package stargate.commons.io;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -29,16 +28,18 @@ public class RAMBufferInputStreamReader implements Runnable {
 
     private static final Log LOG = LogFactory.getLog(RAMBufferInputStreamReader.class);
     
+    private static final StreamMetrics METRICS = StreamMetrics.getInstance(RAMBufferInputStream.class);
+    
     private RAMBufferInputStream bufferInputStream;
     private InputStream inputStream;
-    private byte[] dataBuffer;
-    private int offset;
+    private SegmentedBuffer dataBuffer;
+    private volatile int offset;
     private Object notifyObject = new Object();
     private long notifySize;
-    private boolean done;
+    private volatile boolean done;
     private static int READ_LEN = 1024*64;
     
-    public RAMBufferInputStreamReader(RAMBufferInputStream bis, InputStream is, byte[] buffer) throws IOException {
+    public RAMBufferInputStreamReader(RAMBufferInputStream bis, InputStream is, SegmentedBuffer buffer) throws IOException {
         if(bis == null) {
             throw new IllegalArgumentException("bis is null");
         }
@@ -53,6 +54,9 @@ public class RAMBufferInputStreamReader implements Runnable {
         
         this.bufferInputStream = bis;
         this.inputStream = is;
+        // the writer holds its own reference so pages are not recycled
+        // under an in-flight read from the source
+        buffer.retain();
         this.dataBuffer = buffer;
         this.offset = 0;
         this.notifySize = 0;
@@ -68,6 +72,19 @@ public class RAMBufferInputStreamReader implements Runnable {
     }
     
     public void waitUntil(long size) throws IOException {
+        if(this.offset >= size) {
+            return;
+        }
+        
+        long waitBegin = System.nanoTime();
+        try {
+            waitUntilInternal(size);
+        } finally {
+            METRICS.recordWait(System.nanoTime() - waitBegin);
+        }
+    }
+    
+    private void waitUntilInternal(long size) throws IOException {
         synchronized(this.notifyObject) {
             if(this.offset >= size) {
                 return;
@@ -80,13 +97,14 @@ public class RAMBufferInputStreamReader implements Runnable {
         
         try {
             synchronized(this.notifyObject) {
-                this.notifySize = size;
-                
                 while(this.offset < size) {
+                    // several readers may wait at once, keep the nearest target
+                    if(this.notifySize < 0 || size < this.notifySize) {
+                        this.notifySize = size;
+                    }
                     this.notifyObject.wait(3000);
                     
                     if(this.offset >= size) {
-                        this.notifySize = -1;
                         return;
                     }
 
@@ -113,7 +131,7 @@ public class RAMBufferInputStreamReader implements Runnable {
         
         int readLen;
         try {
-            while((readLen = this.inputStream.read(this.dataBuffer, this.offset, Math.min(this.dataBuffer.length - this.offset, READ_LEN))) >= 0) {
+            while(this.offset < this.dataBuffer.getCapacity() && (readLen = this.dataBuffer.readFrom(this.inputStream, this.offset, READ_LEN)) >= 0) {
                 this.offset += readLen;
                 this.bufferInputStream.notifyBufferWrite(readLen);
                 
@@ -124,9 +142,6 @@ public class RAMBufferInputStreamReader implements Runnable {
                     }
                 }
                 
-                if(this.offset >= this.dataBuffer.length) {
-                    break;
-                }
             }
         } catch(Exception ex) {
             LOG.error(ex);
@@ -137,7 +152,11 @@ public class RAMBufferInputStreamReader implements Runnable {
             } catch(Exception e) {
             }
             
-            this.done = true;
+            this.dataBuffer.release();
+            synchronized(this.notifyObject) {
+                this.done = true;
+                this.notifyObject.notifyAll();
+            }
         }
     }
 }
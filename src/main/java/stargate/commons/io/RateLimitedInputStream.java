@@ -0,0 +1,181 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Throttles a transport or buffer stream against a set of token buckets.
+ * Bytes are charged after they are read and the reader is parked until the
+ * debt is paid, so the hot path is a CAS per bucket and no locks.
+ *
+ * @author iychoi
+ */
+public class RateLimitedInputStream extends AbstractSeekableInputStream {
+
+    private InputStream inputStream;
+    private AbstractSeekableInputStream seekableInputStream;
+    private TokenBucket[] buckets;
+    private long offset;
+    
+    public RateLimitedInputStream(InputStream is, TrafficClass trafficClass) throws IOException {
+        this(is, TokenBucketRegistry.getInstance().getBuckets(trafficClass, null, null));
+    }
+    
+    public RateLimitedInputStream(InputStream is, TrafficClass trafficClass, String clusterName, String nodeName) throws IOException {
+        this(is, TokenBucketRegistry.getInstance().getBuckets(trafficClass, clusterName, nodeName));
+    }
+    
+    public RateLimitedInputStream(InputStream is, Collection<TokenBucket> buckets) throws IOException {
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+        
+        if(buckets == null) {
+            throw new IllegalArgumentException("buckets is null");
+        }
+        
+        this.inputStream = is;
+        if(is instanceof AbstractSeekableInputStream) {
+            this.seekableInputStream = (AbstractSeekableInputStream) is;
+        }
+        
+        List<TokenBucket> bucketList = new ArrayList<TokenBucket>(buckets);
+        this.buckets = bucketList.toArray(new TokenBucket[bucketList.size()]);
+        this.offset = 0;
+    }
+    
+    private void throttle(long bytes) throws IOException {
+        if(bytes <= 0) {
+            return;
+        }
+        
+        long waitNanos = 0;
+        for(TokenBucket bucket : this.buckets) {
+            waitNanos = Math.max(waitNanos, bucket.reserve(bytes));
+        }
+        TokenBucket.park(waitNanos);
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        int r = this.inputStream.read();
+        if(r >= 0) {
+            this.offset++;
+            throttle(1);
+        }
+        return r;
+    }
+    
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        int read = this.inputStream.read(bytes, off, len);
+        if(read > 0) {
+            this.offset += read;
+            throttle(read);
+        }
+        return read;
+    }
+    
+    @Override
+    public boolean isForwardOnly() {
+        if(this.seekableInputStream == null) {
+            return true;
+        }
+        return this.seekableInputStream.isForwardOnly();
+    }
+    
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(this.seekableInputStream == null) {
+            // a transport stream only goes forward, read() throttles it
+            return readForward(position, dst);
+        }
+        
+        int read = this.seekableInputStream.read(position, dst);
+        throttle(read);
+        return read;
+    }
+    
+    @Override
+    public synchronized long skip(long skip) throws IOException {
+        // skipped bytes of a transport stream still cross the link
+        long skipped = this.inputStream.skip(skip);
+        if(skipped > 0) {
+            this.offset += skipped;
+            if(this.seekableInputStream == null) {
+                throttle(skipped);
+            }
+        }
+        return skipped;
+    }
+    
+    @Override
+    public synchronized long getOffset() throws IOException {
+        if(this.seekableInputStream != null) {
+            return this.seekableInputStream.getOffset();
+        }
+        return this.offset;
+    }
+    
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if(this.seekableInputStream != null) {
+            this.seekableInputStream.seek(offset);
+            return;
+        }
+        
+        if(this.offset <= offset) {
+            skip(offset - this.offset);
+        } else {
+            throw new UnsupportedOperationException("Seek backword is not supported");
+        }
+    }
+    
+    @Override
+    public synchronized int available() throws IOException {
+        return this.inputStream.available();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if(this.inputStream != null) {
+            this.inputStream.close();
+            this.inputStream = null;
+            this.seekableInputStream = null;
+        }
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
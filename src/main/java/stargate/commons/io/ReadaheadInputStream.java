@@ -0,0 +1,614 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Wraps a seekable stream and prefetches blocks ahead of the cursor on a
+ * background pool once sequential access is detected. The window doubles on
+ * every fully consumed block and is dropped on a random seek.
+ * 
+ * Forward-only sources cannot serve blocks out of order, so their prefetch
+ * reads (and the reads the cursor issues itself) run one at a time in
+ * stream order.
+ *
+ * @author iychoi
+ */
+public class ReadaheadInputStream extends AbstractSeekableInputStream {
+
+    private static final Log LOG = LogFactory.getLog(ReadaheadInputStream.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024; // 256KB
+    public static final int DEFAULT_MAX_WINDOW_BLOCKS = 16;
+    public static final int DEFAULT_MAX_INFLIGHT_BLOCKS = 4;
+    private static final int SEQUENTIAL_READ_THRESHOLD = 2;
+
+    private static ExecutorService defaultExecutor;
+
+    private AbstractSeekableInputStream inputStream;
+    private ExecutorService executor;
+    private SerialExecutor serialExecutor;
+    private int blockSize;
+    private int maxWindowBlocks;
+    private int maxInflightBlocks;
+
+    private boolean closed;
+    private long offset;
+    private long lastReadEnd;
+    private int sequentialReads;
+    private int windowBlocks;
+    private long nextPrefetchOffset;
+    private boolean prefetchEOF;
+    private LinkedList<ReadaheadBlock> window = new LinkedList<ReadaheadBlock>();
+
+    private AtomicLong hitCount = new AtomicLong(0);
+    private AtomicLong missCount = new AtomicLong(0);
+    private AtomicLong stallCount = new AtomicLong(0);
+    private AtomicLong prefetchedBytes = new AtomicLong(0);
+    private AtomicLong discardedBytes = new AtomicLong(0);
+
+    private static class ReadaheadBlock {
+        private long offset;
+        private Future<ReadaheadData> future;
+        private volatile boolean dropped;
+        private AtomicBoolean discarded = new AtomicBoolean(false);
+
+        ReadaheadBlock(long offset) {
+            this.offset = offset;
+        }
+    }
+
+    private static class ReadaheadData {
+        private byte[] buffer;
+        private int length;
+
+        ReadaheadData(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Runs tasks on the given executor one at a time in submission order.
+     */
+    private static class SerialExecutor implements Executor {
+        private Executor executor;
+        private LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private boolean running;
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+            this.running = false;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable r) {
+            this.tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+
+            if(!this.running) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            Runnable next = this.tasks.poll();
+            if(next != null) {
+                this.running = true;
+                this.executor.execute(next);
+            } else {
+                this.running = false;
+            }
+        }
+    }
+
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            int poolSize = Math.max(2, Runtime.getRuntime().availableProcessors());
+            defaultExecutor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "readahead-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    public ReadaheadInputStream(AbstractSeekableInputStream is) throws IOException {
+        this(is, getDefaultExecutor(), DEFAULT_BLOCK_SIZE, DEFAULT_MAX_WINDOW_BLOCKS, DEFAULT_MAX_INFLIGHT_BLOCKS);
+    }
+
+    public ReadaheadInputStream(AbstractSeekableInputStream is, ExecutorService executor, int blockSize, int maxWindowBlocks, int maxInflightBlocks) throws IOException {
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+
+        if(executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+
+        if(blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize is not positive");
+        }
+
+        if(maxWindowBlocks <= 0) {
+            throw new IllegalArgumentException("maxWindowBlocks is not positive");
+        }
+
+        if(maxInflightBlocks <= 0) {
+            throw new IllegalArgumentException("maxInflightBlocks is not positive");
+        }
+
+        this.inputStream = is;
+        this.executor = executor;
+        if(is.isForwardOnly()) {
+            this.serialExecutor = new SerialExecutor(executor);
+        }
+        this.blockSize = blockSize;
+        this.maxWindowBlocks = maxWindowBlocks;
+        this.maxInflightBlocks = maxInflightBlocks;
+
+        this.closed = false;
+        this.offset = is.getOffset();
+        this.lastReadEnd = -1;
+        this.sequentialReads = 0;
+        this.windowBlocks = 0;
+        this.nextPrefetchOffset = 0;
+        this.prefetchEOF = false;
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    public int getMaxWindowBlocks() {
+        return this.maxWindowBlocks;
+    }
+
+    public int getMaxInflightBlocks() {
+        return this.maxInflightBlocks;
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getStallCount() {
+        return this.stallCount.get();
+    }
+
+    public double getHitRate() {
+        long hits = this.hitCount.get();
+        long total = hits + this.missCount.get();
+        if(total == 0) {
+            return 0;
+        }
+        return (double) hits / total;
+    }
+
+    public long getPrefetchedBytes() {
+        return this.prefetchedBytes.get();
+    }
+
+    public long getDiscardedBytes() {
+        return this.discardedBytes.get();
+    }
+
+    private int readUnderlying(long position, byte[] bytes, int off, int len) throws IOException {
+        // positional reads let prefetch tasks run in parallel on sources
+        // that support lock-free positional access
+        int readLen = this.inputStream.readFully(position, ByteBuffer.wrap(bytes, off, len));
+        if(readLen == 0 && len > 0) {
+            return -1;
+        }
+        return readLen;
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        if(this.serialExecutor == null) {
+            return this.executor.submit(task);
+        }
+
+        FutureTask<T> future = new FutureTask<T>(task);
+        this.serialExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * Runs a read of the cursor itself. On a forward-only source it is
+     * queued behind the prefetch reads already running so the source is
+     * never asked to go back.
+     */
+    private <T> T runOnSource(Callable<T> task) throws IOException {
+        if(this.serialExecutor == null) {
+            try {
+                return task.call();
+            } catch (IOException ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException(ex);
+            }
+        }
+        return await(submit(task));
+    }
+
+    private ReadaheadData getBlockData(ReadaheadBlock block) throws IOException {
+        if(!block.future.isDone()) {
+            this.stallCount.incrementAndGet();
+        }
+        return await(block.future);
+    }
+
+    private <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void discardBlock(ReadaheadBlock block, int length) {
+        if(block.discarded.compareAndSet(false, true)) {
+            this.discardedBytes.addAndGet(length);
+        }
+    }
+
+    private void dropBlock(ReadaheadBlock block) {
+        // never interrupt - an interrupt closes FileChannels under the reader.
+        // never wait either, a running block is counted when it finishes
+        block.dropped = true;
+        if(!block.future.cancel(false) && block.future.isDone()) {
+            try {
+                discardBlock(block, block.future.get().length);
+            } catch (Exception ex) {
+            }
+        }
+    }
+
+    private void clearWindow() {
+        for(ReadaheadBlock block : this.window) {
+            dropBlock(block);
+        }
+        this.window.clear();
+        this.windowBlocks = 0;
+        this.prefetchEOF = false;
+    }
+
+    private void startWindow(long offset) {
+        clearWindow();
+        this.windowBlocks = 1;
+        this.nextPrefetchOffset = offset;
+        fillWindow();
+    }
+
+    private void fillWindow() {
+        if(this.windowBlocks <= 0) {
+            return;
+        }
+
+        int inflight = 0;
+        for(ReadaheadBlock block : this.window) {
+            if(!block.future.isDone()) {
+                inflight++;
+            }
+        }
+
+        while(!this.prefetchEOF && this.window.size() < this.windowBlocks && inflight < this.maxInflightBlocks) {
+            final ReadaheadBlock block = new ReadaheadBlock(this.nextPrefetchOffset);
+            block.future = submit(new Callable<ReadaheadData>() {
+                @Override
+                public ReadaheadData call() throws Exception {
+                    byte[] buffer = new byte[blockSize];
+                    int readLen = readUnderlying(block.offset, buffer, 0, blockSize);
+                    if(readLen < 0) {
+                        readLen = 0;
+                    }
+                    prefetchedBytes.addAndGet(readLen);
+                    if(block.dropped) {
+                        discardBlock(block, readLen);
+                    }
+                    return new ReadaheadData(buffer, readLen);
+                }
+            });
+
+            this.window.add(block);
+            this.nextPrefetchOffset += this.blockSize;
+            inflight++;
+        }
+    }
+
+    private boolean isInWindow(long offset) {
+        if(this.window.isEmpty()) {
+            return false;
+        }
+
+        long windowStart = this.window.getFirst().offset;
+        return windowStart <= offset && offset < this.nextPrefetchOffset;
+    }
+
+    private void releaseBlocksBehind(long offset) {
+        while(!this.window.isEmpty()) {
+            ReadaheadBlock head = this.window.getFirst();
+            if(head.offset + this.blockSize > offset) {
+                break;
+            }
+
+            // jumped over by a forward seek inside the window
+            this.window.removeFirst();
+            dropBlock(head);
+        }
+    }
+
+    private void trackSequential(long readOffset, int readLen) {
+        if(readOffset == this.lastReadEnd) {
+            this.sequentialReads++;
+        } else {
+            this.sequentialReads = 1;
+        }
+        this.lastReadEnd = readOffset + readLen;
+    }
+
+    @Override
+    public boolean isForwardOnly() {
+        return this.inputStream.isForwardOnly();
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(isForwardOnly()) {
+            return readForward(position, dst);
+        }
+        return super.read(position, dst);
+    }
+
+    @Override
+    public synchronized long getOffset() throws IOException {
+        return this.offset;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if(!this.window.isEmpty()) {
+            ReadaheadBlock head = this.window.getFirst();
+            if(head.future.isDone() && head.offset <= this.offset) {
+                ReadaheadData data = getBlockData(head);
+                return (int) Math.max(0, head.offset + data.length - this.offset);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if(offset < 0) {
+            throw new IOException("cannot seek to negative offset : " + offset);
+        }
+
+        if(this.offset == offset) {
+            return;
+        }
+
+        if(isInWindow(offset) && offset > this.offset) {
+            // short forward jump inside the window, keep prefetched data
+            this.offset = offset;
+            this.lastReadEnd = offset;
+            return;
+        }
+
+        // random access
+        clearWindow();
+        this.sequentialReads = 0;
+        this.lastReadEnd = -1;
+        this.offset = offset;
+    }
+
+    @Override
+    public synchronized long skip(long size) throws IOException {
+        if(size <= 0) {
+            return 0;
+        }
+
+        if(isInWindow(this.offset + size)) {
+            seek(this.offset + size);
+            return size;
+        }
+
+        clearWindow();
+        final long skipOffset = this.offset;
+        final long skipSize = size;
+        long skipped = runOnSource(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                synchronized(inputStream) {
+                    if(inputStream.getOffset() != skipOffset) {
+                        inputStream.seek(skipOffset);
+                    }
+                    return inputStream.skip(skipSize);
+                }
+            }
+        });
+
+        if(skipped > 0) {
+            this.offset += skipped;
+        }
+        this.lastReadEnd = -1;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] b = new byte[1];
+        int readLen = read(b, 0, 1);
+        if(readLen <= 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+
+        if(off < 0) {
+            throw new IllegalArgumentException("off is negative");
+        }
+
+        if(len < 0) {
+            throw new IllegalArgumentException("len is negative");
+        }
+
+        if(this.closed) {
+            throw new IOException("stream is already closed");
+        }
+
+        if(len == 0) {
+            return 0;
+        }
+
+        releaseBlocksBehind(this.offset);
+
+        if(isInWindow(this.offset)) {
+            ReadaheadBlock head = this.window.getFirst();
+            ReadaheadData data = getBlockData(head);
+
+            long blockEnd = head.offset + data.length;
+            if(this.offset >= blockEnd) {
+                // prefetch hit the end of the stream
+                this.prefetchEOF = true;
+                return -1;
+            }
+
+            int inBlock = (int) (this.offset - head.offset);
+            int toCopy = (int) Math.min(len, blockEnd - this.offset);
+            System.arraycopy(data.buffer, inBlock, bytes, off, toCopy);
+
+            this.hitCount.incrementAndGet();
+            trackSequential(this.offset, toCopy);
+            this.offset += toCopy;
+
+            if(data.length < this.blockSize) {
+                this.prefetchEOF = true;
+            }
+
+            if(this.offset >= blockEnd) {
+                this.window.removeFirst();
+                this.windowBlocks = Math.min(this.windowBlocks * 2, this.maxWindowBlocks);
+            }
+
+            fillWindow();
+            return toCopy;
+        }
+
+        // window miss
+        this.missCount.incrementAndGet();
+        if(!this.window.isEmpty()) {
+            clearWindow();
+        }
+
+        final long readOffset = this.offset;
+        final byte[] readBytes = bytes;
+        final int readOff = off;
+        final int readLength = len;
+        int readLen = runOnSource(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return readUnderlying(readOffset, readBytes, readOff, readLength);
+            }
+        });
+        if(readLen < 0) {
+            return -1;
+        }
+
+        trackSequential(readOffset, readLen);
+        this.offset += readLen;
+
+        if(this.sequentialReads >= SEQUENTIAL_READ_THRESHOLD) {
+            startWindow(this.offset);
+        }
+        return readLen;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        clearWindow();
+
+        synchronized(this.inputStream) {
+            this.inputStream.close();
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
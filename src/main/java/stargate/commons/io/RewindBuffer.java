@@ -0,0 +1,126 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+/**
+ * Fixed-size ring that keeps the most recently consumed bytes of a stream so
+ * an unrewindable stream can step back a short distance without buffering
+ * the whole data. Not thread-safe; the owning stream synchronizes access.
+ *
+ * @author iychoi
+ */
+public class RewindBuffer {
+
+    private byte[] buffer;
+    private int capacity;
+    private int head; // next write index
+    private int length;
+    
+    public RewindBuffer(int capacity) {
+        if(capacity < 0) {
+            throw new IllegalArgumentException("capacity is negative");
+        }
+        
+        this.capacity = capacity;
+        this.buffer = new byte[capacity];
+        this.head = 0;
+        this.length = 0;
+    }
+    
+    public int getCapacity() {
+        return this.capacity;
+    }
+    
+    public int getLength() {
+        return this.length;
+    }
+    
+    public void append(int b) {
+        if(this.capacity == 0) {
+            return;
+        }
+        
+        this.buffer[this.head] = (byte) b;
+        this.head = (this.head + 1) % this.capacity;
+        this.length = Math.min(this.capacity, this.length + 1);
+    }
+    
+    public void append(byte[] bytes, int off, int len) {
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+        
+        if(this.capacity == 0 || len <= 0) {
+            return;
+        }
+        
+        if(len >= this.capacity) {
+            // only the tail fits
+            System.arraycopy(bytes, off + len - this.capacity, this.buffer, 0, this.capacity);
+            this.head = 0;
+            this.length = this.capacity;
+            return;
+        }
+        
+        int first = Math.min(len, this.capacity - this.head);
+        System.arraycopy(bytes, off, this.buffer, this.head, first);
+        if(first < len) {
+            System.arraycopy(bytes, off + first, this.buffer, 0, len - first);
+        }
+        
+        this.head = (this.head + len) % this.capacity;
+        this.length = Math.min(this.capacity, this.length + len);
+    }
+    
+    /**
+     * Copies bytes starting at distance bytes before the end of the ring.
+     * Returns the number of bytes copied, at most min(len, distance).
+     */
+    public int read(int distance, byte[] bytes, int off, int len) {
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+        
+        if(distance <= 0 || distance > this.length) {
+            throw new IllegalArgumentException(String.format("distance %d is out of the rewind window (%d)", distance, this.length));
+        }
+        
+        int toCopy = Math.min(len, distance);
+        int start = (this.head - distance + this.capacity) % this.capacity;
+        int first = Math.min(toCopy, this.capacity - start);
+        System.arraycopy(this.buffer, start, bytes, off, first);
+        if(first < toCopy) {
+            System.arraycopy(this.buffer, 0, bytes, off + first, toCopy - first);
+        }
+        return toCopy;
+    }
+    
+    /**
+     * Returns the byte at distance bytes before the end of the ring.
+     */
+    public int read(int distance) {
+        if(distance <= 0 || distance > this.length) {
+            throw new IllegalArgumentException(String.format("distance %d is out of the rewind window (%d)", distance, this.length));
+        }
+        
+        return this.buffer[(this.head - distance + this.capacity) % this.capacity] & 0xff;
+    }
+    
+    public void clear() {
+        this.head = 0;
+        this.length = 0;
+    }
+}
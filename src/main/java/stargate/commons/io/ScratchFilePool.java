@@ -0,0 +1,311 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.utils.TempFileUtils;
+
+/**
+ * Recycles scratch files under a managed directory so disk buffers do not
+ * create (and register deleteOnExit for) a fresh temp file per stream.
+ *
+ * Each pool works in its own session directory, locked for the life of the
+ * process. Session directories whose lock is free belong to a process that
+ * is gone and are swept when a pool starts. One shutdown hook removes the
+ * files of every pool, in use or not.
+ *
+ * @author iychoi
+ */
+public class ScratchFilePool {
+
+    private static final Log LOG = LogFactory.getLog(ScratchFilePool.class);
+
+    private static final String SCRATCH_DIR_NAME = "scratch";
+    private static final String SESSION_DIR_PREFIX = "session-";
+    private static final String LOCK_FILE_NAME = "session.lock";
+    private static final String SCRATCH_FILE_PREFIX = "BUFFIS";
+    private static final String SCRATCH_FILE_EXTENSION = ".SGFS";
+    private static final int DEFAULT_MAX_POOLED_FILES = 64;
+    // a session dir without a lock file is only swept once it is this old,
+    // its owner may still be starting up
+    private static final long UNLOCKED_SESSION_GRACE_MSEC = 60 * 60 * 1000;
+
+    private static ScratchFilePool instance;
+    private static CopyOnWriteArrayList<ScratchFilePool> pools = new CopyOnWriteArrayList<ScratchFilePool>();
+    private static boolean shutdownHookAdded = false;
+
+    private File scratchDir;
+    private File sessionDir;
+    private RandomAccessFile lockFile;
+    private FileLock sessionLock;
+    private int maxPooledFiles;
+    private ConcurrentLinkedQueue<File> freeFiles = new ConcurrentLinkedQueue<File>();
+    private AtomicInteger freeFileNum = new AtomicInteger(0);
+    private ConcurrentHashMap<File, Boolean> inUseFiles = new ConcurrentHashMap<File, Boolean>();
+
+    public static synchronized ScratchFilePool getInstance() throws IOException {
+        if(instance == null) {
+            if(!TempFileUtils.makeTempRoot()) {
+                throw new IOException("Failed to create a temp root dir");
+            }
+
+            instance = new ScratchFilePool(new File(TempFileUtils.getTempRoot(), SCRATCH_DIR_NAME), DEFAULT_MAX_POOLED_FILES);
+        }
+        return instance;
+    }
+
+    private static synchronized void register(ScratchFilePool pool) {
+        pools.add(pool);
+
+        if(!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(ScratchFilePool pool : pools) {
+                        pool.close();
+                    }
+                }
+            }, "scratch-file-pool-cleanup"));
+            shutdownHookAdded = true;
+        }
+    }
+
+    public ScratchFilePool(File scratchDir, int maxPooledFiles) throws IOException {
+        if(scratchDir == null) {
+            throw new IllegalArgumentException("scratchDir is null");
+        }
+
+        if(maxPooledFiles < 0) {
+            throw new IllegalArgumentException("maxPooledFiles is negative");
+        }
+
+        if(!scratchDir.exists()) {
+            if(!scratchDir.mkdirs() && !scratchDir.exists()) {
+                throw new IOException(String.format("Failed to create a scratch dir - %s", scratchDir.getAbsolutePath()));
+            }
+            scratchDir.setReadable(true, false);
+            scratchDir.setWritable(true, false);
+        }
+
+        this.scratchDir = scratchDir;
+        this.maxPooledFiles = maxPooledFiles;
+
+        sweepStaleSessions();
+        openSession();
+        register(this);
+    }
+
+    private void openSession() throws IOException {
+        File dir = File.createTempFile(SESSION_DIR_PREFIX, "", this.scratchDir);
+        if(!dir.delete() || !dir.mkdir()) {
+            throw new IOException(String.format("Failed to create a scratch session dir - %s", dir.getAbsolutePath()));
+        }
+        dir.setReadable(true, false);
+        dir.setWritable(true, false);
+
+        this.lockFile = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw");
+        this.sessionLock = this.lockFile.getChannel().tryLock();
+        if(this.sessionLock == null) {
+            this.lockFile.close();
+            throw new IOException(String.format("Failed to lock a scratch session dir - %s", dir.getAbsolutePath()));
+        }
+        this.sessionDir = dir;
+    }
+
+    /**
+     * Removes session dirs left by processes that exited without cleanup.
+     */
+    private void sweepStaleSessions() {
+        File[] sessions = this.scratchDir.listFiles();
+        if(sessions == null) {
+            return;
+        }
+
+        for(File session : sessions) {
+            if(!session.isDirectory() || !session.getName().startsWith(SESSION_DIR_PREFIX)) {
+                continue;
+            }
+
+            File lock = new File(session, LOCK_FILE_NAME);
+            if(!lock.exists()) {
+                if(System.currentTimeMillis() - session.lastModified() > UNLOCKED_SESSION_GRACE_MSEC) {
+                    deleteDir(session);
+                }
+                continue;
+            }
+
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(lock, "rw");
+                FileLock fileLock = raf.getChannel().tryLock();
+                if(fileLock != null) {
+                    // nobody holds the session, its owner is gone
+                    LOG.info(String.format("Sweeping a stale scratch session - %s", session.getAbsolutePath()));
+                    deleteDir(session);
+                    fileLock.release();
+                }
+            } catch (OverlappingFileLockException ex) {
+                // held by another pool of this process
+            } catch (IOException ex) {
+                LOG.error(String.format("Failed to check a scratch session - %s", session.getAbsolutePath()), ex);
+            } finally {
+                if(raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException ex) {
+                    }
+                }
+            }
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public File getScratchDir() {
+        return this.scratchDir;
+    }
+
+    public File getSessionDir() {
+        return this.sessionDir;
+    }
+
+    public int getMaxPooledFiles() {
+        return this.maxPooledFiles;
+    }
+
+    public int getPooledFileNum() {
+        return this.freeFileNum.get();
+    }
+
+    public int getInUseFileNum() {
+        return this.inUseFiles.size();
+    }
+
+    public File acquire() throws IOException {
+        File f = this.freeFiles.poll();
+        if(f != null) {
+            this.freeFileNum.decrementAndGet();
+            if(!f.exists()) {
+                f = null;
+            }
+        }
+
+        if(f == null) {
+            f = File.createTempFile(SCRATCH_FILE_PREFIX, SCRATCH_FILE_EXTENSION, this.sessionDir);
+            f.setReadable(true, false);
+            f.setWritable(true, false);
+        }
+
+        this.inUseFiles.put(f, Boolean.TRUE);
+        return f;
+    }
+
+    public void release(File f) {
+        if(f == null) {
+            throw new IllegalArgumentException("f is null");
+        }
+
+        this.inUseFiles.remove(f);
+
+        if(this.freeFileNum.incrementAndGet() > this.maxPooledFiles) {
+            this.freeFileNum.decrementAndGet();
+            f.delete();
+            return;
+        }
+
+        try {
+            // drop data blocks but keep the inode for the next user
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(0);
+            } finally {
+                raf.close();
+            }
+
+            this.freeFiles.add(f);
+        } catch (IOException ex) {
+            LOG.error(String.format("Failed to recycle a scratch file - %s", f.getAbsolutePath()), ex);
+            this.freeFileNum.decrementAndGet();
+            f.delete();
+        }
+    }
+
+    /**
+     * Gives up a file that may still be memory-mapped instead of recycling
+     * it. Truncating a mapped file makes later accesses through the mapping
+     * fault, while an unlinked file stays valid until the mapping is gone.
+     */
+    public void discard(File f) {
+        if(f == null) {
+            throw new IllegalArgumentException("f is null");
+        }
+        
+        this.inUseFiles.remove(f);
+        f.delete();
+    }
+    
+    /**
+     * Deletes the pooled free files.
+     */
+    public void clear() {
+        File f;
+        while((f = this.freeFiles.poll()) != null) {
+            this.freeFileNum.decrementAndGet();
+            f.delete();
+        }
+    }
+
+    /**
+     * Deletes every file of the pool including the ones in use, and the
+     * session dir. Called at shutdown.
+     */
+    void close() {
+        clear();
+
+        for(File f : this.inUseFiles.keySet()) {
+            f.delete();
+        }
+        this.inUseFiles.clear();
+
+        try {
+            if(this.sessionLock != null) {
+                this.sessionLock.release();
+            }
+            this.lockFile.close();
+        } catch (IOException ex) {
+        }
+
+        deleteDir(this.sessionDir);
+    }
+}
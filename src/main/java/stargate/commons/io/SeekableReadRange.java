@@ -0,0 +1,81 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ *
+ * @author iychoi
+ */
+public class SeekableReadRange {
+
+    public static final Comparator<SeekableReadRange> POSITION_COMPARATOR = new Comparator<SeekableReadRange>() {
+        @Override
+        public int compare(SeekableReadRange o1, SeekableReadRange o2) {
+            if(o1.position < o2.position) {
+                return -1;
+            } else if(o1.position > o2.position) {
+                return 1;
+            }
+            return 0;
+        }
+    };
+    
+    private long position;
+    private int length;
+    private ByteBuffer data;
+    
+    public SeekableReadRange(long position, int length) {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(length < 0) {
+            throw new IllegalArgumentException("length is negative");
+        }
+        
+        this.position = position;
+        this.length = length;
+        this.data = null;
+    }
+    
+    public long getPosition() {
+        return this.position;
+    }
+    
+    public int getLength() {
+        return this.length;
+    }
+    
+    public synchronized ByteBuffer getData() {
+        return this.data;
+    }
+    
+    public synchronized void setData(ByteBuffer data) {
+        this.data = data;
+    }
+    
+    public synchronized boolean isDone() {
+        return this.data != null;
+    }
+    
+    @Override
+    public String toString() {
+        return "SeekableReadRange{" + "position=" + position + ", length=" + length + '}';
+    }
+}
@@ -0,0 +1,212 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffer of a fixed capacity made of pool pages that are allocated only as
+ * the writer reaches them. Filled bytes never change, so readers copy
+ * without locks; pages go back to the pool when the last holder releases
+ * the buffer, so lock-free readers retain it while they copy.
+ *
+ * @author iychoi
+ */
+public class SegmentedBuffer {
+
+    private PagePool pagePool;
+    private int capacity;
+    private int pageSize;
+    private AtomicReferenceArray<byte[]> pages;
+    private AtomicInteger allocatedPageNum = new AtomicInteger(0);
+    private AtomicInteger refCount = new AtomicInteger(1);
+    private volatile boolean freed;
+    
+    public SegmentedBuffer(int capacity) {
+        this(capacity, PagePool.getInstance());
+    }
+    
+    public SegmentedBuffer(int capacity, PagePool pagePool) {
+        if(capacity < 0) {
+            throw new IllegalArgumentException("capacity is negative");
+        }
+        
+        if(pagePool == null) {
+            throw new IllegalArgumentException("pagePool is null");
+        }
+        
+        this.pagePool = pagePool;
+        this.capacity = capacity;
+        this.pageSize = pagePool.getPageSize();
+        
+        int pageNum = (int) (((long) capacity + this.pageSize - 1) / this.pageSize);
+        this.pages = new AtomicReferenceArray<byte[]>(pageNum);
+        this.freed = false;
+    }
+    
+    public int getCapacity() {
+        return this.capacity;
+    }
+    
+    public int getPageSize() {
+        return this.pageSize;
+    }
+    
+    public int getAllocatedPageNum() {
+        return this.allocatedPageNum.get();
+    }
+    
+    public boolean isFreed() {
+        return this.freed;
+    }
+    
+    public boolean tryRetain() {
+        while(true) {
+            int count = this.refCount.get();
+            if(count <= 0) {
+                return false;
+            }
+            
+            if(this.refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+    
+    public void retain() {
+        if(!tryRetain()) {
+            throw new IllegalStateException("buffer is already freed");
+        }
+    }
+    
+    public void release() {
+        if(this.refCount.decrementAndGet() != 0) {
+            return;
+        }
+        
+        // flag first so readers that copied from a page about to be reused
+        // see it after their copy
+        this.freed = true;
+        for(int i=0;i<this.pages.length();i++) {
+            byte[] page = this.pages.getAndSet(i, null);
+            if(page != null) {
+                this.pagePool.release(page);
+            }
+        }
+        this.allocatedPageNum.set(0);
+    }
+    
+    private byte[] getPage(int pageNo, boolean allocate) throws IOException {
+        byte[] page = this.pages.get(pageNo);
+        if(page == null) {
+            if(this.freed) {
+                throw new IOException("buffer is already freed");
+            }
+            
+            if(!allocate) {
+                throw new IOException(String.format("page %d is not filled", pageNo));
+            }
+            
+            page = this.pagePool.acquire();
+            if(!this.pages.compareAndSet(pageNo, null, page)) {
+                this.pagePool.release(page);
+                page = this.pages.get(pageNo);
+            } else {
+                this.allocatedPageNum.incrementAndGet();
+            }
+        }
+        return page;
+    }
+    
+    /**
+     * Reads up to len bytes from the input stream into the buffer at the
+     * given position, within a single page. Used by the single writer.
+     */
+    public int readFrom(InputStream is, int position, int len) throws IOException {
+        if(is == null) {
+            throw new IllegalArgumentException("is is null");
+        }
+        
+        if(position < 0 || position >= this.capacity) {
+            throw new IllegalArgumentException("position is out of range");
+        }
+        
+        int pageNo = position / this.pageSize;
+        int positionInPage = position % this.pageSize;
+        int toRead = Math.min(len, Math.min(this.pageSize - positionInPage, this.capacity - position));
+        
+        byte[] page = getPage(pageNo, true);
+        return is.read(page, positionInPage, toRead);
+    }
+    
+    public void get(int position, byte[] bytes, int off, int len) throws IOException {
+        int copied = 0;
+        while(copied < len) {
+            int pos = position + copied;
+            int pageNo = pos / this.pageSize;
+            int positionInPage = pos % this.pageSize;
+            int toCopy = Math.min(len - copied, this.pageSize - positionInPage);
+            
+            byte[] page = getPage(pageNo, false);
+            System.arraycopy(page, positionInPage, bytes, off + copied, toCopy);
+            copied += toCopy;
+        }
+    }
+    
+    public int get(int position) throws IOException {
+        byte[] page = getPage(position / this.pageSize, false);
+        return page[position % this.pageSize] & 0xff;
+    }
+    
+    public void get(int position, ByteBuffer dst, int len) throws IOException {
+        int copied = 0;
+        while(copied < len) {
+            int pos = position + copied;
+            int pageNo = pos / this.pageSize;
+            int positionInPage = pos % this.pageSize;
+            int toCopy = Math.min(len - copied, this.pageSize - positionInPage);
+            
+            byte[] page = getPage(pageNo, false);
+            dst.put(page, positionInPage, toCopy);
+            copied += toCopy;
+        }
+    }
+    
+    /**
+     * Writes len bytes starting at position to the target straight out of
+     * the pages. The caller must hold a reference while this runs.
+     */
+    public void writeTo(int position, int len, WritableByteChannel target) throws IOException {
+        int written = 0;
+        while(written < len) {
+            int pos = position + written;
+            int pageNo = pos / this.pageSize;
+            int positionInPage = pos % this.pageSize;
+            int toWrite = Math.min(len - written, this.pageSize - positionInPage);
+            
+            ByteBuffer src = ByteBuffer.wrap(getPage(pageNo, false), positionInPage, toWrite);
+            while(src.hasRemaining()) {
+                target.write(src);
+            }
+            written += toWrite;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Independent read cursor over a shared chunk buffer.
+ *
+ * @author iychoi
+ */
+public class SharedChunkBufferCursor extends AbstractSeekableInputStream {
+
+    private SharedChunkBufferRegistry registry;
+    private SharedChunkBufferRegistry.SharedChunkBuffer buffer;
+    private RAMBufferInputStream bufferInputStream;
+    private long offset;
+    private long size;
+    private volatile boolean closed;
+    
+    SharedChunkBufferCursor(SharedChunkBufferRegistry registry, SharedChunkBufferRegistry.SharedChunkBuffer buffer) {
+        this.registry = registry;
+        this.buffer = buffer;
+        this.bufferInputStream = buffer.getBufferInputStream();
+        this.offset = 0;
+        this.size = buffer.getSize();
+        this.closed = false;
+    }
+    
+    public String getHash() {
+        return this.buffer.getHash();
+    }
+    
+    public long getSize() {
+        return this.size;
+    }
+    
+    private void checkOpen() throws IOException {
+        if(this.closed) {
+            throw new IOException("stream is already closed");
+        }
+    }
+    
+    @Override
+    public synchronized long getOffset() throws IOException {
+        return this.offset;
+    }
+    
+    @Override
+    public synchronized int available() throws IOException {
+        return 0;
+    }
+    
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if(offset < 0) {
+            throw new IOException("cannot seek to negative offset : " + offset);
+        }
+        
+        this.offset = Math.min(offset, this.size);
+    }
+    
+    @Override
+    public synchronized long skip(long size) throws IOException {
+        if(size <= 0) {
+            return 0;
+        }
+        
+        long skipped = Math.min(size, this.size - this.offset);
+        this.offset += skipped;
+        return skipped;
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] b = new byte[1];
+        int readLen = read(b, 0, 1);
+        if(readLen <= 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+    
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+        
+        if(off < 0) {
+            throw new IllegalArgumentException("off is negative");
+        }
+        
+        if(len < 0) {
+            throw new IllegalArgumentException("len is negative");
+        }
+        
+        checkOpen();
+        
+        int readLen = this.bufferInputStream.read(this.offset, ByteBuffer.wrap(bytes, off, len));
+        if(readLen > 0) {
+            this.offset += readLen;
+        }
+        return readLen;
+    }
+    
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        checkOpen();
+        return this.bufferInputStream.read(position, dst);
+    }
+    
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkOpen();
+        return this.bufferInputStream.transferTo(position, count, target);
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if(this.closed) {
+            return;
+        }
+        
+        this.closed = true;
+        this.registry.release(this.buffer);
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
@@ -0,0 +1,176 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.utils.Reference;
+
+/**
+ * Shares one upstream fetch of a chunk between concurrent readers. The first
+ * reader of a chunk hash starts the fetch into a RAM buffer; later readers
+ * attach to it as independent cursors that read as data arrives. The buffer
+ * is closed when the last cursor closes.
+ *
+ * @author iychoi
+ */
+public class SharedChunkBufferRegistry {
+
+    private static final Log LOG = LogFactory.getLog(SharedChunkBufferRegistry.class);
+    
+    private static final int OPEN_WAIT_SEC = 10;
+    
+    private static SharedChunkBufferRegistry instance;
+    
+    private Map<String, SharedChunkBuffer> buffers = new HashMap<String, SharedChunkBuffer>();
+    
+    static class SharedChunkBuffer {
+        private String hash;
+        private int size;
+        private volatile RAMBufferInputStream bufferInputStream;
+        private volatile IOException openError;
+        private Reference reference = new Reference();
+        
+        SharedChunkBuffer(String hash, int size) {
+            this.hash = hash;
+            this.size = size;
+        }
+        
+        String getHash() {
+            return this.hash;
+        }
+        
+        int getSize() {
+            return this.size;
+        }
+        
+        RAMBufferInputStream getBufferInputStream() {
+            return this.bufferInputStream;
+        }
+    }
+    
+    public static synchronized SharedChunkBufferRegistry getInstance() {
+        if(instance == null) {
+            instance = new SharedChunkBufferRegistry();
+        }
+        return instance;
+    }
+    
+    public SharedChunkBufferRegistry() {
+    }
+    
+    public synchronized int getSharedBufferNum() {
+        return this.buffers.size();
+    }
+    
+    public synchronized int getCursorNum(String hash) {
+        SharedChunkBuffer buffer = this.buffers.get(hash);
+        if(buffer == null) {
+            return 0;
+        }
+        return buffer.reference.getReferenceCount();
+    }
+    
+    public SharedChunkBufferCursor openCursor(String hash, int size, ChunkSource source) throws IOException {
+        if(hash == null || hash.isEmpty()) {
+            throw new IllegalArgumentException("hash is null or empty");
+        }
+        
+        if(size < 0) {
+            throw new IllegalArgumentException("size is negative");
+        }
+        
+        if(source == null) {
+            throw new IllegalArgumentException("source is null");
+        }
+        
+        SharedChunkBuffer buffer;
+        boolean opener = false;
+        synchronized(this) {
+            buffer = this.buffers.get(hash);
+            if(buffer != null) {
+                if(buffer.size != size) {
+                    throw new IOException(String.format("chunk %s is shared with size %d, not %d", hash, buffer.size, size));
+                }
+            } else {
+                buffer = new SharedChunkBuffer(hash, size);
+                this.buffers.put(hash, buffer);
+                opener = true;
+            }
+            buffer.reference.increaseReference();
+        }
+        
+        if(opener) {
+            // open outside the registry lock; opening only starts the fetch,
+            // the buffer fills in the background
+            try {
+                InputStream is = source.openStream();
+                if(is == null) {
+                    throw new IOException(String.format("cannot open chunk %s", hash));
+                }
+                buffer.bufferInputStream = new RAMBufferInputStream(is, size);
+            } catch (IOException ex) {
+                buffer.openError = ex;
+                throw ex;
+            } catch (RuntimeException ex) {
+                buffer.openError = new IOException(ex);
+                throw ex;
+            } finally {
+                buffer.reference.wakeup();
+                if(buffer.openError != null) {
+                    release(buffer);
+                }
+            }
+        } else {
+            try {
+                while(!buffer.reference.await(OPEN_WAIT_SEC, TimeUnit.SECONDS)) {
+                    LOG.info(String.format("Waiting for chunk %s to be opened", hash));
+                }
+            } catch (InterruptedException ex) {
+                release(buffer);
+                throw new IOException(ex);
+            }
+            
+            if(buffer.openError != null) {
+                release(buffer);
+                throw new IOException(String.format("cannot open chunk %s", hash), buffer.openError);
+            }
+        }
+        return new SharedChunkBufferCursor(this, buffer);
+    }
+    
+    void release(SharedChunkBuffer buffer) {
+        boolean last = false;
+        synchronized(this) {
+            buffer.reference.decreaseReference();
+            if(buffer.reference.getReferenceCount() == 0) {
+                if(this.buffers.get(buffer.hash) == buffer) {
+                    this.buffers.remove(buffer.hash);
+                }
+                last = true;
+            }
+        }
+        
+        if(last && buffer.bufferInputStream != null) {
+            buffer.bufferInputStream.close();
+        }
+    }
+}
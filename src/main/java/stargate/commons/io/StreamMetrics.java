@@ -0,0 +1,173 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import stargate.commons.statistics.LatencyHistogram;
+import stargate.commons.statistics.Statistics;
+import stargate.commons.statistics.StatisticsEntry;
+import stargate.commons.statistics.StatisticsType;
+import stargate.commons.statistics.StripedCounter;
+import stargate.commons.utils.DateTimeUtils;
+
+/**
+ * Per stream type read metrics. Buffer and cache streams record the time
+ * they block waiting for data; InstrumentedInputStream records bytes, read
+ * calls, seeks and time to first byte.
+ *
+ * @author iychoi
+ */
+public class StreamMetrics {
+
+    private static ConcurrentHashMap<String, StreamMetrics> instances = new ConcurrentHashMap<String, StreamMetrics>();
+    
+    private String name;
+    private StripedCounter bytesRead = new StripedCounter();
+    private StripedCounter readCalls = new StripedCounter();
+    private StripedCounter seeks = new StripedCounter();
+    private StripedCounter seekDistance = new StripedCounter();
+    private LatencyHistogram readLatency = new LatencyHistogram();
+    private LatencyHistogram waitLatency = new LatencyHistogram();
+    private LatencyHistogram firstByteLatency = new LatencyHistogram();
+    
+    public static StreamMetrics getInstance(Class<?> clazz) {
+        if(clazz == null) {
+            throw new IllegalArgumentException("clazz is null");
+        }
+        
+        return getInstance(clazz.getSimpleName());
+    }
+    
+    public static StreamMetrics getInstance(String name) {
+        if(name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name is null or empty");
+        }
+        
+        StreamMetrics metrics = instances.get(name);
+        if(metrics == null) {
+            StreamMetrics newMetrics = new StreamMetrics(name);
+            metrics = instances.putIfAbsent(name, newMetrics);
+            if(metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+    
+    public static Collection<StreamMetrics> getInstances() {
+        return Collections.unmodifiableCollection(instances.values());
+    }
+    
+    StreamMetrics(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return this.name;
+    }
+    
+    public void recordRead(long bytes, long nanos) {
+        this.readCalls.increment();
+        if(bytes > 0) {
+            this.bytesRead.add(bytes);
+        }
+        this.readLatency.record(nanos);
+    }
+    
+    public void recordSeek(long distance) {
+        this.seeks.increment();
+        this.seekDistance.add(Math.abs(distance));
+    }
+    
+    public void recordWait(long nanos) {
+        this.waitLatency.record(nanos);
+    }
+    
+    public void recordFirstByte(long nanos) {
+        this.firstByteLatency.record(nanos);
+    }
+    
+    public long getBytesRead() {
+        return this.bytesRead.sum();
+    }
+    
+    public long getReadCalls() {
+        return this.readCalls.sum();
+    }
+    
+    public long getSeeks() {
+        return this.seeks.sum();
+    }
+    
+    public long getSeekDistance() {
+        return this.seekDistance.sum();
+    }
+    
+    public LatencyHistogram getReadLatency() {
+        return this.readLatency;
+    }
+    
+    public LatencyHistogram getWaitLatency() {
+        return this.waitLatency;
+    }
+    
+    public LatencyHistogram getFirstByteLatency() {
+        return this.firstByteLatency;
+    }
+    
+    public String toStatisticsValue(StatisticsType type) {
+        if(type == null) {
+            throw new IllegalArgumentException("type is null");
+        }
+        
+        switch(type) {
+            case STATISTICS_TYPE_STREAM_READ:
+                return String.format("%s,bytes=%d,calls=%d,%s", this.name, getBytesRead(), getReadCalls(), this.readLatency.toSummaryString());
+            case STATISTICS_TYPE_STREAM_WAIT:
+                return String.format("%s,%s", this.name, this.waitLatency.toSummaryString());
+            case STATISTICS_TYPE_STREAM_SEEK:
+                return String.format("%s,seeks=%d,distance=%d", this.name, getSeeks(), getSeekDistance());
+            case STATISTICS_TYPE_STREAM_FIRST_BYTE:
+                return String.format("%s,%s", this.name, this.firstByteLatency.toSummaryString());
+            default:
+                throw new IllegalArgumentException(String.format("type %s is not a stream statistics type", type.getStrVal()));
+        }
+    }
+    
+    /**
+     * Appends a snapshot of these metrics to the statistics of its type.
+     */
+    public void exportTo(Statistics statistics) {
+        if(statistics == null) {
+            throw new IllegalArgumentException("statistics is null");
+        }
+        
+        String value = toStatisticsValue(statistics.getType());
+        statistics.addEntry(new StatisticsEntry(value, DateTimeUtils.getTimestamp()));
+    }
+    
+    public void reset() {
+        this.bytesRead.reset();
+        this.readCalls.reset();
+        this.seeks.reset();
+        this.seekDistance.reset();
+        this.readLatency.reset();
+        this.waitLatency.reset();
+        this.firstByteLatency.reset();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free token bucket. Instead of counting tokens it keeps the virtual
+ * time at which all granted bytes are paid off; a caller takes bytes with a
+ * single CAS, going into debt if needed, and is told how long to wait before
+ * using them. A bucket may have a parent that is charged for the same bytes.
+ *
+ * @author iychoi
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SEC = 1000L * 1000L * 1000L;
+    
+    private String name;
+    private TokenBucket parent;
+    private volatile long rate; // bytes per sec, 0 = unlimited
+    private volatile long burst; // bytes
+    private AtomicLong paidOffNanos;
+    
+    public TokenBucket(String name, long rate, long burst) {
+        this(name, rate, burst, null);
+    }
+    
+    public TokenBucket(String name, long rate, long burst, TokenBucket parent) {
+        if(name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name is null or empty");
+        }
+        
+        if(rate < 0) {
+            throw new IllegalArgumentException("rate is negative");
+        }
+        
+        if(burst < 0) {
+            throw new IllegalArgumentException("burst is negative");
+        }
+        
+        this.name = name;
+        this.rate = rate;
+        this.burst = burst;
+        this.parent = parent;
+        this.paidOffNanos = new AtomicLong(System.nanoTime());
+    }
+    
+    public String getName() {
+        return this.name;
+    }
+    
+    public TokenBucket getParent() {
+        return this.parent;
+    }
+    
+    public long getRate() {
+        return this.rate;
+    }
+    
+    public long getBurst() {
+        return this.burst;
+    }
+    
+    public boolean isUnlimited() {
+        return this.rate == 0;
+    }
+    
+    public void setRate(long rate, long burst) {
+        if(rate < 0) {
+            throw new IllegalArgumentException("rate is negative");
+        }
+        
+        if(burst < 0) {
+            throw new IllegalArgumentException("burst is negative");
+        }
+        
+        this.rate = rate;
+        this.burst = burst;
+    }
+    
+    private static long toNanos(long bytes, long rate) {
+        if(bytes >= Long.MAX_VALUE / NANOS_PER_SEC) {
+            return (long) ((double) bytes * NANOS_PER_SEC / rate);
+        }
+        return bytes * NANOS_PER_SEC / rate;
+    }
+    
+    /**
+     * Takes bytes from this bucket and its parents and returns the nanoseconds
+     * the caller must wait before using them.
+     */
+    public long reserve(long bytes) {
+        if(bytes < 0) {
+            throw new IllegalArgumentException("bytes is negative");
+        }
+        
+        long waitNanos = 0;
+        long localRate = this.rate;
+        if(localRate > 0 && bytes > 0) {
+            long costNanos = toNanos(bytes, localRate);
+            long burstNanos = toNanos(this.burst, localRate);
+            
+            while(true) {
+                long now = System.nanoTime();
+                long paidOff = this.paidOffNanos.get();
+                // idle time refills the bucket, up to the burst size
+                long base = Math.max(paidOff, now - burstNanos);
+                long next = base + costNanos;
+                if(this.paidOffNanos.compareAndSet(paidOff, next)) {
+                    waitNanos = Math.max(0, next - now - burstNanos);
+                    break;
+                }
+            }
+        }
+        
+        if(this.parent != null) {
+            waitNanos = Math.max(waitNanos, this.parent.reserve(bytes));
+        }
+        return waitNanos;
+    }
+    
+    /**
+     * Takes bytes and parks the calling thread until they are paid off.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        park(reserve(bytes));
+    }
+    
+    public static void park(long waitNanos) throws InterruptedIOException {
+        if(waitNanos <= 0) {
+            return;
+        }
+        
+        long deadline = System.nanoTime() + waitNanos;
+        long remaining = waitNanos;
+        while(remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            if(Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for tokens");
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return this.name + "(" + this.rate + " B/s, burst " + this.burst + " B)";
+    }
+}
@@ -0,0 +1,168 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hierarchical token buckets for shaping chunk traffic. Node buckets are
+ * children of their remote cluster bucket, which is a child of the global
+ * bucket; traffic class buckets are charged alongside, so a prefetch stream
+ * is held to both the prefetch limit and the limits of the link it uses.
+ * All limits default to unlimited.
+ *
+ * @author iychoi
+ */
+public class TokenBucketRegistry {
+
+    private static final String GLOBAL_BUCKET_NAME = "global";
+    private static final long DEFAULT_BURST_SEC_DIVISOR = 10; // burst = 100ms of traffic
+    
+    private static TokenBucketRegistry instance;
+    
+    private TokenBucket globalBucket;
+    private ConcurrentHashMap<TrafficClass, TokenBucket> trafficClassBuckets = new ConcurrentHashMap<TrafficClass, TokenBucket>();
+    private ConcurrentHashMap<String, TokenBucket> clusterBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private ConcurrentHashMap<String, TokenBucket> nodeBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    
+    public static synchronized TokenBucketRegistry getInstance() {
+        if(instance == null) {
+            instance = new TokenBucketRegistry();
+        }
+        return instance;
+    }
+    
+    public TokenBucketRegistry() {
+        this.globalBucket = new TokenBucket(GLOBAL_BUCKET_NAME, 0, 0);
+    }
+    
+    private static long getDefaultBurst(long rate) {
+        return rate / DEFAULT_BURST_SEC_DIVISOR;
+    }
+    
+    private static String makeNodeKey(String clusterName, String nodeName) {
+        return clusterName + "/" + nodeName;
+    }
+    
+    public TokenBucket getGlobalBucket() {
+        return this.globalBucket;
+    }
+    
+    public void setGlobalRate(long rate) {
+        this.globalBucket.setRate(rate, getDefaultBurst(rate));
+    }
+    
+    public TokenBucket getTrafficClassBucket(TrafficClass trafficClass) {
+        if(trafficClass == null) {
+            throw new IllegalArgumentException("trafficClass is null");
+        }
+        
+        TokenBucket bucket = this.trafficClassBuckets.get(trafficClass);
+        if(bucket == null) {
+            TokenBucket newBucket = new TokenBucket(trafficClass.getStrVal(), 0, 0);
+            bucket = this.trafficClassBuckets.putIfAbsent(trafficClass, newBucket);
+            if(bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+    
+    public void setTrafficClassRate(TrafficClass trafficClass, long rate) {
+        getTrafficClassBucket(trafficClass).setRate(rate, getDefaultBurst(rate));
+    }
+    
+    public TokenBucket getClusterBucket(String clusterName) {
+        if(clusterName == null || clusterName.isEmpty()) {
+            throw new IllegalArgumentException("clusterName is null or empty");
+        }
+        
+        TokenBucket bucket = this.clusterBuckets.get(clusterName);
+        if(bucket == null) {
+            TokenBucket newBucket = new TokenBucket(clusterName, 0, 0, this.globalBucket);
+            bucket = this.clusterBuckets.putIfAbsent(clusterName, newBucket);
+            if(bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+    
+    public void setClusterRate(String clusterName, long rate) {
+        getClusterBucket(clusterName).setRate(rate, getDefaultBurst(rate));
+    }
+    
+    public TokenBucket getNodeBucket(String clusterName, String nodeName) {
+        if(nodeName == null || nodeName.isEmpty()) {
+            throw new IllegalArgumentException("nodeName is null or empty");
+        }
+        
+        String key = makeNodeKey(clusterName, nodeName);
+        TokenBucket bucket = this.nodeBuckets.get(key);
+        if(bucket == null) {
+            TokenBucket newBucket = new TokenBucket(key, 0, 0, getClusterBucket(clusterName));
+            bucket = this.nodeBuckets.putIfAbsent(key, newBucket);
+            if(bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+    
+    public void setNodeRate(String clusterName, String nodeName, long rate) {
+        getNodeBucket(clusterName, nodeName).setRate(rate, getDefaultBurst(rate));
+    }
+    
+    /**
+     * Returns the buckets a stream of the given class to the given node is
+     * charged against. The node bucket carries its cluster and global parents.
+     */
+    public List<TokenBucket> getBuckets(TrafficClass trafficClass, String clusterName, String nodeName) {
+        List<TokenBucket> buckets = new ArrayList<TokenBucket>();
+        buckets.add(getTrafficClassBucket(trafficClass));
+        
+        if(clusterName != null && nodeName != null) {
+            buckets.add(getNodeBucket(clusterName, nodeName));
+        } else if(clusterName != null) {
+            buckets.add(getClusterBucket(clusterName));
+        } else {
+            buckets.add(this.globalBucket);
+        }
+        return buckets;
+    }
+    
+    /**
+     * Resets every limit to unlimited. Buckets stay registered, since open
+     * streams hold them and later lookups must return the same instances.
+     */
+    public void clear() {
+        for(TokenBucket bucket : this.trafficClassBuckets.values()) {
+            bucket.setRate(0, 0);
+        }
+        
+        for(TokenBucket bucket : this.clusterBuckets.values()) {
+            bucket.setRate(0, 0);
+        }
+        
+        for(TokenBucket bucket : this.nodeBuckets.values()) {
+            bucket.setRate(0, 0);
+        }
+        
+        this.globalBucket.setRate(0, 0);
+    }
+}
@@ -17,6 +17,7 @@ package stargate.commons.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -28,8 +29,14 @@ public class UnrewindableChunkDataInputStream extends AbstractSeekableInputStrea
     private long chunkStartOffset;
     private int chunkSize;
     private long offset;
+    private long sourceOffset;
+    private RewindBuffer rewindBuffer;
     
     public UnrewindableChunkDataInputStream(InputStream is, long chunkStartOffset, int chunkSize) throws IOException {
+        this(is, chunkStartOffset, chunkSize, 0);
+    }
+    
+    public UnrewindableChunkDataInputStream(InputStream is, long chunkStartOffset, int chunkSize, int rewindBufferSize) throws IOException {
         if(is == null) {
             throw new IllegalArgumentException("is is null");
         }
@@ -42,11 +49,17 @@ public class UnrewindableChunkDataInputStream extends AbstractSeekableInputStrea
             throw new IllegalArgumentException("chunkSize is negative");
         }
         
+        if(rewindBufferSize < 0) {
+            throw new IllegalArgumentException("rewindBufferSize is negative");
+        }
+        
         this.inputStream = is;
         
         this.chunkStartOffset = chunkStartOffset;
         this.chunkSize = chunkSize;
         this.offset = 0;
+        this.sourceOffset = 0;
+        this.rewindBuffer = new RewindBuffer(rewindBufferSize);
     }
 
     public long getChunkStartOffset() {
@@ -65,40 +78,91 @@ public class UnrewindableChunkDataInputStream extends AbstractSeekableInputStrea
         return false;
     }
     
+    public int getRewindBufferSize() {
+        return this.rewindBuffer.getCapacity();
+    }
+    
     @Override
     public synchronized int read() throws IOException {
-        int r = this.inputStream.read();
-        if(r >= 0) {
+        if(this.offset < this.sourceOffset) {
+            // replay from the rewind window
+            int b = this.rewindBuffer.read((int) (this.sourceOffset - this.offset));
+            this.offset++;
+            return b;
+        }
+        
+        int b = this.inputStream.read();
+        if(b >= 0) {
+            this.rewindBuffer.append(b);
+            this.sourceOffset++;
             this.offset++;
         }
-        return r;
+        return b;
     }
     
     @Override
     public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(this.offset < this.sourceOffset) {
+            // replay from the rewind window
+            int distance = (int) (this.sourceOffset - this.offset);
+            int read = this.rewindBuffer.read(distance, bytes, off, len);
+            this.offset += read;
+            return read;
+        }
+        
         int read = this.inputStream.read(bytes, off, len);
-        if(read >= 0) {
+        if(read > 0) {
+            this.rewindBuffer.append(bytes, off, read);
+            this.sourceOffset += read;
             this.offset += read;
         }
         return read;
     }
     
+    @Override
+    public boolean isForwardOnly() {
+        return true;
+    }
+    
+    /**
+     * The source cannot be rewound beyond the rewind window, so the stream
+     * offset is left at the end of the read instead of being restored.
+     */
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        return readForward(position, dst);
+    }
+    
     @Override
     public synchronized int read(byte bytes[]) throws IOException {
-        int read = this.inputStream.read(bytes);
-        if(read >= 0) {
-            this.offset += read;
-        }
-        return read;
+        return read(bytes, 0, bytes.length);
     }
     
     @Override
     public synchronized long skip(long skip) throws IOException {
-        long read = this.inputStream.skip(skip);
-        if(read >= 0) {
-            this.offset += read;
+        if(skip <= 0) {
+            return 0;
+        }
+        
+        long begin = this.offset;
+        skipTo(this.offset + skip);
+        return this.offset - begin;
+    }
+    
+    private void skipTo(long offset) throws IOException {
+        if(offset <= this.sourceOffset) {
+            this.offset = offset;
+            return;
+        }
+        
+        // skipped bytes are not kept, so the window restarts here
+        this.offset = this.sourceOffset;
+        long read = this.inputStream.skip(offset - this.sourceOffset);
+        if(read > 0) {
+            this.rewindBuffer.clear();
+            this.sourceOffset += read;
+            this.offset = this.sourceOffset;
         }
-        return read;
     }
     
     @Override
@@ -109,10 +173,10 @@ public class UnrewindableChunkDataInputStream extends AbstractSeekableInputStrea
     @Override
     public synchronized void seek(long offset) throws IOException {
         if(this.offset <= offset) {
-            long read = this.inputStream.skip(offset - this.offset);
-            if(read >= 0) {
-                this.offset += read;
-            }
+            skipTo(offset);
+            return;
+        } else if(this.sourceOffset - offset <= this.rewindBuffer.getLength()) {
+            this.offset = offset;
             return;
         } else {
             throw new UnsupportedOperationException("Seek backword is not supported");
@@ -121,7 +185,7 @@ public class UnrewindableChunkDataInputStream extends AbstractSeekableInputStrea
     
     @Override
     public synchronized int available() throws IOException {
-        return this.inputStream.available();
+        return (int) (this.sourceOffset - this.offset) + this.inputStream.available();
     }
 
     @Override
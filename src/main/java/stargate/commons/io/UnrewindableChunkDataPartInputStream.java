@@ -17,6 +17,7 @@ package stargate.commons.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import stargate.commons.datastore.BigKeyValueStoreUtils;
 
 /**
@@ -33,8 +34,14 @@ public class UnrewindableChunkDataPartInputStream extends AbstractSeekableInputS
     private long partStartOffsetInChunk;
     private int actualPartSize;
     private long offset;
+    private long sourceOffset;
+    private RewindBuffer rewindBuffer;
     
     public UnrewindableChunkDataPartInputStream(InputStream is, long chunkStartOffset, int chunkSize, int chunkPartNo, int chunkPartSize) throws IOException {
+        this(is, chunkStartOffset, chunkSize, chunkPartNo, chunkPartSize, 0);
+    }
+    
+    public UnrewindableChunkDataPartInputStream(InputStream is, long chunkStartOffset, int chunkSize, int chunkPartNo, int chunkPartSize, int rewindBufferSize) throws IOException {
         if(is == null) {
             throw new IllegalArgumentException("is is null");
         }
@@ -55,6 +62,10 @@ public class UnrewindableChunkDataPartInputStream extends AbstractSeekableInputS
             throw new IllegalArgumentException("chunkPartSize is negative");
         }
         
+        if(rewindBufferSize < 0) {
+            throw new IllegalArgumentException("rewindBufferSize is negative");
+        }
+        
         this.inputStream = is;
         
         this.chunkStartOffset = chunkStartOffset;
@@ -62,6 +73,8 @@ public class UnrewindableChunkDataPartInputStream extends AbstractSeekableInputS
         this.partNo = chunkPartNo;
         this.partSize = chunkPartSize;
         this.offset = 0;
+        this.sourceOffset = 0;
+        this.rewindBuffer = new RewindBuffer(rewindBufferSize);
         
         this.partStartOffsetInChunk = BigKeyValueStoreUtils.getPartStartOffset(this.partSize, this.partNo);
         this.actualPartSize = BigKeyValueStoreUtils.getPartSize(this.chunkSize, this.partSize, this.partNo);
@@ -99,54 +112,105 @@ public class UnrewindableChunkDataPartInputStream extends AbstractSeekableInputS
         return false;
     }
     
+    public int getRewindBufferSize() {
+        return this.rewindBuffer.getCapacity();
+    }
+    
     @Override
     public synchronized int read() throws IOException {
-        int r = this.inputStream.read();
-        if(r >= 0) {
+        if(this.offset < this.sourceOffset) {
+            // replay from the rewind window
+            int b = this.rewindBuffer.read((int) (this.sourceOffset - this.offset));
             this.offset++;
+            return b;
         }
-        return r;
-    }
         
+        int b = this.inputStream.read();
+        if(b >= 0) {
+            this.rewindBuffer.append(b);
+            this.sourceOffset++;
+            this.offset++;
+        }
+        return b;
+    }
+    
     @Override
     public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(this.offset < this.sourceOffset) {
+            // replay from the rewind window
+            int distance = (int) (this.sourceOffset - this.offset);
+            int read = this.rewindBuffer.read(distance, bytes, off, len);
+            this.offset += read;
+            return read;
+        }
+        
         int read = this.inputStream.read(bytes, off, len);
-        if(read >= 0) {
+        if(read > 0) {
+            this.rewindBuffer.append(bytes, off, read);
+            this.sourceOffset += read;
             this.offset += read;
         }
         return read;
     }
-        
+    
+    @Override
+    public boolean isForwardOnly() {
+        return true;
+    }
+    
+    /**
+     * The source cannot be rewound beyond the rewind window, so the stream
+     * offset is left at the end of the read instead of being restored.
+     */
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        return readForward(position, dst);
+    }
+    
     @Override
     public synchronized int read(byte bytes[]) throws IOException {
-        int read = this.inputStream.read(bytes);
-        if(read >= 0) {
-            this.offset += read;
-        }
-        return read;
+        return read(bytes, 0, bytes.length);
     }
-        
+    
     @Override
     public synchronized long skip(long skip) throws IOException {
-        long read = this.inputStream.skip(skip);
-        if(read >= 0) {
-            this.offset += read;
+        if(skip <= 0) {
+            return 0;
         }
-        return read;
+        
+        long begin = this.offset;
+        skipTo(this.offset + skip);
+        return this.offset - begin;
     }
-
+    
+    private void skipTo(long offset) throws IOException {
+        if(offset <= this.sourceOffset) {
+            this.offset = offset;
+            return;
+        }
+        
+        // skipped bytes are not kept, so the window restarts here
+        this.offset = this.sourceOffset;
+        long read = this.inputStream.skip(offset - this.sourceOffset);
+        if(read > 0) {
+            this.rewindBuffer.clear();
+            this.sourceOffset += read;
+            this.offset = this.sourceOffset;
+        }
+    }
+    
     @Override
     public long getOffset() throws IOException {
         return this.offset;
     }
-
+    
     @Override
     public synchronized void seek(long offset) throws IOException {
         if(this.offset <= offset) {
-            long read = this.inputStream.skip(offset - this.offset);
-            if(read >= 0) {
-                this.offset += read;
-            }
+            skipTo(offset);
+            return;
+        } else if(this.sourceOffset - offset <= this.rewindBuffer.getLength()) {
+            this.offset = offset;
             return;
         } else {
             throw new UnsupportedOperationException("Seek backword is not supported");
@@ -155,7 +219,7 @@ public class UnrewindableChunkDataPartInputStream extends AbstractSeekableInputS
     
     @Override
     public synchronized int available() throws IOException {
-        return this.inputStream.available();
+        return (int) (this.sourceOffset - this.offset) + this.inputStream.available();
     }
 
     @Override
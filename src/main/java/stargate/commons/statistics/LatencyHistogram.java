@@ -0,0 +1,126 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two nanosecond buckets. Bucket i
+ * counts values in [2^(i-1), 2^i), so percentiles are reported as the upper
+ * bound of the bucket they fall in.
+ *
+ * @author iychoi
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_NUM = 64;
+    
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKET_NUM);
+    private StripedCounter count = new StripedCounter();
+    private StripedCounter sum = new StripedCounter();
+    private AtomicLong max = new AtomicLong(0);
+    
+    public LatencyHistogram() {
+    }
+    
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        
+        int bucket = BUCKET_NUM - Long.numberOfLeadingZeros(nanos);
+        if(bucket >= BUCKET_NUM) {
+            bucket = BUCKET_NUM - 1;
+        }
+        
+        this.buckets.incrementAndGet(bucket);
+        this.count.increment();
+        this.sum.add(nanos);
+        
+        long curMax = this.max.get();
+        while(nanos > curMax) {
+            if(this.max.compareAndSet(curMax, nanos)) {
+                break;
+            }
+            curMax = this.max.get();
+        }
+    }
+    
+    public long getCount() {
+        return this.count.sum();
+    }
+    
+    public long getSum() {
+        return this.sum.sum();
+    }
+    
+    public long getMax() {
+        return this.max.get();
+    }
+    
+    public long getMean() {
+        long c = getCount();
+        if(c == 0) {
+            return 0;
+        }
+        return getSum() / c;
+    }
+    
+    public long getPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile is out of range");
+        }
+        
+        long total = 0;
+        long[] snapshot = new long[BUCKET_NUM];
+        for(int i=0;i<BUCKET_NUM;i++) {
+            snapshot[i] = this.buckets.get(i);
+            total += snapshot[i];
+        }
+        
+        if(total == 0) {
+            return 0;
+        }
+        
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int i=0;i<BUCKET_NUM;i++) {
+            seen += snapshot[i];
+            if(seen >= rank && snapshot[i] > 0) {
+                if(i == 0) {
+                    return 0;
+                }
+                return Math.min(getMax(), (i >= 63) ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+        }
+        return getMax();
+    }
+    
+    public String toSummaryString() {
+        return String.format("count=%d,total_ns=%d,mean_ns=%d,p50_ns=%d,p99_ns=%d,max_ns=%d",
+                getCount(), getSum(), getMean(), getPercentile(50), getPercentile(99), getMax());
+    }
+    
+    public void reset() {
+        for(int i=0;i<BUCKET_NUM;i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+}
@@ -24,7 +24,13 @@ public enum StatisticsType {
     STATISTICS_TYPE_DATA_CHUNK_TRANSFER_RECEIVE ("TRANSFER_RECV"),
     STATISTICS_TYPE_DATA_CHUNK_TRANSFER_SEND ("TRANSFER_SEND"),
     STATISTICS_TYPE_LOCAL_NODE_DATA_CHUNK_TRANSFER_SEND ("TRANSFER_SEND_LOCAL_NODE_CHUNK"),
-    STATISTICS_TYPE_REMOTE_NODE_DATA_CHUNK_TRANSFER_SEND ("TRANSFER_SEND_REMOTE_NODE_CHUNK");
+    STATISTICS_TYPE_REMOTE_NODE_DATA_CHUNK_TRANSFER_SEND ("TRANSFER_SEND_REMOTE_NODE_CHUNK"),
+    STATISTICS_TYPE_DATA_CHUNK_HASH_VERIFY ("HASH_VERIFY"),
+    STATISTICS_TYPE_STREAM_READ ("STREAM_READ"),
+    STATISTICS_TYPE_STREAM_WAIT ("STREAM_WAIT"),
+    STATISTICS_TYPE_STREAM_SEEK ("STREAM_SEEK"),
+    STATISTICS_TYPE_STREAM_FIRST_BYTE ("STREAM_FIRST_BYTE"),
+    STATISTICS_TYPE_DATASTORE ("DATASTORE");
     
     private String strVal;
     
@@ -0,0 +1,72 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over cache-line padded cells indexed by thread, so hot
+ * paths on many threads do not contend on a single word. Reads sum all cells.
+ *
+ * @author iychoi
+ */
+public class StripedCounter {
+
+    private static final int PADDING = 8; // longs per 64-byte cache line
+    private static final int STRIPES;
+    
+    static {
+        int stripes = 1;
+        int target = Runtime.getRuntime().availableProcessors() * 2;
+        while(stripes < target) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+    
+    private AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+    
+    public StripedCounter() {
+    }
+    
+    private static int getCellIndex() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return (h & (STRIPES - 1)) * PADDING;
+    }
+    
+    public void add(long value) {
+        this.cells.getAndAdd(getCellIndex(), value);
+    }
+    
+    public void increment() {
+        add(1);
+    }
+    
+    public long sum() {
+        long sum = 0;
+        for(int i=0;i<STRIPES;i++) {
+            sum += this.cells.get(i * PADDING);
+        }
+        return sum;
+    }
+    
+    public void reset() {
+        for(int i=0;i<STRIPES;i++) {
+            this.cells.set(i * PADDING, 0);
+        }
+    }
+}
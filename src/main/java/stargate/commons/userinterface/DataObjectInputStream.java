@@ -0,0 +1,383 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.userinterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.dataobject.DataObjectURI;
+import stargate.commons.io.AbstractSeekableInputStream;
+import stargate.commons.io.ChunkBufferInputStreamFactory;
+import stargate.commons.io.ChunkDataInputStream;
+import stargate.commons.io.RateLimitedInputStream;
+import stargate.commons.io.TrafficClass;
+import stargate.commons.recipe.Recipe;
+import stargate.commons.recipe.RecipeChunk;
+
+/**
+ * Seekable stream over a whole data object. Offsets are mapped to chunks
+ * through the recipe; chunk streams are opened lazily, the next chunks are
+ * opened ahead in parallel within a byte budget, and chunks behind the
+ * cursor are released.
+ *
+ * @author iychoi
+ */
+public class DataObjectInputStream extends AbstractSeekableInputStream {
+
+    private static final Log LOG = LogFactory.getLog(DataObjectInputStream.class);
+    
+    private static final int DEFAULT_PREFETCH_CHUNKS = 4;
+    private static final long DEFAULT_PREFETCH_BYTES = 128 * 1024 * 1024; // 128MB
+    private static final int DEFAULT_EXECUTOR_THREADS = 8;
+    
+    private static ExecutorService defaultExecutor;
+    
+    private AbstractUserInterfaceAPI userInterfaceAPI;
+    private DataObjectURI uri;
+    private List<RecipeChunk> chunks;
+    private long size;
+    private long offset;
+    private boolean closed;
+    
+    private ExecutorService executor;
+    private int prefetchChunks;
+    private long prefetchBytes;
+    private Map<Integer, ChunkSlot> openChunks = new TreeMap<Integer, ChunkSlot>();
+    
+    private class ChunkSlot {
+        private RecipeChunk chunk;
+        private Future<AbstractSeekableInputStream> future;
+        private AbstractSeekableInputStream stream;
+        private boolean released;
+        
+        ChunkSlot(RecipeChunk chunk) {
+            this.chunk = chunk;
+            this.released = false;
+        }
+    }
+    
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_EXECUTOR_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "dataobject-prefetch-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+    
+    public DataObjectInputStream(AbstractUserInterfaceAPI userInterfaceAPI, Recipe recipe) throws IOException {
+        this(userInterfaceAPI, recipe, getDefaultExecutor(), DEFAULT_PREFETCH_CHUNKS, DEFAULT_PREFETCH_BYTES);
+    }
+    
+    public DataObjectInputStream(AbstractUserInterfaceAPI userInterfaceAPI, Recipe recipe, ExecutorService executor, int prefetchChunks, long prefetchBytes) throws IOException {
+        if(userInterfaceAPI == null) {
+            throw new IllegalArgumentException("userInterfaceAPI is null");
+        }
+        
+        if(recipe == null) {
+            throw new IllegalArgumentException("recipe is null");
+        }
+        
+        if(executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        
+        if(prefetchChunks < 0) {
+            throw new IllegalArgumentException("prefetchChunks is negative");
+        }
+        
+        if(prefetchBytes < 0) {
+            throw new IllegalArgumentException("prefetchBytes is negative");
+        }
+        
+        this.userInterfaceAPI = userInterfaceAPI;
+        this.uri = recipe.getMetadata().getURI();
+        this.size = recipe.getMetadata().getSize();
+        
+        this.chunks = new ArrayList<RecipeChunk>(recipe.getChunks());
+        Collections.sort(this.chunks, new Comparator<RecipeChunk>() {
+            @Override
+            public int compare(RecipeChunk c1, RecipeChunk c2) {
+                long o1 = c1.getOffset();
+                long o2 = c2.getOffset();
+                return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+            }
+        });
+        
+        this.executor = executor;
+        this.prefetchChunks = prefetchChunks;
+        this.prefetchBytes = prefetchBytes;
+        this.offset = 0;
+        this.closed = false;
+    }
+    
+    public DataObjectURI getURI() {
+        return this.uri;
+    }
+    
+    public long getSize() {
+        return this.size;
+    }
+    
+    public synchronized int getOpenChunkNum() {
+        return this.openChunks.size();
+    }
+    
+    private int findChunkIndex(long offset) throws IOException {
+        int low = 0;
+        int high = this.chunks.size() - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            RecipeChunk chunk = this.chunks.get(mid);
+            if(chunk.getOffset() + chunk.getLength() <= offset) {
+                low = mid + 1;
+            } else if(chunk.getOffset() > offset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        throw new IOException(String.format("Cound not find a chunk for an offset : %d", offset));
+    }
+    
+    private ChunkSlot openChunk(int index, final TrafficClass trafficClass) {
+        ChunkSlot slot = this.openChunks.get(index);
+        if(slot != null) {
+            return slot;
+        }
+        
+        final ChunkSlot newSlot = new ChunkSlot(this.chunks.get(index));
+        newSlot.future = this.executor.submit(new Callable<AbstractSeekableInputStream>() {
+            @Override
+            public AbstractSeekableInputStream call() throws Exception {
+                RecipeChunk chunk = newSlot.chunk;
+                InputStream is = userInterfaceAPI.getDataChunk(uri, chunk.getHash());
+                // shape the fill of the buffer, not reads out of it
+                AbstractSeekableInputStream bufferStream = ChunkBufferInputStreamFactory.createBufferInputStream(new RateLimitedInputStream(is, trafficClass), chunk.getLength());
+                AbstractSeekableInputStream chunkStream = new ChunkDataInputStream(bufferStream, chunk.getOffset(), chunk.getLength());
+                
+                synchronized(newSlot) {
+                    if(newSlot.released) {
+                        chunkStream.close();
+                        return null;
+                    }
+                    newSlot.stream = chunkStream;
+                }
+                return chunkStream;
+            }
+        });
+        
+        this.openChunks.put(index, newSlot);
+        return newSlot;
+    }
+    
+    private void releaseChunk(ChunkSlot slot) {
+        // whichever of the open task and the release comes second closes
+        // the chunk stream
+        synchronized(slot) {
+            slot.released = true;
+            if(slot.stream != null) {
+                try {
+                    slot.stream.close();
+                } catch (IOException ex) {
+                    LOG.error(ex);
+                }
+                slot.stream = null;
+            }
+        }
+        
+        slot.future.cancel(false);
+    }
+    
+    private void updateWindow(int index) {
+        // release chunks behind the cursor and beyond the prefetch window
+        Iterator<Map.Entry<Integer, ChunkSlot>> iterator = this.openChunks.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Integer, ChunkSlot> entry = iterator.next();
+            int slotIndex = entry.getKey();
+            if(slotIndex < index || slotIndex > index + this.prefetchChunks) {
+                releaseChunk(entry.getValue());
+                iterator.remove();
+            }
+        }
+        
+        openChunk(index, TrafficClass.TRAFFIC_CLASS_DEMAND);
+        
+        long budget = this.prefetchBytes;
+        for(int i=index+1;i<=index+this.prefetchChunks && i<this.chunks.size();i++) {
+            RecipeChunk chunk = this.chunks.get(i);
+            if(budget < chunk.getLength()) {
+                break;
+            }
+            
+            budget -= chunk.getLength();
+            openChunk(i, TrafficClass.TRAFFIC_CLASS_PREFETCH);
+        }
+    }
+    
+    private AbstractSeekableInputStream getChunkStream(ChunkSlot slot) throws IOException {
+        try {
+            AbstractSeekableInputStream chunkStream = slot.future.get();
+            if(chunkStream == null) {
+                throw new IOException(String.format("chunk %s is already released", slot.chunk.getHash()));
+            }
+            return chunkStream;
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+    
+    @Override
+    public synchronized long getOffset() throws IOException {
+        return this.offset;
+    }
+    
+    @Override
+    public synchronized int available() throws IOException {
+        return 0;
+    }
+    
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if(offset < 0) {
+            throw new IOException("cannot seek to negative offset : " + offset);
+        }
+        
+        // chunks are opened lazily on the next read
+        this.offset = Math.min(offset, this.size);
+    }
+    
+    @Override
+    public synchronized long skip(long size) throws IOException {
+        if(size <= 0) {
+            return 0;
+        }
+        
+        long skipped = Math.min(size, this.size - this.offset);
+        this.offset += skipped;
+        return skipped;
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] b = new byte[1];
+        int readLen = read(b, 0, 1);
+        if(readLen <= 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+    
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(this.closed) {
+            throw new IOException("stream is already closed");
+        }
+        
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+        
+        if(off < 0) {
+            throw new IllegalArgumentException("off is negative");
+        }
+        
+        if(len < 0) {
+            throw new IllegalArgumentException("len is negative");
+        }
+        
+        if(this.offset >= this.size) {
+            return -1;
+        }
+        
+        if(len == 0) {
+            return 0;
+        }
+        
+        int index = findChunkIndex(this.offset);
+        updateWindow(index);
+        
+        RecipeChunk chunk = this.chunks.get(index);
+        AbstractSeekableInputStream chunkStream = getChunkStream(this.openChunks.get(index));
+        
+        // reads stop at the chunk boundary
+        long positionInChunk = this.offset - chunk.getOffset();
+        int toRead = (int) Math.min(len, chunk.getLength() - positionInChunk);
+        int readLen = chunkStream.read(positionInChunk, ByteBuffer.wrap(bytes, off, toRead));
+        if(readLen <= 0) {
+            throw new IOException(String.format("unexpected EOF in chunk %s at %d", chunk.getHash(), positionInChunk));
+        }
+        
+        this.offset += readLen;
+        return readLen;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if(this.closed) {
+            return;
+        }
+        
+        this.closed = true;
+        for(ChunkSlot slot : this.openChunks.values()) {
+            releaseChunk(slot);
+        }
+        this.openChunks.clear();
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
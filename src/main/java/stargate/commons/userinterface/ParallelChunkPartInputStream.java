@@ -0,0 +1,406 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.userinterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import stargate.commons.dataobject.DataObjectURI;
+import stargate.commons.datastore.BigKeyValueStoreUtils;
+import stargate.commons.io.AbstractSeekableInputStream;
+import stargate.commons.io.RateLimitedInputStream;
+import stargate.commons.io.TrafficClass;
+import stargate.commons.recipe.RecipeChunk;
+
+/**
+ * Fetches all parts of a chunk concurrently with getDataChunkPart, spread
+ * over one or several nodes, into a shared buffer. Reads block only until
+ * the bytes they need have landed in their part, so readers make progress
+ * part by part while the remaining parts are still in flight.
+ *
+ * @author iychoi
+ */
+public class ParallelChunkPartInputStream extends AbstractSeekableInputStream {
+
+    private static final Log LOG = LogFactory.getLog(ParallelChunkPartInputStream.class);
+    
+    private static final int DEFAULT_EXECUTOR_THREADS = 16;
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // 64KB
+    private static final int WAIT_INTERVAL_MSEC = 3000;
+    
+    private static ExecutorService defaultExecutor;
+    
+    private List<AbstractUserInterfaceAPI> userInterfaceAPIs;
+    private DataObjectURI uri;
+    private RecipeChunk chunk;
+    private int chunkSize;
+    private int partSize;
+    private int partNum;
+    
+    private volatile byte[] buffer;
+    private AtomicIntegerArray partFilled;
+    private volatile IOException[] partErrors;
+    private List<Future<?>> partFutures = new ArrayList<Future<?>>();
+    private final Object notifyObject = new Object();
+    private volatile boolean closed;
+    private long offset;
+    
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if(defaultExecutor == null) {
+            final AtomicInteger threadNum = new AtomicInteger(0);
+            defaultExecutor = Executors.newFixedThreadPool(DEFAULT_EXECUTOR_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "chunk-part-fetch-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+    
+    public ParallelChunkPartInputStream(AbstractUserInterfaceAPI userInterfaceAPI, DataObjectURI uri, RecipeChunk chunk, int partSize) throws IOException {
+        this(makeList(userInterfaceAPI), uri, chunk, partSize, getDefaultExecutor());
+    }
+    
+    public ParallelChunkPartInputStream(Collection<AbstractUserInterfaceAPI> userInterfaceAPIs, DataObjectURI uri, RecipeChunk chunk, int partSize) throws IOException {
+        this(userInterfaceAPIs, uri, chunk, partSize, getDefaultExecutor());
+    }
+    
+    public ParallelChunkPartInputStream(Collection<AbstractUserInterfaceAPI> userInterfaceAPIs, DataObjectURI uri, RecipeChunk chunk, int partSize, ExecutorService executor) throws IOException {
+        if(userInterfaceAPIs == null || userInterfaceAPIs.isEmpty()) {
+            throw new IllegalArgumentException("userInterfaceAPIs is null or empty");
+        }
+        
+        if(uri == null) {
+            throw new IllegalArgumentException("uri is null");
+        }
+        
+        if(chunk == null) {
+            throw new IllegalArgumentException("chunk is null");
+        }
+        
+        if(partSize <= 0) {
+            throw new IllegalArgumentException("partSize is not positive");
+        }
+        
+        if(executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        
+        this.userInterfaceAPIs = new ArrayList<AbstractUserInterfaceAPI>(userInterfaceAPIs);
+        this.uri = uri;
+        this.chunk = chunk;
+        this.chunkSize = chunk.getLength();
+        this.partSize = partSize;
+        this.partNum = BigKeyValueStoreUtils.getPartNum(this.chunkSize, partSize);
+        
+        this.buffer = new byte[this.chunkSize];
+        this.partFilled = new AtomicIntegerArray(this.partNum);
+        this.partErrors = new IOException[this.partNum];
+        this.closed = false;
+        this.offset = 0;
+        
+        for(int i=0;i<this.partNum;i++) {
+            final int partNo = i;
+            this.partFutures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    fetchPart(partNo);
+                }
+            }));
+        }
+    }
+    
+    private static List<AbstractUserInterfaceAPI> makeList(AbstractUserInterfaceAPI userInterfaceAPI) {
+        if(userInterfaceAPI == null) {
+            throw new IllegalArgumentException("userInterfaceAPI is null");
+        }
+        
+        List<AbstractUserInterfaceAPI> list = new ArrayList<AbstractUserInterfaceAPI>();
+        list.add(userInterfaceAPI);
+        return list;
+    }
+    
+    public RecipeChunk getChunk() {
+        return this.chunk;
+    }
+    
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+    
+    public int getPartSize() {
+        return this.partSize;
+    }
+    
+    public int getPartNum() {
+        return this.partNum;
+    }
+    
+    public boolean isPartLanded(int partNo) {
+        return this.partFilled.get(partNo) >= BigKeyValueStoreUtils.getPartSize(this.chunkSize, this.partSize, partNo);
+    }
+    
+    private void fetchPart(int partNo) {
+        int partStart = (int) BigKeyValueStoreUtils.getPartStartOffset(this.partSize, partNo);
+        int partLength = BigKeyValueStoreUtils.getPartSize(this.chunkSize, this.partSize, partNo);
+        
+        // parts are spread round-robin over the nodes; a failed node hands
+        // the rest of the part to the next one
+        IOException lastError = null;
+        int apiNum = this.userInterfaceAPIs.size();
+        for(int attempt=0;attempt<apiNum;attempt++) {
+            if(this.closed) {
+                return;
+            }
+            
+            AbstractUserInterfaceAPI api = this.userInterfaceAPIs.get((partNo + attempt) % apiNum);
+            try {
+                fetchPart(api, partNo, partStart, partLength);
+                return;
+            } catch (IOException ex) {
+                LOG.error(String.format("Failed to fetch part %d of chunk %s", partNo, this.chunk.getHash()), ex);
+                lastError = ex;
+            } catch (RuntimeException ex) {
+                LOG.error(String.format("Failed to fetch part %d of chunk %s", partNo, this.chunk.getHash()), ex);
+                lastError = new IOException(ex);
+            }
+        }
+        
+        synchronized(this.notifyObject) {
+            this.partErrors[partNo] = lastError;
+            this.notifyObject.notifyAll();
+        }
+    }
+    
+    private void fetchPart(AbstractUserInterfaceAPI api, int partNo, int partStart, int partLength) throws IOException {
+        InputStream partStream = api.getDataChunkPart(this.uri, this.chunk.getHash(), partNo);
+        if(partStream == null) {
+            throw new IOException(String.format("cannot open part %d of chunk %s", partNo, this.chunk.getHash()));
+        }
+        
+        InputStream is = new RateLimitedInputStream(partStream, TrafficClass.TRAFFIC_CLASS_DEMAND);
+        
+        try {
+            // resume where a failed attempt stopped
+            int filled = this.partFilled.get(partNo);
+            if(filled > 0) {
+                long skipped = 0;
+                while(skipped < filled) {
+                    long skipLen = is.skip(filled - skipped);
+                    if(skipLen <= 0) {
+                        throw new IOException(String.format("cannot resume part %d of chunk %s", partNo, this.chunk.getHash()));
+                    }
+                    skipped += skipLen;
+                }
+            }
+            
+            byte[] data = this.buffer;
+            while(filled < partLength) {
+                if(this.closed || data == null) {
+                    return;
+                }
+                
+                int toRead = Math.min(READ_BUFFER_SIZE, partLength - filled);
+                int readLen = is.read(data, partStart + filled, toRead);
+                if(readLen < 0) {
+                    throw new IOException(String.format("unexpected EOF in part %d of chunk %s at %d", partNo, this.chunk.getHash(), filled));
+                }
+                
+                filled += readLen;
+                this.partFilled.set(partNo, filled);
+                synchronized(this.notifyObject) {
+                    this.notifyObject.notifyAll();
+                }
+            }
+        } finally {
+            is.close();
+        }
+    }
+    
+    private void waitData(int partNo, int filledInPart) throws IOException {
+        if(this.partFilled.get(partNo) >= filledInPart) {
+            return;
+        }
+        
+        synchronized(this.notifyObject) {
+            while(this.partFilled.get(partNo) < filledInPart) {
+                if(this.closed) {
+                    throw new IOException("stream is already closed");
+                }
+                
+                IOException error = this.partErrors[partNo];
+                if(error != null) {
+                    throw new IOException(String.format("cannot fetch part %d of chunk %s", partNo, this.chunk.getHash()), error);
+                }
+                
+                try {
+                    this.notifyObject.wait(WAIT_INTERVAL_MSEC);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public synchronized long getOffset() throws IOException {
+        return this.offset;
+    }
+    
+    @Override
+    public synchronized int available() throws IOException {
+        if(this.offset >= this.chunkSize) {
+            return 0;
+        }
+        
+        int partNo = BigKeyValueStoreUtils.getPartNo(this.offset, this.partSize);
+        long positionInPart = this.offset - BigKeyValueStoreUtils.getPartStartOffset(this.partSize, partNo);
+        return (int) Math.max(0, this.partFilled.get(partNo) - positionInPart);
+    }
+    
+    @Override
+    public synchronized void seek(long offset) throws IOException {
+        if(offset < 0) {
+            throw new IOException("cannot seek to negative offset : " + offset);
+        }
+        
+        this.offset = Math.min(offset, this.chunkSize);
+    }
+    
+    @Override
+    public synchronized long skip(long size) throws IOException {
+        if(size <= 0) {
+            return 0;
+        }
+        
+        long skipped = Math.min(size, this.chunkSize - this.offset);
+        this.offset += skipped;
+        return skipped;
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] b = new byte[1];
+        int readLen = read(b, 0, 1);
+        if(readLen <= 0) {
+            return -1;
+        }
+        return b[0] & 0xff;
+    }
+    
+    @Override
+    public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        if(bytes == null) {
+            throw new IllegalArgumentException("bytes is null");
+        }
+        
+        if(off < 0) {
+            throw new IllegalArgumentException("off is negative");
+        }
+        
+        if(len < 0) {
+            throw new IllegalArgumentException("len is negative");
+        }
+        
+        int readLen = read(this.offset, ByteBuffer.wrap(bytes, off, len));
+        if(readLen > 0) {
+            this.offset += readLen;
+        }
+        return readLen;
+    }
+    
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if(position < 0) {
+            throw new IllegalArgumentException("position is negative");
+        }
+        
+        if(dst == null) {
+            throw new IllegalArgumentException("dst is null");
+        }
+        
+        if(position >= this.chunkSize) {
+            return -1;
+        }
+        
+        if(!dst.hasRemaining()) {
+            return 0;
+        }
+        
+        // copy what has landed in the part holding position, waiting only
+        // for its first byte
+        int partNo = BigKeyValueStoreUtils.getPartNo(position, this.partSize);
+        long partStart = BigKeyValueStoreUtils.getPartStartOffset(this.partSize, partNo);
+        int positionInPart = (int) (position - partStart);
+        waitData(partNo, positionInPart + 1);
+        
+        byte[] data = this.buffer;
+        if(this.closed || data == null) {
+            throw new IOException("stream is already closed");
+        }
+        
+        int toRead = Math.min(dst.remaining(), this.partFilled.get(partNo) - positionInPart);
+        dst.put(data, (int) position, toRead);
+        return toRead;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if(this.closed) {
+            return;
+        }
+        
+        this.closed = true;
+        for(Future<?> future : this.partFutures) {
+            future.cancel(false);
+        }
+        this.partFutures.clear();
+        
+        synchronized(this.notifyObject) {
+            this.notifyObject.notifyAll();
+        }
+        this.buffer = null;
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
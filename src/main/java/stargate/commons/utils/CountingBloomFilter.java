@@ -0,0 +1,283 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.utils;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter with 4-bit counters, so keys can be removed as well as
+ * added. Counters are updated lock-free; a counter that saturates stays
+ * saturated, which can only cost false positives, never false negatives.
+ *
+ * @author iychoi
+ */
+public class CountingBloomFilter {
+
+    private static final int SNAPSHOT_MAGIC = 0x53474346;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long COUNTER_MAX = 15;
+    private static final int MAX_HASH_NUM = 16;
+    
+    private final int counterNum;
+    private final int hashNum;
+    private final AtomicLongArray words;
+    private final AtomicInteger nonZeroNum = new AtomicInteger(0);
+    private final AtomicLong keyNum = new AtomicLong(0);
+    
+    public CountingBloomFilter(int expectedInsertions, double falsePositiveRate) {
+        if(expectedInsertions <= 0) {
+            throw new IllegalArgumentException("expectedInsertions is not positive");
+        }
+        
+        if(falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate is not in (0, 1)");
+        }
+        
+        double ln2 = Math.log(2);
+        long counters = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+        counters = Math.min(Integer.MAX_VALUE - COUNTERS_PER_WORD, Math.max(COUNTERS_PER_WORD, counters));
+        int hashes = (int) Math.round((double) counters / expectedInsertions * ln2);
+        
+        this.counterNum = (int) roundUpCounters(counters);
+        this.hashNum = Math.min(MAX_HASH_NUM, Math.max(1, hashes));
+        this.words = new AtomicLongArray(this.counterNum / COUNTERS_PER_WORD);
+    }
+    
+    public CountingBloomFilter(int counterNum, int hashNum) {
+        if(counterNum <= 0) {
+            throw new IllegalArgumentException("counterNum is not positive");
+        }
+        
+        if(hashNum <= 0 || hashNum > MAX_HASH_NUM) {
+            throw new IllegalArgumentException("hashNum is out of range");
+        }
+        
+        this.counterNum = (int) roundUpCounters(counterNum);
+        this.hashNum = hashNum;
+        this.words = new AtomicLongArray(this.counterNum / COUNTERS_PER_WORD);
+    }
+    
+    private static long roundUpCounters(long counters) {
+        return (counters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD * COUNTERS_PER_WORD;
+    }
+    
+    public int getCounterNum() {
+        return this.counterNum;
+    }
+    
+    public int getHashNum() {
+        return this.hashNum;
+    }
+    
+    /**
+     * Returns the number of keys added minus those removed.
+     */
+    public long getKeyNum() {
+        return this.keyNum.get();
+    }
+    
+    public long getMemoryBytes() {
+        return (long) this.words.length() * 8;
+    }
+    
+    /**
+     * Returns the false positive rate expected from the current fill.
+     */
+    public double getExpectedFalsePositiveRate() {
+        double fill = (double) this.nonZeroNum.get() / this.counterNum;
+        return Math.pow(fill, this.hashNum);
+    }
+    
+    private int[] getIndexes(String key) {
+        long h1 = HashUtils.hash64(key);
+        long h2 = HashUtils.fmix64(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+        int[] indexes = new int[this.hashNum];
+        for(int i=0;i<this.hashNum;i++) {
+            long combined = h1 + i * h2;
+            indexes[i] = (int) ((combined >>> 1) % this.counterNum);
+        }
+        return indexes;
+    }
+    
+    private long getCounter(int index) {
+        long word = this.words.get(index / COUNTERS_PER_WORD);
+        return (word >>> ((index % COUNTERS_PER_WORD) * 4)) & COUNTER_MAX;
+    }
+    
+    /**
+     * Adds delta (may be negative) to a counter, clamped to [0, max].
+     * Saturated counters are never changed.
+     */
+    private void addCounter(int index, long delta) {
+        int wordIndex = index / COUNTERS_PER_WORD;
+        int shift = (index % COUNTERS_PER_WORD) * 4;
+        while(true) {
+            long word = this.words.get(wordIndex);
+            long counter = (word >>> shift) & COUNTER_MAX;
+            if(counter == COUNTER_MAX) {
+                return;
+            }
+            
+            long newCounter = Math.max(0, Math.min(COUNTER_MAX, counter + delta));
+            if(newCounter == counter) {
+                return;
+            }
+            
+            long newWord = (word & ~(COUNTER_MAX << shift)) | (newCounter << shift);
+            if(this.words.compareAndSet(wordIndex, word, newWord)) {
+                if(counter == 0) {
+                    this.nonZeroNum.incrementAndGet();
+                } else if(newCounter == 0) {
+                    this.nonZeroNum.decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+    
+    public void add(String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        
+        for(int index : getIndexes(key)) {
+            addCounter(index, 1);
+        }
+        this.keyNum.incrementAndGet();
+    }
+    
+    /**
+     * Removes a key that was added before. Removing a key that was never
+     * added corrupts the filter, so callers must know it is present.
+     */
+    public void remove(String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        
+        for(int index : getIndexes(key)) {
+            addCounter(index, -1);
+        }
+        this.keyNum.decrementAndGet();
+    }
+    
+    public boolean mightContain(String key) {
+        if(key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        
+        for(int index : getIndexes(key)) {
+            if(getCounter(index) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean isCompatible(CountingBloomFilter other) {
+        return other != null && this.counterNum == other.counterNum && this.hashNum == other.hashNum;
+    }
+    
+    /**
+     * Adds the counters of a filter of the same geometry, e.g. to combine
+     * the filters of several nodes.
+     */
+    public void merge(CountingBloomFilter other) {
+        if(!isCompatible(other)) {
+            throw new IllegalArgumentException("other is not compatible");
+        }
+        
+        for(int i=0;i<this.counterNum;i++) {
+            long counter = other.getCounter(i);
+            if(counter > 0) {
+                addCounter(i, counter);
+            }
+        }
+        this.keyNum.addAndGet(other.keyNum.get());
+    }
+    
+    public void clear() {
+        for(int i=0;i<this.words.length();i++) {
+            this.words.set(i, 0);
+        }
+        this.nonZeroNum.set(0);
+        this.keyNum.set(0);
+    }
+    
+    /*
+     * Snapshot layout: magic, version, counter num, hash num, key num and
+     * the counter words. Concurrent updates may or may not be included.
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 4 + 4 + 8 + 8 * this.words.length());
+        buffer.putInt(SNAPSHOT_MAGIC);
+        buffer.putInt(SNAPSHOT_VERSION);
+        buffer.putInt(this.counterNum);
+        buffer.putInt(this.hashNum);
+        buffer.putLong(this.keyNum.get());
+        for(int i=0;i<this.words.length();i++) {
+            buffer.putLong(this.words.get(i));
+        }
+        return buffer.array();
+    }
+    
+    public static CountingBloomFilter fromBytes(byte[] buf) throws IOException {
+        if(buf == null) {
+            throw new IllegalArgumentException("buf is null");
+        }
+        
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(buf);
+            if(buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("not a bloom filter snapshot");
+            }
+            
+            int version = buffer.getInt();
+            if(version != SNAPSHOT_VERSION) {
+                throw new IOException(String.format("unsupported bloom filter snapshot version %d", version));
+            }
+            
+            int counterNum = buffer.getInt();
+            int hashNum = buffer.getInt();
+            if(counterNum <= 0 || counterNum % COUNTERS_PER_WORD != 0 || hashNum <= 0 || hashNum > MAX_HASH_NUM) {
+                throw new IOException("malformed bloom filter snapshot");
+            }
+            
+            CountingBloomFilter filter = new CountingBloomFilter(counterNum, hashNum);
+            filter.keyNum.set(buffer.getLong());
+            int nonZero = 0;
+            for(int i=0;i<filter.words.length();i++) {
+                long word = buffer.getLong();
+                filter.words.set(i, word);
+                for(int j=0;j<COUNTERS_PER_WORD;j++) {
+                    if(((word >>> (j * 4)) & COUNTER_MAX) != 0) {
+                        nonZero++;
+                    }
+                }
+            }
+            filter.nonZeroNum.set(nonZero);
+            return filter;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("truncated bloom filter snapshot", ex);
+        }
+    }
+}
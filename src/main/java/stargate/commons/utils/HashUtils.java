@@ -0,0 +1,56 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.utils;
+
+/**
+ * Fast non-cryptographic 64-bit hashes for placement and filters.
+ *
+ * @author iychoi
+ */
+public class HashUtils {
+
+    private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV64_PRIME = 0x100000001b3L;
+    
+    /**
+     * The murmur3 64-bit finalizer - spreads every input bit over the
+     * whole output.
+     */
+    public static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * FNV-1a over the chars of the string, finished with fmix64.
+     */
+    public static long hash64(String str) {
+        if(str == null) {
+            throw new IllegalArgumentException("str is null");
+        }
+        
+        long h = FNV64_OFFSET_BASIS;
+        for(int i=0;i<str.length();i++) {
+            h ^= str.charAt(i);
+            h *= FNV64_PRIME;
+        }
+        return fmix64(h);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical timing wheel. Four levels of 64 slots keep timeouts of up to
+ * 64^4 ticks with O(1) schedule and cancel; slots of the upper levels are
+ * cascaded down as the clock reaches them. The wheel owns no thread, the
+ * owner advances it with advanceClock and handles what expired.
+ *
+ * schedule and cancel do not lock, they queue the timeout and the next
+ * advanceClock places or unlinks it, so writers never wait on the thread
+ * that advances the clock.
+ *
+ * @author iychoi
+ */
+public class TimingWheel<T> {
+
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELAY_TICKS = (1L << (LEVEL_BITS * LEVELS)) - 1;
+    
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+    
+    private long tickMillis;
+    private long startMillis;
+    private volatile long currentTick;
+    private AtomicInteger size = new AtomicInteger(0);
+    private ConcurrentLinkedQueue<Timeout<T>> newTimeouts = new ConcurrentLinkedQueue<Timeout<T>>();
+    private ConcurrentLinkedQueue<Timeout<T>> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout<T>>();
+    private List<List<Set<Timeout<T>>>> levels;
+    
+    public TimingWheel(long tickMillis) {
+        this(tickMillis, System.currentTimeMillis());
+    }
+    
+    public TimingWheel(long tickMillis, long startMillis) {
+        if(tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis is not positive");
+        }
+        
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.currentTick = 0;
+        
+        this.levels = new ArrayList<List<Set<Timeout<T>>>>(LEVELS);
+        for(int i=0;i<LEVELS;i++) {
+            List<Set<Timeout<T>>> slots = new ArrayList<Set<Timeout<T>>>(LEVEL_SIZE);
+            for(int j=0;j<LEVEL_SIZE;j++) {
+                slots.add(new LinkedHashSet<Timeout<T>>());
+            }
+            this.levels.add(slots);
+        }
+    }
+    
+    public long getTickMillis() {
+        return this.tickMillis;
+    }
+    
+    public int size() {
+        return this.size.get();
+    }
+    
+    /**
+     * Schedules the item to expire after delayMillis, rounded up to a tick.
+     */
+    public Timeout<T> schedule(T item, long delayMillis) {
+        if(delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis is negative");
+        }
+        
+        long delayTicks = Math.max(1, (delayMillis + this.tickMillis - 1) / this.tickMillis);
+        Timeout<T> timeout = new Timeout<T>(item, this.currentTick + delayTicks);
+        this.size.incrementAndGet();
+        this.newTimeouts.add(timeout);
+        return timeout;
+    }
+    
+    public boolean cancel(Timeout<T> timeout) {
+        if(timeout == null) {
+            throw new IllegalArgumentException("timeout is null");
+        }
+        
+        if(!timeout.state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+            return false;
+        }
+        
+        this.size.decrementAndGet();
+        this.cancelledTimeouts.add(timeout);
+        return true;
+    }
+    
+    private void place(Timeout<T> timeout) {
+        long delta = Math.min(timeout.deadlineTick - this.currentTick, MAX_DELAY_TICKS);
+        long deadlineTick = this.currentTick + Math.max(delta, 0);
+        
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= (1L << (LEVEL_BITS * (level + 1)))) {
+            level++;
+        }
+        
+        int index = (int) ((deadlineTick >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+        Set<Timeout<T>> slot = this.levels.get(level).get(index);
+        slot.add(timeout);
+        timeout.slot = slot;
+    }
+    
+    private void processQueues() {
+        Timeout<T> timeout;
+        while((timeout = this.cancelledTimeouts.poll()) != null) {
+            if(timeout.slot != null) {
+                timeout.slot.remove(timeout);
+                timeout.slot = null;
+            }
+        }
+        
+        while((timeout = this.newTimeouts.poll()) != null) {
+            if(timeout.state.get() != STATE_PENDING) {
+                continue;
+            }
+            
+            if(timeout.deadlineTick <= this.currentTick) {
+                // the clock passed it while queued, expire on the next tick
+                Set<Timeout<T>> slot = this.levels.get(0).get((int) ((this.currentTick + 1) & LEVEL_MASK));
+                slot.add(timeout);
+                timeout.slot = slot;
+            } else {
+                place(timeout);
+            }
+        }
+    }
+    
+    /**
+     * Moves the clock to nowMillis and returns the items that expired.
+     */
+    public List<T> advanceClock(long nowMillis) {
+        List<T> expired = null;
+        synchronized(this) {
+            processQueues();
+            
+            long targetTick = (nowMillis - this.startMillis) / this.tickMillis;
+            while(this.currentTick < targetTick) {
+                this.currentTick++;
+                cascade();
+                
+                Set<Timeout<T>> slot = this.levels.get(0).get((int) (this.currentTick & LEVEL_MASK));
+                if(slot.isEmpty()) {
+                    continue;
+                }
+                
+                List<Timeout<T>> timeouts = new ArrayList<Timeout<T>>(slot);
+                slot.clear();
+                for(Timeout<T> timeout : timeouts) {
+                    timeout.slot = null;
+                    if(timeout.deadlineTick <= this.currentTick) {
+                        // a cancel racing with the expiry wins or loses here
+                        if(timeout.state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                            if(expired == null) {
+                                expired = new ArrayList<T>();
+                            }
+                            expired.add(timeout.item);
+                            this.size.decrementAndGet();
+                        }
+                    } else {
+                        place(timeout);
+                    }
+                }
+            }
+        }
+        
+        if(expired == null) {
+            return Collections.emptyList();
+        }
+        return expired;
+    }
+    
+    private void cascade() {
+        // when a lower level wraps, the current slot of the next level is
+        // spread over the levels below
+        for(int level=1;level<LEVELS;level++) {
+            if((this.currentTick & ((1L << (LEVEL_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            
+            int index = (int) ((this.currentTick >>> (LEVEL_BITS * level)) & LEVEL_MASK);
+            Set<Timeout<T>> slot = this.levels.get(level).get(index);
+            if(slot.isEmpty()) {
+                continue;
+            }
+            
+            List<Timeout<T>> timeouts = new ArrayList<Timeout<T>>(slot);
+            slot.clear();
+            for(Timeout<T> timeout : timeouts) {
+                place(timeout);
+            }
+        }
+    }
+    
+    public synchronized void clear() {
+        processQueues();
+        
+        for(List<Set<Timeout<T>>> slots : this.levels) {
+            for(Set<Timeout<T>> slot : slots) {
+                for(Timeout<T> timeout : slot) {
+                    if(timeout.state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                        this.size.decrementAndGet();
+                    }
+                    timeout.slot = null;
+                }
+                slot.clear();
+            }
+        }
+    }
+    
+    public static class Timeout<T> {
+        
+        private final T item;
+        private final long deadlineTick;
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+        // only touched by the thread advancing the clock
+        private Set<Timeout<T>> slot;
+        
+        Timeout(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+        
+        public T getItem() {
+            return this.item;
+        }
+        
+        public boolean isCancelled() {
+            return this.state.get() == STATE_CANCELLED;
+        }
+        
+        public boolean isExpired() {
+            return this.state.get() == STATE_EXPIRED;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 variable-length integers - 7 bits per byte, low group
+ * first, high bit set on every byte but the last.
+ *
+ * @author iychoi
+ */
+public class VarIntUtils {
+
+    private static final int MAX_VARINT_BYTES = 5;
+    
+    public static int getVarIntSize(int value) {
+        if(value < 0) {
+            throw new IllegalArgumentException("value is negative");
+        }
+        
+        int size = 1;
+        while((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+    
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
+        
+        if(value < 0) {
+            throw new IllegalArgumentException("value is negative");
+        }
+        
+        while((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    public static int getVarInt(ByteBuffer buffer) throws IOException {
+        if(buffer == null) {
+            throw new IllegalArgumentException("buffer is null");
+        }
+        
+        int value = 0;
+        for(int i=0;i<MAX_VARINT_BYTES;i++) {
+            if(!buffer.hasRemaining()) {
+                throw new IOException("truncated varint");
+            }
+            
+            byte b = buffer.get();
+            value |= (b & 0x7f) << (7 * i);
+            if((b & 0x80) == 0) {
+                if(value < 0) {
+                    throw new IOException("varint overflow");
+                }
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
@@ -0,0 +1,89 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.cluster;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import stargate.commons.transport.TransportServiceInfo;
+import stargate.commons.userinterface.UserInterfaceServiceInfo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class DataPlacementEngineTest {
+
+    private Cluster cluster;
+    
+    private static Node makeNode(String name, boolean dataNode) {
+        return new Node(name, "cluster", dataNode, new NodeStatus(), new TransportServiceInfo("transport", URI.create("http://localhost:1")), new UserInterfaceServiceInfo("ui", URI.create("http://localhost:2")));
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        this.cluster = new Cluster("cluster", Arrays.asList(makeNode("node0", true), makeNode("node1", true), makeNode("gateway", false)));
+    }
+    
+    @Test
+    public void testMembershipEvents() throws IOException {
+        DataPlacementEngine engine = new DataPlacementEngine(this.cluster, 1);
+        assertTrue(engine.getTopology().hasSameNodes(Arrays.asList("node0", "node1")));
+        long version = engine.getTopologyVersion();
+        
+        // not a data node
+        engine.nodeJoined("gateway");
+        assertEquals(version, engine.getTopologyVersion());
+        
+        // unknown to the cluster view yet
+        engine.nodeJoined("node2");
+        assertFalse(engine.getTopology().hasNode("node2"));
+        
+        this.cluster.addOrUpdateNode(makeNode("node2", true), false);
+        engine.nodeJoined("node2");
+        assertTrue(engine.getTopology().hasNode("node2"));
+        long joinedVersion = engine.getTopologyVersion();
+        
+        // a failed node keeps its rank
+        engine.nodeFailed("node2");
+        assertEquals(joinedVersion, engine.getTopologyVersion());
+        
+        engine.nodeLeft("node2");
+        assertEquals(version, engine.getTopologyVersion());
+    }
+    
+    @Test
+    public void testRefresh() throws IOException {
+        DataPlacementEngine engine = new DataPlacementEngine(this.cluster, 1);
+        DataPlacementTopology topology = engine.getTopology();
+        engine.refresh();
+        assertSame(topology, engine.getTopology());
+        
+        this.cluster.addOrUpdateNode(makeNode("node2", true), false);
+        engine.refresh();
+        assertTrue(engine.getTopology().hasSameNodes(Arrays.asList("node0", "node1", "node2")));
+        
+        String key = "key";
+        assertEquals(engine.getTopology().getPrimaryAndBackupNodes(key, 1), engine.getPrimaryAndBackupNodesForData(key));
+        assertEquals(engine.getPrimaryNodeForData(key), engine.getPrimaryNodesForData(Arrays.asList(key)).get(key));
+    }
+}
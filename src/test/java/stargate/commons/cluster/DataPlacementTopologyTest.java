@@ -0,0 +1,144 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class DataPlacementTopologyTest {
+
+    private static final int KEY_NUM = 10000;
+    
+    private static Map<String, String> getPrimaryNodes(DataPlacementTopology topology) {
+        Map<String, String> placement = new HashMap<String, String>();
+        for(int i=0;i<KEY_NUM;i++) {
+            String key = "key" + i;
+            placement.put(key, topology.getPrimaryNode(key));
+        }
+        return placement;
+    }
+    
+    @Test
+    public void testSameNodesSamePlacement() {
+        DataPlacementTopology topology = new DataPlacementTopology(Arrays.asList("node0", "node1", "node2"));
+        DataPlacementTopology reordered = new DataPlacementTopology(Arrays.asList("node2", "node0", "node1"));
+        assertEquals(topology.getVersion(), reordered.getVersion());
+        assertEquals(getPrimaryNodes(topology), getPrimaryNodes(reordered));
+        
+        DataPlacementTopology other = new DataPlacementTopology(Arrays.asList("node0", "node1", "node3"));
+        assertFalse(topology.getVersion() == other.getVersion());
+        assertTrue(topology.hasSameNodes(Arrays.asList("node1", "node2", "node0")));
+        assertFalse(topology.hasSameNodes(Arrays.asList("node0", "node1")));
+    }
+    
+    @Test
+    public void testDerivedTopologies() {
+        DataPlacementTopology topology = new DataPlacementTopology(Arrays.asList("node0", "node1", "node2"));
+        assertSame(topology, topology.withNode("node1"));
+        assertSame(topology, topology.withoutNode("node9"));
+        
+        DataPlacementTopology joined = topology.withNode("node3");
+        DataPlacementTopology expected = new DataPlacementTopology(Arrays.asList("node0", "node1", "node2", "node3"));
+        assertEquals(expected.getVersion(), joined.getVersion());
+        assertEquals(getPrimaryNodes(expected), getPrimaryNodes(joined));
+        
+        DataPlacementTopology left = joined.withoutNode("node3");
+        assertEquals(topology.getVersion(), left.getVersion());
+        assertEquals(getPrimaryNodes(topology), getPrimaryNodes(left));
+    }
+    
+    @Test
+    public void testMembershipChangesMoveFewKeys() {
+        DataPlacementTopology topology = new DataPlacementTopology(Arrays.asList("node0", "node1", "node2", "node3"));
+        Map<String, String> before = getPrimaryNodes(topology);
+        
+        // only keys the new node wins move, and they move to it
+        Map<String, String> joined = getPrimaryNodes(topology.withNode("node4"));
+        int moved = 0;
+        for(Map.Entry<String, String> entry : joined.entrySet()) {
+            if(!entry.getValue().equals(before.get(entry.getKey()))) {
+                assertEquals("node4", entry.getValue());
+                moved++;
+            }
+        }
+        assertTrue(moved > KEY_NUM / 10 && moved < KEY_NUM * 3 / 10);
+        
+        // only keys of the node that left move
+        Map<String, String> left = getPrimaryNodes(topology.withoutNode("node2"));
+        for(Map.Entry<String, String> entry : left.entrySet()) {
+            String primary = before.get(entry.getKey());
+            if(!primary.equals("node2")) {
+                assertEquals(primary, entry.getValue());
+            }
+        }
+    }
+    
+    @Test
+    public void testBalance() {
+        List<String> nodeNames = Arrays.asList("node0", "node1", "node2", "node3");
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for(String primary : getPrimaryNodes(new DataPlacementTopology(nodeNames)).values()) {
+            Integer count = counts.get(primary);
+            counts.put(primary, count == null ? 1 : count + 1);
+        }
+        
+        assertEquals(nodeNames.size(), counts.size());
+        for(int count : counts.values()) {
+            assertTrue(count > KEY_NUM / 5 && count < KEY_NUM * 3 / 10);
+        }
+    }
+    
+    @Test
+    public void testPrimaryAndBackupNodes() {
+        DataPlacementTopology topology = new DataPlacementTopology(Arrays.asList("node0", "node1", "node2"));
+        for(int i=0;i<100;i++) {
+            String key = "key" + i;
+            List<String> nodes = topology.getPrimaryAndBackupNodes(key, 1);
+            assertEquals(2, nodes.size());
+            assertEquals(topology.getPrimaryNode(key), nodes.get(0));
+            assertEquals(nodes.subList(1, 2), topology.getBackupNodes(key, 1));
+            
+            // more replicas than nodes places on every node once
+            List<String> all = topology.getPrimaryAndBackupNodes(key, 5);
+            assertEquals(3, all.size());
+            assertEquals(3, new HashSet<String>(all).size());
+            assertEquals(nodes, all.subList(0, 2));
+        }
+    }
+    
+    @Test
+    public void testEmptyTopology() {
+        DataPlacementTopology topology = new DataPlacementTopology(new ArrayList<String>());
+        assertEquals(0, topology.getNodeNum());
+        assertNull(topology.getPrimaryNode("key"));
+        assertTrue(topology.getPrimaryAndBackupNodes("key", 2).isEmpty());
+        assertTrue(topology.getBackupNodes("key", 2).isEmpty());
+    }
+}
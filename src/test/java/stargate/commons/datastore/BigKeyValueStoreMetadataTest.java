@@ -0,0 +1,108 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author iychoi
+ */
+public class BigKeyValueStoreMetadataTest {
+    
+    /**
+     * Encodes metadata the way older releases did, with an
+     * ObjectOutputStream.
+     */
+    private static byte[] toLegacyBytes(BigKeyValueStoreMetadata metadata) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(output);
+        
+        byte[] keyBytes = metadata.getKey().getBytes();
+        oos.writeInt(keyBytes.length);
+        oos.write(keyBytes);
+        oos.writeInt(metadata.getPartNum());
+        oos.writeLong(metadata.getEntrySize());
+        
+        byte[] extra = metadata.getExtra();
+        if(extra == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(extra.length);
+            oos.write(extra);
+        }
+        
+        oos.close();
+        return output.toByteArray();
+    }
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        BigKeyValueStoreMetadata metadata = new BigKeyValueStoreMetadata("key", 3, 2500, new byte[] {1, 2, 3});
+        byte[] bytes = metadata.toBytes();
+        assertEquals(metadata.getEncodedSize(), bytes.length);
+        assertEquals(metadata, BigKeyValueStoreMetadata.fromBytes(bytes));
+        
+        BigKeyValueStoreMetadata noExtra = new BigKeyValueStoreMetadata("other", 1, 10, null);
+        assertEquals(noExtra, BigKeyValueStoreMetadata.fromBytes(noExtra.toBytes()));
+    }
+    
+    @Test
+    public void testRecordsInOneBuffer() throws IOException {
+        BigKeyValueStoreMetadata first = new BigKeyValueStoreMetadata("first", 2, 1500, new byte[] {7});
+        BigKeyValueStoreMetadata second = new BigKeyValueStoreMetadata("second", 1, 20, null);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(first.getEncodedSize() + second.getEncodedSize());
+        first.writeTo(buffer);
+        second.writeTo(buffer);
+        buffer.flip();
+        
+        assertEquals(first, BigKeyValueStoreMetadata.fromBytes(buffer));
+        assertEquals(second, BigKeyValueStoreMetadata.fromBytes(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+    
+    @Test
+    public void testLegacyRoundTrip() throws IOException {
+        BigKeyValueStoreMetadata metadata = new BigKeyValueStoreMetadata("key", 3, 2500, new byte[] {1, 2, 3});
+        byte[] legacy = toLegacyBytes(metadata);
+        assertTrue(BigKeyValueStoreMetadata.isLegacyEncoding(legacy));
+        assertEquals(metadata, BigKeyValueStoreMetadata.fromBytes(legacy));
+        
+        BigKeyValueStoreMetadata noExtra = new BigKeyValueStoreMetadata("other", 1, 10, null);
+        assertEquals(noExtra, BigKeyValueStoreMetadata.fromBytes(toLegacyBytes(noExtra)));
+    }
+    
+    @Test
+    public void testLegacyRecordInBufferIsRejected() throws IOException {
+        byte[] legacy = toLegacyBytes(new BigKeyValueStoreMetadata("key", 1, 10, null));
+        ByteBuffer buffer = ByteBuffer.wrap(legacy);
+        try {
+            BigKeyValueStoreMetadata.fromBytes(buffer);
+            fail("a legacy record was decoded from a buffer");
+        } catch (IOException ex) {
+            // expected - the record has no length of its own
+        }
+        assertEquals(0, buffer.position());
+    }
+}
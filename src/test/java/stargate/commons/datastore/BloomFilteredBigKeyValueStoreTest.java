@@ -0,0 +1,235 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import stargate.commons.cluster.Cluster;
+import stargate.commons.cluster.DataPlacementEngine;
+import stargate.commons.cluster.Node;
+import stargate.commons.cluster.NodeStatus;
+import stargate.commons.transport.TransportServiceInfo;
+import stargate.commons.userinterface.UserInterfaceServiceInfo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class BloomFilteredBigKeyValueStoreTest {
+
+    private static final String DATA_NODE = "node0";
+    
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    
+    private TieredBigKeyValueStore store;
+    private DataPlacementEngine placementEngine;
+    
+    @Before
+    public void setUp() throws IOException {
+        File rootDir = this.tempFolder.newFolder("tiered");
+        this.store = new TieredBigKeyValueStore("bloom-test-" + rootDir.getParentFile().getName(), new DataStoreProperties(), rootDir, 1024, 0, 0, EvictionPolicyType.EVICTION_POLICY_LRU, DATA_NODE);
+        
+        // every key is placed on DATA_NODE alone
+        Node node = new Node(DATA_NODE, "cluster", true, new NodeStatus(), new TransportServiceInfo("transport", URI.create("http://localhost:1")), new UserInterfaceServiceInfo("ui", URI.create("http://localhost:2")));
+        this.placementEngine = new DataPlacementEngine(new Cluster("cluster", Arrays.asList(node)), 0);
+    }
+    
+    /**
+     * Input stream of zeros that blocks at its first read until released.
+     */
+    private static class BlockingInputStream extends InputStream {
+        
+        private int size;
+        private CountDownLatch blocked = new CountDownLatch(1);
+        private CountDownLatch released = new CountDownLatch(1);
+        
+        BlockingInputStream(int size) {
+            this.size = size;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int readLen = read(b, 0, 1);
+            return readLen <= 0 ? -1 : b[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            this.blocked.countDown();
+            try {
+                this.released.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            
+            if(this.size == 0) {
+                return -1;
+            }
+            int readLen = Math.min(len, this.size);
+            Arrays.fill(b, off, off + readLen, (byte) 0);
+            this.size -= readLen;
+            return readLen;
+        }
+    }
+    
+    private static int getStripe(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return h & 63;
+    }
+    
+    private static void put(AbstractBigKeyValueStore store, String key) throws IOException {
+        byte[] data = new byte[100];
+        store.put(key, new ByteArrayInputStream(data), data.length, null);
+    }
+    
+    @Test
+    public void testPutAndRemove() throws IOException {
+        BloomFilteredBigKeyValueStore filtered = new BloomFilteredBigKeyValueStore(this.store, this.placementEngine, DATA_NODE, Collections.<String>emptyList(), 1000, 0.01);
+        put(filtered, "key");
+        assertTrue(filtered.containsKey("key"));
+        assertNotNull(filtered.getMetadata("key"));
+        assertFalse(filtered.containsKey("missing"));
+        
+        filtered.remove("key");
+        assertFalse(filtered.containsKey("key"));
+        assertFalse(filtered.mightContainKey("key"));
+    }
+    
+    @Test
+    public void testRemoveOfMissingKeyKeepsOtherKeys() throws IOException {
+        // a tiny filter, so other keys collide with the counted one
+        BloomFilteredBigKeyValueStore filtered = new BloomFilteredBigKeyValueStore(this.store, this.placementEngine, DATA_NODE, Collections.<String>emptyList(), 1, 0.5);
+        put(filtered, "key");
+        
+        String collidingKey = null;
+        for(int i=0;i<10000 && collidingKey == null;i++) {
+            if(filtered.mightContainKey("other" + i)) {
+                collidingKey = "other" + i;
+            }
+        }
+        assertNotNull(collidingKey);
+        
+        filtered.remove(collidingKey);
+        filtered.remove(collidingKey);
+        
+        assertTrue(filtered.mightContainKey("key"));
+        assertTrue(filtered.containsKey("key"));
+        
+        // overwrites count the key once, so one remove clears it
+        put(filtered, "key");
+        put(filtered, "key");
+        filtered.remove("key");
+        filtered.remove("key");
+        assertFalse(filtered.mightContainKey("key"));
+    }
+    
+    @Test
+    public void testMissNeedsCurrentFilterOfDataNodes() throws Exception {
+        put(this.store, "remote");
+        
+        // the keys are placed on DATA_NODE, which has no filter here yet
+        BloomFilteredBigKeyValueStore filtered = new BloomFilteredBigKeyValueStore(this.store, this.placementEngine, "node1", Collections.<String>emptyList(), 1000, 0.01, 200);
+        assertTrue(filtered.containsKey("remote"));
+        assertTrue(filtered.mightContainKey("missing"));
+        
+        BloomFilteredBigKeyValueStore remote = new BloomFilteredBigKeyValueStore(this.store, this.placementEngine, DATA_NODE, Arrays.asList("remote"), 1000, 0.01);
+        filtered.updateRemoteFilter(DATA_NODE, remote.getFilterSnapshot());
+        assertTrue(filtered.containsKey("remote"));
+        assertFalse(filtered.mightContainKey("missing"));
+        
+        // the snapshot is no longer current
+        Thread.sleep(400);
+        assertTrue(filtered.mightContainKey("missing"));
+        
+        filtered.updateRemoteFilter(DATA_NODE, remote.getFilterSnapshot());
+        filtered.removeRemoteFilter(DATA_NODE);
+        assertTrue(filtered.mightContainKey("missing"));
+    }
+    
+    @Test
+    public void testRebuild() throws IOException {
+        BloomFilteredBigKeyValueStore filtered = new BloomFilteredBigKeyValueStore(this.store, this.placementEngine, DATA_NODE, Collections.<String>emptyList(), 1000, 0.01);
+        put(this.store, "existing");
+        assertFalse(filtered.containsKey("existing"));
+        
+        filtered.rebuild(new ArrayList<String>(Arrays.asList("existing")));
+        assertTrue(filtered.containsKey("existing"));
+        
+        filtered.remove("existing");
+        assertFalse(filtered.mightContainKey("existing"));
+    }
+    
+    @Test
+    public void testWriteInFlightBlocksNoOtherKey() throws Exception {
+        final BloomFilteredBigKeyValueStore filtered = new BloomFilteredBigKeyValueStore(this.store, this.placementEngine, DATA_NODE, Collections.<String>emptyList(), 1000, 0.01);
+        final BlockingInputStream slowStream = new BlockingInputStream(100);
+        
+        String sameStripeKey = null;
+        for(int i=0;sameStripeKey == null;i++) {
+            if(getStripe("other" + i) == getStripe("slow")) {
+                sameStripeKey = "other" + i;
+            }
+        }
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> slowPut = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    filtered.put("slow", slowStream, 100, null);
+                    return null;
+                }
+            });
+            assertTrue(slowStream.blocked.await(10, TimeUnit.SECONDS));
+            
+            // not reported missing while it is written
+            assertTrue(filtered.mightContainKey("slow"));
+            
+            put(filtered, sameStripeKey);
+            assertTrue(filtered.containsKey(sameStripeKey));
+            filtered.rebuild(Arrays.asList(sameStripeKey));
+            
+            slowStream.released.countDown();
+            slowPut.get(10, TimeUnit.SECONDS);
+            assertTrue(filtered.containsKey("slow"));
+            assertTrue(filtered.containsKey(sameStripeKey));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class DataStorePagingTest {
+
+    private LocalKeyValueStore store;
+    
+    @Before
+    public void setUp() throws IOException {
+        this.store = new LocalKeyValueStore("paging-test", String.class, new DataStoreProperties(), "node0");
+        for(int i=0;i<25;i++) {
+            this.store.put(String.format("a%02d", i), "value" + i);
+            this.store.put(String.format("b%02d", i), "value" + i);
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        this.store.shutdown();
+    }
+    
+    /**
+     * In-memory queue over a list, using the default paged listing.
+     */
+    private static class ListQueue extends AbstractQueue {
+        
+        private LinkedList<Object> items = new LinkedList<Object>();
+        
+        @Override
+        public String getName() {
+            return "list";
+        }
+        
+        @Override
+        public Class getValueClass() {
+            return String.class;
+        }
+        
+        @Override
+        public DataStoreProperties getProperties() {
+            return new DataStoreProperties();
+        }
+        
+        @Override
+        public int size() {
+            return this.items.size();
+        }
+        
+        @Override
+        public boolean isEmpty() {
+            return this.items.isEmpty();
+        }
+        
+        @Override
+        public Object dequeue() throws IOException {
+            return this.items.poll();
+        }
+        
+        @Override
+        public void enqueue(Object value) throws IOException {
+            this.items.add(value);
+        }
+        
+        @Override
+        public void clear() throws IOException {
+            this.items.clear();
+        }
+        
+        @Override
+        public List<Object> toList() throws IOException {
+            return new ArrayList<Object>(this.items);
+        }
+    }
+    
+    @Test
+    public void testKeyPagesResumeAfterToken() throws IOException {
+        List<String> keys = new ArrayList<String>();
+        String token = null;
+        int pageNum = 0;
+        do {
+            DataStorePage<String> page = this.store.listKeys("a", token, 10);
+            keys.addAll(page.getItems());
+            token = page.getContinuationToken();
+            pageNum++;
+        } while(token != null);
+        
+        assertEquals(3, pageNum);
+        assertEquals(25, keys.size());
+        for(int i=0;i<25;i++) {
+            assertEquals(String.format("a%02d", i), keys.get(i));
+        }
+    }
+    
+    @Test
+    public void testKeyPagesSkipRemovedToken() throws IOException {
+        DataStorePage<String> page = this.store.listKeys("b", null, 10);
+        assertEquals("b09", page.getContinuationToken());
+        
+        // the token key itself is gone, the listing still resumes after it
+        this.store.remove("b09");
+        this.store.remove("b10");
+        page = this.store.listKeys("b", page.getContinuationToken(), 10);
+        assertEquals("b11", page.getItems().get(0));
+    }
+    
+    @Test
+    public void testKeyCursor() throws IOException {
+        DataStoreCursor<String> cursor = this.store.keyCursor("b", 7);
+        int num = 0;
+        while(cursor.hasNext()) {
+            assertEquals(String.format("b%02d", num), cursor.next());
+            num++;
+        }
+        assertEquals(25, num);
+    }
+    
+    @Test
+    public void testQueuePagesSurviveDequeues() throws IOException {
+        ListQueue queue = new ListQueue();
+        for(int i=0;i<10;i++) {
+            queue.enqueue("item" + i);
+        }
+        
+        DataStorePage<Object> page = queue.listItems(null, 4);
+        assertEquals("item3", page.getItems().get(3));
+        
+        // the head moved on, the next page still starts after item3
+        queue.dequeue();
+        queue.dequeue();
+        page = queue.listItems(page.getContinuationToken(), 4);
+        assertEquals(4, page.getItems().size());
+        assertEquals("item4", page.getItems().get(0));
+        assertTrue(page.hasMore());
+        
+        // the token item is gone, every remaining item came after it
+        for(int i=0;i<8;i++) {
+            queue.dequeue();
+        }
+        queue.enqueue("item10");
+        page = queue.listItems(page.getContinuationToken(), 4);
+        assertEquals(1, page.getItems().size());
+        assertEquals("item10", page.getItems().get(0));
+        assertFalse(page.hasMore());
+        assertNull(page.getContinuationToken());
+    }
+    
+    @Test(expected = IOException.class)
+    public void testQueueRejectsMalformedToken() throws IOException {
+        ListQueue queue = new ListQueue();
+        queue.enqueue("item");
+        queue.listItems("not-a-token", 4);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import stargate.commons.io.AbstractSeekableInputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class LogStructuredBigKeyValueStoreTest {
+
+    private static final int PART_SIZE = 1000;
+    private static final long SEGMENT_SIZE = 20000;
+    private static final int KEY_LOCK_STRIPES = 64;
+    
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    
+    private ExecutorService executor;
+    private ExecutorService storeExecutor;
+    private DataStoreProperties properties;
+    
+    @Before
+    public void setUp() {
+        this.executor = Executors.newCachedThreadPool();
+        this.storeExecutor = Executors.newSingleThreadExecutor();
+        this.properties = new DataStoreProperties();
+        this.properties.setPersistent(true);
+    }
+    
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.storeExecutor.shutdownNow();
+    }
+    
+    /**
+     * Stops the background compactions of the stores, so another store can
+     * recover from the same directory.
+     */
+    private void quiesce() throws InterruptedException {
+        this.storeExecutor.shutdown();
+        assertTrue(this.storeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    
+    /**
+     * Input stream that stops after blockAt bytes until released.
+     */
+    private static class BlockingInputStream extends InputStream {
+        
+        private byte[] data;
+        private int blockAt;
+        private int offset;
+        private CountDownLatch blocked = new CountDownLatch(1);
+        private CountDownLatch released = new CountDownLatch(1);
+        
+        BlockingInputStream(byte[] data, int blockAt) {
+            this.data = data;
+            this.blockAt = blockAt;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(this.offset == this.blockAt) {
+                this.blocked.countDown();
+                try {
+                    this.released.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            
+            if(this.offset >= this.data.length) {
+                return -1;
+            }
+            
+            int end = this.offset < this.blockAt ? this.blockAt : this.data.length;
+            int toRead = Math.min(len, end - this.offset);
+            System.arraycopy(this.data, this.offset, b, off, toRead);
+            this.offset += toRead;
+            return toRead;
+        }
+    }
+    
+    private static byte[] makeData(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+    
+    private static int getStripe(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return h & (KEY_LOCK_STRIPES - 1);
+    }
+    
+    private static byte[] readAll(AbstractSeekableInputStream is, int size) throws IOException {
+        try {
+            byte[] data = new byte[size];
+            int offset = 0;
+            while(offset < size) {
+                int read = is.read(data, offset, size - offset);
+                if(read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            assertEquals(size, offset);
+            assertEquals(-1, is.read());
+            return data;
+        } finally {
+            is.close();
+        }
+    }
+    
+    private static void verify(LogStructuredBigKeyValueStore store, Map<String, byte[]> entries) throws IOException {
+        for(Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            assertTrue(store.containsKey(entry.getKey()));
+            byte[] data = readAll(store.getData(entry.getKey()), entry.getValue().length);
+            assertArrayEquals(entry.getValue(), data);
+            
+            BigKeyValueStoreMetadata metadata = store.getMetadata(entry.getKey());
+            for(int i=0;i<metadata.getPartNum();i++) {
+                int partLen = BigKeyValueStoreUtils.getPartSize(entry.getValue().length, PART_SIZE, i);
+                byte[] part = readAll(store.getDataPart(entry.getKey(), i), partLen);
+                assertArrayEquals(Arrays.copyOfRange(entry.getValue(), i * PART_SIZE, i * PART_SIZE + partLen), part);
+            }
+        }
+    }
+    
+    @Test
+    public void testCompactionDuringPut() throws Exception {
+        File rootDir = this.tempFolder.newFolder("logstore");
+        final LogStructuredBigKeyValueStore store = new LogStructuredBigKeyValueStore("logstore-test", this.properties, rootDir, PART_SIZE, SEGMENT_SIZE, "node0", this.storeExecutor);
+        Random random = new Random(7);
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        
+        // keys on other lock stripes, so they never wait for the slow put
+        final String slowKey = "slow";
+        List<String> keys = new ArrayList<String>();
+        for(int i=0;keys.size()<20;i++) {
+            String key = "key" + i;
+            if(getStripe(key) != getStripe(slowKey)) {
+                keys.add(key);
+            }
+        }
+        
+        for(String key : keys) {
+            byte[] data = makeData(random, 3000);
+            store.put(key, new ByteArrayInputStream(data), data.length, null);
+            entries.put(key, data);
+        }
+        
+        final byte[] slowData = makeData(random, 5000);
+        final BlockingInputStream slowStream = new BlockingInputStream(slowData, 2500);
+        Future<Void> slowPut = this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                store.put(slowKey, slowStream, slowData.length, null);
+                return null;
+            }
+        });
+        assertTrue(slowStream.blocked.await(10, TimeUnit.SECONDS));
+        
+        // seal the segment holding the first parts of the slow put and
+        // leave it mostly dead
+        for(int round=0;round<3;round++) {
+            for(String key : keys) {
+                byte[] data = makeData(random, 3000);
+                store.put(key, new ByteArrayInputStream(data), data.length, null);
+                entries.put(key, data);
+            }
+        }
+        store.compact();
+        
+        slowStream.released.countDown();
+        slowPut.get(10, TimeUnit.SECONDS);
+        entries.put(slowKey, slowData);
+        verify(store, entries);
+        
+        store.compact();
+        assertTrue(store.getMetrics().getCounter("compactions").sum() > 0);
+        verify(store, entries);
+        
+        quiesce();
+        LogStructuredBigKeyValueStore recovered = new LogStructuredBigKeyValueStore("logstore-test-recovered", this.properties, rootDir, PART_SIZE, SEGMENT_SIZE, "node0", this.executor);
+        verify(recovered, entries);
+    }
+    
+    @Test
+    public void testRemoveSurvivesCompactionAndRecovery() throws Exception {
+        File rootDir = this.tempFolder.newFolder("logstore");
+        LogStructuredBigKeyValueStore store = new LogStructuredBigKeyValueStore("logstore-test", this.properties, rootDir, PART_SIZE, SEGMENT_SIZE, "node0", this.storeExecutor);
+        Random random = new Random(11);
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        
+        for(int round=0;round<4;round++) {
+            for(int i=0;i<20;i++) {
+                String key = "key" + i;
+                byte[] data = makeData(random, 2500);
+                store.put(key, new ByteArrayInputStream(data), data.length, null);
+                entries.put(key, data);
+            }
+        }
+        
+        for(int i=0;i<20;i+=2) {
+            store.remove("key" + i);
+            entries.remove("key" + i);
+        }
+        store.compact();
+        verify(store, entries);
+        
+        quiesce();
+        LogStructuredBigKeyValueStore recovered = new LogStructuredBigKeyValueStore("logstore-test-recovered", this.properties, rootDir, PART_SIZE, SEGMENT_SIZE, "node0", this.executor);
+        verify(recovered, entries);
+        for(int i=0;i<20;i+=2) {
+            assertTrue(!recovered.containsKey("key" + i));
+        }
+    }
+    
+    @Test
+    public void testRecoveredUnsealedSegmentIsCompacted() throws Exception {
+        File rootDir = this.tempFolder.newFolder("logstore");
+        LogStructuredBigKeyValueStore store = new LogStructuredBigKeyValueStore("logstore-test", this.properties, rootDir, PART_SIZE, SEGMENT_SIZE, "node0", this.storeExecutor);
+        Random random = new Random(13);
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        
+        for(int i=0;i<20;i++) {
+            String key = "key" + i;
+            byte[] data = makeData(random, 2500);
+            store.put(key, new ByteArrayInputStream(data), data.length, null);
+            entries.put(key, data);
+        }
+        quiesce();
+        
+        // cut the footer off the first segment, as a crash while sealing it
+        // would; the trailer ends with the footer start and the magic
+        File firstSegment = new File(rootDir, "segment-00000000.log");
+        RandomAccessFile raf = new RandomAccessFile(firstSegment, "rw");
+        try {
+            raf.seek(raf.length() - 12);
+            raf.setLength(raf.readLong());
+        } finally {
+            raf.close();
+        }
+        
+        LogStructuredBigKeyValueStore recovered = new LogStructuredBigKeyValueStore("logstore-test-recovered", this.properties, rootDir, PART_SIZE, SEGMENT_SIZE, "node0", this.executor);
+        verify(recovered, entries);
+        
+        for(int round=0;round<2;round++) {
+            for(int i=0;i<20;i++) {
+                String key = "key" + i;
+                byte[] data = makeData(random, 2500);
+                recovered.put(key, new ByteArrayInputStream(data), data.length, null);
+                entries.put(key, data);
+            }
+        }
+        recovered.compact();
+        assertTrue(!firstSegment.exists());
+        verify(recovered, entries);
+    }
+}
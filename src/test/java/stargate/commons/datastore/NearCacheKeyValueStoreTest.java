@@ -0,0 +1,187 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import stargate.commons.cluster.Cluster;
+import stargate.commons.event.AbstractEventDriver;
+import stargate.commons.event.AbstractEventHandler;
+import stargate.commons.event.StargateEvent;
+import stargate.commons.event.StargateEventType;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ * @author iychoi
+ */
+public class NearCacheKeyValueStoreTest {
+
+    private LocalKeyValueStore store;
+    private EventBus eventBus;
+    private Cluster cluster;
+    private NearCacheKeyValueStore cache0;
+    private NearCacheKeyValueStore cache1;
+    
+    /**
+     * Delivers events synchronously to every handler, through JSON like a
+     * real driver.
+     */
+    private static class EventBus extends AbstractEventDriver {
+        
+        private List<AbstractEventHandler> handlers = new ArrayList<AbstractEventHandler>();
+        
+        @Override
+        public synchronized void addEventHandler(AbstractEventHandler eventHandler) {
+            this.handlers.add(eventHandler);
+        }
+        
+        @Override
+        public synchronized void removeEventHandler(AbstractEventHandler eventHandler) {
+            this.handlers.remove(eventHandler);
+        }
+        
+        @Override
+        public void raiseEvent(StargateEvent event) throws IOException {
+            StargateEvent received = StargateEvent.createInstance(event.toJson());
+            List<AbstractEventHandler> snapshot;
+            synchronized(this) {
+                snapshot = new ArrayList<AbstractEventHandler>(this.handlers);
+            }
+            
+            for(AbstractEventHandler handler : snapshot) {
+                handler.raised(received);
+            }
+        }
+        
+        @Override
+        public void raiseEvents(Collection<StargateEvent> events) throws IOException {
+            for(StargateEvent event : events) {
+                raiseEvent(event);
+            }
+        }
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        this.store = new LocalKeyValueStore("nearcache-test", String.class, new DataStoreProperties(), "node0");
+        this.eventBus = new EventBus();
+        this.cluster = new Cluster("cluster") {
+            @Override
+            public synchronized Collection<String> getNodeNames() {
+                return Arrays.asList("node0", "node1");
+            }
+        };
+        this.cache0 = new NearCacheKeyValueStore(this.store, 100000, 0, EvictionPolicyType.EVICTION_POLICY_LRU, this.eventBus, this.cluster, "node0");
+        this.cache1 = new NearCacheKeyValueStore(this.store, 100000, 0, EvictionPolicyType.EVICTION_POLICY_LRU, this.eventBus, this.cluster, "node1");
+    }
+    
+    @After
+    public void tearDown() {
+        this.cache0.close();
+        this.cache1.close();
+        this.store.shutdown();
+    }
+    
+    @Test
+    public void testPutInvalidatesOtherNodes() throws IOException {
+        // metrics are shared by the caches of the store
+        long hits = this.cache1.getMetrics().getHits();
+        this.cache0.put("key", "v1");
+        assertEquals("v1", this.cache1.get("key"));
+        assertEquals("v1", this.cache1.get("key"));
+        assertEquals(hits + 1, this.cache1.getMetrics().getHits());
+        
+        this.cache0.put("key", "v2");
+        assertEquals("v2", this.cache1.get("key"));
+        
+        this.cache0.remove("key");
+        assertNull(this.cache1.get("key"));
+    }
+    
+    @Test
+    public void testAsyncWritesInvalidateOnCompletion() throws Exception {
+        this.cache0.put("key", "v1");
+        assertEquals("v1", this.cache1.get("key"));
+        assertEquals("v1", this.cache0.get("key"));
+        
+        this.cache0.putAsync("key", "v2").get();
+        assertEquals("v2", this.cache0.get("key"));
+        assertEquals("v2", this.cache1.get("key"));
+        
+        this.cache0.removeAsync("key").get();
+        assertNull(this.cache1.get("key"));
+        
+        this.cache0.put("other", "v3");
+        assertEquals("v3", this.cache1.get("other"));
+        this.cache0.clearAsync().get();
+        assertEquals(0, this.cache1.getCachedEntryNum());
+        assertNull(this.cache1.get("other"));
+    }
+    
+    @Test
+    public void testBatchHitsAreCached() throws IOException {
+        this.cache0.put("key0", "v0");
+        this.cache0.put("key1", "v1");
+        assertEquals(2, this.cache1.getAll(Arrays.asList("key0", "key1")).getSucceededNum());
+        assertEquals(2, this.cache1.getCachedEntryNum());
+        
+        long hits = this.cache1.getMetrics().getHits();
+        KeyValueStoreBatchResult<Object> result = this.cache1.getAll(Arrays.asList("key0", "key1"));
+        assertEquals("v0", result.getResult("key0"));
+        assertEquals(hits + 2, this.cache1.getMetrics().getHits());
+    }
+    
+    @Test
+    public void testSequenceGapClearsCache() throws IOException {
+        this.store.put("key0", "v0");
+        this.store.put("key1", "v1");
+        this.cache1.get("key0");
+        this.cache1.get("key1");
+        assertEquals(2, this.cache1.getCachedEntryNum());
+        
+        raiseInvalidation("node2", "unrelated", 10);
+        assertEquals(2, this.cache1.getCachedEntryNum());
+        
+        // sequence 11 was lost
+        raiseInvalidation("node2", "unrelated", 12);
+        assertEquals(0, this.cache1.getCachedEntryNum());
+    }
+    
+    @Test
+    public void testEmptyBatchWritesInvalidateNothing() throws IOException {
+        this.cache0.put("key0", "v0");
+        assertEquals("v0", this.cache1.get("key0"));
+        assertEquals(1, this.cache1.getCachedEntryNum());
+        
+        this.cache0.putAll(new HashMap<String, Object>());
+        this.cache0.removeAll(new ArrayList<String>());
+        assertEquals(1, this.cache1.getCachedEntryNum());
+    }
+    
+    private void raiseInvalidation(String senderNodeName, String key, long sequence) throws IOException {
+        DataStoreInvalidation invalidation = new DataStoreInvalidation(this.store.getName(), Arrays.asList(key), sequence);
+        this.eventBus.raiseEvent(new StargateEvent(StargateEventType.STARGATE_EVENT_TYPE_DATASTORE_INVALIDATION, "node1", senderNodeName, invalidation.toJson()));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import stargate.commons.io.ByteBufferInputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class TieredBigKeyValueStoreTest {
+
+    private static final int PART_SIZE = 1024;
+    private static final int PART_NUM = 8;
+    
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    
+    private ExecutorService executor;
+    private TieredBigKeyValueStore store;
+    
+    @Before
+    public void setUp() throws IOException {
+        this.executor = Executors.newCachedThreadPool();
+        File rootDir = this.tempFolder.newFolder("tiered");
+        this.store = new TieredBigKeyValueStore("tiered-test-" + rootDir.getParentFile().getName(), new DataStoreProperties(), rootDir, PART_SIZE, 0, 0, EvictionPolicyType.EVICTION_POLICY_LRU, "node0", this.executor);
+    }
+    
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+    
+    private static byte[] makeData(int size) {
+        byte[] data = new byte[size];
+        for(int i=0;i<size;i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+    
+    /**
+     * Positional source that holds back one part until released.
+     */
+    private static class GatedInputStream extends ByteBufferInputStream {
+        
+        private int gatedPartNo;
+        private CountDownLatch gate;
+        
+        GatedInputStream(byte[] data, int gatedPartNo, CountDownLatch gate) {
+            super(ByteBuffer.wrap(data));
+            this.gatedPartNo = gatedPartNo;
+            this.gate = gate;
+        }
+        
+        @Override
+        public int read(long position, ByteBuffer dst) throws IOException {
+            if(position / PART_SIZE == this.gatedPartNo) {
+                try {
+                    this.gate.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+            return super.read(position, dst);
+        }
+    }
+    
+    private Future<byte[]> readPartAsync(final File cacheFile, final int partNo) {
+        return this.executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                DirectCacheFileInputStream is = new DirectCacheFileInputStream(cacheFile, (long) partNo * PART_SIZE, PART_SIZE);
+                try {
+                    byte[] buffer = new byte[PART_SIZE];
+                    int readLen = 0;
+                    while(readLen < buffer.length) {
+                        int len = is.read(buffer, readLen, buffer.length - readLen);
+                        if(len < 0) {
+                            break;
+                        }
+                        readLen += len;
+                    }
+                    return Arrays.copyOf(buffer, readLen);
+                } finally {
+                    is.close();
+                }
+            }
+        });
+    }
+    
+    @Test
+    public void testReaderOfAbsentPartWakesWhenPartLands() throws Exception {
+        final byte[] data = makeData(PART_SIZE * PART_NUM);
+        final CountDownLatch gate = new CountDownLatch(1);
+        Future<?> put = this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                store.put("key", new GatedInputStream(data, 2, gate), data.length, null);
+                return null;
+            }
+        });
+        
+        File cacheFile = this.store.getCacheFilePath("key");
+        Future<byte[]> blocked = readPartAsync(cacheFile, 2);
+        Future<byte[]> landed = readPartAsync(cacheFile, 5);
+        
+        // parts after the held one land and are readable out of order
+        assertArrayEquals(Arrays.copyOfRange(data, 5 * PART_SIZE, 6 * PART_SIZE), landed.get(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertFalse(blocked.isDone());
+        assertFalse(this.store.containsKey("key"));
+        
+        gate.countDown();
+        assertArrayEquals(Arrays.copyOfRange(data, 2 * PART_SIZE, 3 * PART_SIZE), blocked.get(10, TimeUnit.SECONDS));
+        put.get(10, TimeUnit.SECONDS);
+        
+        assertTrue(this.store.containsKey("key"));
+        assertFalse(CacheFilePartBitmap.getSidecarFile(cacheFile).exists());
+    }
+    
+    @Test
+    public void testReplaceKeepsEntryVisible() throws Exception {
+        final byte[] data = makeData(PART_SIZE * 3);
+        this.store.put("key", new ByteArrayInputStream(data), data.length, null);
+        
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicInteger misses = new AtomicInteger(0);
+        Future<?> reader = this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                while(!done.get()) {
+                    if(store.getMetadata("key") == null) {
+                        misses.incrementAndGet();
+                    }
+                }
+                return null;
+            }
+        });
+        
+        for(int i=0;i<50;i++) {
+            this.store.put("key", new ByteArrayInputStream(data), data.length, null);
+        }
+        done.set(true);
+        reader.get(10, TimeUnit.SECONDS);
+        
+        assertEquals(0, misses.get());
+        assertEquals(data.length, this.store.getDiskUsed());
+    }
+    
+    @Test
+    public void testPutWarmsLeadingPartsOnly() throws Exception {
+        File rootDir = this.tempFolder.newFolder("tiered-ram");
+        TieredBigKeyValueStore ramStore = new TieredBigKeyValueStore("tiered-ram-test-" + rootDir.getParentFile().getName(), new DataStoreProperties(), rootDir, PART_SIZE, PART_SIZE * PART_NUM * 2, 0, EvictionPolicyType.EVICTION_POLICY_LRU, "node0", this.executor);
+        byte[] data = makeData(PART_SIZE * PART_NUM);
+        ramStore.put("key", new ByteArrayInputStream(data), data.length, null);
+        
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!ramStore.isPartInRAM("key", 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        
+        assertTrue(ramStore.isPartInRAM("key", 0));
+        assertFalse(ramStore.isPartInRAM("key", PART_NUM - 1));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author iychoi
+ */
+public class RAMBufferInputStreamTest {
+
+    private static final int DATA_SIZE = 256 * 1024;
+    
+    private ExecutorService executor;
+    
+    @Before
+    public void setUp() {
+        this.executor = Executors.newCachedThreadPool();
+    }
+    
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+    
+    private static byte[] makeData(int size) {
+        byte[] data = new byte[size];
+        for(int i=0;i<size;i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+    
+    private Future<byte[]> readAsync(final RAMBufferInputStream is, final long position, final int len) {
+        return this.executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                ByteBuffer buffer = ByteBuffer.allocate(len);
+                while(buffer.hasRemaining()) {
+                    int read = is.read(position + buffer.position(), buffer);
+                    if(read < 0) {
+                        throw new IOException("unexpected end of stream");
+                    }
+                }
+                return buffer.array();
+            }
+        });
+    }
+    
+    private static void assertRange(byte[] data, long position, byte[] actual) {
+        for(int i=0;i<actual.length;i++) {
+            assertEquals(data[(int) position + i], actual[i]);
+        }
+    }
+    
+    @Test
+    public void testNearWaiterIsNotHeldByLaterFarWaiter() throws Exception {
+        byte[] data = makeData(DATA_SIZE);
+        PipedOutputStream os = new PipedOutputStream();
+        PipedInputStream pis = new PipedInputStream(os, DATA_SIZE);
+        RAMBufferInputStream is = new RAMBufferInputStream(pis, DATA_SIZE);
+        try {
+            // the far waiter comes last, the near one must still be woken
+            // as soon as its bytes land
+            Future<byte[]> near = readAsync(is, 0, 512);
+            Thread.sleep(200);
+            Future<byte[]> far = readAsync(is, DATA_SIZE - 1024, 1024);
+            Thread.sleep(200);
+            
+            os.write(data, 0, 1024);
+            os.flush();
+            assertRange(data, 0, near.get(1, TimeUnit.SECONDS));
+            
+            os.write(data, 1024, DATA_SIZE - 1024);
+            os.flush();
+            assertRange(data, DATA_SIZE - 1024, far.get(10, TimeUnit.SECONDS));
+        } finally {
+            os.close();
+            is.close();
+        }
+    }
+    
+    @Test
+    public void testConcurrentWaiters() throws Exception {
+        byte[] data = makeData(DATA_SIZE);
+        PipedOutputStream os = new PipedOutputStream();
+        PipedInputStream pis = new PipedInputStream(os, DATA_SIZE);
+        RAMBufferInputStream is = new RAMBufferInputStream(pis, DATA_SIZE);
+        try {
+            int readerNum = 16;
+            int len = DATA_SIZE / readerNum;
+            Future<byte[]>[] reads = newFutureArray(readerNum);
+            for(int i=0;i<readerNum;i++) {
+                reads[readerNum - 1 - i] = readAsync(is, (readerNum - 1 - i) * (long) len, len);
+            }
+            
+            for(int offset=0;offset<DATA_SIZE;offset+=4096) {
+                os.write(data, offset, 4096);
+                os.flush();
+            }
+            
+            for(int i=0;i<readerNum;i++) {
+                assertRange(data, i * (long) len, reads[i].get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            os.close();
+            is.close();
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Future<byte[]>[] newFutureArray(int size) {
+        return new Future[size];
+    }
+}
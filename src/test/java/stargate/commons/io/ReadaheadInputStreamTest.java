@@ -0,0 +1,142 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class ReadaheadInputStreamTest {
+
+    private static final int DATA_SIZE = 512 * 1024;
+    private static final int BLOCK_SIZE = 8 * 1024;
+    
+    private ExecutorService executor;
+    
+    @Before
+    public void setUp() {
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+    
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+    
+    private static byte[] makeData(int size) {
+        byte[] data = new byte[size];
+        for(int i=0;i<size;i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+    
+    // a transport that takes a little while per read, so prefetch tasks overlap
+    private static InputStream slowStream(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                return super.read(b, off, Math.min(len, 4096));
+            }
+        };
+    }
+    
+    private static byte[] readAll(InputStream is, int readSize) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(DATA_SIZE);
+        byte[] buffer = new byte[readSize];
+        int readLen;
+        while((readLen = is.read(buffer, 0, buffer.length)) > 0) {
+            out.put(buffer, 0, readLen);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+    
+    @Test
+    public void testSequentialReadOnForwardOnlyStream() throws IOException {
+        byte[] data = makeData(DATA_SIZE);
+        UnrewindableChunkDataInputStream source = new UnrewindableChunkDataInputStream(slowStream(data), 0, DATA_SIZE);
+        ReadaheadInputStream is = new ReadaheadInputStream(source, this.executor, BLOCK_SIZE, 8, 4);
+        try {
+            assertTrue(is.isForwardOnly());
+            assertArrayEquals(data, readAll(is, 3000));
+            assertTrue(is.getHitCount() > is.getMissCount());
+            assertTrue(is.getPrefetchedBytes() > 0);
+        } finally {
+            is.close();
+        }
+    }
+    
+    @Test
+    public void testForwardSeekOnForwardOnlyStream() throws IOException {
+        byte[] data = makeData(DATA_SIZE);
+        UnrewindableChunkDataInputStream source = new UnrewindableChunkDataInputStream(slowStream(data), 0, DATA_SIZE);
+        ReadaheadInputStream is = new ReadaheadInputStream(source, this.executor, BLOCK_SIZE, 8, 4);
+        try {
+            byte[] buffer = new byte[1000];
+            while(is.getOffset() < 20000) {
+                assertTrue(is.read(buffer, 0, buffer.length) > 0);
+            }
+            
+            // far beyond the window, the prefetch in flight finishes first
+            long target = DATA_SIZE / 2 + 123;
+            is.seek(target);
+            byte[] rest = readAll(is, 5000);
+            assertArrayEquals(Arrays.copyOfRange(data, (int) target, DATA_SIZE), rest);
+        } finally {
+            is.close();
+        }
+    }
+    
+    @Test
+    public void testRandomSeekOnSeekableStream() throws IOException {
+        byte[] data = makeData(DATA_SIZE);
+        ReadaheadInputStream is = new ReadaheadInputStream(new ByteBufferInputStream(ByteBuffer.wrap(data)), this.executor, BLOCK_SIZE, 8, 4);
+        try {
+            byte[] buffer = new byte[2000];
+            long[] offsets = new long[] {0, 100000, 5000, 400000, 7};
+            for(long offset : offsets) {
+                is.seek(offset);
+                for(int i=0;i<10;i++) {
+                    long position = is.getOffset();
+                    int readLen = is.read(buffer, 0, buffer.length);
+                    assertTrue(readLen > 0);
+                    assertArrayEquals(Arrays.copyOfRange(data, (int) position, (int) position + readLen), Arrays.copyOf(buffer, readLen));
+                }
+            }
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+   Copyright 2018 The Trustees of University of Arizona
+
+   Licensed under the Apache License, Version 2.0 (the "License" );
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package stargate.commons.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author iychoi
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testCascadingExpiresOnTheExactTick() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+        // delays on each level and on the level boundaries
+        long[] delays = {1, 2, 63, 64, 65, 100, 4095, 4096, 4097, 5000, 262143, 262144, 262145};
+        for(long delay : delays) {
+            wheel.schedule(delay, delay);
+        }
+        assertEquals(delays.length, wheel.size());
+        
+        List<Long> expired = new ArrayList<Long>();
+        for(long tick=1;tick<=300000;tick++) {
+            for(Long item : wheel.advanceClock(tick)) {
+                assertEquals(tick, item.longValue());
+                expired.add(item);
+            }
+        }
+        assertEquals(delays.length, expired.size());
+        assertEquals(0, wheel.size());
+    }
+    
+    @Test
+    public void testCancel() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 0);
+        TimingWheel.Timeout<String> kept = wheel.schedule("kept", 700);
+        TimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", 700);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertEquals(1, wheel.size());
+        
+        assertTrue(wheel.advanceClock(690).isEmpty());
+        List<String> expired = wheel.advanceClock(700);
+        assertEquals(1, expired.size());
+        assertEquals("kept", expired.get(0));
+        assertTrue(kept.isExpired());
+        assertTrue(cancelled.isCancelled());
+        assertFalse(wheel.cancel(kept));
+        assertEquals(0, wheel.size());
+    }
+    
+    @Test
+    public void testDelayIsRoundedUpToATick() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 0);
+        wheel.schedule("item", 15);
+        assertTrue(wheel.advanceClock(10).isEmpty());
+        assertEquals(1, wheel.advanceClock(20).size());
+    }
+}